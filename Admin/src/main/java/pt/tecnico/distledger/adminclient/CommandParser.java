@@ -10,6 +10,7 @@ public class CommandParser extends BaseCommandParser {
   private static final String DEACTIVATE = "deactivate";
   private static final String GET_LEDGER_STATE = "getLedgerState";
   private static final String GOSSIP = "gossip";
+  private static final String GET_REPLICATION_LAG = "getReplicationLag";
 
   private final AdminService adminService;
 
@@ -24,6 +25,7 @@ public class CommandParser extends BaseCommandParser {
       case DEACTIVATE -> this.deactivate(line);
       case GET_LEDGER_STATE -> this.getLedgerState(line);
       case GOSSIP -> this.gossip(line);
+      case GET_REPLICATION_LAG -> this.getReplicationLag(line);
       default -> {
         Logger.debug("Unknown command: " + cmd);
         this.printUsage();
@@ -79,6 +81,18 @@ public class CommandParser extends BaseCommandParser {
     this.handleServiceCallResponse(() -> this.adminService.gossip(server));
   }
 
+  private void getReplicationLag(String line) {
+    String[] split = line.split(SPACE);
+    if (split.length != 2) {
+      this.printUsage();
+      return;
+    }
+
+    String server = split[1];
+
+    this.handleServiceCallResponse(() -> this.adminService.getReplicationLag(server));
+  }
+
   @Override
   protected void printUsage() {
     System.out.println(
@@ -87,6 +101,7 @@ public class CommandParser extends BaseCommandParser {
             + "- deactivate <server>\n"
             + "- getLedgerState <server>\n"
             + "- gossip <server>\n"
+            + "- getReplicationLag <server>\n"
             + "- exit\n");
   }
 }
@@ -9,6 +9,8 @@ import pt.tecnico.distledger.contract.admin.AdminDistLedger.DeactivateRequest;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.DeactivateResponse;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.GetLedgerStateRequest;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.GetLedgerStateResponse;
+import pt.tecnico.distledger.contract.admin.AdminDistLedger.GetReplicationLagRequest;
+import pt.tecnico.distledger.contract.admin.AdminDistLedger.GetReplicationLagResponse;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.GossipRequest;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.GossipResponse;
 import pt.tecnico.distledger.contract.admin.AdminServiceGrpc;
@@ -52,4 +54,15 @@ public class AdminService extends BaseService<AdminServiceGrpc.AdminServiceBlock
             server, request, AdminServiceGrpc.AdminServiceBlockingStub::gossip, MAX_TRIES)
         .map(GossipResponse::toString);
   }
+
+  /** Handle the Get Replication Lag command. */
+  public Optional<String> getReplicationLag(String server) {
+    GetReplicationLagRequest request = GetReplicationLagRequest.getDefaultInstance();
+    return this.makeRequestWithRetryInvalidatingStubCache(
+            server,
+            request,
+            AdminServiceGrpc.AdminServiceBlockingStub::getReplicationLag,
+            MAX_TRIES)
+        .map(GetReplicationLagResponse::toString);
+  }
 }
@@ -18,6 +18,7 @@ abstract class BaseTest extends Specification {
         "- deactivate <server>\n" +
         "- getLedgerState <server>\n" +
         "- gossip <server>\n" +
+        "- getReplicationLag <server>\n" +
         "- exit\n"
 
     def setup() {
@@ -0,0 +1,57 @@
+package pt.tecnico.distledger.adminclient
+
+import org.grpcmock.GrpcMock
+import pt.tecnico.distledger.contract.admin.AdminDistLedger.GetReplicationLagRequest
+import pt.tecnico.distledger.contract.admin.AdminDistLedger.GetReplicationLagResponse
+import pt.tecnico.distledger.contract.admin.AdminDistLedger.ReplicaLag
+import pt.tecnico.distledger.contract.admin.AdminServiceGrpc
+
+class GetReplicationLagTest extends BaseTest {
+    def "user provides invalid get replication lag command"() {
+        given: "an invalid get replication lag input"
+        provideInput("getReplicationLag wrong usage\nexit\n")
+
+        when: "the admin client is run"
+        runMain()
+
+        then: "the output is correct"
+        outBuf.toString() == ("> " + EXPECTED_USAGE_STRING + "\n> ")
+
+        and: "the mock server received no requests"
+        GrpcMock.verifyThat(GrpcMock.calledMethod(AdminServiceGrpc.getGetReplicationLagMethod()), GrpcMock.never())
+    }
+
+    def "get replication lag server returns non-empty response"() {
+        given: "a get replication lag input"
+        provideInput("getReplicationLag A\nexit\n")
+
+        and: "a mock server that returns the lag of one replica"
+        GrpcMock.stubFor(
+                GrpcMock.unaryMethod(AdminServiceGrpc.getGetReplicationLagMethod())
+                        .willReturn(GrpcMock.response(GetReplicationLagResponse.newBuilder()
+                                .addReplicas(ReplicaLag.newBuilder().setId(1).setPendingOperations(3))
+                                .setMillisSinceGossip(150)
+                                .setGossipIntervalMillis(20)
+                                .build())))
+
+        when: "the admin client is run"
+        runMain()
+
+        then: "the output is correct"
+        outBuf.toString() == ("> OK\n"
+                + "replicas {\n" +
+                "  id: 1\n" +
+                "  pendingOperations: 3\n" +
+                "}\n" +
+                "millisSinceGossip: 150\n" +
+                "gossipIntervalMillis: 20\n"
+                + "\n> ")
+
+        and: "the mock server received the correct request, exactly once"
+        GrpcMock.verifyThat(
+                GrpcMock.calledMethod(AdminServiceGrpc.getGetReplicationLagMethod())
+                        .withRequest(GetReplicationLagRequest.getDefaultInstance()),
+                GrpcMock.times(1)
+        )
+    }
+}
@@ -6,6 +6,7 @@ class HelpTest extends BaseTest {
         "- deactivate <server>\n" +
         "- getLedgerState <server>\n" +
         "- gossip <server>\n" +
+        "- getReplicationLag <server>\n" +
         "- exit\n"
 
     def "help output is correct"() {
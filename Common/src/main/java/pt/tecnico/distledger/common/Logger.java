@@ -1,6 +1,7 @@
 package pt.tecnico.distledger.common;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 /** Helper class to print debug messages. */
 public final class Logger {
@@ -33,6 +34,18 @@ public final class Logger {
     }
   }
 
+  /**
+   * Prints a debug message if the debug flag is set. The message is only built if it is printed, so
+   * this should be preferred for messages which are expensive to build.
+   *
+   * @param debugMessage the supplier of the message to print
+   */
+  public static void debug(Supplier<String> debugMessage) {
+    if (debugFlag.get()) {
+      System.err.println(debugMessage.get());
+    }
+  }
+
   /**
    * Prints an error message.
    *
@@ -1,10 +1,20 @@
 package pt.tecnico.distledger.common.domain;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
-/** Vector clock implementation class. */
+/**
+ * Vector clock implementation class.
+ *
+ * <p>Timestamps are stored sparsely: only the replicas with a positive timestamp are kept, in
+ * increasing order, in a growable array of primitive ints, next to their timestamps in another, of
+ * which only the first {@code entries} are in use. Replica IDs are never reused, so a clock only
+ * holds entries for the replicas whose operations it covers, rather than one for every replica
+ * which was ever part of the system. Copies of a clock marked as {@link #share() shared} share the
+ * arrays with it, and whichever is modified first takes its own copy of them, so taking a snapshot
+ * of a clock which is published to other threads, and not modified afterwards, is cheap.
+ */
 public final class VectorClock {
   /** Represents the possible results of a comparison between two vector clocks. */
   public enum Order {
@@ -14,7 +24,14 @@ public final class VectorClock {
     CONCURRENT
   }
 
-  private final ArrayList<Integer> timeStamps = new ArrayList<>();
+  private static final int[] EMPTY = new int[0];
+
+  private int[] replicas = EMPTY;
+  private int[] timeStamps = EMPTY;
+  private int entries = 0;
+
+  /** Whether the arrays may be shared with other clocks, and must be copied before writing. */
+  private boolean shared = false;
 
   /** Creates a new vector clock with all timestamps set to 0. */
   public VectorClock() {}
@@ -25,20 +42,53 @@ public final class VectorClock {
    * @param timeStamps Timestamps to initialize the clock with.
    */
   public VectorClock(int[] timeStamps) {
+    // Only keep positive timestamps, and treat the others as 0
+    int entries = 0;
+    for (int timeStamp : timeStamps) {
+      if (timeStamp > 0) {
+        entries++;
+      }
+    }
+
+    this.replicas = new int[entries];
+    this.timeStamps = new int[entries];
     for (int i = 0; i < timeStamps.length; i++) {
       if (timeStamps[i] > 0) {
-        this.set(i, timeStamps[i]);
+        this.replicas[this.entries] = i;
+        this.timeStamps[this.entries] = timeStamps[i];
+        this.entries++;
       }
     }
   }
 
   /**
-   * Creates a new vector clock from a given vector clock.
+   * Creates a new vector clock from a given vector clock. Only the arrays of a clock marked as
+   * {@link #share() shared} are shared with the copy, as the given clock itself isn't written to.
    *
    * @param other Vector clock to copy
    */
   public VectorClock(VectorClock other) {
-    this.timeStamps.addAll(other.timeStamps);
+    this.entries = other.entries;
+    if (other.shared) {
+      this.replicas = other.replicas;
+      this.timeStamps = other.timeStamps;
+      this.shared = true;
+    } else if (other.entries > 0) {
+      this.replicas = Arrays.copyOf(other.replicas, other.entries);
+      this.timeStamps = Arrays.copyOf(other.timeStamps, other.entries);
+    }
+  }
+
+  /**
+   * Marks the arrays of this clock as shared, so that its copies share them until either is
+   * modified. Must be called before the clock is published to other threads, as copying it doesn't
+   * write to it.
+   *
+   * @return this clock.
+   */
+  public VectorClock share() {
+    this.shared = true;
+    return this;
   }
 
   /**
@@ -47,7 +97,13 @@ public final class VectorClock {
    * @param replica Replica to increment.
    */
   public void increment(int replica) {
-    this.set(replica, this.get(replica) + 1);
+    final int index = this.indexOf(replica);
+    if (index >= 0) {
+      this.prepareWrite();
+      this.timeStamps[index]++;
+    } else {
+      this.insert(-index - 1, replica, 1);
+    }
   }
 
   /**
@@ -56,19 +112,80 @@ public final class VectorClock {
    * @param other Clock to merge with.
    */
   public void merge(VectorClock other) {
-    for (int i = 0; i < other.timeStamps.size(); i++) {
-      this.mergeSingle(other, i);
+    // Avoid copying shared arrays if nothing would change
+    if (!this.isBehind(other)) {
+      return;
+    }
+
+    // Count the entries of the merged clock, which are only written in place if this clock already
+    // has an entry for each replica of the other one
+    int merged = this.entries;
+    for (int i = 0, j = 0; j < other.entries; j++) {
+      while (i < this.entries && this.replicas[i] < other.replicas[j]) {
+        i++;
+      }
+      if (i == this.entries || this.replicas[i] != other.replicas[j]) {
+        merged++;
+      }
     }
+
+    if (merged == this.entries) {
+      this.prepareWrite();
+      for (int i = 0, j = 0; j < other.entries; j++) {
+        while (this.replicas[i] < other.replicas[j]) {
+          i++;
+        }
+        this.timeStamps[i] = Math.max(this.timeStamps[i], other.timeStamps[j]);
+      }
+      return;
+    }
+
+    final int[] replicas = new int[merged];
+    final int[] timeStamps = new int[merged];
+    int i = 0;
+    int j = 0;
+    for (int k = 0; k < merged; k++) {
+      if (j == other.entries || (i < this.entries && this.replicas[i] < other.replicas[j])) {
+        replicas[k] = this.replicas[i];
+        timeStamps[k] = this.timeStamps[i++];
+      } else if (i == this.entries || other.replicas[j] < this.replicas[i]) {
+        replicas[k] = other.replicas[j];
+        timeStamps[k] = other.timeStamps[j++];
+      } else {
+        replicas[k] = this.replicas[i];
+        timeStamps[k] = Math.max(this.timeStamps[i++], other.timeStamps[j++]);
+      }
+    }
+
+    this.replicas = replicas;
+    this.timeStamps = timeStamps;
+    this.entries = merged;
+    this.shared = false;
   }
 
   /**
-   * Merges the timestamp of a single replica of the given clock into this one.
+   * Merges the timestamp of a single replica into this clock.
    *
-   * @param other Clock to merge with.
    * @param replica Replica to merge.
+   * @param ts Timestamp of the replica to merge with.
    */
-  public void mergeSingle(VectorClock other, int replica) {
-    this.set(replica, Math.max(this.get(replica), other.get(replica)));
+  public void mergeSingle(int replica, int ts) {
+    // Avoid copying shared arrays if nothing would change
+    if (ts > this.get(replica)) {
+      this.set(replica, ts);
+    }
+  }
+
+  /**
+   * Drops the entries of the replicas which have one in the given clock, e.g., the replicas which
+   * were retired, setting them to 0.
+   *
+   * @param retired Clock whose replicas are dropped.
+   */
+  public void retire(VectorClock retired) {
+    for (int j = 0; j < retired.entries; j++) {
+      this.set(retired.replicas[j], 0);
+    }
   }
 
   /**
@@ -78,11 +195,8 @@ public final class VectorClock {
    * @return The timestamp.
    */
   public int get(int replica) {
-    if (replica < this.timeStamps.size()) {
-      return this.timeStamps.get(replica);
-    } else {
-      return 0;
-    }
+    final int index = this.indexOf(replica);
+    return index >= 0 ? this.timeStamps[index] : 0;
   }
 
   /**
@@ -92,17 +206,74 @@ public final class VectorClock {
    * @param ts New timestamp.
    */
   public void set(int replica, int ts) {
-    this.timeStamps.ensureCapacity(replica + 1); // Avoid allocating each add
-    while (replica >= this.timeStamps.size()) {
-      this.timeStamps.add(0);
+    final int index = this.indexOf(replica);
+    if (index < 0) {
+      if (ts > 0) {
+        this.insert(-index - 1, replica, ts);
+      }
+      return;
+    }
+
+    this.prepareWrite();
+    if (ts > 0) {
+      this.timeStamps[index] = ts;
+    } else {
+      // Entries which are 0 aren't stored
+      System.arraycopy(this.replicas, index + 1, this.replicas, index, this.entries - index - 1);
+      System.arraycopy(
+          this.timeStamps, index + 1, this.timeStamps, index, this.entries - index - 1);
+      this.entries--;
     }
+  }
 
-    this.timeStamps.set(replica, ts);
+  /**
+   * Returns one more than the highest replica with a positive timestamp in this clock. Entries from
+   * this size on are all 0, as are the ones below it which aren't stored.
+   *
+   * @return the size of the clock.
+   */
+  public int size() {
+    return this.entries == 0 ? 0 : this.replicas[this.entries - 1] + 1;
   }
 
-  /** Converts the vector clock to a list of timestamps. */
+  /**
+   * Returns the number of replicas with a positive timestamp in this clock, i.e., the number of
+   * entries it stores.
+   */
+  public int entries() {
+    return this.entries;
+  }
+
+  /**
+   * Returns the replica of the entry at the given position, in increasing order of replicas.
+   *
+   * @param index Position of the entry, below {@link #entries()}.
+   */
+  public int replica(int index) {
+    return this.replicas[index];
+  }
+
+  /**
+   * Returns the timestamp of the entry at the given position, in increasing order of replicas.
+   *
+   * @param index Position of the entry, below {@link #entries()}.
+   */
+  public int timeStamp(int index) {
+    return this.timeStamps[index];
+  }
+
+  /**
+   * Converts the vector clock to a list of timestamps, with one for each replica up to its size.
+   */
   public List<Integer> toList() {
-    return new ArrayList<>(this.timeStamps);
+    final List<Integer> list = new ArrayList<>(this.size());
+    for (int i = 0; i < this.entries; i++) {
+      while (list.size() < this.replicas[i]) {
+        list.add(0);
+      }
+      list.add(this.timeStamps[i]);
+    }
+    return list;
   }
 
   /**
@@ -113,32 +284,111 @@ public final class VectorClock {
    * @return the result of the comparison.
    */
   public static Order compare(VectorClock c1, VectorClock c2) {
-    Order order = Order.EQUAL;
-
-    for (int i = 0; i < Math.max(c1.timeStamps.size(), c2.timeStamps.size()); ++i) {
-      Order comparison;
-      if (c1.get(i) < c2.get(i)) {
-        comparison = Order.BEFORE;
-      } else if (c1.get(i) > c2.get(i)) {
-        comparison = Order.AFTER;
-      } else {
-        comparison = Order.EQUAL;
-      }
+    final int[] r1 = c1.replicas;
+    final int[] r2 = c2.replicas;
+    final int[] t1 = c1.timeStamps;
+    final int[] t2 = c2.timeStamps;
+    boolean before = false;
+    boolean after = false;
 
-      if (order == Order.EQUAL) {
-        order = comparison;
-      } else if (order != comparison && comparison != Order.EQUAL) {
-        return Order.CONCURRENT;
+    // Walk both clocks in order of replicas: an entry only one of them has is 0 in the other
+    int i = 0;
+    int j = 0;
+    while (i < c1.entries && j < c2.entries) {
+      if (r1[i] == r2[j]) {
+        if (t1[i] < t2[j]) {
+          before = true;
+        } else if (t1[i] > t2[j]) {
+          after = true;
+        }
+        i++;
+        j++;
+      } else if (r1[i] < r2[j]) {
+        after = true;
+        i++;
+      } else {
+        before = true;
+        j++;
       }
     }
+    after |= i < c1.entries;
+    before |= j < c2.entries;
 
-    return order;
+    if (before) {
+      return after ? Order.CONCURRENT : Order.BEFORE;
+    }
+    return after ? Order.AFTER : Order.EQUAL;
   }
 
   @Override
   public String toString() {
-    return this.timeStamps.stream()
-        .map(Object::toString)
-        .collect(Collectors.joining(", ", "(", ")"));
+    final StringBuilder builder = new StringBuilder("(");
+    final List<Integer> list = this.toList();
+    for (int i = 0; i < list.size(); i++) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder.append(list.get(i));
+    }
+    return builder.append(')').toString();
+  }
+
+  /**
+   * Returns the position of the given replica's entry, or (-(insertion point) - 1) if it has none.
+   */
+  private int indexOf(int replica) {
+    return Arrays.binarySearch(this.replicas, 0, this.entries, replica);
+  }
+
+  /** Checks if any timestamp of the given clock is ahead of this one. */
+  private boolean isBehind(VectorClock other) {
+    for (int i = 0, j = 0; j < other.entries; j++) {
+      while (i < this.entries && this.replicas[i] < other.replicas[j]) {
+        i++;
+      }
+      if (i == this.entries
+          || this.replicas[i] != other.replicas[j]
+          || this.timeStamps[i] < other.timeStamps[j]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Inserts an entry for a replica which has none, at the given position. */
+  private void insert(int index, int replica, int ts) {
+    final int[] replicas;
+    final int[] timeStamps;
+    if (this.shared || this.entries == this.replicas.length) {
+      // Grow geometrically, to avoid reallocating on each new replica
+      final int capacity =
+          Math.max(this.entries + 1, this.shared ? 0 : this.replicas.length * 3 / 2 + 1);
+      replicas = new int[capacity];
+      timeStamps = new int[capacity];
+      System.arraycopy(this.replicas, 0, replicas, 0, index);
+      System.arraycopy(this.timeStamps, 0, timeStamps, 0, index);
+    } else {
+      replicas = this.replicas;
+      timeStamps = this.timeStamps;
+    }
+
+    System.arraycopy(this.replicas, index, replicas, index + 1, this.entries - index);
+    System.arraycopy(this.timeStamps, index, timeStamps, index + 1, this.entries - index);
+    replicas[index] = replica;
+    timeStamps[index] = ts;
+
+    this.replicas = replicas;
+    this.timeStamps = timeStamps;
+    this.entries++;
+    this.shared = false;
+  }
+
+  /** Prepares the clock to be written to in place: takes its own copy of the arrays if shared. */
+  private void prepareWrite() {
+    if (this.shared) {
+      this.replicas = Arrays.copyOf(this.replicas, this.entries);
+      this.timeStamps = Arrays.copyOf(this.timeStamps, this.entries);
+      this.shared = false;
+    }
   }
 }
@@ -38,7 +38,7 @@ public abstract class BaseService<S> implements AutoCloseable {
     try {
       S stub = this.stubCache.getStub(qualifier);
 
-      Logger.debug("Sending request: " + request.toString());
+      Logger.debug(() -> "Sending request: " + request);
       return Optional.of(dispatcher.apply(stub, request));
     } catch (StatusRuntimeException e) {
       if (Objects.equals(e.getStatus().getCode(), io.grpc.Status.Code.UNAVAILABLE)) {
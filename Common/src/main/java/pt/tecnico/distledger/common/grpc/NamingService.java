@@ -4,9 +4,14 @@ import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import java.util.List;
 import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.domain.VectorClock;
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.DeleteRequest;
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.LookupRequest;
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RegisterRequest;
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.ReportRequest;
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.ReportResponse;
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RetiredRequest;
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RetiredResponse;
 import pt.tecnico.distledger.contract.namingserver.NamingServiceGrpc;
 
 /**
@@ -17,6 +22,14 @@ public class NamingService implements AutoCloseable {
   /** Represents an entry in the naming service. */
   public record Entry(String qualifier, String target, int id) {}
 
+  /**
+   * Represents the IDs retired from a service.
+   *
+   * @param epoch the number of times IDs were retired from the service.
+   * @param retired the sequence number of the last operation of each retired ID.
+   */
+  public record Retirement(int epoch, VectorClock retired) {}
+
   /** Target host and port for the well-known naming server. */
   private static final String WELL_KNOWN_TARGET = "localhost:5001";
 
@@ -52,8 +65,20 @@ public class NamingService implements AutoCloseable {
 
   /** Executes a delete request. */
   public void delete(String service, String target) {
+    this.delete(service, target, 0);
+  }
+
+  /**
+   * Executes a delete request, for a server which received operations from clients up to the given
+   * sequence number, so that its ID can be retired once every other server executed them.
+   */
+  public void delete(String service, String target, int sequence) {
     DeleteRequest request =
-        DeleteRequest.newBuilder().setService(service).setTarget(target).build();
+        DeleteRequest.newBuilder()
+            .setService(service)
+            .setTarget(target)
+            .setSequence(sequence)
+            .build();
 
     Logger.debug("Delete request: " + request);
 
@@ -91,6 +116,40 @@ public class NamingService implements AutoCloseable {
         .toList();
   }
 
+  /**
+   * Executes a report request, for the server with the given ID, which executed the operations
+   * covered by the given timestamp.
+   *
+   * @return the IDs retired from the given service.
+   */
+  public Retirement report(String service, int id, VectorClock valueTimeStamp) {
+    ReportRequest request =
+        ReportRequest.newBuilder()
+            .setService(service)
+            .setId(id)
+            .setValueTS(ProtoUtils.toProto(valueTimeStamp))
+            .build();
+
+    Logger.debug("Report request: " + request);
+
+    final ReportResponse response = this.stub.report(request);
+    return new Retirement(response.getEpoch(), ProtoUtils.fromProto(response.getRetired()));
+  }
+
+  /**
+   * Executes a retired request.
+   *
+   * @return the IDs retired from the given service.
+   */
+  public Retirement retired(String service) {
+    RetiredRequest request = RetiredRequest.newBuilder().setService(service).build();
+
+    Logger.debug("Retired request: " + request);
+
+    final RetiredResponse response = this.stub.retired(request);
+    return new Retirement(response.getEpoch(), ProtoUtils.fromProto(response.getRetired()));
+  }
+
   /** Close channel immediately. */
   @Override
   public void close() {
@@ -1,28 +1,64 @@
 package pt.tecnico.distledger.common.grpc;
 
-import java.util.List;
 import pt.tecnico.distledger.common.domain.VectorClock;
 import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions;
 
 /** Collection of utility methods for gRPC Proto objects manipulation. */
 public class ProtoUtils {
+  private static final String INVALID_CLOCK = "Invalid vector clock";
+
   private ProtoUtils() {}
 
-  /** Convert a VectorClock domain entity to a Proto object. */
+  /**
+   * Convert a VectorClock domain entity to a Proto object, which is sparse if less than half of the
+   * replicas up to the last one with a positive timestamp have one, as each entry then costs two
+   * numbers instead of one.
+   */
   public static DistLedgerCommonDefinitions.VectorClock toProto(VectorClock vectorClock) {
-    List<Integer> timeStamps = vectorClock.toList();
-
-    // Remove trailing zeros
-    while (!timeStamps.isEmpty() && timeStamps.get(timeStamps.size() - 1) == 0) {
-      timeStamps.remove(timeStamps.size() - 1);
+    DistLedgerCommonDefinitions.VectorClock.Builder builder =
+        DistLedgerCommonDefinitions.VectorClock.newBuilder();
+    if (2 * vectorClock.entries() < vectorClock.size()) {
+      for (int i = 0; i < vectorClock.entries(); i++) {
+        builder.addReplicas(vectorClock.replica(i)).addValues(vectorClock.timeStamp(i));
+      }
+    } else {
+      // Only the replicas between entries are 0, as the last entry is the last positive timestamp
+      for (int i = 0; i < vectorClock.entries(); i++) {
+        while (builder.getValuesCount() < vectorClock.replica(i)) {
+          builder.addValues(0);
+        }
+        builder.addValues(vectorClock.timeStamp(i));
+      }
     }
-
-    return DistLedgerCommonDefinitions.VectorClock.newBuilder().addAllValues(timeStamps).build();
+    return builder.build();
   }
 
-  /** Convert a Proto VectorClock object to a domain entity. */
+  /**
+   * Convert a Proto VectorClock object to a domain entity.
+   *
+   * @throws IllegalArgumentException if the clock is sparse, and doesn't hold one timestamp for
+   *     each of its replicas, or any of them is negative.
+   */
   public static VectorClock fromProto(DistLedgerCommonDefinitions.VectorClock vectorClock) {
-    return new VectorClock(
-        vectorClock.getValuesList().stream().mapToInt(Integer::intValue).toArray());
+    if (vectorClock.getReplicasCount() > 0) {
+      if (vectorClock.getReplicasCount() != vectorClock.getValuesCount()) {
+        throw new IllegalArgumentException(INVALID_CLOCK);
+      }
+
+      final VectorClock clock = new VectorClock();
+      for (int i = 0; i < vectorClock.getReplicasCount(); i++) {
+        if (vectorClock.getReplicas(i) < 0) {
+          throw new IllegalArgumentException(INVALID_CLOCK);
+        }
+        clock.set(vectorClock.getReplicas(i), vectorClock.getValues(i));
+      }
+      return clock;
+    }
+
+    final int[] timeStamps = new int[vectorClock.getValuesCount()];
+    for (int i = 0; i < timeStamps.length; i++) {
+      timeStamps[i] = vectorClock.getValues(i);
+    }
+    return new VectorClock(timeStamps);
   }
 }
@@ -0,0 +1,46 @@
+package pt.tecnico.distledger.common.grpc;
+
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.domain.VectorClock;
+
+/**
+ * Tracks the replicas retired from a service, as announced by the naming server, so that clients
+ * can drop their entries from their timestamps.
+ *
+ * <p>Servers stamp the timestamps they send clients with the epoch of the retirements they know of.
+ * The retired replicas are only looked up once a timestamp with a later epoch than the last one
+ * looked up is received, so clients talk to the naming server once per retirement, at most.
+ */
+public class RetiredReplicas {
+  private static final String SERVICE_NAME = "DistLedger";
+
+  private final NamingService namingService;
+
+  // Safety: the following fields are only accessed while holding the tracker's lock
+  private int epoch = 0;
+  private VectorClock retired = new VectorClock();
+
+  public RetiredReplicas(NamingService namingService) {
+    this.namingService = namingService;
+  }
+
+  /**
+   * Returns the retired replicas, as of at least the given epoch, looking them up if they're not
+   * known yet. If the lookup fails, the ones known so far are returned, and it's retried later.
+   *
+   * @param epoch the epoch of a received timestamp.
+   * @return the sequence number of the last operation of each retired replica.
+   */
+  public synchronized VectorClock get(int epoch) {
+    if (epoch > this.epoch) {
+      try {
+        final NamingService.Retirement retirement = this.namingService.retired(SERVICE_NAME);
+        this.epoch = retirement.epoch();
+        this.retired = retirement.retired();
+      } catch (RuntimeException e) {
+        Logger.debug("Failed to look up retired replicas: " + e.getMessage());
+      }
+    }
+    return this.retired;
+  }
+}
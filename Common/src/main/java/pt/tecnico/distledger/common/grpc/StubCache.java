@@ -69,6 +69,24 @@ public class StubCache<T> implements AutoCloseable {
    * @throws ServerNotFoundException if no server with specified qualifier is found.
    */
   public T getStub(String qualifier) {
+    return this.getCachedStub(qualifier).stub();
+  }
+
+  /**
+   * Gets the channel to a server that has the specified qualifier, shared with its cached stub, so
+   * that other kinds of stubs may be created for it.
+   *
+   * @param qualifier the qualifier of the server to connect to.
+   * @return the channel to the server.
+   * @throws StatusRuntimeException if the lookup operation fails.
+   * @throws DuplicateQualifierException if there is more than one server with the same qualifier.
+   * @throws ServerNotFoundException if no server with specified qualifier is found.
+   */
+  public Channel getChannel(String qualifier) {
+    return this.getCachedStub(qualifier).channel();
+  }
+
+  private CachedStub<T> getCachedStub(String qualifier) {
     this.cachedStubs.computeIfAbsent(
         qualifier,
         qual -> {
@@ -84,7 +102,6 @@ public class StubCache<T> implements AutoCloseable {
         });
 
     return Optional.ofNullable(this.cachedStubs.get(qualifier))
-        .map(CachedStub::stub)
         .orElseThrow(() -> new ServerNotFoundException(qualifier));
   }
 
@@ -50,6 +50,21 @@ class VectorClockTest extends Specification {
         1  | 0  | 0  | 0  | 1  | 0  | "(1, 1)"
     }
 
+    def "merging a single timestamp only raises its entry"() {
+        given: "a vector clock, and a copy of it"
+        def clock = new VectorClock([1, 2] as int[])
+        def copy = new VectorClock(clock)
+
+        when: "timestamps of single replicas are merged into the copy"
+        copy.mergeSingle(0, 0)
+        copy.mergeSingle(1, 5)
+        copy.mergeSingle(3, 1)
+
+        then: "only the lower entries are raised, and the original is left as it was"
+        copy.toList() == [1, 5, 0, 1]
+        clock.toList() == [1, 2]
+    }
+
     def "A happens before B and B does not happen before A"() {
         given: "A = (0, 1, 0)"
         def a = new VectorClock()
@@ -116,4 +131,118 @@ class VectorClockTest extends Specification {
         then: "they are concurrent"
         abOrder == VectorClock.Order.CONCURRENT
     }
+
+    def "copies are independent of the original clock"() {
+        given: "a vector clock and a copy of it"
+        def original = new VectorClock([1, 2] as int[])
+        def copy = new VectorClock(original)
+
+        and: "a copy of the copy"
+        def copyOfCopy = new VectorClock(copy)
+
+        when: "the original and the copy are modified"
+        original.increment(0)
+        copy.set(3, 7)
+
+        then: "each clock only sees its own changes"
+        original.toString() == "(2, 2)"
+        copy.toString() == "(1, 2, 0, 7)"
+        copyOfCopy.toString() == "(1, 2)"
+    }
+
+    def "copies of shared clocks are independent of the original clock"() {
+        given: "a shared vector clock and a copy of it"
+        def original = new VectorClock([1, 2] as int[]).share()
+        def copy = new VectorClock(original)
+
+        when: "the copy is modified"
+        copy.increment(1)
+
+        then: "the original doesn't see the change"
+        original.toString() == "(1, 2)"
+        copy.toString() == "(1, 3)"
+
+        when: "the original is modified"
+        def other = new VectorClock(original)
+        original.set(0, 5)
+
+        then: "its copies don't see the change"
+        original.toString() == "(5, 2)"
+        other.toString() == "(1, 2)"
+    }
+
+    def "clocks only hold the replicas with a positive timestamp"() {
+        given: "a clock with the entries of two replicas far apart"
+        def clock = new VectorClock()
+        clock.set(1000, 2)
+        clock.increment(3)
+
+        expect: "it only stores their entries, but reads as a dense clock"
+        clock.entries() == 2
+        clock.size() == 1001
+        clock.get(3) == 1
+        clock.get(1000) == 2
+        clock.get(500) == 0
+
+        when: "an entry is set to 0"
+        clock.set(1000, 0)
+
+        then: "it's no longer stored"
+        clock.entries() == 1
+        clock.size() == 4
+        clock.toString() == "(0, 0, 0, 1)"
+    }
+
+    def "clocks with disjoint replicas are merged and compared"() {
+        given: "two clocks without replicas in common"
+        def a = new VectorClock()
+        a.set(2, 5)
+        a.set(900, 1)
+        def b = new VectorClock()
+        b.set(7, 3)
+
+        expect: "they are concurrent"
+        VectorClock.compare(a, b) == VectorClock.Order.CONCURRENT
+
+        when: "B is merged into A"
+        a.merge(b)
+
+        then: "A holds the entries of both, in order"
+        a.entries() == 3
+        (0..<a.entries()).collect { a.replica(it) } == [2, 7, 900]
+        (0..<a.entries()).collect { a.timeStamp(it) } == [5, 3, 1]
+        VectorClock.compare(b, a) == VectorClock.Order.BEFORE
+    }
+
+    def "retiring replicas drops their entries"() {
+        given: "a clock and the replicas retired"
+        def clock = new VectorClock([4, 2, 3] as int[])
+        def retired = new VectorClock([5, 0, 3] as int[])
+
+        when: "the replicas are retired from the clock"
+        clock.retire(retired)
+
+        then: "only the entries of the others are kept"
+        clock.toList() == [0, 2]
+    }
+
+    def "clocks which differ in every entry are compared and merged"() {
+        given: "clocks which must be compared entry by entry"
+        def a = new VectorClock((1..size).collect { it * 3 } as int[])
+        def b = new VectorClock((1..size).collect { it * 3 + it % 2 } as int[])
+
+        when: "a copy of the first one is merged with the second one"
+        def merged = new VectorClock(a)
+        merged.merge(b)
+
+        then: "the first one happens before the second one, which the merge is equal to"
+        VectorClock.compare(a, b) == VectorClock.Order.BEFORE
+        VectorClock.compare(merged, b) == VectorClock.Order.EQUAL
+
+        and: "the first one is unchanged"
+        a.toList() == (1..size).collect { it * 3 }
+
+        where:
+        size << [3, 8, 64]
+    }
 }
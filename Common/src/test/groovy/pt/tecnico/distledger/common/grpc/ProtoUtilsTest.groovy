@@ -19,4 +19,62 @@ class ProtoUtilsTest extends Specification {
                 .addValues(1)
                 .build()
     }
+
+    def "converts a protobuf message to a vector clock"() {
+        given: "a protobuf message"
+        def message = DistLedgerCommonDefinitions.VectorClock.newBuilder()
+                .addValues(0)
+                .addValues(3)
+                .addValues(0)
+                .build()
+
+        when: "the message is converted to a vector clock"
+        def clock = ProtoUtils.fromProto(message)
+
+        then: "the vector clock is correct"
+        clock.toList() == [0, 3]
+
+        and: "it converts back to the same timestamps, without trailing zeros"
+        ProtoUtils.toProto(clock).getValuesList() == [0, 3]
+    }
+
+    def "converts a vector clock with few entries to a sparse protobuf message"() {
+        given: "a vector clock with entries far apart"
+        def clock = new VectorClock()
+        clock.set(1, 4)
+        clock.set(40, 2)
+
+        when: "the vector clock is converted to a protobuf message"
+        def message = ProtoUtils.toProto(clock)
+
+        then: "only its entries are sent"
+        message == DistLedgerCommonDefinitions.VectorClock.newBuilder()
+                .addReplicas(1)
+                .addValues(4)
+                .addReplicas(40)
+                .addValues(2)
+                .build()
+
+        and: "it converts back to the same clock"
+        VectorClock.compare(ProtoUtils.fromProto(message), clock) == VectorClock.Order.EQUAL
+    }
+
+    def "rejects invalid sparse protobuf messages"() {
+        when: "a sparse message is converted to a vector clock"
+        ProtoUtils.fromProto(message)
+
+        then: "an exception is thrown"
+        thrown(IllegalArgumentException)
+
+        where:
+        message << [
+                DistLedgerCommonDefinitions.VectorClock.newBuilder()
+                        .addReplicas(1)
+                        .build(),
+                DistLedgerCommonDefinitions.VectorClock.newBuilder()
+                        .addReplicas(-1)
+                        .addValues(2)
+                        .build()
+        ]
+    }
 }
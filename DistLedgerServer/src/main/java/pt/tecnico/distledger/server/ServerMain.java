@@ -5,20 +5,31 @@ import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import pt.tecnico.distledger.common.Logger;
 import pt.tecnico.distledger.common.grpc.NamingService;
+import pt.tecnico.distledger.server.domain.ApplyLoop;
 import pt.tecnico.distledger.server.domain.ServerState;
 import pt.tecnico.distledger.server.grpc.AdminServiceImpl;
 import pt.tecnico.distledger.server.grpc.CrossServerService;
 import pt.tecnico.distledger.server.grpc.DistLedgerCrossServerServiceImpl;
+import pt.tecnico.distledger.server.grpc.GossipScheduler;
 import pt.tecnico.distledger.server.grpc.UserServiceImpl;
+import pt.tecnico.distledger.server.storage.Durability;
+import pt.tecnico.distledger.server.storage.ReplicaStorage;
+import pt.tecnico.distledger.server.storage.Snapshot;
 
 /** Main class for the DistLedger server. */
 public class ServerMain {
   private static final String SERVICE_NAME = "DistLedger";
+  private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+  private static final long DEFAULT_SNAPSHOT_RECORDS = 100_000;
 
   /** Main method. */
   public static void main(String[] args) throws IOException, InterruptedException {
@@ -41,19 +52,38 @@ public class ServerMain {
     // Connect to the naming server
     try (final NamingService namingService =
         namingServerTarget.map(NamingService::new).orElseGet(NamingService::new)) {
-      // Init the cross server service
-      try (final CrossServerService crossServerService = new CrossServerService(namingService)) {
+      // Init the cross server service, giving each replica up to gossip.deadlineMs to accept the
+      // state propagated to it, and using the packed format unless gossip.packed is false, and
+      // open the replica storage
+      final Duration gossipDeadline =
+          Duration.ofMillis(
+              Long.getLong("gossip.deadlineMs", CrossServerService.DEFAULT_DEADLINE.toMillis()));
+      final boolean gossipPacked =
+          Boolean.parseBoolean(System.getProperty("gossip.packed", "true"));
+      try (final CrossServerService crossServerService =
+              new CrossServerService(namingService, gossipDeadline, gossipPacked);
+          final ReplicaStorage storage = openStorage(qualifier)) {
         // Register this server on the naming service
         final String target = InetAddress.getLocalHost().getHostAddress() + ":" + port;
         AtomicBoolean registered = new AtomicBoolean(false);
 
-        // 'Thread' used to unregister the server from the naming service
+        // Init active flag, and the server state once registered
+        final AtomicBoolean active = new AtomicBoolean(true);
+        final AtomicReference<ServerState> stateReference = new AtomicReference<>();
+
+        // 'Thread' used to unregister the server from the naming service, passing the sequence
+        // number of the last operation it received from clients, which it stops accepting first,
+        // so that its ID is retired once every other server executed them
         Thread autoUnregister =
             new Thread(
                 () -> {
                   if (registered.getAndSet(false)) {
+                    active.set(false);
+                    final ServerState state = stateReference.get();
+                    final int sequence =
+                        state == null ? 0 : state.getReplicaTimeStamp().get(state.getId());
                     try {
-                      namingService.delete(SERVICE_NAME, target);
+                      namingService.delete(SERVICE_NAME, target, sequence);
                     } catch (RuntimeException e) {
                       Logger.error("Failed to unregister server: " + e.getMessage());
                     }
@@ -77,17 +107,32 @@ public class ServerMain {
 
           // Init server state - we need to do this after registering the server so that we can
           // pass the assigned ID to the server state
-          final ServerState state = new ServerState(assignedId);
+          final ServerState state = new ServerState(assignedId, storage.getLog());
+          stateReference.set(state);
+
+          // Recover the state stored by previous runs of this replica
+          storage.recover(state);
+
+          // A replica joining a running service starts from a snapshot of another replica, unless
+          // join.snapshot is false, instead of waiting to receive and execute its whole ledger
+          if (state.getReplicaTimeStamp().size() == 0
+              && Boolean.parseBoolean(System.getProperty("join.snapshot", "true"))) {
+            joinFromSnapshot(state, storage, crossServerService);
+          }
 
-          // Init active flag
-          final AtomicBoolean active = new AtomicBoolean(true);
+          // Init the gossip scheduler, which also serves gossip requests from the admin
+          final GossipScheduler gossipScheduler =
+              openGossipScheduler(state, active, crossServerService);
+
+          // Init the apply loop, through which operations are added to the ledger
+          final ApplyLoop applyLoop = openApplyLoop(state);
 
           // Init service implementations
-          final BindableService userServiceImpl = new UserServiceImpl(state, active);
+          final BindableService userServiceImpl = new UserServiceImpl(state, active, applyLoop);
           final BindableService adminServiceImpl =
-              new AdminServiceImpl(state, active, crossServerService);
+              new AdminServiceImpl(state, active, gossipScheduler);
           final BindableService crossServerServiceImpl =
-              new DistLedgerCrossServerServiceImpl(state, active, crossServerService);
+              new DistLedgerCrossServerServiceImpl(state, active, crossServerService, applyLoop);
 
           // Launch server
           final Server server =
@@ -107,8 +152,10 @@ public class ServerMain {
           System.in.read();
 
           // Wait until server is terminated
+          gossipScheduler.close();
           server.shutdown();
           server.awaitTermination();
+          applyLoop.close();
         } finally {
           autoUnregister.run();
         }
@@ -117,4 +164,154 @@ public class ServerMain {
 
     Logger.debug("Server terminated");
   }
+
+  /**
+   * Restores a snapshot fetched from another replica, if any of them holds some state, and stores
+   * it, so that this replica recovers from it if it restarts.
+   */
+  private static void joinFromSnapshot(
+      ServerState state, ReplicaStorage storage, CrossServerService crossServerService) {
+    final long start = System.nanoTime();
+    final Optional<Snapshot> snapshot;
+    try {
+      snapshot =
+          crossServerService
+              .fetchSnapshot(state.getId())
+              .filter(fetched -> fetched.replicaTimeStamp().size() > 0);
+    } catch (RuntimeException e) {
+      // The replica still catches up through gossip
+      Logger.error("Failed to fetch snapshot: " + e.getMessage());
+      return;
+    }
+    if (snapshot.isEmpty()) {
+      return;
+    }
+
+    state.restoreSnapshot(snapshot.get());
+    storage.snapshot(state);
+    final long joined = System.nanoTime();
+
+    Logger.debug(
+        () ->
+            String.format(
+                "Joined from a snapshot of %d accounts and %d operations in %d ms",
+                snapshot.get().balances().size(),
+                snapshot.get().ledger().size(),
+                TimeUnit.NANOSECONDS.toMillis(joined - start)));
+  }
+
+  /**
+   * Opens the replica storage configured through system properties. If no directory is set, the
+   * server state is kept only in memory.
+   *
+   * <ul>
+   *   <li>{@code wal.dir}: directory where the write-ahead log is stored, under a subdirectory
+   *       named after the server's qualifier;
+   *   <li>{@code wal.durability}: one of {@code fsync}, {@code group} (default) or {@code async};
+   *   <li>{@code wal.maxWaitMs}: maximum time a group commit waits for more records (default 2);
+   *   <li>{@code wal.segmentSize}: size in bytes after which a new segment is started (default 64
+   *       MiB);
+   *   <li>{@code wal.snapshotRecords}: number of operations logged after which a snapshot is
+   *       captured (default 100000).
+   * </ul>
+   */
+  private static ReplicaStorage openStorage(String qualifier) {
+    final String directory = System.getProperty("wal.dir");
+    if (directory == null) {
+      return ReplicaStorage.inMemory();
+    }
+
+    final Durability durability =
+        Durability.valueOf(System.getProperty("wal.durability", "group").toUpperCase());
+    final Duration maxWait = Duration.ofMillis(Long.getLong("wal.maxWaitMs", 2));
+    final long segmentSize = Long.getLong("wal.segmentSize", DEFAULT_SEGMENT_SIZE);
+    final long snapshotRecords = Long.getLong("wal.snapshotRecords", DEFAULT_SNAPSHOT_RECORDS);
+
+    Logger.debug("Opening " + durability + " write-ahead log at " + directory);
+    return ReplicaStorage.open(
+        Path.of(directory, qualifier), durability, maxWait, segmentSize, snapshotRecords);
+  }
+
+  /**
+   * Creates the apply loop configured through system properties. Unless disabled, operations are
+   * added to the ledger by a single thread, instead of the threads handling requests.
+   *
+   * <ul>
+   *   <li>{@code apply.loop}: whether to add operations to the ledger on a dedicated thread
+   *       (default true);
+   *   <li>{@code apply.queueSize}: number of requests which may wait to be applied before the
+   *       threads handling requests wait too (default 4096).
+   * </ul>
+   */
+  private static ApplyLoop openApplyLoop(ServerState state) {
+    if (!Boolean.parseBoolean(System.getProperty("apply.loop", "true"))) {
+      return ApplyLoop.direct(state);
+    }
+
+    final int queueSize = Integer.getInteger("apply.queueSize", ApplyLoop.DEFAULT_CAPACITY);
+    Logger.debug("Applying operations on a dedicated thread, queueing up to " + queueSize);
+    return ApplyLoop.start(state, queueSize);
+  }
+
+  /**
+   * Creates the gossip scheduler configured through system properties. Unless enabled, the server
+   * only gossips when requested by the admin.
+   *
+   * <ul>
+   *   <li>{@code gossip.background}: whether to gossip periodically in the background (default
+   *       false);
+   *   <li>{@code gossip.minIntervalMs}: minimum interval between background rounds (default 20);
+   *   <li>{@code gossip.maxIntervalMs}: maximum interval between background rounds (default 2000);
+   *   <li>{@code gossip.eager}: whether to push operations added by clients shortly after they're
+   *       added (default false);
+   *   <li>{@code gossip.debounceMs}: time operations are held before being pushed, so that the ones
+   *       added meanwhile are pushed together (default 5);
+   *   <li>{@code gossip.maxPushSize}: number of held operations after which they're pushed right
+   *       away (default 256).
+   *   <li>{@code ledger.truncate}: whether to drop the operations every other replica holds from
+   *       the ledger after each round (default false);
+   *   <li>{@code clock.retire}: whether to report the operations executed to the naming server, so
+   *       that the replicas which left are dropped from the timestamps exchanged with clients
+   *       (default false);
+   *   <li>{@code clock.retireIntervalMs}: interval between reports (default 1000).
+   * </ul>
+   */
+  private static GossipScheduler openGossipScheduler(
+      ServerState state, AtomicBoolean active, CrossServerService crossServerService) {
+    final Duration minInterval =
+        Duration.ofMillis(
+            Long.getLong("gossip.minIntervalMs", GossipScheduler.DEFAULT_MIN_INTERVAL.toMillis()));
+    final Duration maxInterval =
+        Duration.ofMillis(
+            Long.getLong("gossip.maxIntervalMs", GossipScheduler.DEFAULT_MAX_INTERVAL.toMillis()));
+
+    final GossipScheduler scheduler =
+        new GossipScheduler(state, active, crossServerService, minInterval, maxInterval);
+    if (Boolean.getBoolean("gossip.background")) {
+      Logger.debug("Gossiping in the background every " + minInterval + " to " + maxInterval);
+      scheduler.start();
+    }
+    if (Boolean.getBoolean("gossip.eager")) {
+      final Duration debounce =
+          Duration.ofMillis(
+              Long.getLong("gossip.debounceMs", GossipScheduler.DEFAULT_DEBOUNCE.toMillis()));
+      final int maxPushSize =
+          Integer.getInteger("gossip.maxPushSize", GossipScheduler.DEFAULT_MAX_PUSH_SIZE);
+      Logger.debug("Pushing operations after " + debounce + " or every " + maxPushSize);
+      scheduler.startEager(debounce, maxPushSize);
+    }
+    if (Boolean.getBoolean("ledger.truncate")) {
+      Logger.debug("Dropping the operations every replica holds after each round");
+      scheduler.startTruncating();
+    }
+    if (Boolean.getBoolean("clock.retire")) {
+      final Duration interval =
+          Duration.ofMillis(
+              Long.getLong(
+                  "clock.retireIntervalMs", GossipScheduler.DEFAULT_RETIRE_INTERVAL.toMillis()));
+      Logger.debug("Reporting executed operations to the naming server every " + interval);
+      scheduler.startRetiring(interval);
+    }
+    return scheduler;
+  }
 }
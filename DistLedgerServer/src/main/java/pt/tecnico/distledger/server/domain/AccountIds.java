@@ -0,0 +1,171 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.util.Arrays;
+
+/**
+ * Interns account IDs to dense integer handles, so that account tables can be indexed by arrays
+ * instead of hashing the IDs on every access. Handles are assigned in order, starting at 0, and are
+ * shared by every account table in the process, since operations look their handles up before being
+ * executed by any state.
+ *
+ * <p>IDs are kept in an open-addressing hash table of handles, backed by chunked arrays of names,
+ * which takes a few bytes per ID, besides the ID itself. Lookups don't take any lock: since handles
+ * and names are never removed nor changed once set, a lookup which races with an insertion can only
+ * miss the ID, in which case it is retried while holding the lock.
+ *
+ * <p>Handles are never released, so IDs are only interned once an account with them is created.
+ * Reads and transfers only {@link #lookup(String)} the IDs they name, which doesn't assign a handle
+ * to an ID without an account.
+ */
+public final class AccountIds {
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int INITIAL_SLOTS = 1024;
+
+  private static final Object lock = new Object();
+
+  /** Holds each handle plus one, so that zero marks an empty slot. At most half full. */
+  private static volatile int[] slots = new int[INITIAL_SLOTS];
+
+  /** Holds the ID of each handle, in chunks which are never moved once allocated. */
+  private static volatile String[][] names = new String[0][];
+
+  private static int count = 0;
+
+  private AccountIds() {}
+
+  /**
+   * Returns the handle of the given account ID, assigning it a new one if it has none.
+   *
+   * @param id the account ID.
+   * @return the handle of the ID.
+   */
+  public static int intern(String id) {
+    final int handle = find(slots, id);
+    if (handle >= 0) {
+      return handle;
+    }
+
+    synchronized (lock) {
+      final int existing = find(slots, id);
+      return existing >= 0 ? existing : insert(id);
+    }
+  }
+
+  /**
+   * Returns the handle of the given account ID, without assigning it one.
+   *
+   * @param id the account ID.
+   * @return the handle of the ID, or -1 if it has none.
+   */
+  public static int lookup(String id) {
+    final int handle = find(slots, id);
+    if (handle >= 0) {
+      return handle;
+    }
+
+    synchronized (lock) {
+      return find(slots, id);
+    }
+  }
+
+  /**
+   * Returns the account ID of the given handle.
+   *
+   * @param handle a handle returned by {@link #intern(String)}.
+   * @return the account ID.
+   */
+  public static String name(int handle) {
+    return names[handle >>> CHUNK_BITS][handle & CHUNK_MASK];
+  }
+
+  /** Returns the number of handles assigned so far. */
+  public static int count() {
+    synchronized (lock) {
+      return count;
+    }
+  }
+
+  /** Finds the handle of an ID in the given table, returning -1 if it is not there (yet). */
+  private static int find(int[] table, String id) {
+    final int mask = table.length - 1;
+    for (int i = spread(id.hashCode()) & mask; ; i = (i + 1) & mask) {
+      final int slot = table[i];
+      if (slot == 0) {
+        return -1;
+      }
+
+      final String name = nameIfVisible(slot - 1);
+      if (id.equals(name)) {
+        return slot - 1;
+      }
+    }
+  }
+
+  /**
+   * Returns the ID of a handle, or null if it is not visible to this thread yet.
+   *
+   * <p>Safety: a lookup may see a slot before the name it refers to, since neither is written
+   * through a volatile field. Treating it as a miss makes the caller retry while holding the lock.
+   */
+  private static String nameIfVisible(int handle) {
+    final String[][] chunks = names;
+    final int chunk = handle >>> CHUNK_BITS;
+    if (chunk >= chunks.length || chunks[chunk] == null) {
+      return null;
+    }
+    return chunks[chunk][handle & CHUNK_MASK];
+  }
+
+  /**
+   * Assigns a new handle to an ID.
+   *
+   * <p>Safety: must be called while holding the lock.
+   */
+  private static int insert(String id) {
+    final int handle = count++;
+
+    String[][] chunks = names;
+    if (handle >>> CHUNK_BITS == chunks.length) {
+      chunks = Arrays.copyOf(chunks, chunks.length + 1);
+      chunks[chunks.length - 1] = new String[CHUNK_SIZE];
+      names = chunks;
+    }
+    chunks[handle >>> CHUNK_BITS][handle & CHUNK_MASK] = id;
+
+    int[] table = slots;
+    if (2 * count > table.length) {
+      table = resize(table);
+    }
+    place(table, id, handle);
+    slots = table;
+    return handle;
+  }
+
+  /** Copies the slots to a table twice as large. The old table is left untouched for lookups. */
+  private static int[] resize(int[] table) {
+    final int[] resized = new int[table.length * 2];
+    for (int slot : table) {
+      if (slot != 0) {
+        place(resized, name(slot - 1), slot - 1);
+      }
+    }
+    return resized;
+  }
+
+  private static void place(int[] table, String id, int handle) {
+    final int mask = table.length - 1;
+    int i = spread(id.hashCode()) & mask;
+    while (table[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    table[i] = handle + 1;
+  }
+
+  /** Spreads the bits of a hash code, since linear probing suffers from clustered hash codes. */
+  private static int spread(int hash) {
+    final int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
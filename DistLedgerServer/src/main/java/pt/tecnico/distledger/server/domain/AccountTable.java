@@ -0,0 +1,260 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import pt.tecnico.distledger.server.domain.exceptions.UnknownAccountException;
+
+/**
+ * Holds the balances of the accounts of a replica, indexed by the handles of their IDs.
+ *
+ * <p>Balances are kept in primitive arrays, allocated in chunks as accounts in new ranges of
+ * handles are created, so each account takes a few bytes instead of a map entry and an object.
+ * Accounts are locked by striping: each handle maps to one of a fixed number of locks, which guards
+ * its balance.
+ *
+ * <p>The account of each handle only exists once it's created: until then, its balance holds a
+ * marker value.
+ */
+public class AccountTable {
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int STRIPES = 256;
+  private static final int ABSENT = -1;
+
+  private final Object[] locks = new Object[STRIPES];
+  private final AtomicInteger size = new AtomicInteger(0);
+
+  /**
+   * Holds the chunks of balances. Chunks are allocated while holding the table's lock, and the
+   * array is replaced by a larger copy, so that reading it never needs the lock.
+   */
+  private volatile int[][] chunks = new int[0][];
+
+  /** Creates an empty table. */
+  public AccountTable() {
+    for (int i = 0; i < STRIPES; i++) {
+      this.locks[i] = new Object();
+    }
+  }
+
+  /**
+   * Creates the account with the given handle.
+   *
+   * @param handle the handle of the account's ID.
+   * @param balance the initial balance of the account.
+   * @return true if the account was created, or false if it already existed.
+   */
+  public boolean create(int handle, int balance) {
+    final int[] chunk = this.allocate(handle);
+
+    synchronized (this.lockOf(handle)) {
+      if (chunk[handle & CHUNK_MASK] != ABSENT) {
+        return false;
+      }
+
+      chunk[handle & CHUNK_MASK] = balance;
+    }
+
+    this.size.incrementAndGet();
+    return true;
+  }
+
+  /** Returns whether the account with the given handle exists. */
+  public boolean contains(int handle) {
+    final int[] chunk = this.chunkOf(handle);
+    if (chunk == null) {
+      return false;
+    }
+
+    synchronized (this.lockOf(handle)) {
+      return chunk[handle & CHUNK_MASK] != ABSENT;
+    }
+  }
+
+  /**
+   * Returns the balance of the account with the given handle.
+   *
+   * @throws UnknownAccountException if the account doesn't exist.
+   */
+  public int getBalance(int handle) {
+    final int[] chunk = this.chunkOf(handle);
+    final int balance;
+    if (chunk == null) {
+      balance = ABSENT;
+    } else {
+      synchronized (this.lockOf(handle)) {
+        balance = chunk[handle & CHUNK_MASK];
+      }
+    }
+
+    if (balance == ABSENT) {
+      throw new UnknownAccountException(AccountIds.name(handle));
+    }
+    return balance;
+  }
+
+  /**
+   * Returns the balance of the account with the given ID.
+   *
+   * @throws UnknownAccountException if the account doesn't exist.
+   */
+  public int getBalance(String userId) {
+    final int handle = AccountIds.lookup(userId);
+    if (handle < 0) {
+      throw new UnknownAccountException(userId);
+    }
+    return this.getBalance(handle);
+  }
+
+  /**
+   * Transfers an amount between two existing accounts, if the source account has enough balance.
+   *
+   * @param from the handle of the source account.
+   * @param dest the handle of the destination account, which must be different from the source.
+   * @param amount the amount to transfer.
+   * @return true if the amount was transferred, or false if the source account doesn't have enough
+   *     balance.
+   */
+  public boolean transfer(int from, int dest, int amount) {
+    final int[] fromChunk = this.chunkOf(from);
+    final int[] destChunk = this.chunkOf(dest);
+
+    // Liveness: the stripes are locked in index order, otherwise a deadlock could occur when two or
+    // more symmetric (cyclic) transfers are executed in parallel. Accounts which share a stripe
+    // only take its lock once.
+    final int fromStripe = from & (STRIPES - 1);
+    final int destStripe = dest & (STRIPES - 1);
+    synchronized (this.locks[Math.min(fromStripe, destStripe)]) {
+      synchronized (this.locks[Math.max(fromStripe, destStripe)]) {
+        if (fromChunk[from & CHUNK_MASK] < amount) {
+          return false;
+        }
+
+        fromChunk[from & CHUNK_MASK] -= amount;
+        destChunk[dest & CHUNK_MASK] += amount;
+        return true;
+      }
+    }
+  }
+
+  /** Returns the number of accounts. */
+  public int size() {
+    return this.size.get();
+  }
+
+  /**
+   * Returns a copy of the balances of every account, by ID. Accounts are locked one stripe at a
+   * time, so the copy is only consistent if no operation is executed meanwhile.
+   */
+  public Map<String, Integer> getBalances() {
+    final Map<String, Integer> balances = new HashMap<>(this.size() * 2);
+    final int[][] chunks = this.chunks;
+    for (int c = 0; c < chunks.length; c++) {
+      final int[] chunk = chunks[c];
+      if (chunk == null) {
+        continue;
+      }
+
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+        final int balance;
+        synchronized (this.lockOf(i)) {
+          balance = chunk[i];
+        }
+
+        if (balance != ABSENT) {
+          balances.put(AccountIds.name((c << CHUNK_BITS) | i), balance);
+        }
+      }
+    }
+    return balances;
+  }
+
+  /**
+   * Returns a copy of the chunks of balances, which {@link #toBalances(int[][])} converts into the
+   * balances of every account, by ID, without holding any lock.
+   *
+   * <p>Safety: must only be called while no operation is executed, e.g., while holding the state's
+   * snapshot lock for writing, since the balances are copied without locking their stripes.
+   */
+  public int[][] copyChunks() {
+    final int[][] chunks = this.chunks;
+    final int[][] copy = new int[chunks.length][];
+    for (int c = 0; c < chunks.length; c++) {
+      copy[c] = chunks[c] == null ? null : chunks[c].clone();
+    }
+    return copy;
+  }
+
+  /** Returns the balances of every account, by ID, held by chunks copied from a table. */
+  public static Map<String, Integer> toBalances(int[][] chunks) {
+    int size = 0;
+    for (int[] chunk : chunks) {
+      if (chunk != null) {
+        for (int balance : chunk) {
+          size += balance != ABSENT ? 1 : 0;
+        }
+      }
+    }
+
+    final Map<String, Integer> balances = new HashMap<>(size * 2);
+    for (int c = 0; c < chunks.length; c++) {
+      final int[] chunk = chunks[c];
+      if (chunk == null) {
+        continue;
+      }
+
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+        if (chunk[i] != ABSENT) {
+          balances.put(AccountIds.name((c << CHUNK_BITS) | i), chunk[i]);
+        }
+      }
+    }
+    return balances;
+  }
+
+  /** Removes every account. */
+  public synchronized void clear() {
+    this.chunks = new int[0][];
+    this.size.set(0);
+  }
+
+  /** Returns the chunk holding the given handle, or null if it wasn't allocated yet. */
+  private int[] chunkOf(int handle) {
+    final int[][] chunks = this.chunks;
+    final int chunk = handle >>> CHUNK_BITS;
+    return chunk < chunks.length ? chunks[chunk] : null;
+  }
+
+  /**
+   * Returns the chunk holding the given handle, allocating it if needed. Chunks of handles without
+   * accounts in this table are never allocated.
+   */
+  private int[] allocate(int handle) {
+    final int[] existing = this.chunkOf(handle);
+    if (existing != null) {
+      return existing;
+    }
+
+    synchronized (this) {
+      final int chunk = handle >>> CHUNK_BITS;
+      final int[][] chunks = Arrays.copyOf(this.chunks, Math.max(this.chunks.length, chunk + 1));
+      if (chunks[chunk] == null) {
+        chunks[chunk] = new int[CHUNK_SIZE];
+        Arrays.fill(chunks[chunk], ABSENT);
+        this.chunks = chunks;
+      }
+      return chunks[chunk];
+    }
+  }
+
+  /**
+   * Returns the lock guarding the balance of the given handle. Since the number of stripes divides
+   * the chunk size, the same offset in every chunk shares a lock.
+   */
+  private Object lockOf(int handle) {
+    return this.locks[handle & (STRIPES - 1)];
+  }
+}
@@ -0,0 +1,310 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.server.domain.exceptions.ServerUnavailableException;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+
+/**
+ * Adds the operations received from clients and other replicas to the ledger on a single thread, so
+ * that the threads handling requests only enqueue them, and respond once they're applied.
+ *
+ * <p>Requests are enqueued into a {@link MpscRingBuffer}, from which the apply thread takes every
+ * request enqueued meanwhile, up to {@link #MAX_BATCH_SIZE}. The operations of consecutive client
+ * requests are given their sequence numbers, recorded in the operation log and added to the ledger
+ * together, and the state is stabilized once for the whole batch, before any request is completed.
+ * Requests are applied in the order they were enqueued. Producers wait while the buffer is full, so
+ * that a burst of requests is held back, instead of growing the queue without bound.
+ *
+ * <p>Sequence numbers are only generated by the apply thread, right before the operations are added
+ * to the ledger, so the time the replica timestamp covers an operation the ledger doesn't hold yet
+ * doesn't grow with the time it spent in the queue.
+ *
+ * <p>Requests are completed by a pool of completion threads, rather than the apply thread, so
+ * building and sending the responses of a batch overlaps with applying the next one, and a slow
+ * response never holds back the writes of other clients.
+ *
+ * <p>A loop created by {@link #direct(ServerState)} has no threads, and applies each request on the
+ * thread which enqueues it instead, completing it before returning.
+ */
+public class ApplyLoop implements AutoCloseable {
+  public static final int DEFAULT_CAPACITY = 4096;
+  static final int MAX_BATCH_SIZE = 256;
+  private static final int SPINS = 64;
+  private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(5);
+
+  /** Represents a request enqueued in the loop, and the future completed once it's applied. */
+  private record Task(
+      List<IntFunction<Operation>> commands,
+      List<Operation> operations,
+      VectorClock timeStamp,
+      CompletableFuture<List<Operation>> result) {
+    boolean isWrite() {
+      return this.commands != null;
+    }
+  }
+
+  /** Represents a request applied by the loop, to be completed once the state is stabilized. */
+  private record Applied(Task task, List<Operation> operations) {}
+
+  private final ServerState state;
+  private final MpscRingBuffer<Task> queue;
+  private final Thread thread;
+  private final ExecutorService completions;
+
+  /** Whether the apply thread may be parked, waiting for a request to be enqueued. */
+  private volatile boolean sleeping = false;
+
+  private volatile boolean closed = false;
+
+  private ApplyLoop(ServerState state, int capacity) {
+    this.state = state;
+    if (capacity > 0) {
+      this.queue = new MpscRingBuffer<>(capacity);
+      this.thread = new Thread(this::run, "apply-loop");
+      this.thread.setDaemon(true);
+      this.completions =
+          Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(),
+              runnable -> {
+                final Thread completion = new Thread(runnable, "apply-completion");
+                completion.setDaemon(true);
+                return completion;
+              });
+    } else {
+      this.queue = null;
+      this.thread = null;
+      this.completions = null;
+    }
+  }
+
+  /**
+   * Starts a loop applying requests on its own thread, until it's closed.
+   *
+   * @param state The server state
+   * @param capacity The number of requests which may be enqueued before producers wait
+   */
+  public static ApplyLoop start(ServerState state, int capacity) {
+    final ApplyLoop loop = new ApplyLoop(state, Math.max(capacity, 1));
+    loop.thread.start();
+    return loop;
+  }
+
+  /**
+   * Creates a loop which applies each request on the thread which enqueues it.
+   *
+   * @param state The server state
+   */
+  public static ApplyLoop direct(ServerState state) {
+    return new ApplyLoop(state, 0);
+  }
+
+  /**
+   * Enqueues operations received from a client, which are created once their sequence numbers are
+   * generated. Commands must not throw, as they're created along with the ones of other requests.
+   *
+   * @param commands create each operation, given its sequence number.
+   * @return a future completed with the operations, in the order of the commands, once they're
+   *     added to the ledger.
+   */
+  public CompletableFuture<List<Operation>> write(List<IntFunction<Operation>> commands) {
+    return this.enqueue(new Task(commands, null, null, new CompletableFuture<>()));
+  }
+
+  /**
+   * Enqueues operations received from a gossip message, as {@link ServerState#addToLedger(List,
+   * VectorClock)} adds them.
+   *
+   * @param operations the operations received.
+   * @param timeStamp the timestamp of the gossip message.
+   * @return a future completed once the operations are added to the ledger.
+   */
+  public CompletableFuture<Void> propagate(List<Operation> operations, VectorClock timeStamp) {
+    return this.enqueue(new Task(null, operations, timeStamp, new CompletableFuture<>()))
+        .thenApply(ops -> null);
+  }
+
+  /**
+   * Stops the apply thread, once every request enqueued so far is applied and completed. Must only
+   * be called once no more requests are enqueued, e.g., after the server shuts down.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    this.closed = true;
+    if (this.thread != null) {
+      LockSupport.unpark(this.thread);
+      this.thread.join();
+      this.completions.shutdown();
+      this.completions.awaitTermination(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private CompletableFuture<List<Operation>> enqueue(Task task) {
+    if (this.closed) {
+      task.result().completeExceptionally(new ServerUnavailableException());
+      return task.result();
+    }
+
+    if (this.thread == null) {
+      this.apply(List.of(task));
+      return task.result();
+    }
+
+    int spins = 0;
+    while (!this.queue.offer(task)) {
+      if (spins++ < SPINS) {
+        Thread.onSpinWait();
+      } else {
+        LockSupport.parkNanos(BACKOFF_NANOS);
+      }
+    }
+
+    // Safety: the apply thread checks for a request after announcing it's sleeping, and this
+    // thread checks whether it's sleeping after publishing the request, so one of them sees the
+    // other's write
+    if (this.sleeping) {
+      LockSupport.unpark(this.thread);
+    }
+    return task.result();
+  }
+
+  private void run() {
+    final List<Task> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    while (true) {
+      Task task;
+      while (batch.size() < MAX_BATCH_SIZE && (task = this.queue.poll()) != null) {
+        batch.add(task);
+      }
+
+      if (!batch.isEmpty()) {
+        this.apply(batch);
+        batch.clear();
+        continue;
+      }
+
+      if (this.closed && this.queue.size() == 0) {
+        return;
+      }
+
+      this.sleeping = true;
+      if (this.queue.peek() == null && !this.closed) {
+        LockSupport.park(this);
+      }
+      this.sleeping = false;
+    }
+  }
+
+  /**
+   * Applies a batch of requests in order, stabilizing the state once every one of them is added to
+   * the ledger, and then completes them.
+   */
+  private void apply(List<Task> batch) {
+    final List<Applied> applied = new ArrayList<>(batch.size());
+    boolean anyStabilized = false;
+
+    int start = 0;
+    for (int i = 0; i <= batch.size(); i++) {
+      if (i < batch.size() && batch.get(i).isWrite()) {
+        continue;
+      }
+
+      // Consecutive client requests are added at once, before the gossip message which follows
+      anyStabilized |= this.applyWrites(batch.subList(start, i), applied);
+      if (i < batch.size()) {
+        anyStabilized |= this.applyPropagation(batch.get(i), applied);
+      }
+      start = i + 1;
+    }
+
+    try {
+      if (anyStabilized) {
+        this.state.stabilize();
+      }
+    } catch (RuntimeException e) {
+      Logger.error("Failed to stabilize operations: " + e.getMessage());
+      applied.forEach(request -> this.complete(request.task(), null, e));
+      return;
+    }
+
+    for (Applied request : applied) {
+      this.complete(request.task(), request.operations(), null);
+    }
+  }
+
+  /**
+   * Completes a request with the given operations, or failure, on a completion thread, if the loop
+   * has any.
+   */
+  private void complete(Task task, List<Operation> operations, Throwable failure) {
+    final Runnable completion =
+        failure == null
+            ? () -> task.result().complete(operations)
+            : () -> task.result().completeExceptionally(failure);
+    if (this.completions == null) {
+      completion.run();
+    } else {
+      this.completions.execute(completion);
+    }
+  }
+
+  /**
+   * Adds the operations of consecutive client requests to the ledger at once.
+   *
+   * @return true if any operation was stabilized, false otherwise.
+   */
+  private boolean applyWrites(List<Task> tasks, List<Applied> applied) {
+    final int count = tasks.stream().mapToInt(task -> task.commands().size()).sum();
+    if (count == 0) {
+      tasks.forEach(task -> applied.add(new Applied(task, List.of())));
+      return false;
+    }
+
+    try {
+      int sequence = this.state.generateSequences(count);
+      final List<Operation> operations = new ArrayList<>(count);
+      for (Task task : tasks) {
+        for (IntFunction<Operation> command : task.commands()) {
+          operations.add(command.apply(sequence++));
+        }
+      }
+
+      final boolean anyStabilized = this.state.addToLedger(operations);
+      int from = 0;
+      for (Task task : tasks) {
+        final int to = from + task.commands().size();
+        applied.add(new Applied(task, operations.subList(from, to)));
+        from = to;
+      }
+      return anyStabilized;
+    } catch (RuntimeException e) {
+      tasks.forEach(task -> this.complete(task, null, e));
+      return false;
+    }
+  }
+
+  /**
+   * Adds the operations of a gossip message to the ledger.
+   *
+   * @return true if any operation was stabilized, false otherwise.
+   */
+  private boolean applyPropagation(Task task, List<Applied> applied) {
+    try {
+      final boolean anyStabilized = this.state.addToLedger(task.operations(), task.timeStamp());
+      applied.add(new Applied(task, task.operations()));
+      return anyStabilized;
+    } catch (RuntimeException e) {
+      this.complete(task, null, e);
+      return false;
+    }
+  }
+}
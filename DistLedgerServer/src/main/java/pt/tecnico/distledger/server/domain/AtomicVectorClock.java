@@ -0,0 +1,55 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import pt.tecnico.distledger.common.domain.VectorClock;
+
+/**
+ * A vector clock which is read and updated without locking.
+ *
+ * <p>The clock is published as a snapshot which is never modified once set. Updates are applied to
+ * a copy of the current snapshot, which replaces it through compare-and-set, and are retried on a
+ * fresh copy if another update replaced it in the meantime. Copies share their arrays with the
+ * snapshot until they're modified, as snapshots are marked as shared before being published, so
+ * readers only ever hold a reference, and updates which change nothing allocate no arrays.
+ */
+final class AtomicVectorClock {
+  private final AtomicReference<VectorClock> snapshot =
+      new AtomicReference<>(new VectorClock().share());
+
+  /** Returns the current snapshot of the clock, which must not be modified. */
+  VectorClock get() {
+    return this.snapshot.get();
+  }
+
+  /**
+   * Applies an update to the clock, atomically. The update may run more than once, on different
+   * copies, so it must not have any other side effect.
+   *
+   * @param update modifies the copy of the current snapshot it's given.
+   * @return the snapshot the update was applied to, once published.
+   */
+  VectorClock update(Consumer<VectorClock> update) {
+    VectorClock current;
+    VectorClock updated;
+    do {
+      current = this.snapshot.get();
+      updated = new VectorClock(current);
+      update.accept(updated);
+      if (VectorClock.compare(updated, current) == VectorClock.Order.EQUAL) {
+        return current;
+      }
+      updated.share();
+    } while (!this.snapshot.compareAndSet(current, updated));
+    return updated;
+  }
+
+  /**
+   * Merges the given clock into this one.
+   *
+   * @param other Clock to merge with.
+   */
+  void merge(VectorClock other) {
+    this.update(clock -> clock.merge(other));
+  }
+}
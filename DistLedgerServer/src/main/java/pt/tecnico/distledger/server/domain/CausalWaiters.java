@@ -0,0 +1,145 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import pt.tecnico.distledger.common.domain.VectorClock;
+
+/**
+ * Holds the reads waiting for the value timestamp to catch up with the timestamp of their client,
+ * indexed by the clock entries they are waiting on.
+ *
+ * <p>Each waiter is registered on the first entry of the value timestamp which is behind its
+ * timestamp, and is only checked again once that entry reaches the required value. Then, it is
+ * either ready, or registered again on the next entry which is still behind.
+ *
+ * <p>Safety: this class is not thread-safe, callers must synchronize access to it.
+ */
+public class CausalWaiters {
+  /** Represents a read waiting for the value timestamp to reach a given timestamp. */
+  public static final class Waiter {
+    private final VectorClock timeStamp;
+    private final Runnable onReady;
+    private int entry = -1;
+
+    /**
+     * Creates a new waiter.
+     *
+     * @param timeStamp the timestamp the value timestamp must reach.
+     * @param onReady the action to run once it is reached.
+     */
+    public Waiter(VectorClock timeStamp, Runnable onReady) {
+      this.timeStamp = timeStamp;
+      this.onReady = onReady;
+    }
+
+    /** Runs the action of this waiter. Must be called without holding any lock. */
+    public void ready() {
+      this.onReady.run();
+    }
+  }
+
+  /** Represents a waiter registered on a clock entry, waiting for it to reach a given value. */
+  private record Registration(int value, Waiter waiter) {}
+
+  private final Map<Integer, Queue<Registration>> waiters = new HashMap<>();
+  private int size = 0;
+
+  /**
+   * Registers a waiter, unless the given value timestamp already reached its timestamp.
+   *
+   * @param waiter the waiter to register.
+   * @param valueTimeStamp the current value timestamp.
+   * @return true if the waiter was registered, or false if it is already ready.
+   */
+  public boolean register(Waiter waiter, VectorClock valueTimeStamp) {
+    final int entry = firstBlockingEntry(waiter.timeStamp, valueTimeStamp);
+    if (entry < 0) {
+      return false;
+    }
+
+    waiter.entry = entry;
+    this.waiters
+        .computeIfAbsent(
+            entry, k -> new PriorityQueue<>(Comparator.comparingInt(Registration::value)))
+        .add(new Registration(waiter.timeStamp.get(entry), waiter));
+    this.size++;
+    return true;
+  }
+
+  /**
+   * Removes a waiter which is no longer needed, e.g., because its read was cancelled. Does nothing
+   * if the waiter is not registered.
+   *
+   * @param waiter the waiter to remove.
+   */
+  public void remove(Waiter waiter) {
+    if (waiter.entry < 0) {
+      return;
+    }
+
+    final Queue<Registration> queue = this.waiters.get(waiter.entry);
+    if (queue != null
+        && queue.remove(new Registration(waiter.timeStamp.get(waiter.entry), waiter))) {
+      this.size--;
+    }
+    waiter.entry = -1;
+  }
+
+  /**
+   * Removes the waiters whose timestamps were reached by the given value timestamp. Waiters whose
+   * entry was reached, but which are still behind on another entry, are registered on it.
+   *
+   * @param valueTimeStamp the current value timestamp.
+   * @return the waiters which are ready, whose actions must be run by the caller.
+   */
+  public List<Waiter> wake(VectorClock valueTimeStamp) {
+    if (this.size == 0) {
+      return List.of();
+    }
+
+    final List<Waiter> woken = new ArrayList<>();
+    this.waiters.forEach(
+        (entry, queue) -> {
+          while (!queue.isEmpty() && queue.peek().value() <= valueTimeStamp.get(entry)) {
+            woken.add(queue.poll().waiter());
+            this.size--;
+          }
+        });
+
+    final List<Waiter> ready = new ArrayList<>();
+    for (Waiter waiter : woken) {
+      waiter.entry = -1;
+      if (!this.register(waiter, valueTimeStamp)) {
+        ready.add(waiter);
+      }
+    }
+    return ready;
+  }
+
+  /** Returns the number of waiters registered. */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Finds the first entry of a timestamp which is ahead of the value timestamp.
+   *
+   * @return the replica of the entry, or -1 if the timestamp is before or equal to the value
+   *     timestamp.
+   */
+  private static int firstBlockingEntry(VectorClock timeStamp, VectorClock valueTimeStamp) {
+    // Only the replicas with an entry in the timestamp may be ahead
+    for (int i = 0; i < timeStamp.entries(); i++) {
+      if (timeStamp.timeStamp(i) > valueTimeStamp.get(timeStamp.replica(i))) {
+        return timeStamp.replica(i);
+      }
+    }
+
+    return -1;
+  }
+}
@@ -0,0 +1,189 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.visitors.OperationHasher;
+
+/**
+ * Summarizes the operations held by a replica, so that two replicas can find which of them one
+ * holds and the other may not, by exchanging a small part of their digests.
+ *
+ * <p>Each origin replica has a hash tree over the sequence numbers of its operations. Each leaf
+ * covers {@link #LEAF_SIZE} consecutive sequence numbers, and each node above covers the ranges of
+ * {@link #FANOUT} nodes below it. A node holds the number of operations in its range, and the sum
+ * of their hashes, so the tree is updated incrementally, along the path from the operation's leaf
+ * up, as operations are added, in any order. Nodes which are equal in two replicas hold the same
+ * operations, barring hash collisions.
+ *
+ * <p>The digest of a replica only grows: operations are never removed from it.
+ */
+public class LedgerDigest {
+  /** Number of sequence numbers covered by each leaf. */
+  public static final int LEAF_SIZE = 16;
+
+  /** Number of children of each node. */
+  public static final int FANOUT = 16;
+
+  /** Level of the node covering every sequence number, with the leaves at level 0. */
+  public static final int HEIGHT = 7;
+
+  /**
+   * A node of the hash tree of an origin replica.
+   *
+   * @param origin the ID of the origin replica.
+   * @param level the level of the node, with the leaves at level 0.
+   * @param index the position of the node within its level.
+   * @param hash the sum of the hashes of the operations in its range.
+   * @param count the number of operations in its range.
+   */
+  public record Node(int origin, int level, int index, long hash, int count) {}
+
+  // Safety: the trees are only accessed while holding the digest's lock
+  private final Map<Integer, Tree> trees = new TreeMap<>();
+
+  /** Adds an operation to the digest. It must not have been added before. */
+  public synchronized void add(Operation op) {
+    this.trees
+        .computeIfAbsent(op.getReplicaId(), origin -> new Tree())
+        .add(op.getSequence(), OperationHasher.hash(op));
+  }
+
+  /**
+   * Returns the lowest node of each origin replica which covers all of its operations. Nodes at the
+   * same position, but not at the same level, cover different ranges: they must be compared with
+   * the ones at the same level.
+   */
+  public synchronized List<Node> roots() {
+    final List<Node> roots = new ArrayList<>();
+    this.trees.forEach((origin, tree) -> roots.add(tree.node(origin, tree.rootLevel(), 0)));
+    return roots;
+  }
+
+  /** Returns the node at the given position, which is empty if there are no operations under it. */
+  public synchronized Node node(int origin, int level, int index) {
+    final Tree tree = this.trees.get(origin);
+    return tree == null ? new Node(origin, level, index, 0, 0) : tree.node(origin, level, index);
+  }
+
+  /** Returns the leaf whose range covers the given operation. */
+  public synchronized Node leaf(Operation op) {
+    return this.node(op.getReplicaId(), 0, op.getSequence() / LEAF_SIZE);
+  }
+
+  /** Returns the children of a node which aren't empty. Leaves have no children. */
+  public synchronized List<Node> children(Node node) {
+    return node.level() == 0
+        ? List.of()
+        : this.nonEmpty(node.origin(), node.level() - 1, node.index(), FANOUT);
+  }
+
+  /** Returns the leaves under a node which aren't empty, or the node itself if it's a leaf. */
+  public synchronized List<Node> leaves(Node node) {
+    int span = 1;
+    for (int level = 0; level < node.level(); level++) {
+      span *= FANOUT;
+    }
+    return this.nonEmpty(node.origin(), 0, node.index(), span);
+  }
+
+  /** Returns a copy of the digest, which isn't updated as operations are added to this one. */
+  public synchronized LedgerDigest copy() {
+    final LedgerDigest copy = new LedgerDigest();
+    this.trees.forEach((origin, tree) -> copy.trees.put(origin, tree.copy()));
+    return copy;
+  }
+
+  /** Returns whether a node may exist at the given position. */
+  public static boolean isValid(int level, int index) {
+    if (level < 0 || level > HEIGHT || index < 0) {
+      return false;
+    }
+
+    // The tree covers every non-negative sequence number, i.e., up to 2^31 of them
+    long nodes = (1L << 31) / LEAF_SIZE;
+    for (int i = 0; i < level; i++) {
+      nodes = (nodes + FANOUT - 1) / FANOUT;
+    }
+    return index < nodes;
+  }
+
+  /**
+   * Returns the nodes of a level which aren't empty, among the given number of them starting at the
+   * position of the given node scaled to that level.
+   */
+  private List<Node> nonEmpty(int origin, int level, int parentIndex, int span) {
+    final Tree tree = this.trees.get(origin);
+    if (tree == null) {
+      return List.of();
+    }
+
+    final List<Node> nodes = new ArrayList<>();
+    final long first = (long) parentIndex * span;
+    final long end = Math.min(first + span, tree.counts[level].length);
+    for (long index = first; index < end; index++) {
+      if (tree.counts[level][(int) index] > 0) {
+        nodes.add(tree.node(origin, level, (int) index));
+      }
+    }
+    return nodes;
+  }
+
+  /** The hash tree of an origin replica, whose levels grow as higher sequence numbers are added. */
+  private static final class Tree {
+    private final long[][] hashes = new long[HEIGHT + 1][];
+    private final int[][] counts = new int[HEIGHT + 1][];
+    private int maxSequence = 0;
+
+    Tree() {
+      for (int level = 0; level <= HEIGHT; level++) {
+        this.hashes[level] = new long[1];
+        this.counts[level] = new int[1];
+      }
+    }
+
+    void add(int sequence, long hash) {
+      this.maxSequence = Math.max(this.maxSequence, sequence);
+
+      int index = sequence / LEAF_SIZE;
+      for (int level = 0; level <= HEIGHT; level++) {
+        if (index >= this.counts[level].length) {
+          final int size = Math.max(index + 1, 2 * this.counts[level].length);
+          this.hashes[level] = Arrays.copyOf(this.hashes[level], size);
+          this.counts[level] = Arrays.copyOf(this.counts[level], size);
+        }
+        this.hashes[level][index] += hash;
+        this.counts[level][index]++;
+        index /= FANOUT;
+      }
+    }
+
+    int rootLevel() {
+      int level = 0;
+      for (int index = this.maxSequence / LEAF_SIZE; index > 0; index /= FANOUT) {
+        level++;
+      }
+      return level;
+    }
+
+    Node node(int origin, int level, int index) {
+      if (index >= this.counts[level].length) {
+        return new Node(origin, level, index, 0, 0);
+      }
+      return new Node(origin, level, index, this.hashes[level][index], this.counts[level][index]);
+    }
+
+    Tree copy() {
+      final Tree copy = new Tree();
+      for (int level = 0; level <= HEIGHT; level++) {
+        copy.hashes[level] = this.hashes[level].clone();
+        copy.counts[level] = this.counts[level].clone();
+      }
+      copy.maxSequence = this.maxSequence;
+      return copy;
+    }
+  }
+}
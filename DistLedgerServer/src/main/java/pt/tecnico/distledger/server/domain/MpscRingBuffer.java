@@ -0,0 +1,81 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue which many threads offer elements to, and a single thread polls them from,
+ * without locking.
+ *
+ * <p>Producers claim a slot by advancing the tail through compare-and-set, and then publish their
+ * element into it. The consumer takes elements in the order their slots were claimed, clearing each
+ * slot before advancing the head, which frees it for the producer which wraps around to it. An
+ * element whose slot was claimed but not published yet holds back the ones after it, until it is.
+ *
+ * <p>Safety: {@link #poll()} and {@link #peek()} must only be called by a single thread at a time.
+ */
+class MpscRingBuffer<E> {
+  private final AtomicReferenceArray<E> slots;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong(0);
+
+  /** The next slot to poll, only written by the consumer. */
+  private volatile long head = 0;
+
+  /**
+   * Creates a new ring buffer.
+   *
+   * @param capacity the minimum number of elements the buffer holds, rounded up to a power of two.
+   */
+  MpscRingBuffer(int capacity) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    final int size = Integer.highestOneBit(capacity - 1) << 1;
+    this.slots = new AtomicReferenceArray<>(Math.max(size, 1));
+    this.mask = this.slots.length() - 1;
+  }
+
+  /**
+   * Adds an element to the buffer, unless it's full.
+   *
+   * @return true if the element was added, or false if the buffer is full.
+   */
+  boolean offer(E element) {
+    long tail;
+    do {
+      tail = this.tail.get();
+      if (tail - this.head >= this.slots.length()) {
+        return false;
+      }
+    } while (!this.tail.compareAndSet(tail, tail + 1));
+
+    this.slots.set((int) tail & this.mask, element);
+    return true;
+  }
+
+  /** Removes the next element from the buffer, or returns null if none is published yet. */
+  E poll() {
+    final long head = this.head;
+    final int slot = (int) head & this.mask;
+    final E element = this.slots.get(slot);
+    if (element == null) {
+      return null;
+    }
+
+    this.slots.lazySet(slot, null);
+    this.head = head + 1;
+    return element;
+  }
+
+  /** Returns the next element of the buffer, without removing it, or null if none is published. */
+  E peek() {
+    return this.slots.get((int) this.head & this.mask);
+  }
+
+  /** Returns the number of elements in the buffer, including the ones not published yet. */
+  int size() {
+    final long head = this.head;
+    return (int) (this.tail.get() - head);
+  }
+}
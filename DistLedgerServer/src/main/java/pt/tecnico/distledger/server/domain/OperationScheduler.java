@@ -0,0 +1,167 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+import pt.tecnico.distledger.server.visitors.OperationVisitor;
+
+/**
+ * Executes batches of stable operations, running the ones which touch disjoint accounts in
+ * parallel.
+ *
+ * <p>The operations of a batch are split into groups, so that any two operations which touch a
+ * common account, directly or through other operations of the batch, are in the same group. Each
+ * group is executed sequentially, in ledger order, and different groups are executed in parallel on
+ * a fork-join pool. Since operations only read and write the accounts they touch, this yields the
+ * same balances, and the same failed operations, as executing the whole batch in ledger order.
+ *
+ * <p>Small batches, or batches which form a single group, are executed on the calling thread.
+ */
+public class OperationScheduler {
+  /** The minimum number of operations in a batch for it to be executed in parallel. */
+  private static final int MIN_PARALLEL_BATCH = 64;
+
+  /** The number of tasks created for each thread of the pool, to balance uneven groups. */
+  private static final int TASKS_PER_THREAD = 4;
+
+  private final ForkJoinPool pool;
+  private final Consumer<Operation> executor;
+
+  /**
+   * Creates a new scheduler.
+   *
+   * @param pool the pool where groups of operations are executed in parallel.
+   * @param executor executes a single operation, handling its failure.
+   */
+  public OperationScheduler(ForkJoinPool pool, Consumer<Operation> executor) {
+    this.pool = pool;
+    this.executor = executor;
+  }
+
+  /**
+   * Executes a batch of operations, returning once all of them were executed.
+   *
+   * @param batch the operations, in ledger order.
+   */
+  public void execute(List<Operation> batch) {
+    if (batch.size() < MIN_PARALLEL_BATCH || this.pool.getParallelism() == 1) {
+      batch.forEach(this.executor);
+      return;
+    }
+
+    final List<List<Operation>> groups = partition(batch);
+    if (groups.size() == 1) {
+      batch.forEach(this.executor);
+      return;
+    }
+
+    // Pack the groups into a bounded number of tasks, so that small groups don't each pay for the
+    // overhead of a task
+    final int target = Math.max(1, batch.size() / (this.pool.getParallelism() * TASKS_PER_THREAD));
+    final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    List<List<Operation>> chunk = new ArrayList<>();
+    int chunkSize = 0;
+    for (List<Operation> group : groups) {
+      chunk.add(group);
+      chunkSize += group.size();
+      if (chunkSize >= target) {
+        tasks.add(this.submit(chunk));
+        chunk = new ArrayList<>();
+        chunkSize = 0;
+      }
+    }
+    if (!chunk.isEmpty()) {
+      tasks.add(this.submit(chunk));
+    }
+
+    tasks.forEach(ForkJoinTask::join);
+  }
+
+  private ForkJoinTask<?> submit(List<List<Operation>> groups) {
+    return this.pool.submit(() -> groups.forEach(group -> group.forEach(this.executor)));
+  }
+
+  /**
+   * Splits a batch into groups of operations which touch disjoint sets of accounts, keeping the
+   * ledger order within each group.
+   *
+   * @param batch the operations, in ledger order.
+   * @return the groups, ordered by their first operation.
+   */
+  static List<List<Operation>> partition(List<Operation> batch) {
+    final int[] parents = new int[batch.size()];
+    final Map<Integer, Integer> lastToucher = new HashMap<>();
+    final AccountCollector collector = new AccountCollector();
+
+    for (int i = 0; i < batch.size(); i++) {
+      parents[i] = i;
+      collector.accounts.clear();
+      batch.get(i).accept(collector);
+
+      for (int account : collector.accounts) {
+        final Integer previous = lastToucher.put(account, i);
+        if (previous != null) {
+          union(parents, previous, i);
+        }
+      }
+    }
+
+    final Map<Integer, List<Operation>> groups = new LinkedHashMap<>();
+    for (int i = 0; i < batch.size(); i++) {
+      groups.computeIfAbsent(find(parents, i), k -> new ArrayList<>()).add(batch.get(i));
+    }
+    return new ArrayList<>(groups.values());
+  }
+
+  private static int find(int[] parents, int i) {
+    while (parents[i] != i) {
+      // Path halving
+      parents[i] = parents[parents[i]];
+      i = parents[i];
+    }
+    return i;
+  }
+
+  private static void union(int[] parents, int a, int b) {
+    final int rootA = find(parents, a);
+    final int rootB = find(parents, b);
+    if (rootA != rootB) {
+      // Keep the earliest operation as the root, so that groups are ordered by their first
+      // operation
+      parents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+    }
+  }
+
+  /** Collects the handles of the accounts touched by an operation. */
+  private static class AccountCollector implements OperationVisitor {
+    private final List<Integer> accounts = new ArrayList<>(2);
+
+    @Override
+    public void visit(CreateOp op) {
+      this.add(op.getUserHandle(), op.getUserId());
+    }
+
+    @Override
+    public void visit(TransferOp op) {
+      this.add(op.getUserHandle(), op.getUserId());
+      this.add(op.getDestUserHandle(), op.getDestUserId());
+    }
+
+    /**
+     * Adds the handle of an account, or a negative key derived from its ID if it has none yet, e.g.
+     * when it's created by the batch itself. Keys never match a handle, and IDs whose hashes
+     * collide are at worst grouped together.
+     */
+    private void add(int handle, String userId) {
+      this.accounts.add(handle >= 0 ? handle : userId.hashCode() | Integer.MIN_VALUE);
+    }
+  }
+}
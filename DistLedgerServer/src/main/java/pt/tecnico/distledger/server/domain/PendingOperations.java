@@ -0,0 +1,127 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+
+/**
+ * Holds the operations that are waiting to be stabilized, in one FIFO queue per origin replica.
+ *
+ * <p>Operations received by a replica are numbered in order, so each queue is ordered by the
+ * sequence numbers of the operations. Only the head of each queue is checked against the value
+ * timestamp: if it can't be stabilized, the queue is registered as waiting on the first clock entry
+ * that is blocking the head, and is only checked again once that entry reaches the required value.
+ *
+ * <p>Safety: this class is not thread-safe, callers must synchronize access to it.
+ */
+public class PendingOperations {
+  /** Represents a queue waiting for a clock entry to reach a given value. */
+  private record Waiter(int value, int origin) {}
+
+  private static final Comparator<Operation> BY_ORIGIN_ORDER =
+      Comparator.comparingInt(Operation::getSequence);
+
+  private final Map<Integer, Queue<Operation>> queues = new HashMap<>();
+  private final Map<Integer, Queue<Waiter>> waiters = new HashMap<>();
+  // Each origin is held at most once, so that queues which received many new heads, e.g. from a
+  // gossip in reverse order, aren't checked (and registered as waiting) once for each of them
+  private final Set<Integer> candidates = new LinkedHashSet<>();
+  private int size = 0;
+
+  /**
+   * Adds an operation to the queue of its origin replica.
+   *
+   * @param op the operation that can't be stabilized yet.
+   */
+  public void add(Operation op) {
+    Queue<Operation> queue =
+        this.queues.computeIfAbsent(op.getReplicaId(), k -> new PriorityQueue<>(BY_ORIGIN_ORDER));
+    queue.add(op);
+    this.size++;
+
+    // If the operation is the new head of its queue, it must be checked on the next poll
+    if (queue.peek() == op) {
+      this.candidates.add(op.getReplicaId());
+    }
+  }
+
+  /**
+   * Wakes the queues waiting on clock entries which were reached by the given value timestamp.
+   *
+   * @param valueTimeStamp the current value timestamp.
+   */
+  public void wake(VectorClock valueTimeStamp) {
+    this.waiters.forEach(
+        (entry, queue) -> {
+          while (!queue.isEmpty() && queue.peek().value() <= valueTimeStamp.get(entry)) {
+            this.candidates.add(queue.poll().origin());
+          }
+        });
+  }
+
+  /**
+   * Removes and returns an operation that can be stabilized with the given value timestamp, if any.
+   * Only the heads of the queues which were woken since they were last checked are visited.
+   *
+   * @param valueTimeStamp the current value timestamp.
+   * @return an operation that can be stabilized, or empty if there is none.
+   */
+  public Optional<Operation> poll(VectorClock valueTimeStamp) {
+    while (!this.candidates.isEmpty()) {
+      final Iterator<Integer> next = this.candidates.iterator();
+      final int origin = next.next();
+      next.remove();
+      final Queue<Operation> queue = this.queues.get(origin);
+      final Operation head = queue.peek();
+      if (head == null) {
+        continue;
+      }
+
+      final int entry = firstBlockingEntry(head.getPrevTimeStamp(), valueTimeStamp);
+      if (entry < 0) {
+        // The head can be stabilized, and the next operation in the queue must be checked next
+        queue.poll();
+        this.size--;
+        this.candidates.add(origin);
+        return Optional.of(head);
+      }
+
+      // Wait until the blocking entry reaches the head's previous timestamp
+      this.waiters
+          .computeIfAbsent(entry, k -> new PriorityQueue<>(Comparator.comparingInt(Waiter::value)))
+          .add(new Waiter(head.getPrevTimeStamp().get(entry), origin));
+    }
+
+    return Optional.empty();
+  }
+
+  /** Returns the number of operations waiting to be stabilized. */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Finds the first entry of a previous timestamp which is ahead of the value timestamp.
+   *
+   * @return the replica of the entry, or -1 if the previous timestamp is before or equal to the
+   *     value timestamp.
+   */
+  private static int firstBlockingEntry(VectorClock prevTimeStamp, VectorClock valueTimeStamp) {
+    // Only the replicas with an entry in the timestamp may be ahead
+    for (int i = 0; i < prevTimeStamp.entries(); i++) {
+      if (prevTimeStamp.timeStamp(i) > valueTimeStamp.get(prevTimeStamp.replica(i))) {
+        return prevTimeStamp.replica(i);
+      }
+    }
+
+    return -1;
+  }
+}
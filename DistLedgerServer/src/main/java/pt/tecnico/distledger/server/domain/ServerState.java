@@ -1,47 +1,182 @@
 package pt.tecnico.distledger.server.domain;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
 import pt.tecnico.distledger.common.domain.VectorClock;
 import pt.tecnico.distledger.common.domain.VectorClock.Order;
 import pt.tecnico.distledger.server.domain.exceptions.OutdatedStateException;
 import pt.tecnico.distledger.server.domain.exceptions.UnknownAccountException;
 import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.storage.OperationLog;
+import pt.tecnico.distledger.server.storage.Snapshot;
+import pt.tecnico.distledger.server.visitors.AcknowledgedFilter;
 import pt.tecnico.distledger.server.visitors.OperationExecutor;
 import pt.tecnico.distledger.server.visitors.OperationVisitor;
 
-/** Represents the current state of the server. */
+/**
+ * Represents the current state of the server.
+ *
+ * <p>The value and replica timestamps are read and updated without locking, as snapshots replaced
+ * through compare-and-set: reads never block writes, and a client's write only waits for the
+ * ledger's lock while its operations are inserted, rather than for a whole gossip batch to be
+ * applied. Gossip batches are applied while holding a lock of their own, which is also held while
+ * the ledger is visited, so that the replica timestamp a visit is stamped with covers exactly the
+ * operations of the batches it visited.
+ */
 public class ServerState {
   private final int id;
   private final List<Operation> ledger = Collections.synchronizedList(new ArrayList<>());
-  private final ConcurrentMap<String, Account> accounts = new ConcurrentHashMap<>();
-  private final VectorClock valueTimeStamp = new VectorClock();
-  private final VectorClock replicaTimeStamp = new VectorClock();
+  private final AccountTable accounts = new AccountTable();
+  private final AtomicVectorClock valueTimeStamp = new AtomicVectorClock();
+  private final AtomicVectorClock replicaTimeStamp = new AtomicVectorClock();
   private final AtomicInteger firstUnstable = new AtomicInteger(0);
+  private final Map<Operation, Integer> unstableIndices = new IdentityHashMap<>();
+  private final PendingOperations pending = new PendingOperations();
+  private final CausalWaiters readers = new CausalWaiters();
+  private final LedgerDigest digest = new LedgerDigest();
+
+  /**
+   * Held while operations received from gossip are filtered and added to the ledger, and their
+   * timestamp merged into the replica timestamp, so that concurrent batches don't both add an
+   * operation which the replica timestamp didn't cover yet, and while the ledger is visited.
+   */
+  private final Object gossipLock = new Object();
+
   private final OperationExecutor executor = new OperationExecutor(this);
+  private final OperationScheduler scheduler;
+  private final OperationLog log;
 
-  public ServerState(int id) {
+  /**
+   * Ledger index of the first operation held in the ledger. Operations before it were folded into
+   * the account balances when the state was restored from a snapshot, or dropped once every other
+   * replica held them.
+   */
+  private int ledgerOffset = 0;
+
+  /**
+   * Makes use of the VectorClock structure and functionality to keep track of the ledger indices of
+   * the stable operations which were sent to each server in the last gossip. Unstable operations
+   * are not tracked and will always be sent in each gossip.
+   */
+  private final VectorClock gossipCursors = new VectorClock();
+
+  /**
+   * The replica timestamps each other replica is known to have reached, by replica ID, as
+   * acknowledged by their responses to gossip, or stated by their own gossip. Operations covered by
+   * them don't need to be sent to those replicas. Clocks in the table are never modified, only
+   * replaced.
+   */
+  private final Map<Integer, VectorClock> peerTimeStamps = new ConcurrentHashMap<>();
+
+  /**
+   * IDs of the other replicas found by the latest gossip round, or null if there was none yet.
+   * Replaced as a whole, and never modified.
+   */
+  private volatile Set<Integer> peers = null;
+
+  /**
+   * Held for reading while operations are logged and executed, and for writing while a snapshot is
+   * captured, so that snapshots always reflect exactly the operations logged before them.
+   */
+  private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+  /**
+   * The replicas retired from the service whose operations this replica executed, and the epoch of
+   * the retirements once all of them are. Replaced through compare-and-set, and never modified, so
+   * that it's read without locking.
+   */
+  private final AtomicReference<Retirement> retired =
+      new AtomicReference<>(new Retirement(0, new VectorClock()));
+
+  /** Notified of the number of operations added to the ledger by clients, once they're added. */
+  private volatile IntConsumer writeListener = count -> {};
+
+  /**
+   * Creates a new server state, recording the operations added to the ledger in the given log.
+   *
+   * @param id the ID of this replica.
+   * @param log the log where operations are recorded before being added to the ledger.
+   * @param pool the pool where batches of stable operations are executed in parallel.
+   */
+  public ServerState(int id, OperationLog log, ForkJoinPool pool) {
     this.id = id;
-    this.accounts.put("broker", new Account(1000));
+    this.log = log;
+    this.scheduler = new OperationScheduler(pool, this::run);
+    this.accounts.create(AccountIds.intern("broker"), 1000);
+  }
+
+  /**
+   * Creates a new server state, recording the operations added to the ledger in the given log, and
+   * executing them on the common fork-join pool.
+   */
+  public ServerState(int id, OperationLog log) {
+    this(id, log, ForkJoinPool.commonPool());
+  }
+
+  /** Creates a new server state, kept only in memory. */
+  public ServerState(int id) {
+    this(id, OperationLog.NONE);
   }
 
   /**
-   * Generates a new replica timestamp for an operation received in this replica from a client.
+   * Generates a new sequence number for an operation received in this replica from a client.
    * Increments the timestamp of this replica.
    *
-   * @return the new replica timestamp.
+   * @return the new entry of this replica in the replica timestamp.
+   */
+  public int generateSequence() {
+    return this.generateSequences(1);
+  }
+
+  /**
+   * Generates new sequence numbers for a batch of operations received in this replica from a
+   * client, incrementing the timestamp of this replica once for each of them, in a single update.
+   *
+   * @param count the number of operations.
+   * @return the first of the new sequence numbers, which are consecutive.
+   */
+  public int generateSequences(int count) {
+    final VectorClock updated =
+        this.replicaTimeStamp.update(clock -> clock.set(this.id, clock.get(this.id) + count));
+    return updated.get(this.id) - count + 1;
+  }
+
+  /**
+   * Adds to the ledger a batch of operations received from a client, with sequence numbers
+   * generated by {@link #generateSequences(int)}. They are recorded in the operation log at once,
+   * and the ones which can be immediately stabilized are executed together.
+   *
+   * @param operations the operations, in the order of their timestamps.
+   * @return true if any operation was stabilized, false otherwise.
    */
-  public VectorClock generateTimeStamp() {
-    // Safety: the timestamp is locked to avoid concurrent increments
-    synchronized (this.replicaTimeStamp) {
-      this.replicaTimeStamp.increment(this.id);
-      return new VectorClock(this.replicaTimeStamp);
+  public boolean addToLedger(List<Operation> operations) {
+    final boolean anyStabilized;
+    this.snapshotLock.readLock().lock();
+    try {
+      this.log.append(operations);
+      anyStabilized = this.insertAll(operations);
+    } finally {
+      this.snapshotLock.readLock().unlock();
     }
+
+    this.writeListener.accept(operations.size());
+    return anyStabilized;
   }
 
   /**
@@ -53,121 +188,326 @@ public class ServerState {
    */
   public boolean addToLedger(List<Operation> operations, VectorClock timeStamp) {
     boolean anyStabilized = false;
-
-    synchronized (this.replicaTimeStamp) {
-      for (Operation op : operations) {
-        // Check if the operation is a duplicate
-        VectorClock.Order order =
-            VectorClock.compare(op.getReplicaTimeStamp(), this.replicaTimeStamp);
-        if (order == Order.BEFORE || order == Order.EQUAL) {
-          continue;
-        }
-
-        // Not a duplicate, add it to the ledger
-        if (this.addToLedger(op)) {
-          anyStabilized = true;
-        }
+    final Runnable persisted;
+
+    this.snapshotLock.readLock().lock();
+    try {
+      synchronized (this.gossipLock) {
+        // Filter out the operations which are duplicates: the replica timestamp only covers the
+        // operations of each origin up to its entry once every one of them was received
+        final VectorClock replicaTimeStamp = this.replicaTimeStamp.get();
+        final List<Operation> received =
+            operations.stream()
+                .filter(op -> op.getSequence() > replicaTimeStamp.get(op.getReplicaId()))
+                .toList();
+
+        // Record all of them in the log at once, in the order they're added to the ledger
+        persisted = this.log.appendDeferred(received);
+        anyStabilized = this.insertAll(received);
+
+        // Update the replica timestamp
+        this.replicaTimeStamp.merge(timeStamp);
       }
-
-      // Update the replica timestamp
-      this.replicaTimeStamp.merge(timeStamp);
+    } finally {
+      this.snapshotLock.readLock().unlock();
     }
 
+    // Gossip rounds, which also take the gossip lock, don't wait for the operations to be
+    // persisted, but the sender is only acknowledged once they are
+    persisted.run();
     return anyStabilized;
   }
 
   /**
    * Register a given operation in the ledger. If the operation can be executed immediately, it will
-   * immediately be stabilized. Otherwise, it will be added to the ledger and stabilized later.
+   * immediately be stabilized. Otherwise, it will be added to the ledger and to the queue of
+   * pending operations of its origin replica, to be stabilized later.
+   *
+   * <p>The operation is recorded in the operation log before being added to the ledger.
    *
    * @return true if it was immediately stabilized, false otherwise.
    */
   public boolean addToLedger(Operation op) {
-    // Check if the operation can be immediately executed
-    if (this.canStabilize(op)) {
-      // If it can, mark it as stable and execute it
-      op.setStable();
-      this.execute(op);
+    final boolean stabilized;
+    this.snapshotLock.readLock().lock();
+    try {
+      this.log.append(List.of(op));
+      stabilized = this.insert(op);
+      if (stabilized) {
+        this.execute(List.of(op));
+      }
+    } finally {
+      this.snapshotLock.readLock().unlock();
+    }
+
+    this.writeListener.accept(1);
+    return stabilized;
+  }
+
+  /**
+   * Sets the listener notified whenever operations received from clients are added to the ledger,
+   * with the number of operations added. It's called without holding any lock of the state.
+   */
+  public void setWriteListener(IntConsumer listener) {
+    this.writeListener = listener;
+  }
+
+  /**
+   * Restores operations read from the operation log, adding them to the ledger without recording
+   * them again, and stabilizing them.
+   *
+   * @param operations the operations, in the order they were recorded.
+   */
+  public void restore(List<Operation> operations) {
+    this.snapshotLock.readLock().lock();
+    try {
+      synchronized (this.gossipLock) {
+        this.insertAll(operations);
+        this.replicaTimeStamp.update(
+            clock ->
+                operations.forEach(op -> clock.mergeSingle(op.getReplicaId(), op.getSequence())));
+      }
+    } finally {
+      this.snapshotLock.readLock().unlock();
+    }
+
+    this.stabilize();
+  }
+
+  /**
+   * Captures a snapshot of the state, reflecting every operation recorded in the log so far.
+   * Operations are only held off while the state is copied: the snapshot is then written by the
+   * caller.
+   *
+   * <p>Stable operations which were already gossiped to every replica with a gossip cursor are
+   * folded into the account balances, leaving out the replicas the latest gossip round didn't find.
+   * If no operation was gossiped yet, all of them are kept.
+   *
+   * @return the snapshot.
+   */
+  public Snapshot captureSnapshot() {
+    // Safety: the cursors are copied before any other lock is taken, since gossip holds their lock
+    // while visiting the ledger. They only move forward, so an outdated copy only keeps more of the
+    // ledger in the snapshot.
+    final VectorClock cursors;
+    synchronized (this.gossipCursors) {
+      cursors = new VectorClock(this.gossipCursors);
+    }
 
-      // Safety: the ledger must be locked to avoid concurrent modifications
-      // If the firstUnstable index were to be incremented outside the synchronized block,
-      // it would be possible for another thread to add an operation to the ledger, and it would
-      // be within the slice considered stable, which could cause some unexpected issues.
+    // Only primitive arrays and references are copied while operations are held off, and the
+    // balances are boxed once they're released
+    final long sequence;
+    final int[][] chunks;
+    final VectorClock valueTimeStamp;
+    final VectorClock replicaTimeStamp;
+    final int foldEnd;
+    final Operation[] kept;
+    final int stableCount;
+    this.snapshotLock.writeLock().lock();
+    try {
       synchronized (this.ledger) {
-        // Add it to the ledger, before the first unstable operation
-        int index = this.firstUnstable.getAndIncrement();
+        sequence = this.log.getNextSequence();
+        chunks = this.accounts.copyChunks();
+        valueTimeStamp = new VectorClock(this.valueTimeStamp.get());
+        replicaTimeStamp = new VectorClock(this.replicaTimeStamp.get());
+
+        // Keep the stable operations which some live replica may not have received yet. Replicas
+        // without a cursor, or which left, have nothing to be kept for.
+        final int stableEnd = this.ledgerOffset + this.firstUnstable.get();
+        final Set<Integer> peers = this.peers;
+        int end = stableEnd;
+        boolean gossiped = false;
+        for (int i = 0; i < cursors.entries(); i++) {
+          final int replica = cursors.replica(i);
+          if (replica != this.id && (peers == null || peers.contains(replica))) {
+            end = Math.min(end, cursors.timeStamp(i));
+            gossiped = true;
+          }
+        }
+        foldEnd = gossiped ? Math.max(end, this.ledgerOffset) : this.ledgerOffset;
+        kept =
+            this.ledger
+                .subList(foldEnd - this.ledgerOffset, this.ledger.size())
+                .toArray(new Operation[0]);
+        stableCount = stableEnd - foldEnd;
+      }
+    } finally {
+      this.snapshotLock.writeLock().unlock();
+    }
 
-        if (index < this.ledger.size()) {
-          // Swap the operation with the first unstable operation, if it's not already there
-          this.ledger.add(this.ledger.get(index));
-          this.ledger.set(index, op);
-        } else {
+    return new Snapshot(
+        sequence,
+        AccountTable.toBalances(chunks),
+        valueTimeStamp,
+        replicaTimeStamp,
+        cursors,
+        foldEnd,
+        Arrays.asList(kept),
+        stableCount);
+  }
+
+  /**
+   * Restores the state captured in a snapshot. Must be called before any operation is added to the
+   * ledger.
+   *
+   * @param snapshot the snapshot to restore.
+   */
+  public void restoreSnapshot(Snapshot snapshot) {
+    synchronized (this.gossipCursors) {
+      this.gossipCursors.merge(snapshot.gossipCursors());
+    }
+
+    this.snapshotLock.writeLock().lock();
+    try {
+      synchronized (this.ledger) {
+        this.accounts.clear();
+        snapshot
+            .balances()
+            .forEach((userId, balance) -> this.accounts.create(AccountIds.intern(userId), balance));
+
+        this.valueTimeStamp.merge(snapshot.valueTimeStamp());
+        this.replicaTimeStamp.merge(snapshot.replicaTimeStamp());
+        this.ledgerOffset = snapshot.ledgerOffset();
+
+        // The stable operations were already executed, and are only kept to be gossiped
+        final List<Operation> ledger = snapshot.ledger();
+        for (int i = 0; i < ledger.size(); i++) {
+          final Operation op = ledger.get(i);
+          if (i < snapshot.stableCount()) {
+            op.setStable();
+            this.firstUnstable.incrementAndGet();
+          } else {
+            this.unstableIndices.put(op, this.ledger.size());
+            this.pending.add(op);
+          }
           this.ledger.add(op);
+          this.digest.add(op);
         }
       }
+    } finally {
+      this.snapshotLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Adds operations to the ledger, in order, executing the ones which can be immediately
+   * stabilized.
+   *
+   * <p>Consecutive operations which can be stabilized are executed together, as a batch. An
+   * operation which can't be stabilized may depend on the batch, so the batch is executed before
+   * the operation is checked again: this way, each operation is checked after all the previous ones
+   * were executed, as if they were added one by one.
+   *
+   * @return true if any operation was stabilized, false otherwise.
+   */
+  private boolean insertAll(List<Operation> operations) {
+    boolean anyStabilized = false;
+    final List<Operation> batch = new ArrayList<>();
+
+    for (Operation op : operations) {
+      if (!batch.isEmpty() && !this.canStabilize(op)) {
+        this.execute(batch);
+        batch.clear();
+      }
+
+      if (this.insert(op)) {
+        batch.add(op);
+        anyStabilized = true;
+      }
+    }
 
-      return true;
-    } else {
-      // If it can't, just add it to the ledger and wait for stabilization
-      // Safety: synchronized list, it's okay to add to it without a synchronized block.
-      this.ledger.add(op);
-      return false;
+    if (!batch.isEmpty()) {
+      this.execute(batch);
     }
+    return anyStabilized;
   }
 
-  /** Executes all operations in the ledger that can be executed. */
-  public void stabilize() {
-    boolean isStable;
+  /**
+   * Adds an operation to the ledger, moving it to the stable prefix if it can be stabilized. The
+   * operation must then be executed by the caller.
+   *
+   * @return true if it was stabilized, false otherwise.
+   */
+  private boolean insert(Operation op) {
+    // Safety: the ledger must be locked while checking if the operation can be stabilized, so that
+    // the value timestamp can't be merged and the pending operations woken in between the check and
+    // the operation being queued - otherwise, the operation could be left waiting forever.
+    synchronized (this.ledger) {
+      this.digest.add(op);
+
+      // Check if the operation can be immediately executed
+      if (!this.canStabilize(op)) {
+        // If it can't, just add it to the ledger and wait for stabilization
+        this.unstableIndices.put(op, this.ledger.size());
+        this.ledger.add(op);
+        this.pending.add(op);
+        return false;
+      }
 
-    do {
-      isStable = true;
-
-      for (int i = this.firstUnstable.get(), last = this.ledger.size(); i < last; i++) {
-        Operation op = this.ledger.get(i);
-
-        // Safety: we first sync on the operation, and check if it's stable. If it was already
-        // marked as stable, we skip it since it means another thread is already executing it.
-        // If it's not stable, we can set it as stable and leave the synchronized block, since
-        // other threads will see it as stable and skip it.
-        synchronized (op) {
-          // If the operation is already stable or can't be stabilized, skip it
-          if (op.isStable() || !this.canStabilize(op)) {
-            continue;
+      // If it can, mark it as stable and add it to the ledger, before the first unstable operation
+      op.setStable();
+      this.moveToStablePrefix(op);
+    }
+
+    return true;
+  }
+
+  /**
+   * Executes all pending operations that can be executed.
+   *
+   * <p>Only the heads of the per-origin queues which may have been unblocked by the operations
+   * executed since they were last checked are visited, instead of the whole unstable ledger. Every
+   * operation which can be stabilized with the current value timestamp is taken at once, and the
+   * batch is executed by the {@link OperationScheduler}, before checking the operations it
+   * unblocked.
+   */
+  public void stabilize() {
+    this.snapshotLock.readLock().lock();
+    try {
+      while (true) {
+        final List<Operation> batch = new ArrayList<>();
+
+        // Safety: operations are taken from the queues and moved to the stable slice of the ledger
+        // atomically, so that no two threads ever stabilize the same operation.
+        synchronized (this.ledger) {
+          final VectorClock valueTimeStamp = this.valueTimeStamp.get();
+          Optional<Operation> next;
+          while ((next = this.pending.poll(valueTimeStamp)).isPresent()) {
+            batch.add(next.get());
           }
 
-          op.setStable();
-        }
+          if (batch.isEmpty()) {
+            return;
+          }
 
-        // Swap the operation with the first unstable operation, if it's not already there
-        int swapIndex = firstUnstable.getAndIncrement();
-        if (swapIndex != i) {
-          synchronized (this.ledger) {
-            Operation swap = this.ledger.get(swapIndex);
-            this.ledger.set(swapIndex, op);
-            this.ledger.set(i, swap);
+          for (Operation op : batch) {
+            op.setStable();
+            this.moveToStablePrefix(op);
           }
         }
 
-        this.execute(op);
-
-        // Unset the isStable flag, so that stabilize searches for new operations to stabilize
-        isStable = false;
+        this.execute(batch);
       }
-    } while (!isStable);
+    } finally {
+      this.snapshotLock.readLock().unlock();
+    }
   }
 
   /**
    * Visit all operations in the ledger, using the specified visitor.
    *
+   * <p>Ledger indices count the operations folded into the account balances when the state was
+   * restored from a snapshot, or dropped from the ledger, which can no longer be visited.
+   *
    * @param visitor the visitor for each operation to accept.
    * @param startAtIndex the index to start visiting from.
    * @return the index of the last stable operation visited, if any, stamped with the replica
    *     timestamp
    */
   public Stamped<Optional<Integer>> visitLedger(OperationVisitor visitor, int startAtIndex) {
-    // Safety: we lock the replica timestamp to prevent it from being modified, since this method
-    // returns a snapshot of the ledger at a specific timestamp.
-    synchronized (this.replicaTimeStamp) {
+    // Safety: gossip batches are held off, since this method returns a snapshot of the ledger at a
+    // specific replica timestamp, which covers the operations of the batches applied so far.
+    synchronized (this.gossipLock) {
       // Safety: prevent operations from being added to the ledger while we are
       // visiting it
       // Operations themselves are thread-safe, so we don't need to lock them: the only mutable
@@ -176,7 +516,7 @@ public class ServerState {
         Optional<Integer> lastStable = Optional.empty();
         boolean foundUnstable = false;
 
-        for (int i = startAtIndex; i < this.ledger.size(); i++) {
+        for (int i = Math.max(startAtIndex - this.ledgerOffset, 0); i < this.ledger.size(); i++) {
           // Safety: no need to lock the ledger, it's a synchronized list
           Operation op = this.ledger.get(i);
 
@@ -185,7 +525,7 @@ public class ServerState {
             // As soon as we find an unstable operation, we should not count any more stable
             // operations after it - those operations are still being ordered.
             if (!foundUnstable) {
-              lastStable = Optional.of(i);
+              lastStable = Optional.of(this.ledgerOffset + i);
             }
           } else {
             foundUnstable = true;
@@ -194,7 +534,7 @@ public class ServerState {
           op.accept(visitor);
         }
 
-        return new Stamped<>(lastStable, new VectorClock(this.replicaTimeStamp));
+        return new Stamped<>(lastStable, new VectorClock(this.replicaTimeStamp.get()));
       }
     }
   }
@@ -203,43 +543,272 @@ public class ServerState {
     this.visitLedger(visitor, 0);
   }
 
+  /**
+   * Reads the balance of the account with the given User ID, once the value timestamp reaches the
+   * given timestamp. The read is completed with the balance, stamped with the value timestamp, or
+   * with an {@link UnknownAccountException} if the account doesn't exist.
+   *
+   * <p>No thread is blocked while the read waits: it is registered as a waiter, and completed by
+   * the thread which executes the operation that brings the value timestamp past the given one.
+   * Cancelling the returned future removes the waiter.
+   *
+   * <p>Safety: prevTS must not be written to during execution of this method
+   *
+   * @return the pending read.
+   */
+  public CompletableFuture<Stamped<Integer>> readBalance(String userId, VectorClock prevTimeStamp) {
+    final CompletableFuture<Stamped<Integer>> read = new CompletableFuture<>();
+
+    // Reads which the value timestamp already reached don't take any lock
+    final VectorClock.Order order = VectorClock.compare(prevTimeStamp, this.valueTimeStamp.get());
+    if (order == Order.BEFORE || order == Order.EQUAL) {
+      this.completeRead(read, userId);
+      return read;
+    }
+
+    final CausalWaiters.Waiter waiter =
+        new CausalWaiters.Waiter(prevTimeStamp, () -> this.completeRead(read, userId));
+
+    // Safety: the value timestamp is read again while holding the waiters' lock, after which it's
+    // only replaced before they're woken, so that the waiter can't miss the update it waits for
+    final boolean waiting;
+    synchronized (this.readers) {
+      waiting = this.readers.register(waiter, this.valueTimeStamp.get());
+    }
+
+    if (!waiting) {
+      waiter.ready();
+      return read;
+    }
+
+    read.whenComplete(
+        (balance, e) -> {
+          if (read.isCancelled()) {
+            synchronized (this.readers) {
+              this.readers.remove(waiter);
+            }
+          }
+        });
+    return read;
+  }
+
   /**
    * Returns the balance of the account with the given User ID, stamped with the current value
-   * timestamp.
+   * timestamp, blocking until the value timestamp reaches the given timestamp.
    *
    * <p>Safety: prevTS must not be written to during execution of this method
    */
   public Stamped<Integer> getAccountBalance(String userId, VectorClock prevTimeStamp) {
-    Optional<Account> account;
-    VectorClock timeStamp;
+    final CompletableFuture<Stamped<Integer>> read = this.readBalance(userId, prevTimeStamp);
+
+    try {
+      return read.get();
+    } catch (InterruptedException e) {
+      read.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new OutdatedStateException(prevTimeStamp);
+    } catch (ExecutionException e) {
+      throw (RuntimeException) e.getCause();
+    }
+  }
 
-    while (true) {
-      synchronized (this.valueTimeStamp) {
-        VectorClock.Order order = VectorClock.compare(prevTimeStamp, this.valueTimeStamp);
+  /**
+   * Returns the number of operations added to the ledger so far, including the ones folded into the
+   * account balances by a snapshot. Ledger indices are always below it.
+   */
+  public int getLedgerSize() {
+    synchronized (this.ledger) {
+      return this.ledgerOffset + this.ledger.size();
+    }
+  }
 
-        if (order == Order.BEFORE || order == Order.EQUAL) {
-          account = Optional.ofNullable(this.accounts.get(userId));
-          timeStamp = new VectorClock(this.valueTimeStamp);
-          break;
-        }
+  /**
+   * Returns the number of balance reads waiting for this replica to catch up with their clients.
+   */
+  public int getWaitingReads() {
+    synchronized (this.readers) {
+      return this.readers.size();
+    }
+  }
 
-        try {
-          this.valueTimeStamp.wait();
-        } catch (InterruptedException e) {
-          Thread.currentThread().interrupt();
-          throw new OutdatedStateException(prevTimeStamp);
-        }
+  /** Returns the table of accounts. */
+  public AccountTable getAccounts() {
+    return this.accounts;
+  }
+
+  /**
+   * Returns the ledger indices of the stable operations last gossiped to each replica.
+   *
+   * <p>Safety: callers must hold the cursors' lock while accessing them.
+   */
+  public VectorClock getGossipCursors() {
+    return this.gossipCursors;
+  }
+
+  /**
+   * Sets the other replicas found by the latest gossip round. Snapshots only keep the stable
+   * operations which they may not have received yet.
+   *
+   * @param peers the IDs of the replicas.
+   */
+  public void setPeers(Set<Integer> peers) {
+    this.peers = Set.copyOf(peers);
+  }
+
+  /**
+   * Records that another replica has reached the given replica timestamp, in addition to the ones
+   * it was known to have reached before.
+   *
+   * @param replica the ID of the other replica.
+   * @param timeStamp its replica timestamp.
+   */
+  public void acknowledge(int replica, VectorClock timeStamp) {
+    this.peerTimeStamps.merge(
+        replica,
+        new VectorClock(timeStamp),
+        (known, received) -> {
+          final VectorClock merged = new VectorClock(known);
+          merged.merge(received);
+          return merged;
+        });
+  }
+
+  /**
+   * Returns the lowest replica timestamp each of the given replicas is known to have reached, i.e.,
+   * the timestamp of the operations every one of them holds.
+   *
+   * @param replicas the IDs of the other replicas.
+   * @return the lowest value of each entry across their acknowledged timestamps, which is empty if
+   *     nothing is known about any of them.
+   */
+  public VectorClock getAcknowledgedByAll(Collection<Integer> replicas) {
+    VectorClock lowest = null;
+    for (int replica : replicas) {
+      final VectorClock acknowledged = this.getAcknowledged(replica);
+      if (lowest == null) {
+        lowest = new VectorClock(acknowledged);
+        continue;
+      }
+
+      // Only the replicas with an entry in the lowest timestamp so far may still have one
+      final VectorClock previous = lowest;
+      lowest = new VectorClock();
+      for (int i = 0; i < previous.entries(); i++) {
+        lowest.set(
+            previous.replica(i),
+            Math.min(previous.timeStamp(i), acknowledged.get(previous.replica(i))));
       }
     }
+    return lowest == null ? new VectorClock() : lowest;
+  }
 
-    return account
-        .map(acc -> new Stamped<>(acc.getBalance(), timeStamp))
-        .orElseThrow(() -> new UnknownAccountException(userId));
+  /**
+   * Drops the operations at the start of the ledger which are stable, and so already reflected in
+   * the account balances, and which every other replica holds, so they will never be gossiped
+   * again. Ledger indices aren't changed: the ones of the dropped operations are just no longer
+   * held, as for the ones folded into a restored snapshot. The digest still covers them.
+   *
+   * <p>Operations are dropped in ledger order, up to the first one which can't be dropped yet. They
+   * remain in the operation log until a snapshot reflects them.
+   *
+   * @param acknowledged a replica timestamp every other replica is known to have reached.
+   * @return the number of operations dropped.
+   */
+  public int truncateLedger(VectorClock acknowledged) {
+    synchronized (this.ledger) {
+      final int stable = this.firstUnstable.get();
+      int count = 0;
+      while (count < stable
+          && AcknowledgedFilter.isAcknowledged(this.ledger.get(count), acknowledged)) {
+        count++;
+      }
+      if (count == 0) {
+        return 0;
+      }
+
+      // Rebase the indices relative to the start of the held ledger
+      final int dropped = count;
+      this.ledger.subList(0, dropped).clear();
+      this.ledgerOffset += dropped;
+      this.firstUnstable.addAndGet(-dropped);
+      this.unstableIndices.replaceAll((op, index) -> index - dropped);
+      return dropped;
+    }
   }
 
-  /** Returns the current list of accounts. */
-  public ConcurrentMap<String, Account> getAccounts() {
-    return this.accounts;
+  /**
+   * Returns the replica timestamp another replica is known to have reached, which is empty if
+   * nothing is known about it. It must not be modified.
+   */
+  public VectorClock getAcknowledged(int replica) {
+    return this.peerTimeStamps.getOrDefault(replica, new VectorClock());
+  }
+
+  /**
+   * Returns the digest of the operations added to the ledger, which is updated as they're added.
+   * Operations folded into the account balances of a restored snapshot aren't part of it.
+   */
+  public LedgerDigest getDigest() {
+    return this.digest;
+  }
+
+  /**
+   * Retires replicas which left the service, as announced by the naming server once every replica
+   * executed all of their operations. Their entries are dropped from the timestamps exchanged with
+   * clients from then on, since every replica's value timestamp is ahead of any client's in them.
+   * Only the replicas whose operations this replica executed are retired, and the epoch is only
+   * adopted once all of them are.
+   *
+   * @param epoch the epoch of the retirements.
+   * @param retired the sequence number of the last operation of each retired replica.
+   * @return the number of replicas newly retired.
+   */
+  public int retire(int epoch, VectorClock retired) {
+    // The value timestamp only moves forward, so the replicas covered by it stay covered
+    final VectorClock valueTimeStamp = this.valueTimeStamp.get();
+    Retirement current;
+    Retirement updated;
+    do {
+      current = this.retired.get();
+      final VectorClock replicas = new VectorClock(current.replicas());
+      boolean executed = true;
+      for (int i = 0; i < retired.entries(); i++) {
+        if (valueTimeStamp.get(retired.replica(i)) >= retired.timeStamp(i)) {
+          replicas.mergeSingle(retired.replica(i), retired.timeStamp(i));
+        } else {
+          executed = false;
+        }
+      }
+
+      updated =
+          new Retirement(executed ? Math.max(epoch, current.epoch()) : current.epoch(), replicas);
+    } while (!this.retired.compareAndSet(current, updated));
+    return updated.replicas().entries() - current.replicas().entries();
+  }
+
+  /** Returns the epoch of the retirements of replicas adopted by this replica. */
+  public int getRetiredEpoch() {
+    return this.retired.get().epoch();
+  }
+
+  /**
+   * Returns a copy of a timestamp exchanged with clients without the entries of the retired
+   * replicas.
+   */
+  public VectorClock withoutRetired(VectorClock timeStamp) {
+    final VectorClock copy = new VectorClock(timeStamp);
+    copy.retire(this.retired.get().replicas());
+    return copy;
+  }
+
+  /** Returns a copy of the value timestamp of this replica. */
+  public VectorClock getValueTimeStamp() {
+    return new VectorClock(this.valueTimeStamp.get());
+  }
+
+  /** Returns a copy of the replica timestamp of this replica. */
+  public VectorClock getReplicaTimeStamp() {
+    return new VectorClock(this.replicaTimeStamp.get());
   }
 
   /** Returns the ID of the server. */
@@ -247,36 +816,115 @@ public class ServerState {
     return this.id;
   }
 
-  /** Executes an operation. */
-  private void execute(Operation op) {
+  /** Completes a balance read with the current balance of the account. */
+  private void completeRead(CompletableFuture<Stamped<Integer>> read, String userId) {
+    // The timestamp is read first: operations are executed before it covers them, so it never
+    // covers an operation which the balance doesn't reflect
+    final VectorClock timeStamp = new VectorClock(this.valueTimeStamp.get());
+    final int balance;
+    try {
+      balance = this.accounts.getBalance(userId);
+    } catch (UnknownAccountException e) {
+      read.completeExceptionally(e);
+      return;
+    }
+
+    read.complete(new Stamped<>(balance, timeStamp));
+  }
+
+  /**
+   * Executes a batch of stable operations, in ledger order, and merges their timestamps with the
+   * value timestamp.
+   */
+  private void execute(List<Operation> batch) {
+    this.scheduler.execute(batch);
+
+    // Merge the operations' timestamps with the current value timestamp, in a single update
+    // Safety: the value timestamp is only replaced while holding the ledger lock, and the pending
+    // operations are woken while still holding it, after the merge, so any queue registered as
+    // waiting before the merge is woken by it. The same goes for the reads, which are registered
+    // and woken while holding their own lock.
+    final List<CausalWaiters.Waiter> ready;
+    synchronized (this.ledger) {
+      final VectorClock valueTimeStamp =
+          this.valueTimeStamp.update(
+              clock -> {
+                for (Operation op : batch) {
+                  clock.merge(op.getPrevTimeStamp());
+                  clock.mergeSingle(op.getReplicaId(), op.getSequence());
+                }
+              });
+      this.pending.wake(valueTimeStamp);
+      synchronized (this.readers) {
+        ready = this.readers.wake(valueTimeStamp);
+      }
+    }
+
+    // Complete the reads which were waiting for this operation, outside the locks
+    ready.forEach(CausalWaiters.Waiter::ready);
+  }
+
+  /** Executes a single operation, marking it as failed if it can't be applied. */
+  private void run(Operation op) {
     // If the operation has already failed on another server, we should not execute it anyway
     // Although this is not a panacea, it prevents some common errors that would otherwise
     // introduce inconsistencies.
-    if (!op.hasFailed()) {
-      // Execute the operation, possibly concurrently with other threads
-      try {
-        op.accept(this.executor);
-      } catch (RuntimeException e) {
-        // If the operation fails, mark it as failed and log the error
-        op.setFailed();
-        System.err.println("Operation failed: " + e.getMessage());
-      }
+    if (op.hasFailed()) {
+      return;
     }
 
-    // Merge the operation's timestamp with the current value timestamp
-    synchronized (this.valueTimeStamp) {
-      this.valueTimeStamp.merge(op.getTimeStamp());
-      this.valueTimeStamp.notifyAll();
+    // Execute the operation, possibly concurrently with other threads
+    try {
+      op.accept(this.executor);
+    } catch (RuntimeException e) {
+      // If the operation fails, mark it as failed and log the error
+      op.setFailed();
+      System.err.println("Operation failed: " + e.getMessage());
     }
   }
 
-  /** Checks if an operation can be stabilized. */
-  private boolean canStabilize(Operation op) {
-    VectorClock.Order order;
-    synchronized (this.valueTimeStamp) {
-      order = VectorClock.compare(op.getPrevTimeStamp(), this.valueTimeStamp);
+  /**
+   * Moves an operation to the end of the stable slice of the ledger, swapping it with the first
+   * unstable operation, if there is one.
+   *
+   * <p>Safety: must be called while holding the ledger lock.
+   */
+  private void moveToStablePrefix(Operation op) {
+    final int index = this.firstUnstable.getAndIncrement();
+    final Integer opIndex = this.unstableIndices.remove(op);
+
+    if (opIndex == null) {
+      // The operation is not in the ledger yet
+      if (index < this.ledger.size()) {
+        // Move the first unstable operation to the end, and put this operation in its place
+        final Operation swap = this.ledger.get(index);
+        this.unstableIndices.put(swap, this.ledger.size());
+        this.ledger.add(swap);
+        this.ledger.set(index, op);
+      } else {
+        this.ledger.add(op);
+      }
+    } else if (opIndex != index) {
+      // Swap the operation with the first unstable operation
+      final Operation swap = this.ledger.get(index);
+      this.unstableIndices.put(swap, opIndex);
+      this.ledger.set(opIndex, swap);
+      this.ledger.set(index, op);
     }
+  }
 
+  /** Checks if an operation can be stabilized. */
+  private boolean canStabilize(Operation op) {
+    final VectorClock.Order order =
+        VectorClock.compare(op.getPrevTimeStamp(), this.valueTimeStamp.get());
     return order == Order.BEFORE || order == Order.EQUAL;
   }
+
+  /**
+   * The replicas retired from the service.
+   *
+   * @param epoch the epoch of the retirements, once all of them are adopted.
+   * @param replicas the sequence number of the last operation of each retired replica.
+   */
+  private record Retirement(int epoch, VectorClock replicas) {}
 }
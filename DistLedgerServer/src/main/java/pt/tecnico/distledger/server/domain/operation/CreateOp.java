@@ -7,10 +7,17 @@ import pt.tecnico.distledger.server.visitors.OperationVisitor;
 /** Represents an account creation operation. */
 public class CreateOp extends Operation {
   /** Creates a new account creation operation. */
-  public CreateOp(
-      String userId, VectorClock prevTimeStamp, VectorClock replicaTimeStamp, int replicaId) {
-    super(userId, prevTimeStamp, replicaTimeStamp, replicaId);
+  public CreateOp(String userId, VectorClock prevTimeStamp, int sequence, int replicaId) {
+    super(userId, prevTimeStamp, sequence, replicaId);
+    validate(userId);
+  }
 
+  /**
+   * Checks if an account creation operation with the given arguments is valid, without creating it.
+   *
+   * @throws SystemAccountException if the account is a system account
+   */
+  public static void validate(String userId) {
     if (userId.equals("broker")) {
       throw new SystemAccountException(userId);
     }
@@ -2,22 +2,33 @@ package pt.tecnico.distledger.server.domain.operation;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+import pt.tecnico.distledger.server.domain.AccountIds;
 import pt.tecnico.distledger.server.visitors.OperationVisitor;
 
-/** Represents a state-modifying operation. */
+/**
+ * Represents a state-modifying operation.
+ *
+ * <p>An operation is identified by the replica which received it from a client, and its sequence
+ * number there, i.e., the entry of that replica in its replica timestamp once it was received. The
+ * other entries of that timestamp are never needed, so they aren't kept.
+ */
 public abstract class Operation {
   private final String userId;
+  private int userHandle = -1;
   private final VectorClock prevTimeStamp;
-  private final VectorClock replicaTimeStamp;
+  private final int sequence;
   private final int replicaId;
   private final AtomicBoolean stable = new AtomicBoolean(false);
   private final AtomicBoolean failed = new AtomicBoolean(false);
 
-  protected Operation(
-      String userId, VectorClock prevTimeStamp, VectorClock replicaTimeStamp, int replicaId) {
+  // Safety: replaced as a whole, and only read by encoders which check that it matches the flags
+  private volatile DistLedgerCommonDefinitions.Operation encoded;
+
+  protected Operation(String userId, VectorClock prevTimeStamp, int sequence, int replicaId) {
     this.userId = userId;
     this.prevTimeStamp = prevTimeStamp;
-    this.replicaTimeStamp = replicaTimeStamp;
+    this.sequence = sequence;
     this.replicaId = replicaId;
   }
 
@@ -41,22 +52,36 @@ public abstract class Operation {
     return this.userId;
   }
 
+  /**
+   * Returns the handle of the user ID, or -1 if it has none, i.e., no account with it was created.
+   * The handle is kept once found, so that the ID isn't hashed again.
+   */
+  public int getUserHandle() {
+    // Safety: a handle never changes once assigned, so threads racing here store the same value
+    if (this.userHandle < 0) {
+      this.userHandle = AccountIds.lookup(this.userId);
+    }
+    return this.userHandle;
+  }
+
   public VectorClock getPrevTimeStamp() {
     return this.prevTimeStamp;
   }
 
-  public VectorClock getReplicaTimeStamp() {
-    return this.replicaTimeStamp;
+  /** Returns the sequence number of this operation in the replica which received it. */
+  public int getSequence() {
+    return this.sequence;
   }
 
   /**
-   * Returns the timestamp of this operation, as described in the project statement.
+   * Returns the timestamp of this operation, as described in the project statement. It isn't kept,
+   * so a new clock is computed on each call.
    *
    * @return the timestamp of this operation.
    */
   public VectorClock getTimeStamp() {
-    VectorClock timeStamp = new VectorClock(this.prevTimeStamp);
-    timeStamp.mergeSingle(this.replicaTimeStamp, this.replicaId);
+    final VectorClock timeStamp = new VectorClock(this.prevTimeStamp);
+    timeStamp.mergeSingle(this.replicaId, this.sequence);
     return timeStamp;
   }
 
@@ -64,5 +89,18 @@ public abstract class Operation {
     return this.replicaId;
   }
 
+  /**
+   * Returns the Proto form of this operation cached by {@link #setEncoded}, or null. It may have
+   * been encoded before the operation was marked as stable or failed.
+   */
+  public DistLedgerCommonDefinitions.Operation getEncoded() {
+    return this.encoded;
+  }
+
+  /** Caches the Proto form of this operation, so that it needn't be encoded again. */
+  public void setEncoded(DistLedgerCommonDefinitions.Operation encoded) {
+    this.encoded = encoded;
+  }
+
   public abstract void accept(OperationVisitor visitor);
 }
@@ -2,6 +2,7 @@ package pt.tecnico.distledger.server.domain.operation;
 
 import java.util.Objects;
 import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.server.domain.AccountIds;
 import pt.tecnico.distledger.server.domain.exceptions.NonPositiveTransferException;
 import pt.tecnico.distledger.server.domain.exceptions.NopTransferException;
 import pt.tecnico.distledger.server.visitors.OperationVisitor;
@@ -9,6 +10,7 @@ import pt.tecnico.distledger.server.visitors.OperationVisitor;
 /** Represents a transfer operation. */
 public class TransferOp extends Operation {
   private final String destUserId;
+  private int destUserHandle = -1;
   private final int amount;
 
   /**
@@ -18,7 +20,7 @@ public class TransferOp extends Operation {
    * @param destUserId the user id of the account to transfer to
    * @param amount the amount to transfer
    * @param prevTimeStamp the client's timestamp when the operation was received
-   * @param replicaTimeStamp the replicaTS when the operation was received
+   * @param sequence the entry of the receiving replica in its replicaTS once it was received
    * @param replicaId the ID of the replica that received the operation
    * @throws NonPositiveTransferException if the amount is not positive
    * @throws NopTransferException if the source and destination accounts are the same
@@ -28,12 +30,21 @@ public class TransferOp extends Operation {
       String destUserId,
       int amount,
       VectorClock prevTimeStamp,
-      VectorClock replicaTimeStamp,
+      int sequence,
       int replicaId) {
-    super(fromUserId, prevTimeStamp, replicaTimeStamp, replicaId);
+    super(fromUserId, prevTimeStamp, sequence, replicaId);
     this.destUserId = destUserId;
     this.amount = amount;
+    validate(fromUserId, destUserId, amount);
+  }
 
+  /**
+   * Checks if a transfer operation with the given arguments is valid, without creating it.
+   *
+   * @throws NonPositiveTransferException if the amount is not positive
+   * @throws NopTransferException if the source and destination accounts are the same
+   */
+  public static void validate(String fromUserId, String destUserId, int amount) {
     if (amount <= 0) {
       throw new NonPositiveTransferException();
     }
@@ -47,6 +58,15 @@ public class TransferOp extends Operation {
     return this.destUserId;
   }
 
+  /** Returns the handle of the destination user ID, as {@link #getUserHandle()} does. */
+  public int getDestUserHandle() {
+    // Safety: a handle never changes once assigned, so threads racing here store the same value
+    if (this.destUserHandle < 0) {
+      this.destUserHandle = AccountIds.lookup(this.destUserId);
+    }
+    return this.destUserHandle;
+  }
+
   public int getAmount() {
     return this.amount;
   }
@@ -2,21 +2,22 @@ package pt.tecnico.distledger.server.grpc;
 
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
-import java.util.Optional;
+import java.time.Duration;
 import java.util.concurrent.atomic.AtomicBoolean;
 import pt.tecnico.distledger.common.Logger;
-import pt.tecnico.distledger.common.domain.VectorClock;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.ActivateRequest;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.ActivateResponse;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.DeactivateRequest;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.DeactivateResponse;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.GetLedgerStateRequest;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.GetLedgerStateResponse;
+import pt.tecnico.distledger.contract.admin.AdminDistLedger.GetReplicationLagRequest;
+import pt.tecnico.distledger.contract.admin.AdminDistLedger.GetReplicationLagResponse;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.GossipRequest;
 import pt.tecnico.distledger.contract.admin.AdminDistLedger.GossipResponse;
+import pt.tecnico.distledger.contract.admin.AdminDistLedger.ReplicaLag;
 import pt.tecnico.distledger.contract.admin.AdminServiceGrpc;
 import pt.tecnico.distledger.server.domain.ServerState;
-import pt.tecnico.distledger.server.domain.Stamped;
 import pt.tecnico.distledger.server.visitors.LedgerStateGenerator;
 
 /** Implements the Admin service, handling gRPC requests. */
@@ -25,30 +26,30 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
   private static final String GOSSIP_FAILED = "Gossip failed: ";
   private static final String DEACTIVATE_FAILED = "Deactivate failed: ";
   private static final String GET_LEDGER_STATE_FAILED = "Get Ledger State failed: ";
+  private static final String GET_REPLICATION_LAG_FAILED = "Get Replication Lag failed: ";
 
   private final ServerState state;
   private final AtomicBoolean active;
-  private final CrossServerService crossServerService;
+  private final GossipScheduler gossipScheduler;
 
-  /**
-   * Makes use of the VectorClock structure and functionality to keep track of the ledger indices of
-   * the stable operations which were sent to each server in the last gossip. Unstable operations
-   * are not tracked and will always be sent in each gossip.
-   */
-  private final VectorClock lastIndicesGossiped = new VectorClock();
-
-  /** Creates a new Admin service. */
+  /** Creates a new Admin service, which gossips through the given scheduler. */
   public AdminServiceImpl(
-      ServerState state, AtomicBoolean active, CrossServerService crossServerService) {
+      ServerState state, AtomicBoolean active, GossipScheduler gossipScheduler) {
     this.state = state;
     this.active = active;
-    this.crossServerService = crossServerService;
+    this.gossipScheduler = gossipScheduler;
+  }
+
+  /** Creates a new Admin service, which only gossips when requested. */
+  public AdminServiceImpl(
+      ServerState state, AtomicBoolean active, CrossServerService crossServerService) {
+    this(state, active, new GossipScheduler(state, active, crossServerService));
   }
 
   @Override
   public void activate(ActivateRequest request, StreamObserver<ActivateResponse> responseObserver) {
     Logger.debug("Received Activate request:");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
       this.active.set(true);
@@ -63,24 +64,10 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
   @Override
   public void gossip(GossipRequest request, StreamObserver<GossipResponse> responseObserver) {
     Logger.debug("Received Gossip request:");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
-      synchronized (this.lastIndicesGossiped) {
-        this.crossServerService.propagateState(
-            server -> {
-              LedgerStateGenerator generator = new LedgerStateGenerator();
-              Stamped<Optional<Integer>> stamped =
-                  this.state.visitLedger(generator, this.lastIndicesGossiped.get(server.id()));
-              stamped
-                  .value()
-                  .ifPresent(
-                      lastIndexVisited ->
-                          this.lastIndicesGossiped.set(server.id(), lastIndexVisited));
-              return new Stamped<>(generator, stamped.timeStamp());
-            },
-            this.state.getId());
-      }
+      this.gossipScheduler.gossip();
 
       responseObserver.onNext(GossipResponse.getDefaultInstance());
       responseObserver.onCompleted();
@@ -94,7 +81,7 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
   public void deactivate(
       DeactivateRequest request, StreamObserver<DeactivateResponse> responseObserver) {
     Logger.debug("Received Deactivate request:");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
       this.active.set(false);
@@ -110,7 +97,7 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
   public void getLedgerState(
       GetLedgerStateRequest request, StreamObserver<GetLedgerStateResponse> responseObserver) {
     Logger.debug("Received GetLedgerState request:");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
       LedgerStateGenerator generator = new LedgerStateGenerator();
@@ -125,4 +112,31 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
       responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
     }
   }
+
+  @Override
+  public void getReplicationLag(
+      GetReplicationLagRequest request,
+      StreamObserver<GetReplicationLagResponse> responseObserver) {
+    Logger.debug("Received GetReplicationLag request:");
+    Logger.debug(() -> request + "\n");
+
+    try {
+      final GossipScheduler.ReplicationLag lag = this.gossipScheduler.getLag();
+      final GetReplicationLagResponse.Builder response =
+          GetReplicationLagResponse.newBuilder()
+              .setMillisSinceGossip(lag.sinceLastGossip().map(Duration::toMillis).orElse(-1L))
+              .setGossipIntervalMillis(lag.interval().toMillis());
+      lag.pendingOperations()
+          .forEach(
+              (id, pending) ->
+                  response.addReplicas(
+                      ReplicaLag.newBuilder().setId(id).setPendingOperations(pending)));
+
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    } catch (RuntimeException e) {
+      Logger.debug(GET_REPLICATION_LAG_FAILED + e.getMessage());
+      responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
 }
@@ -1,99 +1,601 @@
 package pt.tecnico.distledger.server.grpc;
 
+import io.grpc.Deadline;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import pt.tecnico.distledger.common.Logger;
 import pt.tecnico.distledger.common.domain.VectorClock;
 import pt.tecnico.distledger.common.grpc.BaseService;
 import pt.tecnico.distledger.common.grpc.NamingService;
 import pt.tecnico.distledger.common.grpc.ProtoUtils;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.CompareDigestRequest;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.CompareDigestResponse;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.DigestNode;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.FetchSnapshotRequest;
 import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateRequest;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateResponse;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.SnapshotChunk;
 import pt.tecnico.distledger.contract.distledgerserver.DistLedgerCrossServerServiceGrpc;
+import pt.tecnico.distledger.server.domain.LedgerDigest;
 import pt.tecnico.distledger.server.domain.Stamped;
-import pt.tecnico.distledger.server.domain.exceptions.ServerUnavailableException;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.grpc.exceptions.FailedDigestComparisonException;
 import pt.tecnico.distledger.server.grpc.exceptions.FailedPropagationException;
+import pt.tecnico.distledger.server.grpc.exceptions.FailedSnapshotFetchException;
+import pt.tecnico.distledger.server.storage.Snapshot;
+import pt.tecnico.distledger.server.visitors.AcknowledgedFilter;
 import pt.tecnico.distledger.server.visitors.LedgerStateGenerator;
+import pt.tecnico.distledger.server.visitors.PackedLedgerStateGenerator;
 
-/** Handles CrossServer operations, making gRPC requests to the server's CrossServer service. */
+/**
+ * Handles CrossServer operations, making gRPC requests to the server's CrossServer service.
+ *
+ * <p>State is propagated to every other server at once, through non-blocking stubs, each request
+ * bounded by a deadline, so that a slow or unreachable server only delays a propagation up to the
+ * deadline, without delaying the others. Large states are streamed in chunks of bounded size, which
+ * the other servers apply as they receive them.
+ *
+ * <p>States are sent to each server in the packed format once it announces that it accepts it, in
+ * its response to a propagation, and in the plain format until then, so that servers which don't
+ * know the packed format keep receiving states they can read. The format is negotiated again
+ * whenever the connection to the server is lost, as it may have been replaced.
+ */
 public class CrossServerService
-    extends BaseService<DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceBlockingStub> {
+    extends BaseService<DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceStub> {
+  private static final String SERVICE_NAME = "DistLedger";
   private static final int MAX_TRIES = 2;
+  private static final String INVALID_DIGEST = "Received an invalid digest comparison";
 
-  /** Creates a new CrossServerService using the given NamingService. */
+  /** Maximum number of operations sent in a single message. */
+  static final int CHUNK_SIZE = 1024;
+
+  public static final Duration DEFAULT_DEADLINE = Duration.ofSeconds(2);
+
+  /** Time a server is given to send its snapshot, which takes longer the more accounts it has. */
+  public static final Duration SNAPSHOT_DEADLINE = Duration.ofMinutes(1);
+
+  private final NamingService namingService;
+  private final Duration deadline;
+  private final boolean packed;
+
+  /** Qualifiers of the servers which announced that they accept packed states. */
+  private final Set<String> packedServers = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Creates a new CrossServerService using the given NamingService.
+   *
+   * @param service the naming service.
+   * @param deadline the time each server is given to accept a propagation, across all tries.
+   * @param packed whether to send and accept states in the packed format.
+   */
+  public CrossServerService(NamingService service, Duration deadline, boolean packed) {
+    super(service, DistLedgerCrossServerServiceGrpc::newStub);
+    this.namingService = service;
+    this.deadline = deadline;
+    this.packed = packed;
+  }
+
+  /**
+   * Creates a new CrossServerService using the given NamingService, which sends and accepts packed
+   * states.
+   *
+   * @param service the naming service.
+   * @param deadline the time each server is given to accept a propagation, across all tries.
+   */
+  public CrossServerService(NamingService service, Duration deadline) {
+    this(service, deadline, true);
+  }
+
+  /** Creates a new CrossServerService using the given NamingService, with the default deadline. */
   public CrossServerService(NamingService service) {
-    super(service, DistLedgerCrossServerServiceGrpc::newBlockingStub);
+    this(service, DEFAULT_DEADLINE);
+  }
+
+  /** Returns whether this server accepts states in the packed format. */
+  public boolean acceptsPacked() {
+    return this.packed;
   }
 
   /**
-   * Handle the PropagateState request. Uses the filled LedgerStateGenerator to build the
-   * LedgerState proto and send it to the server.
+   * Propagates the given operations to the server, retrying with a new stub while the server is
+   * unavailable, within the deadline.
+   *
+   * <p>States of up to {@link #CHUNK_SIZE} operations are sent in a single PropagateState request.
+   * Larger ones are streamed in chunks of that size, with a deadline of that many times the usual
+   * one. If such a stream fails, the server is asked which operations it already applied, through
+   * an empty request, and only the remaining ones are streamed again.
    *
    * @param qualifier the target server's qualifier.
-   * @param generator the populated LedgerStateGenerator to propagate.
+   * @param operations the operations to propagate.
    * @param replicaTimeStamp the replica's vector clock.
    * @param ownId this server's ID.
-   * @throws FailedPropagationException if the gRPC call fails.
+   * @return a future of the server's replica timestamp once it accepts the state, which fails with
+   *     a {@link FailedPropagationException} if the gRPC call fails.
    */
+  private CompletableFuture<VectorClock> propagateStateToServer(
+      String qualifier, List<Operation> operations, VectorClock replicaTimeStamp, int ownId) {
+    final CompletableFuture<VectorClock> response = new CompletableFuture<>();
+
+    final boolean packed = this.packedServers.contains(qualifier);
+
+    if (operations.size() <= CHUNK_SIZE) {
+      final PropagateStateRequest.Builder builder =
+          PropagateStateRequest.newBuilder()
+              .setReplicaTS(ProtoUtils.toProto(replicaTimeStamp))
+              .setId(ownId);
+      if (packed) {
+        final PackedLedgerStateGenerator generator = new PackedLedgerStateGenerator();
+        operations.forEach(op -> op.accept(generator));
+        builder.setPackedState(generator.build());
+      } else {
+        final LedgerStateGenerator generator = new LedgerStateGenerator();
+        operations.forEach(op -> op.accept(generator));
+        builder.setState(generator.build());
+      }
+      final PropagateStateRequest request = builder.build();
+      Logger.debug(() -> "Sending request: " + request);
+
+      final Deadline deadline = Deadline.after(this.deadline.toNanos(), TimeUnit.NANOSECONDS);
+      this.propagateStateToServer(qualifier, request, deadline, MAX_TRIES, response);
+      return response;
+    }
+
+    final List<Operation> ordered = streamOrder(operations);
+
+    final int chunks = (ordered.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    final Deadline deadline =
+        Deadline.after(this.deadline.multipliedBy(chunks).toNanos(), TimeUnit.NANOSECONDS);
+    this.streamStateToServer(
+        qualifier, ordered, replicaTimeStamp, ownId, deadline, MAX_TRIES, response);
+    return response;
+  }
+
   private void propagateStateToServer(
-      String qualifier, LedgerStateGenerator generator, VectorClock replicaTimeStamp, int ownId) {
-    PropagateStateRequest request =
-        PropagateStateRequest.newBuilder()
-            .setState(generator.build())
-            .setReplicaTS(ProtoUtils.toProto(replicaTimeStamp))
-            .setId(ownId)
-            .build();
+      String qualifier,
+      PropagateStateRequest request,
+      Deadline deadline,
+      int triesLeft,
+      CompletableFuture<VectorClock> response) {
+    final DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceStub stub;
+    try {
+      stub = this.stubCache.getStub(qualifier);
+    } catch (RuntimeException e) {
+      response.completeExceptionally(new FailedPropagationException(e));
+      return;
+    }
+
+    stub.withDeadline(deadline)
+        .propagateState(
+            request,
+            new StreamObserver<>() {
+              private VectorClock replicaTimeStamp;
+
+              @Override
+              public void onNext(PropagateStateResponse value) {
+                this.replicaTimeStamp = CrossServerService.this.accepted(qualifier, value);
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                if (Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE) {
+                  CrossServerService.this.disconnected(qualifier);
+                  if (triesLeft > 1 && !deadline.isExpired()) {
+                    CrossServerService.this.propagateStateToServer(
+                        qualifier, request, deadline, triesLeft - 1, response);
+                    return;
+                  }
+                }
+
+                response.completeExceptionally(new FailedPropagationException(t));
+              }
+
+              @Override
+              public void onCompleted() {
+                response.complete(this.replicaTimeStamp);
+              }
+            });
+  }
+
+  private void streamStateToServer(
+      String qualifier,
+      List<Operation> operations,
+      VectorClock replicaTimeStamp,
+      int ownId,
+      Deadline deadline,
+      int triesLeft,
+      CompletableFuture<VectorClock> response) {
+    final DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceStub stub;
     try {
-      Logger.debug("Sending request: " + request);
-
-      this.makeRequestWithRetryInvalidatingStubCache(
-              qualifier,
-              request,
-              DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceBlockingStub
-                  ::propagateState,
-              MAX_TRIES)
-          .orElseThrow(ServerUnavailableException::new);
+      stub = this.stubCache.getStub(qualifier);
     } catch (RuntimeException e) {
-      throw new FailedPropagationException(e);
+      response.completeExceptionally(new FailedPropagationException(e));
+      return;
     }
+
+    final PropagateStateCall call =
+        new PropagateStateCall(
+            operations,
+            replicaTimeStamp,
+            ownId,
+            CHUNK_SIZE,
+            this.packedServers.contains(qualifier));
+    stub.withDeadline(deadline).propagateStateStream(call);
+    call.response()
+        .whenComplete(
+            (value, t) -> {
+              if (t == null) {
+                response.complete(this.accepted(qualifier, value));
+                return;
+              }
+
+              if (Status.fromThrowable(t).getCode() != Status.Code.UNAVAILABLE
+                  || triesLeft <= 1
+                  || deadline.isExpired()) {
+                response.completeExceptionally(new FailedPropagationException(t));
+                return;
+              }
+
+              // Resume from the operations the server didn't apply yet. An empty state with an
+              // empty timestamp doesn't change the server's state, but is answered with its own
+              this.disconnected(qualifier);
+              final CompletableFuture<VectorClock> applied = new CompletableFuture<>();
+              this.propagateStateToServer(
+                  qualifier,
+                  PropagateStateRequest.newBuilder().setId(ownId).build(),
+                  deadline,
+                  1,
+                  applied);
+              applied.whenComplete(
+                  (timeStamp, e) -> {
+                    if (e != null) {
+                      response.completeExceptionally(e);
+                      return;
+                    }
+
+                    final List<Operation> remaining =
+                        operations.stream()
+                            .filter(op -> !AcknowledgedFilter.isAcknowledged(op, timeStamp))
+                            .toList();
+                    Logger.debug(
+                        () ->
+                            "Resuming propagation to server "
+                                + qualifier
+                                + " with "
+                                + remaining.size()
+                                + " operations");
+                    this.streamStateToServer(
+                        qualifier,
+                        remaining,
+                        replicaTimeStamp,
+                        ownId,
+                        deadline,
+                        triesLeft - 1,
+                        response);
+                  });
+            });
   }
 
   /**
-   * Propagates (a subset of) the state to all other servers in this service.
+   * Records whether the server accepts packed states, from its response to a propagation.
+   *
+   * @return the server's replica timestamp.
+   */
+  private VectorClock accepted(String qualifier, PropagateStateResponse response) {
+    if (this.packed && response.getPacked()) {
+      this.packedServers.add(qualifier);
+    }
+    return ProtoUtils.fromProto(response.getReplicaTS());
+  }
+
+  /** Forgets the connection to a server which became unavailable, and the format it accepts. */
+  private void disconnected(String qualifier) {
+    this.stubCache.invalidateCachedStub(qualifier);
+    this.packedServers.remove(qualifier);
+  }
+
+  /**
+   * Orders operations to be streamed: the ones of each origin replica in the order of their
+   * sequence numbers, which the timestamps of the chunks rely on, and otherwise by the sum of their
+   * timestamps, so that they mostly come after the operations they depend on, which have a lower
+   * sum.
+   */
+  static List<Operation> streamOrder(List<Operation> operations) {
+    final List<Operation> ordered = new ArrayList<>(operations);
+    ordered.sort(Comparator.comparingLong(CrossServerService::timeStampSum));
+
+    // Each origin's operations are put back in the positions they were sorted into
+    final Map<Integer, List<Integer>> positions = new HashMap<>();
+    for (int i = 0; i < ordered.size(); i++) {
+      positions.computeIfAbsent(ordered.get(i).getReplicaId(), origin -> new ArrayList<>()).add(i);
+    }
+    final Operation[] result = new Operation[ordered.size()];
+    for (List<Integer> indices : positions.values()) {
+      final List<Operation> origin =
+          indices.stream()
+              .map(ordered::get)
+              .sorted(Comparator.comparingInt(Operation::getSequence))
+              .toList();
+      for (int i = 0; i < indices.size(); i++) {
+        result[indices.get(i)] = origin.get(i);
+      }
+    }
+    return Arrays.asList(result);
+  }
+
+  /** Returns the sum of the entries of an operation's timestamp, without computing it. */
+  private static long timeStampSum(Operation op) {
+    final VectorClock prevTimeStamp = op.getPrevTimeStamp();
+    long sum = 0;
+    for (int i = 0; i < prevTimeStamp.entries(); i++) {
+      sum += prevTimeStamp.timeStamp(i);
+    }
+    return sum + Math.max(0, op.getSequence() - prevTimeStamp.get(op.getReplicaId()));
+  }
+
+  /**
+   * Propagates (a subset of) the state to all other servers in this service, to all of them at
+   * once, and waits until each of them accepts it, fails, or exceeds the deadline.
    *
    * <p>If any individual propagation fails, the exception is logged and the propagation continues.
    *
-   * @param generatorFactory a function that returns a {@link LedgerStateGenerator} for a given
-   *     server entry. This can be used for the caller to control what operations the generator will
-   *     visit, and, thus, what state will be propagated to each server. If {@code null} is
-   *     returned, no propagation is attempted.
+   * @param operationsFactory a function that returns the operations to propagate to a given server
+   *     entry, stamped with this server's replica timestamp, which must cover them. This can be
+   *     used for the caller to control what state will be propagated to each server. If {@code
+   *     null} is returned, no propagation is attempted.
    * @param ownId this server's ID.
+   * @return the replica timestamps of the servers which accepted the state propagated to them, once
+   *     they did, by server ID.
    * @throws io.grpc.StatusRuntimeException if a Naming Service lookup operation fails.
    */
-  public void propagateState(
-      Function<NamingService.Entry, Stamped<LedgerStateGenerator>> generatorFactory, int ownId) {
+  public Map<Integer, VectorClock> propagateState(
+      Function<NamingService.Entry, Stamped<List<Operation>>> operationsFactory, int ownId) {
+    final Map<NamingService.Entry, CompletableFuture<VectorClock>> responses = new HashMap<>();
     this.stubCache.forEachServerInService(
         entry -> {
           if (entry.id() == ownId) {
             return;
           }
 
-          try {
-            Optional.ofNullable(generatorFactory.apply(entry))
-                .ifPresent(
-                    generator ->
-                        this.propagateStateToServer(
-                            entry.qualifier(), generator.value(), generator.timeStamp(), ownId));
-          } catch (FailedPropagationException e) {
-            Logger.error(
-                "Failed to propagate state to server "
-                    + entry.qualifier()
-                    + " ("
-                    + entry.target()
-                    + "): "
-                    + e.getMessage());
-            // Continue propagating to other servers; individual propagation failure is not critical
+          final Stamped<List<Operation>> operations = operationsFactory.apply(entry);
+          if (operations != null) {
+            responses.put(
+                entry,
+                this.propagateStateToServer(
+                    entry.qualifier(), operations.value(), operations.timeStamp(), ownId));
+          }
+        });
+
+    return responses.entrySet().stream()
+        .filter(
+            response -> {
+              final NamingService.Entry entry = response.getKey();
+              try {
+                response.getValue().join();
+                return true;
+              } catch (CompletionException e) {
+                Logger.error(
+                    "Failed to propagate state to server "
+                        + entry.qualifier()
+                        + " ("
+                        + entry.target()
+                        + "): "
+                        + e.getCause().getMessage());
+                // Individual propagation failure is not critical
+                return false;
+              }
+            })
+        .collect(
+            Collectors.toMap(
+                response -> response.getKey().id(), response -> response.getValue().join()));
+  }
+
+  /**
+   * Fetches a snapshot of the state of another server in this service, so that this server can
+   * serve requests without receiving and executing every operation in the ledger. The servers are
+   * asked one at a time, until one of them sends its snapshot.
+   *
+   * <p>The snapshot keeps every stable operation which some replica may not have received yet, as
+   * this server's replica timestamp will cover them once it's restored, and it may then be asked to
+   * gossip them.
+   *
+   * @param ownId this server's ID.
+   * @return the snapshot, which reflects no operation log record, or empty if no server sent one.
+   * @throws io.grpc.StatusRuntimeException if a Naming Service lookup operation fails.
+   */
+  public Optional<Snapshot> fetchSnapshot(int ownId) {
+    final List<NamingService.Entry> entries = new ArrayList<>();
+    this.stubCache.forEachServerInService(
+        entry -> {
+          if (entry.id() != ownId) {
+            entries.add(entry);
           }
         });
+
+    for (NamingService.Entry entry : entries) {
+      try {
+        return Optional.of(this.fetchSnapshotFromServer(entry.qualifier(), ownId).join());
+      } catch (CompletionException e) {
+        Logger.error(
+            "Failed to fetch snapshot from server "
+                + entry.qualifier()
+                + " ("
+                + entry.target()
+                + "): "
+                + e.getCause().getMessage());
+      }
+    }
+    return Optional.empty();
+  }
+
+  private CompletableFuture<Snapshot> fetchSnapshotFromServer(String qualifier, int ownId) {
+    final CompletableFuture<Snapshot> response = new CompletableFuture<>();
+    final DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceStub stub;
+    try {
+      stub = this.stubCache.getStub(qualifier);
+    } catch (RuntimeException e) {
+      response.completeExceptionally(new FailedSnapshotFetchException(e));
+      return response;
+    }
+
+    stub.withDeadline(Deadline.after(SNAPSHOT_DEADLINE.toNanos(), TimeUnit.NANOSECONDS))
+        .fetchSnapshot(
+            FetchSnapshotRequest.newBuilder().setId(ownId).build(),
+            new StreamObserver<>() {
+              private final SnapshotChunks.Assembler assembler = new SnapshotChunks.Assembler();
+              private RuntimeException invalid;
+
+              @Override
+              public void onNext(SnapshotChunk chunk) {
+                // The rest of the stream is still received, but the snapshot is discarded
+                if (this.invalid == null) {
+                  try {
+                    this.assembler.add(chunk);
+                  } catch (IllegalArgumentException e) {
+                    this.invalid = e;
+                  }
+                }
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                if (Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE) {
+                  CrossServerService.this.disconnected(qualifier);
+                }
+                response.completeExceptionally(new FailedSnapshotFetchException(t));
+              }
+
+              @Override
+              public void onCompleted() {
+                try {
+                  if (this.invalid != null) {
+                    throw this.invalid;
+                  }
+                  response.complete(this.assembler.build());
+                } catch (IllegalArgumentException e) {
+                  response.completeExceptionally(new FailedSnapshotFetchException(e));
+                }
+              }
+            });
+    return response;
+  }
+
+  /**
+   * Compares a digest of the operations of this server with the one of another server, to find
+   * which of them the server may not hold. The trees of the digests are walked top-down, a level at
+   * a time: only the children of the nodes which differ are compared next, so servers which share
+   * most of their operations only exchange a few nodes of each level.
+   *
+   * @param qualifier the other server's qualifier.
+   * @param digest a copy of this server's digest, which isn't updated during the comparison.
+   * @param ownId this server's ID.
+   * @return the leaves of the digest which differ from the server's ones, or empty if the
+   *     comparison failed.
+   */
+  public Optional<Set<LedgerDigest.Node>> compareDigest(
+      String qualifier, LedgerDigest digest, int ownId) {
+    final Set<LedgerDigest.Node> differing = new HashSet<>();
+    List<LedgerDigest.Node> level = digest.roots();
+    try {
+      while (!level.isEmpty()) {
+        final List<LedgerDigest.Node> next = new ArrayList<>();
+        for (int start = 0; start < level.size(); start += CHUNK_SIZE) {
+          final List<LedgerDigest.Node> nodes =
+              level.subList(start, Math.min(level.size(), start + CHUNK_SIZE));
+          final CompareDigestResponse response =
+              this.compareNodesWithServer(qualifier, nodes, ownId).join();
+          if (response.getCountsCount() != response.getDifferingCount()) {
+            throw new FailedDigestComparisonException(new IllegalArgumentException(INVALID_DIGEST));
+          }
+
+          for (int i = 0; i < response.getDifferingCount(); i++) {
+            final int position = response.getDiffering(i);
+            if (position < 0 || position >= nodes.size()) {
+              throw new FailedDigestComparisonException(
+                  new IllegalArgumentException(INVALID_DIGEST));
+            }
+
+            final LedgerDigest.Node node = nodes.get(position);
+            // The server holds nothing under the node, so there's nothing to compare below it
+            if (node.level() == 0 || response.getCounts(i) == 0) {
+              differing.addAll(digest.leaves(node));
+            } else {
+              next.addAll(digest.children(node));
+            }
+          }
+        }
+        level = next;
+      }
+    } catch (CompletionException e) {
+      Logger.error(
+          "Failed to compare digest with server " + qualifier + ": " + e.getCause().getMessage());
+      return Optional.empty();
+    } catch (FailedDigestComparisonException e) {
+      Logger.error("Failed to compare digest with server " + qualifier + ": " + e.getMessage());
+      return Optional.empty();
+    }
+
+    return Optional.of(differing);
+  }
+
+  private CompletableFuture<CompareDigestResponse> compareNodesWithServer(
+      String qualifier, List<LedgerDigest.Node> nodes, int ownId) {
+    final CompletableFuture<CompareDigestResponse> response = new CompletableFuture<>();
+    final DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceStub stub;
+    try {
+      stub = this.stubCache.getStub(qualifier);
+    } catch (RuntimeException e) {
+      response.completeExceptionally(new FailedDigestComparisonException(e));
+      return response;
+    }
+
+    final CompareDigestRequest.Builder request = CompareDigestRequest.newBuilder().setId(ownId);
+    for (LedgerDigest.Node node : nodes) {
+      request.addNodes(
+          DigestNode.newBuilder()
+              .setOrigin(node.origin())
+              .setLevel(node.level())
+              .setIndex(node.index())
+              .setHash(node.hash())
+              .setCount(node.count()));
+    }
+
+    stub.withDeadline(Deadline.after(this.deadline.toNanos(), TimeUnit.NANOSECONDS))
+        .compareDigest(
+            request.build(),
+            new StreamObserver<>() {
+              @Override
+              public void onNext(CompareDigestResponse value) {
+                response.complete(value);
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                if (Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE) {
+                  CrossServerService.this.disconnected(qualifier);
+                }
+                response.completeExceptionally(new FailedDigestComparisonException(t));
+              }
+
+              @Override
+              public void onCompleted() {}
+            });
+    return response;
   }
 
   /**
@@ -105,8 +607,20 @@ public class CrossServerService
    * @param ownId this server's assigned ID
    */
   public void sendStartupBeacon(int ownId) {
-    this.propagateState(
-        entry -> new Stamped<>(new LedgerStateGenerator(), new VectorClock()), ownId);
+    this.propagateState(entry -> new Stamped<>(List.of(), new VectorClock()), ownId);
+  }
+
+  /**
+   * Reports the operations executed by this server to the naming server, so that the IDs of the
+   * servers which left are retired once every server executed theirs.
+   *
+   * @param ownId this server's ID.
+   * @param valueTimeStamp this server's value timestamp.
+   * @return the IDs retired from the service, as announced by the naming server.
+   * @throws io.grpc.StatusRuntimeException if the report fails.
+   */
+  public NamingService.Retirement report(int ownId, VectorClock valueTimeStamp) {
+    return this.namingService.report(SERVICE_NAME, ownId, valueTimeStamp);
   }
 
   /**
@@ -5,29 +5,40 @@ import io.grpc.stub.StreamObserver;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.domain.VectorClock;
 import pt.tecnico.distledger.common.grpc.ProtoUtils;
-import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.CompareDigestRequest;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.CompareDigestResponse;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.DigestNode;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.FetchSnapshotRequest;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateChunk;
 import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateRequest;
 import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateResponse;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.SnapshotChunk;
 import pt.tecnico.distledger.contract.distledgerserver.DistLedgerCrossServerServiceGrpc;
+import pt.tecnico.distledger.server.domain.ApplyLoop;
+import pt.tecnico.distledger.server.domain.LedgerDigest;
 import pt.tecnico.distledger.server.domain.ServerState;
 import pt.tecnico.distledger.server.domain.exceptions.ServerUnavailableException;
-import pt.tecnico.distledger.server.domain.operation.CreateOp;
 import pt.tecnico.distledger.server.domain.operation.Operation;
-import pt.tecnico.distledger.server.domain.operation.TransferOp;
+import pt.tecnico.distledger.server.storage.Snapshot;
 
 /** Implements the CrossServer service, handling gRPC requests. */
 public class DistLedgerCrossServerServiceImpl
     extends DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceImplBase {
   private static final String PROPAGATE_FAILED = "Propagate State failed: ";
-  private static final String PARSE_FAILED = "Failed to create operation from request";
+  private static final String FETCH_SNAPSHOT_FAILED = "Fetch Snapshot failed: ";
+  private static final String COMPARE_DIGEST_FAILED = "Compare Digest failed: ";
+  private static final String INVALID_NODE = "Invalid digest node";
 
   private final AtomicBoolean active;
   private final ServerState state;
   private final CrossServerService crossServerService;
+  private final ApplyLoop applyLoop;
 
   /**
-   * Creates a new DistLedgerCrossServerServiceImpl.
+   * Creates a new DistLedgerCrossServerServiceImpl, which adds the operations propagated to it to
+   * the ledger on the threads handling requests.
    *
    * @param state The server state
    * @param active This server's active flag
@@ -35,45 +46,34 @@ public class DistLedgerCrossServerServiceImpl
    */
   public DistLedgerCrossServerServiceImpl(
       ServerState state, AtomicBoolean active, CrossServerService crossServerService) {
+    this(state, active, crossServerService, ApplyLoop.direct(state));
+  }
+
+  /**
+   * Creates a new DistLedgerCrossServerServiceImpl, which adds the operations propagated to it to
+   * the ledger through the given apply loop, responding once they're added.
+   *
+   * @param state The server state
+   * @param active This server's active flag
+   * @param crossServerService The server's cross server service instance
+   * @param applyLoop The loop through which operations are added to the ledger
+   */
+  public DistLedgerCrossServerServiceImpl(
+      ServerState state,
+      AtomicBoolean active,
+      CrossServerService crossServerService,
+      ApplyLoop applyLoop) {
     this.state = state;
     this.active = active;
     this.crossServerService = crossServerService;
-  }
-
-  private Operation parseOperation(DistLedgerCommonDefinitions.Operation operation) {
-    Operation op;
-
-    switch (operation.getType()) {
-      case OP_CREATE_ACCOUNT -> op =
-          new CreateOp(
-              operation.getUserId(),
-              ProtoUtils.fromProto(operation.getPrevTS()),
-              ProtoUtils.fromProto(operation.getReplicaTS()),
-              operation.getReplicaId());
-      case OP_TRANSFER_TO -> op =
-          new TransferOp(
-              operation.getUserId(),
-              operation.getDestUserId(),
-              operation.getAmount(),
-              ProtoUtils.fromProto(operation.getPrevTS()),
-              ProtoUtils.fromProto(operation.getReplicaTS()),
-              operation.getReplicaId());
-      default -> throw new IllegalArgumentException(PARSE_FAILED);
-    }
-
-    // May have failed already on the other server
-    if (operation.getFailed()) {
-      op.setFailed();
-    }
-
-    return op;
+    this.applyLoop = applyLoop;
   }
 
   @Override
   public void propagateState(
       PropagateStateRequest request, StreamObserver<PropagateStateResponse> responseObserver) {
     Logger.debug("Received PropagateState request");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
       if (!active.get()) {
@@ -85,16 +85,28 @@ public class DistLedgerCrossServerServiceImpl
       // First we parse the operations from the request, to ensure we don't modify the state if
       // the request is invalid.
       List<Operation> operations =
-          request.getState().getLedgerList().stream().map(this::parseOperation).toList();
+          request.hasPackedState()
+              ? PackedLedgerStateParser.parse(request.getPackedState())
+              : request.getState().getLedgerList().stream().map(OperationParser::parse).toList();
 
-      // Then, we add the operations to the ledger
-      if (this.state.addToLedger(operations, ProtoUtils.fromProto(request.getReplicaTS()))) {
-        // If any operation was stabilized, other operations may be able to be stabilized as well
-        this.state.stabilize();
-      }
-
-      responseObserver.onNext(PropagateStateResponse.getDefaultInstance());
-      responseObserver.onCompleted();
+      // Then, we add the operations to the ledger, stabilizing any operation they unblock, and
+      // respond once they're added
+      final VectorClock timeStamp = ProtoUtils.fromProto(request.getReplicaTS());
+      Responses.respond(
+          this.applyLoop
+              .propagate(operations, timeStamp)
+              .thenApply(
+                  added -> {
+                    // The sender holds every operation covered by its timestamp, so they needn't be
+                    // sent back, and it needn't be sent the ones this replica holds either
+                    this.state.acknowledge(request.getId(), timeStamp);
+                    return PropagateStateResponse.newBuilder()
+                        .setReplicaTS(ProtoUtils.toProto(this.state.getReplicaTimeStamp()))
+                        .setPacked(this.crossServerService.acceptsPacked())
+                        .build();
+                  }),
+          responseObserver,
+          PROPAGATE_FAILED);
     } catch (ServerUnavailableException e) {
       Logger.debug(PROPAGATE_FAILED + e.getMessage());
       responseObserver.onError(
@@ -108,4 +120,82 @@ public class DistLedgerCrossServerServiceImpl
       responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
     }
   }
+
+  @Override
+  public StreamObserver<PropagateStateChunk> propagateStateStream(
+      StreamObserver<PropagateStateResponse> responseObserver) {
+    return new PropagateStateStream(
+        this.state, this.active, this.crossServerService, this.applyLoop, responseObserver);
+  }
+
+  @Override
+  public void fetchSnapshot(
+      FetchSnapshotRequest request, StreamObserver<SnapshotChunk> responseObserver) {
+    Logger.debug("Received FetchSnapshot request");
+    Logger.debug(() -> request + "\n");
+
+    try {
+      if (!active.get()) {
+        throw new ServerUnavailableException();
+      }
+
+      this.crossServerService.noticeServer(request.getId());
+
+      // The snapshot is a copy, so it's sent without holding off other operations, and each chunk
+      // is only built once the joining replica is ready to receive it
+      final Snapshot snapshot = this.state.captureSnapshot();
+      SnapshotStream.send(snapshot, CrossServerService.CHUNK_SIZE, responseObserver);
+    } catch (ServerUnavailableException e) {
+      Logger.debug(FETCH_SNAPSHOT_FAILED + e.getMessage());
+      responseObserver.onError(
+          Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
+    } catch (RuntimeException e) {
+      Logger.debug(FETCH_SNAPSHOT_FAILED + e.getMessage());
+      responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  @Override
+  public void compareDigest(
+      CompareDigestRequest request, StreamObserver<CompareDigestResponse> responseObserver) {
+    Logger.debug("Received CompareDigest request");
+    Logger.debug(() -> request + "\n");
+
+    try {
+      if (!active.get()) {
+        throw new ServerUnavailableException();
+      }
+
+      this.crossServerService.noticeServer(request.getId());
+
+      final LedgerDigest digest = this.state.getDigest();
+      final CompareDigestResponse.Builder response = CompareDigestResponse.newBuilder();
+      for (int i = 0; i < request.getNodesCount(); i++) {
+        final DigestNode node = request.getNodes(i);
+        if (node.getOrigin() < 0 || !LedgerDigest.isValid(node.getLevel(), node.getIndex())) {
+          throw new IllegalArgumentException(INVALID_NODE);
+        }
+
+        final LedgerDigest.Node own =
+            digest.node(node.getOrigin(), node.getLevel(), node.getIndex());
+        if (own.hash() != node.getHash() || own.count() != node.getCount()) {
+          response.addDiffering(i).addCounts(own.count());
+        }
+      }
+
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    } catch (ServerUnavailableException e) {
+      Logger.debug(COMPARE_DIGEST_FAILED + e.getMessage());
+      responseObserver.onError(
+          Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
+    } catch (IllegalArgumentException e) {
+      Logger.debug(COMPARE_DIGEST_FAILED + e.getMessage());
+      responseObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+    } catch (RuntimeException e) {
+      Logger.debug(COMPARE_DIGEST_FAILED + e.getMessage());
+      responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
 }
@@ -0,0 +1,475 @@
+package pt.tecnico.distledger.server.grpc;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.common.grpc.NamingService;
+import pt.tecnico.distledger.server.domain.LedgerDigest;
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.domain.Stamped;
+import pt.tecnico.distledger.server.visitors.AcknowledgedFilter;
+import pt.tecnico.distledger.server.visitors.DigestFilter;
+import pt.tecnico.distledger.server.visitors.OperationCollector;
+import pt.tecnico.distledger.server.visitors.OperationVisitor;
+
+/**
+ * Propagates the ledger of this replica to the other replicas, when requested and, once started,
+ * periodically in the background, or eagerly after clients add operations to it.
+ *
+ * <p>The interval between background rounds adapts to the rate at which operations are added to the
+ * ledger, aiming for each round to carry about {@link #TARGET_ROUND_SIZE} operations, within the
+ * configured bounds: it shortens as the rate grows, and lengthens up to the maximum as the ledger
+ * becomes idle, in which case rounds are skipped, unless a replica targeted by the last round
+ * hasn't acknowledged every operation this replica holds, e.g., because it was unavailable. While
+ * balance reads wait for this replica to catch up, rounds run at the minimum interval, since their
+ * clients move between replicas, so the writes made here are likely to be read elsewhere too.
+ *
+ * <p>Eager pushes bound the time until operations added by clients reach the other replicas to the
+ * debounce window: the first operation not yet pushed schedules a round at the end of the window,
+ * which carries every operation added until then, or runs it right away once enough of them were
+ * added. The window isn't extended by later operations, so a steady stream of them can't delay it.
+ *
+ * <p>Once truncation is started, each round is followed by dropping the stable operations at the
+ * start of the ledger which every replica found by its lookup holds, so that the ledger held in
+ * memory stays bounded while they keep up. Replicas which left aren't waited for.
+ *
+ * <p>Once retiring is started, the value timestamp of this replica is periodically reported to the
+ * naming server, which retires the replicas which left once every replica executed their
+ * operations, and the retirements it announces are adopted by this replica.
+ */
+public class GossipScheduler implements AutoCloseable {
+  /** Number of operations each background round aims to carry. */
+  static final int TARGET_ROUND_SIZE = 1000;
+
+  /** Weight of the latest observation in the estimate of the rate of operations. */
+  private static final double RATE_SMOOTHING = 0.5;
+
+  public static final Duration DEFAULT_MIN_INTERVAL = Duration.ofMillis(20);
+  public static final Duration DEFAULT_MAX_INTERVAL = Duration.ofSeconds(2);
+  public static final Duration DEFAULT_DEBOUNCE = Duration.ofMillis(5);
+  public static final int DEFAULT_MAX_PUSH_SIZE = 256;
+  public static final Duration DEFAULT_RETIRE_INTERVAL = Duration.ofSeconds(1);
+
+  /**
+   * The replication lag of this replica.
+   *
+   * @param pendingOperations the number of operations the next round will scan for each replica
+   *     targeted by the last round, by replica ID, sending the ones it hasn't acknowledged.
+   * @param sinceLastGossip the time since the last round, if there was any.
+   * @param interval the current interval between background rounds, or zero if they are disabled.
+   */
+  public record ReplicationLag(
+      Map<Integer, Integer> pendingOperations,
+      Optional<Duration> sinceLastGossip,
+      Duration interval) {}
+
+  private final ServerState state;
+  private final AtomicBoolean active;
+  private final CrossServerService crossServerService;
+  private final Duration minInterval;
+  private final Duration maxInterval;
+
+  /**
+   * IDs of the replicas targeted by the last round, i.e., the ones found by its lookup. Replicas
+   * which left, or registered again under a new ID, aren't targeted anymore.
+   */
+  private volatile Set<Integer> targets = Set.of();
+
+  private ScheduledExecutorService executor;
+  private volatile boolean truncating = false;
+
+  /** Time of the last round, as given by {@link System#nanoTime()}, or 0 if there was none yet. */
+  private volatile long lastRound = 0;
+
+  // Safety: the following fields are only accessed while holding the scheduler's lock
+  private Duration interval = Duration.ZERO;
+  private double rate = 0;
+  private long lastTick;
+  private int ledgerSizeAtLastTick;
+  private int ledgerSizeAtLastRound;
+  private Duration debounce;
+  private int maxPushSize;
+  private int unpushed = 0;
+  private ScheduledFuture<?> push;
+
+  /**
+   * Creates a new GossipScheduler, whose background rounds run between the given bounds once
+   * started.
+   *
+   * @param state The server state
+   * @param active This server's active flag. Background rounds are skipped while it's inactive.
+   * @param crossServerService The service through which the ledger is propagated
+   * @param minInterval The minimum interval between background rounds
+   * @param maxInterval The maximum interval between background rounds
+   */
+  public GossipScheduler(
+      ServerState state,
+      AtomicBoolean active,
+      CrossServerService crossServerService,
+      Duration minInterval,
+      Duration maxInterval) {
+    if (minInterval.isNegative()
+        || minInterval.isZero()
+        || maxInterval.compareTo(minInterval) < 0) {
+      throw new IllegalArgumentException("Invalid gossip interval bounds");
+    }
+
+    this.state = state;
+    this.active = active;
+    this.crossServerService = crossServerService;
+    this.minInterval = minInterval;
+    this.maxInterval = maxInterval;
+  }
+
+  /** Creates a new GossipScheduler, with the default bounds. */
+  public GossipScheduler(
+      ServerState state, AtomicBoolean active, CrossServerService crossServerService) {
+    this(state, active, crossServerService, DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL);
+  }
+
+  /** Starts running rounds in the background, until the scheduler is closed. */
+  public synchronized void start() {
+    if (!this.interval.isZero()) {
+      return;
+    }
+
+    this.createExecutor();
+    this.interval = this.maxInterval;
+    this.lastTick = System.nanoTime();
+    this.ledgerSizeAtLastTick = this.state.getLedgerSize();
+    this.schedule(this.minInterval);
+  }
+
+  /**
+   * Starts pushing the operations added by clients to the other replicas shortly after they're
+   * added, until the scheduler is closed.
+   *
+   * @param debounce The time operations are held after the first one not yet pushed, so that the
+   *     ones added meanwhile are pushed in the same round
+   * @param maxPushSize The number of held operations after which they're pushed right away
+   */
+  public synchronized void startEager(Duration debounce, int maxPushSize) {
+    if (debounce.isNegative() || maxPushSize <= 0) {
+      throw new IllegalArgumentException("Invalid eager gossip settings");
+    }
+    if (this.debounce != null) {
+      return;
+    }
+
+    this.createExecutor();
+    this.debounce = debounce;
+    this.maxPushSize = maxPushSize;
+    this.state.setWriteListener(this::written);
+  }
+
+  /**
+   * Starts dropping the operations every other replica holds from the ledger after each round. No
+   * replica must join the service afterwards without fetching a snapshot from another replica, as
+   * the operations dropped can't be gossiped to it.
+   */
+  public void startTruncating() {
+    this.truncating = true;
+  }
+
+  /**
+   * Starts reporting the operations executed by this replica to the naming server periodically,
+   * adopting the retirements it announces, until the scheduler is closed.
+   *
+   * @param interval The interval between reports
+   */
+  public synchronized void startRetiring(Duration interval) {
+    if (interval.isNegative() || interval.isZero()) {
+      throw new IllegalArgumentException("Invalid retirement interval");
+    }
+
+    this.createExecutor();
+    this.executor.scheduleWithFixedDelay(
+        () -> {
+          try {
+            this.retire();
+          } catch (RuntimeException e) {
+            Logger.error("Retirement report failed: " + e.getMessage());
+          }
+        },
+        interval.toNanos(),
+        interval.toNanos(),
+        TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Reports the operations executed by this replica to the naming server, and adopts the
+   * retirements it announces.
+   *
+   * @return the number of replicas newly retired.
+   * @throws io.grpc.StatusRuntimeException if the report fails.
+   */
+  public int retire() {
+    final NamingService.Retirement retirement =
+        this.crossServerService.report(this.state.getId(), this.state.getValueTimeStamp());
+    final int retired = this.state.retire(retirement.epoch(), retirement.retired());
+    if (retired > 0) {
+      Logger.debug(() -> "Retired " + retired + " replicas, as of epoch " + retirement.epoch());
+    }
+    return retired;
+  }
+
+  /**
+   * Drops the stable operations at the start of the ledger which every replica targeted by the last
+   * round holds, as acknowledged by them.
+   *
+   * @return the number of operations dropped.
+   */
+  public int truncate() {
+    return this.state.truncateLedger(this.state.getAcknowledgedByAll(this.targets));
+  }
+
+  /**
+   * Propagates the operations of the ledger which weren't sent yet to every other replica.
+   *
+   * <p>Each replica is only sent the operations it hasn't acknowledged. The cursor of each replica
+   * only moves forward once it accepts the operations sent to it, so that they're sent again in the
+   * next round otherwise, and its response acknowledges every operation it holds from then on.
+   * Rounds may run concurrently, in which case some operations may be sent twice, and are ignored
+   * by the replica receiving them.
+   *
+   * <p>If nothing is known about a replica, and many operations would be sent to it, the digest of
+   * this replica is first compared with its one, and it's only sent the operations in the ranges
+   * which differ. The operations in the other ranges are the same in both replicas, so the
+   * replica's timestamp can still be merged with this replica's one.
+   *
+   * @throws io.grpc.StatusRuntimeException if a Naming Service lookup operation fails.
+   */
+  public void gossip() {
+    final int ledgerSize = this.state.getLedgerSize();
+    final VectorClock lastIndicesGossiped = this.state.getGossipCursors();
+    final Map<Integer, Integer> lastIndicesVisited = new HashMap<>();
+    final Set<Integer> targets = ConcurrentHashMap.newKeySet();
+    final Map<Integer, VectorClock> accepted =
+        this.crossServerService.propagateState(
+            server -> {
+              targets.add(server.id());
+              final int cursor;
+              synchronized (lastIndicesGossiped) {
+                cursor = lastIndicesGossiped.get(server.id());
+              }
+
+              final VectorClock acknowledged = this.state.getAcknowledged(server.id());
+              OperationCollector collector = new OperationCollector();
+              OperationVisitor visitor = new AcknowledgedFilter(collector, acknowledged);
+              if (acknowledged.size() == 0 && ledgerSize - cursor > CrossServerService.CHUNK_SIZE) {
+                // Nothing is known about which operations the replica holds, e.g. after this
+                // replica restarted, so the digests are compared to avoid sending all of them
+                final LedgerDigest digest = this.state.getDigest();
+                final LedgerDigest compared = digest.copy();
+                final Optional<Set<LedgerDigest.Node>> differing =
+                    this.crossServerService.compareDigest(
+                        server.qualifier(), compared, this.state.getId());
+                if (differing.isPresent()) {
+                  visitor = new DigestFilter(visitor, digest, compared, differing.get());
+                }
+              }
+
+              Stamped<Optional<Integer>> stamped = this.state.visitLedger(visitor, cursor);
+              stamped
+                  .value()
+                  .ifPresent(
+                      lastIndexVisited -> lastIndicesVisited.put(server.id(), lastIndexVisited));
+              return new Stamped<>(collector.getOperations(), stamped.timeStamp());
+            },
+            this.state.getId());
+
+    accepted.forEach(this.state::acknowledge);
+    synchronized (lastIndicesGossiped) {
+      for (int server : accepted.keySet()) {
+        final Integer lastIndexVisited = lastIndicesVisited.get(server);
+        if (lastIndexVisited != null && lastIndexVisited > lastIndicesGossiped.get(server)) {
+          lastIndicesGossiped.set(server, lastIndexVisited);
+        }
+      }
+    }
+
+    synchronized (this) {
+      this.ledgerSizeAtLastRound = Math.max(this.ledgerSizeAtLastRound, ledgerSize);
+    }
+    this.targets = Set.copyOf(targets);
+    this.state.setPeers(this.targets);
+    this.lastRound = System.nanoTime();
+
+    if (this.truncating) {
+      final int dropped = this.truncate();
+      if (dropped > 0) {
+        Logger.debug(() -> "Dropped " + dropped + " operations held by every replica");
+      }
+    }
+  }
+
+  /** Returns the current replication lag of this replica. */
+  public ReplicationLag getLag() {
+    final int ledgerSize = this.state.getLedgerSize();
+    final Map<Integer, Integer> pending = new TreeMap<>();
+    final VectorClock lastIndicesGossiped = this.state.getGossipCursors();
+    synchronized (lastIndicesGossiped) {
+      for (int target : this.targets) {
+        pending.put(target, Math.max(ledgerSize - lastIndicesGossiped.get(target), 0));
+      }
+    }
+
+    final long lastRound = this.lastRound;
+    final Optional<Duration> sinceLastGossip =
+        lastRound == 0
+            ? Optional.empty()
+            : Optional.of(Duration.ofNanos(System.nanoTime() - lastRound));
+
+    synchronized (this) {
+      return new ReplicationLag(pending, sinceLastGossip, this.interval);
+    }
+  }
+
+  /** Stops running rounds in the background. */
+  @Override
+  public synchronized void close() {
+    if (this.debounce != null) {
+      this.state.setWriteListener(count -> {});
+    }
+    if (this.executor != null) {
+      this.executor.shutdownNow();
+    }
+  }
+
+  private void createExecutor() {
+    if (this.executor != null) {
+      return;
+    }
+
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              final Thread thread = new Thread(runnable, "gossip-scheduler");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Schedules a push of the operations added by clients, unless one is already scheduled, or moves
+   * it forward once enough operations are held.
+   */
+  private synchronized void written(int count) {
+    this.unpushed += count;
+    final Duration delay = this.unpushed >= this.maxPushSize ? Duration.ZERO : this.debounce;
+    if (this.executor.isShutdown()) {
+      return;
+    }
+
+    // A push which was cancelled right as it started still runs, leaving nothing to the next one
+    if (this.push == null || (delay.isZero() && this.push.cancel(false))) {
+      this.push = this.executor.schedule(this::push, delay.toNanos(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /** Pushes the operations added by clients since the last push, if any. */
+  private void push() {
+    synchronized (this) {
+      this.push = null;
+      if (this.unpushed == 0) {
+        return;
+      }
+      this.unpushed = 0;
+    }
+
+    try {
+      if (this.active.get()) {
+        this.gossip();
+      }
+    } catch (RuntimeException e) {
+      Logger.error("Eager gossip failed: " + e.getMessage());
+    }
+  }
+
+  /** Runs a background round, if there is anything to gossip, and schedules the next one. */
+  private void tick() {
+    try {
+      if (this.adapt() && this.active.get()) {
+        this.gossip();
+      }
+    } catch (RuntimeException e) {
+      Logger.error("Background gossip failed: " + e.getMessage());
+    }
+
+    synchronized (this) {
+      this.schedule(this.interval);
+    }
+  }
+
+  /**
+   * Updates the estimate of the rate of operations, and the interval until the next round.
+   *
+   * @return whether operations were added to the ledger since the last round, or a replica targeted
+   *     by it hasn't acknowledged every operation this replica holds.
+   */
+  private synchronized boolean adapt() {
+    final long now = System.nanoTime();
+    final int ledgerSize = this.state.getLedgerSize();
+    final double elapsed = Math.max(now - this.lastTick, 1) / 1e9;
+    final double observed = (ledgerSize - this.ledgerSizeAtLastTick) / elapsed;
+    this.rate = RATE_SMOOTHING * observed + (1 - RATE_SMOOTHING) * this.rate;
+    this.lastTick = now;
+    this.ledgerSizeAtLastTick = ledgerSize;
+
+    if (this.state.getWaitingReads() > 0) {
+      this.interval = this.minInterval;
+    } else {
+      // Rates too low to fill a round within the maximum interval also fall back to it
+      final double seconds = TARGET_ROUND_SIZE / Math.max(this.rate, 1e-9);
+      final long nanos = (long) Math.min(seconds * 1e9, this.maxInterval.toNanos());
+      this.interval = this.clamp(Duration.ofNanos(nanos));
+    }
+
+    return ledgerSize > this.ledgerSizeAtLastRound || this.anyTargetBehind();
+  }
+
+  /**
+   * Checks whether any replica targeted by the last round hasn't acknowledged every operation this
+   * replica holds, e.g., because it was unavailable, or failed to accept them.
+   */
+  private boolean anyTargetBehind() {
+    final VectorClock replicaTimeStamp = this.state.getReplicaTimeStamp();
+    for (int target : this.targets) {
+      final VectorClock.Order order =
+          VectorClock.compare(replicaTimeStamp, this.state.getAcknowledged(target));
+      if (order == VectorClock.Order.AFTER || order == VectorClock.Order.CONCURRENT) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Duration clamp(Duration interval) {
+    if (interval.compareTo(this.minInterval) < 0) {
+      return this.minInterval;
+    }
+    return interval.compareTo(this.maxInterval) > 0 ? this.maxInterval : interval;
+  }
+
+  /**
+   * Schedules the next round.
+   *
+   * <p>Safety: must be called while holding the scheduler's lock.
+   */
+  private void schedule(Duration delay) {
+    if (!this.executor.isShutdown()) {
+      this.executor.schedule(this::tick, delay.toNanos(), TimeUnit.NANOSECONDS);
+    }
+  }
+}
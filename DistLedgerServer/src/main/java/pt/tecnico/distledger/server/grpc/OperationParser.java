@@ -0,0 +1,60 @@
+package pt.tecnico.distledger.server.grpc;
+
+import pt.tecnico.distledger.common.grpc.ProtoUtils;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+
+/** Converts Proto operation objects into domain operations. */
+public class OperationParser {
+  private static final String PARSE_FAILED = "Failed to create operation from request";
+
+  private OperationParser() {}
+
+  /**
+   * Converts a Proto operation object into a domain operation.
+   *
+   * @param operation the Proto operation.
+   * @return the domain operation, marked as failed if it already failed in another replica.
+   * @throws IllegalArgumentException if the operation type is unknown.
+   */
+  public static Operation parse(DistLedgerCommonDefinitions.Operation operation) {
+    Operation op;
+
+    switch (operation.getType()) {
+      case OP_CREATE_ACCOUNT -> op =
+          new CreateOp(
+              operation.getUserId(),
+              ProtoUtils.fromProto(operation.getPrevTS()),
+              sequence(operation),
+              operation.getReplicaId());
+      case OP_TRANSFER_TO -> op =
+          new TransferOp(
+              operation.getUserId(),
+              operation.getDestUserId(),
+              operation.getAmount(),
+              ProtoUtils.fromProto(operation.getPrevTS()),
+              sequence(operation),
+              operation.getReplicaId());
+      default -> throw new IllegalArgumentException(PARSE_FAILED);
+    }
+
+    // May have failed already on the other server
+    if (operation.getFailed()) {
+      op.setFailed();
+    }
+
+    return op;
+  }
+
+  /**
+   * Returns the sequence number of a Proto operation, which is read from its replica timestamp if
+   * it was encoded before operations carried their sequence number, e.g., in an older log.
+   */
+  private static int sequence(DistLedgerCommonDefinitions.Operation operation) {
+    return operation.getSequence() != 0
+        ? operation.getSequence()
+        : ProtoUtils.fromProto(operation.getReplicaTS()).get(operation.getReplicaId());
+  }
+}
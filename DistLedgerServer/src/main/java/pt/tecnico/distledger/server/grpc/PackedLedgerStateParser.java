@@ -0,0 +1,171 @@
+package pt.tecnico.distledger.server.grpc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.common.grpc.ProtoUtils;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.PackedLedgerState;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+
+/**
+ * Converts Proto packed ledger states into domain operations, reading each of its columns in order.
+ */
+public class PackedLedgerStateParser {
+  private static final String PARSE_FAILED = "Failed to create operation from request";
+
+  /**
+   * The highest replica ID a timestamp may have an entry for. IDs are assigned in order by the
+   * naming server, so this is far beyond the number of replicas which ever join the service.
+   */
+  private static final int MAX_REPLICA_ID = 1 << 24;
+
+  private final PackedLedgerState state;
+  private final Column prevTimeStamps;
+  private final Map<Integer, Integer> sequences = new HashMap<>();
+  private int destUserIds = 0;
+  private int amounts = 0;
+
+  private PackedLedgerStateParser(PackedLedgerState state) {
+    this.state = state;
+    this.prevTimeStamps = new Column(state::getPrevTS, state.getPrevTSCount());
+  }
+
+  /**
+   * Converts a Proto packed ledger state into domain operations.
+   *
+   * @param state the Proto packed ledger state.
+   * @return the domain operations, in order, marked as failed if they already failed in another
+   *     replica.
+   * @throws IllegalArgumentException if an operation type is unknown, or the state is malformed.
+   */
+  public static List<Operation> parse(PackedLedgerState state) {
+    try {
+      return new PackedLedgerStateParser(state).parse();
+    } catch (IndexOutOfBoundsException e) {
+      // A column is shorter than the others say it is
+      throw new IllegalArgumentException(PARSE_FAILED, e);
+    }
+  }
+
+  private List<Operation> parse() {
+    final int count = this.state.getTypesCount();
+    if (this.state.getUserIdsCount() != count
+        || this.state.getFailedCount() != count
+        || this.state.getReplicaIdsCount() != count
+        || this.state.getSequencesCount() != count) {
+      throw new IllegalArgumentException(PARSE_FAILED);
+    }
+
+    final List<Operation> operations = new ArrayList<>(count);
+    VectorClock reference = ProtoUtils.fromProto(this.state.getBase());
+    for (int i = 0; i < count; i++) {
+      final VectorClock prevTimeStamp = readDifferences(reference, this.prevTimeStamps);
+      final int replicaId = this.state.getReplicaIds(i);
+      final int sequence =
+          this.sequences.merge(replicaId, this.state.getSequences(i), Integer::sum);
+      if (sequence <= 0) {
+        throw new IllegalArgumentException(PARSE_FAILED);
+      }
+
+      final String userId = this.state.getUsers(this.state.getUserIds(i));
+      final Operation op;
+      switch (this.state.getTypes(i)) {
+        case OP_CREATE_ACCOUNT -> op = new CreateOp(userId, prevTimeStamp, sequence, replicaId);
+        case OP_TRANSFER_TO -> {
+          final String destUserId =
+              this.state.getUsers(this.state.getDestUserIds(this.destUserIds++));
+          final int amount = this.state.getAmounts(this.amounts++);
+          op = new TransferOp(userId, destUserId, amount, prevTimeStamp, sequence, replicaId);
+        }
+        default -> throw new IllegalArgumentException(PARSE_FAILED);
+      }
+
+      // May have failed already on the other server
+      if (this.state.getFailed(i)) {
+        op.setFailed();
+      }
+      operations.add(op);
+      reference = op.getTimeStamp();
+    }
+
+    return operations;
+  }
+
+  /** A column of timestamp differences, read in order. */
+  private static final class Column {
+    private final IntUnaryOperator values;
+    private final int size;
+    private int next = 0;
+
+    Column(IntUnaryOperator values, int size) {
+      this.values = values;
+      this.size = size;
+    }
+
+    int next() {
+      return this.values.applyAsInt(this.next++);
+    }
+
+    int remaining() {
+      return this.size - this.next;
+    }
+  }
+
+  /**
+   * Reads the next timestamp of a column, stored as its differences from a reference timestamp, as
+   * described in the PackedLedgerState message.
+   *
+   * <p>The entries of the reference and the ones which differ are visited together, in increasing
+   * order of replicas, so that the timestamp is built as sparse as they are, appending each entry.
+   */
+  private static VectorClock readDifferences(VectorClock reference, Column column) {
+    final int header = column.next();
+    final int count = header >>> 1;
+    final boolean sparse = (header & 1) == 1;
+    // Checked before reading anything, so that a malformed header is rejected right away
+    if (count > (sparse ? column.remaining() / 2 : column.remaining())) {
+      throw new IllegalArgumentException(PARSE_FAILED);
+    }
+
+    final VectorClock timeStamp = new VectorClock();
+    int next = 0;
+    int index = -1;
+    for (int i = 0; i < count; i++) {
+      if (sparse) {
+        final int gap = column.next();
+        if (gap < 0 || gap > MAX_REPLICA_ID - index - 1) {
+          throw new IllegalArgumentException(PARSE_FAILED);
+        }
+        index += gap + 1;
+      } else {
+        index = i;
+      }
+
+      // The entries of the reference before the one which differs are kept as they are
+      while (next < reference.entries() && reference.replica(next) < index) {
+        timeStamp.set(reference.replica(next), reference.timeStamp(next));
+        next++;
+      }
+
+      int value = column.next();
+      if (next < reference.entries() && reference.replica(next) == index) {
+        value += reference.timeStamp(next++);
+      }
+      if (value < 0) {
+        throw new IllegalArgumentException(PARSE_FAILED);
+      }
+      timeStamp.set(index, value);
+    }
+
+    while (next < reference.entries()) {
+      timeStamp.set(reference.replica(next), reference.timeStamp(next));
+      next++;
+    }
+    return timeStamp;
+  }
+}
@@ -0,0 +1,123 @@
+package pt.tecnico.distledger.server.grpc;
+
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.common.grpc.ProtoUtils;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateChunk;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateResponse;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.visitors.LedgerStateGenerator;
+import pt.tecnico.distledger.server.visitors.PackedLedgerStateGenerator;
+
+/**
+ * Streams a state to another replica in chunks of bounded size, which are only encoded when the
+ * call is ready to send them, and applied by the replica as soon as it receives them.
+ *
+ * <p>The operations of each origin replica must be ordered by their sequence numbers. The timestamp
+ * of each chunk merges the sequence numbers of every operation sent so far, so that the replica may
+ * merge it into its own once it applies the chunk, even if the rest of the stream never arrives.
+ * The last chunk carries the sender's replica timestamp instead.
+ *
+ * <p>gRPC runs the callbacks of a call one at a time, so the fields of the call aren't
+ * synchronized.
+ */
+class PropagateStateCall
+    implements ClientResponseObserver<PropagateStateChunk, PropagateStateResponse> {
+  private final List<Operation> operations;
+  private final VectorClock replicaTimeStamp;
+  private final int ownId;
+  private final int chunkSize;
+  private final boolean packed;
+  private final CompletableFuture<PropagateStateResponse> response = new CompletableFuture<>();
+  private final VectorClock sent = new VectorClock();
+
+  private ClientCallStreamObserver<PropagateStateChunk> requestStream;
+  private int next = 0;
+  private boolean halfClosed = false;
+  private PropagateStateResponse value;
+
+  /**
+   * Creates a new PropagateStateCall.
+   *
+   * @param operations the operations to send, in order.
+   * @param replicaTimeStamp the sender's replica timestamp, which covers every operation.
+   * @param ownId the sender's ID.
+   * @param chunkSize the maximum number of operations in each chunk.
+   * @param packed whether to send the chunks in the packed format.
+   */
+  PropagateStateCall(
+      List<Operation> operations,
+      VectorClock replicaTimeStamp,
+      int ownId,
+      int chunkSize,
+      boolean packed) {
+    this.operations = operations;
+    this.replicaTimeStamp = replicaTimeStamp;
+    this.ownId = ownId;
+    this.chunkSize = chunkSize;
+    this.packed = packed;
+  }
+
+  @Override
+  public void beforeStart(ClientCallStreamObserver<PropagateStateChunk> requestStream) {
+    this.requestStream = requestStream;
+    requestStream.setOnReadyHandler(this::sendWhileReady);
+  }
+
+  @Override
+  public void onNext(PropagateStateResponse value) {
+    this.value = value;
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    this.response.completeExceptionally(t);
+  }
+
+  @Override
+  public void onCompleted() {
+    this.response.complete(this.value);
+  }
+
+  /** Returns a future of the response of the receiver, once it applied every chunk. */
+  CompletableFuture<PropagateStateResponse> response() {
+    return this.response;
+  }
+
+  /** Sends chunks while the call is ready, and half-closes it once the last one is sent. */
+  private void sendWhileReady() {
+    // A chunk is always sent, even if there are no operations, to carry the sender's timestamp
+    while (!this.halfClosed && this.requestStream.isReady()) {
+      final int end = Math.min(this.next + this.chunkSize, this.operations.size());
+      final List<Operation> chunk = this.operations.subList(this.next, end);
+      this.next = end;
+
+      final PropagateStateChunk.Builder builder = PropagateStateChunk.newBuilder();
+      if (this.packed) {
+        final PackedLedgerStateGenerator generator = new PackedLedgerStateGenerator();
+        chunk.forEach(op -> op.accept(generator));
+        builder.setPackedLedger(generator.build());
+      } else {
+        final LedgerStateGenerator generator = new LedgerStateGenerator();
+        chunk.forEach(op -> op.accept(generator));
+        builder.addAllLedger(generator.build().getLedgerList());
+      }
+      chunk.forEach(op -> this.sent.mergeSingle(op.getReplicaId(), op.getSequence()));
+      final boolean last = end == this.operations.size();
+      final VectorClock timeStamp = last ? this.replicaTimeStamp : new VectorClock(this.sent);
+
+      Logger.debug(() -> "Sending chunk of " + chunk.size() + " operations, up to " + timeStamp);
+      this.requestStream.onNext(
+          builder.setReplicaTS(ProtoUtils.toProto(timeStamp)).setId(this.ownId).build());
+
+      if (last) {
+        this.halfClosed = true;
+        this.requestStream.onCompleted();
+      }
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package pt.tecnico.distledger.server.grpc;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.common.grpc.ProtoUtils;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateChunk;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateResponse;
+import pt.tecnico.distledger.server.domain.ApplyLoop;
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.domain.exceptions.ServerUnavailableException;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+
+/**
+ * Handles a state propagated by another replica in chunks, applying each one as soon as it's
+ * received, so that the chunks applied before a stream breaks don't need to be sent again.
+ *
+ * <p>The timestamp of each chunk covers every operation sent before it, so it's merged into the
+ * replica timestamp along with the chunk, as the timestamp of a PropagateState request would. Once
+ * the stream completes, the sender is acknowledged, and answered with the replica timestamp.
+ *
+ * <p>Chunks are applied through the {@link ApplyLoop}, and the next chunk is only requested once
+ * the previous one is applied. The loop completes them on one of its threads, while gRPC runs the
+ * callbacks of the call on another, so the methods of the stream are synchronized.
+ */
+class PropagateStateStream implements StreamObserver<PropagateStateChunk> {
+  private static final String PROPAGATE_FAILED = "Propagate State stream failed: ";
+
+  private final ServerState state;
+  private final AtomicBoolean active;
+  private final CrossServerService crossServerService;
+  private final ApplyLoop applyLoop;
+  private final StreamObserver<PropagateStateResponse> call;
+
+  /**
+   * The call whose chunks are requested once the previous one is applied, if it's a server call.
+   */
+  private final ServerCallStreamObserver<PropagateStateResponse> flow;
+
+  private int sender = -1;
+  private VectorClock timeStamp = new VectorClock();
+
+  /** Whether a chunk is being applied. */
+  private boolean applying = false;
+
+  /** Whether the sender finished sending chunks, so the call completes once none is applied. */
+  private boolean halfClosed = false;
+
+  private boolean closed = false;
+
+  /**
+   * Creates a new PropagateStateStream.
+   *
+   * @param state The server state
+   * @param active This server's active flag
+   * @param crossServerService The server's cross server service instance
+   * @param applyLoop The loop through which chunks are applied
+   * @param call The call through which the response is sent
+   */
+  PropagateStateStream(
+      ServerState state,
+      AtomicBoolean active,
+      CrossServerService crossServerService,
+      ApplyLoop applyLoop,
+      StreamObserver<PropagateStateResponse> call) {
+    this.state = state;
+    this.active = active;
+    this.crossServerService = crossServerService;
+    this.applyLoop = applyLoop;
+    this.call = call;
+
+    if (call instanceof ServerCallStreamObserver<PropagateStateResponse> serverCall) {
+      serverCall.disableAutoRequest();
+      serverCall.request(1);
+      this.flow = serverCall;
+    } else {
+      this.flow = null;
+    }
+  }
+
+  @Override
+  public synchronized void onNext(PropagateStateChunk chunk) {
+    Logger.debug("Received PropagateState chunk");
+    Logger.debug(() -> chunk + "\n");
+
+    if (this.closed) {
+      return;
+    }
+
+    try {
+      if (!this.active.get()) {
+        throw new ServerUnavailableException();
+      }
+
+      if (this.sender != chunk.getId()) {
+        this.sender = chunk.getId();
+        this.crossServerService.noticeServer(this.sender);
+      }
+
+      // Parse the whole chunk first, so that an invalid one isn't applied partially
+      final List<Operation> operations =
+          chunk.hasPackedLedger()
+              ? PackedLedgerStateParser.parse(chunk.getPackedLedger())
+              : chunk.getLedgerList().stream().map(OperationParser::parse).toList();
+
+      final VectorClock timeStamp = ProtoUtils.fromProto(chunk.getReplicaTS());
+      this.applying = true;
+      this.applyLoop
+          .propagate(operations, timeStamp)
+          .whenComplete((added, e) -> this.applied(timeStamp, e));
+    } catch (ServerUnavailableException e) {
+      this.fail(Status.UNAVAILABLE, e);
+    } catch (IllegalArgumentException e) {
+      this.fail(Status.INVALID_ARGUMENT, e);
+    } catch (RuntimeException e) {
+      this.fail(Status.UNKNOWN, e);
+    }
+  }
+
+  @Override
+  public synchronized void onError(Throwable t) {
+    // The chunks applied so far remain applied, so a new stream may resume from them
+    Logger.debug(PROPAGATE_FAILED + t.getMessage());
+    this.closed = true;
+  }
+
+  @Override
+  public synchronized void onCompleted() {
+    this.halfClosed = true;
+    if (!this.closed && !this.applying) {
+      this.complete();
+    }
+  }
+
+  /**
+   * Records the timestamp of a chunk once it's applied, and requests the next one, or completes the
+   * call if the sender finished sending chunks meanwhile.
+   */
+  private synchronized void applied(VectorClock timeStamp, Throwable failure) {
+    this.applying = false;
+    if (this.closed) {
+      return;
+    }
+
+    if (failure != null) {
+      final Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+      this.fail(
+          cause instanceof ServerUnavailableException ? Status.UNAVAILABLE : Status.UNKNOWN, cause);
+      return;
+    }
+
+    this.timeStamp = timeStamp;
+    if (this.halfClosed) {
+      this.complete();
+    } else if (this.flow != null) {
+      this.flow.request(1);
+    }
+  }
+
+  /**
+   * Acknowledges the sender and answers it with the replica timestamp.
+   *
+   * <p>Safety: must be called while holding the stream's lock.
+   */
+  private void complete() {
+    this.closed = true;
+    try {
+      if (this.sender >= 0) {
+        this.state.acknowledge(this.sender, this.timeStamp);
+      }
+      this.call.onNext(
+          PropagateStateResponse.newBuilder()
+              .setReplicaTS(ProtoUtils.toProto(this.state.getReplicaTimeStamp()))
+              .setPacked(this.crossServerService.acceptsPacked())
+              .build());
+      this.call.onCompleted();
+    } catch (RuntimeException e) {
+      this.fail(Status.UNKNOWN, e);
+    }
+  }
+
+  /** Safety: must be called while holding the stream's lock. */
+  private void fail(Status status, Throwable e) {
+    Logger.debug(PROPAGATE_FAILED + e.getMessage());
+    this.closed = true;
+    this.call.onError(status.withDescription(e.getMessage()).asRuntimeException());
+  }
+}
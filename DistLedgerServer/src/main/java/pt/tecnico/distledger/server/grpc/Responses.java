@@ -0,0 +1,44 @@
+package pt.tecnico.distledger.server.grpc;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.server.domain.exceptions.ServerUnavailableException;
+
+/** Collection of utility methods for responding to calls asynchronously. */
+final class Responses {
+  private Responses() {}
+
+  /**
+   * Responds to a call once its response is built, on the thread which completes it. If building or
+   * sending the response fails, the call fails instead, as unavailable if the server is.
+   *
+   * @param response the future completed with the response.
+   * @param responseObserver the observer of the call.
+   * @param failMessage the prefix of the message logged if the call fails.
+   */
+  static <T> void respond(
+      CompletableFuture<T> response, StreamObserver<T> responseObserver, String failMessage) {
+    response.whenComplete(
+        (value, e) -> {
+          Throwable failure = e instanceof CompletionException ? e.getCause() : e;
+          if (failure == null) {
+            try {
+              responseObserver.onNext(value);
+              responseObserver.onCompleted();
+              return;
+            } catch (RuntimeException ex) {
+              failure = ex;
+            }
+          }
+
+          Logger.debug(failMessage + failure.getMessage());
+          final Status status =
+              failure instanceof ServerUnavailableException ? Status.UNAVAILABLE : Status.UNKNOWN;
+          responseObserver.onError(
+              status.withDescription(failure.getMessage()).asRuntimeException());
+        });
+  }
+}
@@ -0,0 +1,141 @@
+package pt.tecnico.distledger.server.grpc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import pt.tecnico.distledger.common.grpc.ProtoUtils;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.AccountBalance;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.SnapshotChunk;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.storage.Snapshot;
+import pt.tecnico.distledger.server.visitors.LedgerStateGenerator;
+
+/**
+ * Converts snapshots to and from the chunks they're streamed in, each of which holds a bounded
+ * number of accounts and operations, so that a snapshot of any size can be sent to a replica
+ * joining the service.
+ */
+final class SnapshotChunks {
+  private static final String INVALID_SNAPSHOT = "Received an invalid snapshot";
+
+  private SnapshotChunks() {}
+
+  /**
+   * Splits a snapshot into chunks of up to the given number of accounts and operations, in total.
+   * The first chunk carries the timestamps, and is always produced, even if the snapshot is empty.
+   * Chunks are only built as they're taken from the iterator.
+   */
+  static Iterator<SnapshotChunk> split(Snapshot snapshot, int chunkSize) {
+    return new Splitter(snapshot, chunkSize);
+  }
+
+  /** Builds the chunks of a snapshot one at a time. */
+  private static class Splitter implements Iterator<SnapshotChunk> {
+    private final Snapshot snapshot;
+    private final int chunkSize;
+    private final Iterator<Map.Entry<String, Integer>> accounts;
+    private boolean first = true;
+    private int nextOp = 0;
+
+    Splitter(Snapshot snapshot, int chunkSize) {
+      this.snapshot = snapshot;
+      this.chunkSize = chunkSize;
+      this.accounts = snapshot.balances().entrySet().iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return this.first || this.accounts.hasNext() || this.nextOp < this.snapshot.ledger().size();
+    }
+
+    @Override
+    public SnapshotChunk next() {
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      final SnapshotChunk.Builder chunk = SnapshotChunk.newBuilder();
+      if (this.first) {
+        this.first = false;
+        chunk
+            .setValueTS(ProtoUtils.toProto(this.snapshot.valueTimeStamp()))
+            .setReplicaTS(ProtoUtils.toProto(this.snapshot.replicaTimeStamp()))
+            .setGossipCursors(ProtoUtils.toProto(this.snapshot.gossipCursors()))
+            .setLedgerOffset(this.snapshot.ledgerOffset())
+            .setStableCount(this.snapshot.stableCount());
+      }
+
+      int size = 0;
+      while (size < this.chunkSize && this.accounts.hasNext()) {
+        final Map.Entry<String, Integer> account = this.accounts.next();
+        chunk.addAccounts(
+            AccountBalance.newBuilder()
+                .setUserId(account.getKey())
+                .setBalance(account.getValue())
+                .build());
+        size++;
+      }
+
+      final List<Operation> ledger = this.snapshot.ledger();
+      if (size < this.chunkSize && this.nextOp < ledger.size()) {
+        final int end = Math.min(ledger.size(), this.nextOp + this.chunkSize - size);
+        final LedgerStateGenerator generator = new LedgerStateGenerator();
+        ledger.subList(this.nextOp, end).forEach(op -> op.accept(generator));
+        chunk.addAllLedger(generator.build().getLedgerList());
+        this.nextOp = end;
+      }
+
+      return chunk.build();
+    }
+  }
+
+  /** Assembles a snapshot from the chunks it was split into, in order. */
+  static class Assembler {
+    private final Map<String, Integer> balances = new LinkedHashMap<>();
+    private final List<Operation> ledger = new ArrayList<>();
+    private SnapshotChunk first;
+
+    /**
+     * Adds the next chunk of the snapshot.
+     *
+     * @throws IllegalArgumentException if an operation in the chunk is invalid.
+     */
+    void add(SnapshotChunk chunk) {
+      if (this.first == null) {
+        this.first = chunk;
+      }
+
+      for (AccountBalance account : chunk.getAccountsList()) {
+        this.balances.put(account.getUserId(), account.getBalance());
+      }
+      chunk.getLedgerList().forEach(operation -> this.ledger.add(OperationParser.parse(operation)));
+    }
+
+    /**
+     * Returns the snapshot assembled from every chunk, which reflects no operation log record.
+     *
+     * @throws IllegalArgumentException if no chunk was added, or the snapshot is inconsistent.
+     */
+    Snapshot build() {
+      if (this.first == null
+          || this.first.getStableCount() < 0
+          || this.first.getStableCount() > this.ledger.size()
+          || this.first.getLedgerOffset() < 0) {
+        throw new IllegalArgumentException(INVALID_SNAPSHOT);
+      }
+
+      return new Snapshot(
+          0,
+          this.balances,
+          ProtoUtils.fromProto(this.first.getValueTS()),
+          ProtoUtils.fromProto(this.first.getReplicaTS()),
+          ProtoUtils.fromProto(this.first.getGossipCursors()),
+          this.first.getLedgerOffset(),
+          this.ledger,
+          this.first.getStableCount());
+    }
+  }
+}
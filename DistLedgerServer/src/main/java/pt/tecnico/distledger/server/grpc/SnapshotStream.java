@@ -0,0 +1,75 @@
+package pt.tecnico.distledger.server.grpc;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.Iterator;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.SnapshotChunk;
+import pt.tecnico.distledger.server.storage.Snapshot;
+
+/**
+ * Streams a snapshot to a replica joining the service, building each chunk only once the call is
+ * ready to send it, so that a replica which reads slowly doesn't make this one buffer the whole
+ * snapshot as messages.
+ */
+class SnapshotStream {
+  private static final String FETCH_SNAPSHOT_FAILED = "Fetch Snapshot failed: ";
+
+  private final ServerCallStreamObserver<SnapshotChunk> call;
+  private Iterator<SnapshotChunk> chunks;
+
+  private SnapshotStream(
+      Iterator<SnapshotChunk> chunks, ServerCallStreamObserver<SnapshotChunk> call) {
+    this.chunks = chunks;
+    this.call = call;
+  }
+
+  /**
+   * Sends a snapshot through the given call, in chunks of up to the given size. If the call is a
+   * server call, the chunks are sent as it becomes ready, after this returns. Otherwise, they're
+   * all sent before this returns.
+   *
+   * @param snapshot the snapshot to send.
+   * @param chunkSize the maximum number of accounts and operations in each chunk.
+   * @param observer the call through which the chunks are sent.
+   */
+  static void send(Snapshot snapshot, int chunkSize, StreamObserver<SnapshotChunk> observer) {
+    final Iterator<SnapshotChunk> chunks = SnapshotChunks.split(snapshot, chunkSize);
+    if (observer instanceof ServerCallStreamObserver<SnapshotChunk> call) {
+      final SnapshotStream stream = new SnapshotStream(chunks, call);
+      call.setOnReadyHandler(stream::sendWhileReady);
+      call.setOnCancelHandler(stream::onCancel);
+
+      // The call may have become ready before the handler was set, in which case it isn't run
+      stream.sendWhileReady();
+    } else {
+      chunks.forEachRemaining(observer::onNext);
+      observer.onCompleted();
+    }
+  }
+
+  /** Sends chunks while the call is ready, and completes it once the last one is sent. */
+  private synchronized void sendWhileReady() {
+    try {
+      while (this.chunks != null && this.call.isReady()) {
+        if (!this.chunks.hasNext()) {
+          this.chunks = null;
+          this.call.onCompleted();
+          return;
+        }
+
+        this.call.onNext(this.chunks.next());
+      }
+    } catch (RuntimeException e) {
+      Logger.debug(FETCH_SNAPSHOT_FAILED + e.getMessage());
+      this.chunks = null;
+      this.call.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  /** Drops the chunks not sent yet, so that the snapshot can be collected. */
+  private synchronized void onCancel() {
+    this.chunks = null;
+  }
+}
@@ -0,0 +1,241 @@
+package pt.tecnico.distledger.server.grpc;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.contract.user.UserDistLedger.CreateAccountRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationResult;
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationStatus;
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitResponse;
+import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToRequest;
+import pt.tecnico.distledger.server.domain.ApplyLoop;
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.domain.exceptions.NonPositiveTransferException;
+import pt.tecnico.distledger.server.domain.exceptions.NopTransferException;
+import pt.tecnico.distledger.server.domain.exceptions.ServerUnavailableException;
+import pt.tecnico.distledger.server.domain.exceptions.SystemAccountException;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+
+/**
+ * Handles a stream of commands submitted by a client, acknowledging each one once it's added to the
+ * ledger.
+ *
+ * <p>Flow control is manual: the next command is only requested from the client once the previous
+ * one is acknowledged, and while the call is ready to send the acknowledgement without buffering
+ * it. Otherwise, it's requested once the call becomes ready again, so a client which doesn't read
+ * its acknowledgements stops being read from, instead of making the server buffer them.
+ *
+ * <p>Commands are added to the ledger through the {@link ApplyLoop}, which acknowledges them on one
+ * of its threads, while gRPC runs the callbacks of the call on another, so the methods of the
+ * stream are synchronized.
+ */
+class SubmitStream implements StreamObserver<SubmitRequest> {
+  private static final String SUBMIT_FAILED = "Submit failed: ";
+  private static final OperationResult NO_COMMAND =
+      OperationResult.newBuilder()
+          .setStatus(OperationStatus.INVALID_ARGUMENT)
+          .setDescription("No command was provided")
+          .build();
+
+  private final ServerState state;
+  private final AtomicBoolean active;
+  private final ApplyLoop applyLoop;
+  private final ServerCallStreamObserver<SubmitResponse> call;
+
+  /** Whether the next command is to be requested once the call becomes ready. */
+  private boolean awaitingReady = true;
+
+  /** Whether a command is being added to the ledger, and wasn't acknowledged yet. */
+  private boolean adding = false;
+
+  /** Whether the client finished sending commands, so the call completes once none is added. */
+  private boolean halfClosed = false;
+
+  private boolean closed = false;
+
+  /**
+   * Creates a new SubmitStream, taking over the flow control of the given call.
+   *
+   * @param state The server state
+   * @param active This server's active flag
+   * @param applyLoop The loop through which commands are added to the ledger
+   * @param call The call through which acknowledgements are sent
+   */
+  SubmitStream(
+      ServerState state,
+      AtomicBoolean active,
+      ApplyLoop applyLoop,
+      ServerCallStreamObserver<SubmitResponse> call) {
+    this.state = state;
+    this.active = active;
+    this.applyLoop = applyLoop;
+    this.call = call;
+
+    call.disableAutoRequest();
+    call.setOnReadyHandler(this::onReady);
+    call.setOnCancelHandler(this::onCancel);
+  }
+
+  @Override
+  public synchronized void onNext(SubmitRequest request) {
+    Logger.debug("Received Submit command:");
+    Logger.debug(() -> request + "\n");
+
+    if (this.closed) {
+      return;
+    }
+
+    try {
+      if (!active.get()) {
+        throw new ServerUnavailableException();
+      }
+
+      this.handle(request);
+    } catch (ServerUnavailableException e) {
+      this.fail(Status.UNAVAILABLE, e);
+    } catch (RuntimeException e) {
+      this.fail(Status.UNKNOWN, e);
+    }
+  }
+
+  @Override
+  public synchronized void onError(Throwable t) {
+    Logger.debug(SUBMIT_FAILED + t.getMessage());
+    this.closed = true;
+  }
+
+  @Override
+  public synchronized void onCompleted() {
+    this.halfClosed = true;
+    if (!this.closed && !this.adding) {
+      this.closed = true;
+      this.call.onCompleted();
+    }
+  }
+
+  private synchronized void onReady() {
+    if (this.awaitingReady && this.call.isReady()) {
+      this.awaitingReady = false;
+      this.call.request(1);
+    }
+  }
+
+  private synchronized void onCancel() {
+    this.closed = true;
+  }
+
+  /**
+   * Acknowledges the command, right away if it's invalid, or else once it's added to the ledger.
+   */
+  private void handle(SubmitRequest request) {
+    final SubmitResponse.Builder response =
+        SubmitResponse.newBuilder().setCorrelationId(request.getCorrelationId());
+
+    final IntFunction<Operation> command;
+    try {
+      switch (request.getCommandCase()) {
+        case CREATEACCOUNT -> command = this.createOp(request.getCreateAccount());
+        case TRANSFERTO -> command = this.transferOp(request.getTransferTo());
+        default -> command = null;
+      }
+    } catch (SystemAccountException | NonPositiveTransferException | NopTransferException e) {
+      this.acknowledge(response.setResult(UserServiceImpl.invalid(e)).build());
+      return;
+    }
+
+    if (command == null) {
+      this.acknowledge(response.setResult(NO_COMMAND).build());
+      return;
+    }
+
+    this.adding = true;
+    this.applyLoop.write(List.of(command)).whenComplete((ops, e) -> this.added(response, ops, e));
+  }
+
+  /**
+   * Acknowledges a command once it's added to the ledger, completing the call if the client
+   * finished sending commands meanwhile.
+   */
+  private synchronized void added(
+      SubmitResponse.Builder response, List<Operation> ops, Throwable failure) {
+    this.adding = false;
+    if (this.closed) {
+      return;
+    }
+
+    if (failure != null) {
+      this.fail(
+          failure instanceof ServerUnavailableException ? Status.UNAVAILABLE : Status.UNKNOWN,
+          failure);
+      return;
+    }
+
+    try {
+      this.acknowledge(
+          response
+              .setResult(UserServiceImpl.ACCEPTED)
+              .setValueTS(UserServiceImpl.toClient(this.state, ops.get(0).getTimeStamp()))
+              .build());
+    } catch (RuntimeException e) {
+      this.fail(Status.UNKNOWN, e);
+      return;
+    }
+
+    if (this.halfClosed) {
+      this.closed = true;
+      this.call.onCompleted();
+    }
+  }
+
+  /**
+   * Sends the acknowledgement of a command, and requests the next one if the call is ready.
+   *
+   * <p>Safety: must be called while holding the stream's lock.
+   */
+  private void acknowledge(SubmitResponse response) {
+    this.call.onNext(response);
+    if (this.call.isReady()) {
+      this.call.request(1);
+    } else {
+      this.awaitingReady = true;
+    }
+  }
+
+  private IntFunction<Operation> createOp(CreateAccountRequest request) {
+    CreateOp.validate(request.getUserId());
+
+    final VectorClock prevTimeStamp = UserServiceImpl.fromClient(this.state, request.getPrevTS());
+    final int id = this.state.getId();
+    return sequence -> new CreateOp(request.getUserId(), prevTimeStamp, sequence, id);
+  }
+
+  private IntFunction<Operation> transferOp(TransferToRequest request) {
+    TransferOp.validate(request.getAccountFrom(), request.getAccountTo(), request.getAmount());
+
+    final VectorClock prevTimeStamp = UserServiceImpl.fromClient(this.state, request.getPrevTS());
+    final int id = this.state.getId();
+    return sequence ->
+        new TransferOp(
+            request.getAccountFrom(),
+            request.getAccountTo(),
+            request.getAmount(),
+            prevTimeStamp,
+            sequence,
+            id);
+  }
+
+  /** Safety: must be called while holding the stream's lock. */
+  private void fail(Status status, Throwable e) {
+    Logger.debug(SUBMIT_FAILED + e.getMessage());
+    this.closed = true;
+    this.call.onError(status.withDescription(e.getMessage()).asRuntimeException());
+  }
+}
@@ -1,18 +1,35 @@
 package pt.tecnico.distledger.server.grpc;
 
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
 import pt.tecnico.distledger.common.Logger;
 import pt.tecnico.distledger.common.domain.VectorClock;
 import pt.tecnico.distledger.common.grpc.ProtoUtils;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions;
 import pt.tecnico.distledger.contract.user.UserDistLedger.BalanceRequest;
 import pt.tecnico.distledger.contract.user.UserDistLedger.BalanceResponse;
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchCreateAccountRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchCreateAccountResponse;
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchTransferRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchTransferResponse;
 import pt.tecnico.distledger.contract.user.UserDistLedger.CreateAccountRequest;
 import pt.tecnico.distledger.contract.user.UserDistLedger.CreateAccountResponse;
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationResult;
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationStatus;
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitResponse;
+import pt.tecnico.distledger.contract.user.UserDistLedger.Transfer;
 import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToRequest;
 import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToResponse;
 import pt.tecnico.distledger.contract.user.UserServiceGrpc;
+import pt.tecnico.distledger.server.domain.ApplyLoop;
 import pt.tecnico.distledger.server.domain.ServerState;
 import pt.tecnico.distledger.server.domain.Stamped;
 import pt.tecnico.distledger.server.domain.exceptions.NonPositiveTransferException;
@@ -30,45 +47,65 @@ public class UserServiceImpl extends UserServiceGrpc.UserServiceImplBase {
   private static final String CREATE_ACCOUNT_FAILED = "Create account failed: ";
   private static final String TRANSFER_FAILED = "Transfer failed: ";
   private static final String BALANCE_FAILED = "Balance failed: ";
+  private static final String BATCH_FAILED = "Batch failed: ";
+  static final OperationResult ACCEPTED =
+      OperationResult.newBuilder().setStatus(OperationStatus.ACCEPTED).build();
 
   private final ServerState state;
   private final AtomicBoolean active;
+  private final ApplyLoop applyLoop;
 
   /**
-   * Creates a new UserServiceImpl, with an associated {@link OperationExecutor}.
+   * Creates a new UserServiceImpl, with an associated {@link OperationExecutor}, which adds
+   * operations to the ledger on the threads handling requests.
    *
    * @param state The server state
    * @param active This server's active flag
    */
   public UserServiceImpl(ServerState state, AtomicBoolean active) {
+    this(state, active, ApplyLoop.direct(state));
+  }
+
+  /**
+   * Creates a new UserServiceImpl, with an associated {@link OperationExecutor}, which adds
+   * operations to the ledger through the given apply loop, responding once they're added.
+   *
+   * @param state The server state
+   * @param active This server's active flag
+   * @param applyLoop The loop through which operations are added to the ledger
+   */
+  public UserServiceImpl(ServerState state, AtomicBoolean active, ApplyLoop applyLoop) {
     this.state = state;
     this.active = active;
+    this.applyLoop = applyLoop;
   }
 
   @Override
   public void createAccount(
       CreateAccountRequest request, StreamObserver<CreateAccountResponse> responseObserver) {
     Logger.debug("Received CreateAccount request:");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
       if (!active.get()) {
         throw new ServerUnavailableException();
       }
 
-      VectorClock prevTimeStamp = ProtoUtils.fromProto(request.getPrevTS());
-      VectorClock replicaTimeStamp = this.state.generateTimeStamp();
-      Operation op =
-          new CreateOp(request.getUserId(), prevTimeStamp, replicaTimeStamp, this.state.getId());
-      if (this.state.addToLedger(op)) {
-        this.state.stabilize();
-      }
-
-      responseObserver.onNext(
-          CreateAccountResponse.newBuilder()
-              .setValueTS(ProtoUtils.toProto(op.getTimeStamp()))
-              .build());
-      responseObserver.onCompleted();
+      final VectorClock prevTimeStamp = fromClient(this.state, request.getPrevTS());
+      CreateOp.validate(request.getUserId());
+      final int id = this.state.getId();
+      Responses.respond(
+          this.applyLoop
+              .write(
+                  List.of(
+                      sequence -> new CreateOp(request.getUserId(), prevTimeStamp, sequence, id)))
+              .thenApply(
+                  ops ->
+                      CreateAccountResponse.newBuilder()
+                          .setValueTS(toClient(this.state, ops.get(0).getTimeStamp()))
+                          .build()),
+          responseObserver,
+          CREATE_ACCOUNT_FAILED);
     } catch (ServerUnavailableException e) {
       Logger.debug(CREATE_ACCOUNT_FAILED + e.getMessage());
       responseObserver.onError(
@@ -87,30 +124,34 @@ public class UserServiceImpl extends UserServiceGrpc.UserServiceImplBase {
   public void transferTo(
       TransferToRequest request, StreamObserver<TransferToResponse> responseObserver) {
     Logger.debug("Received TransferTo request:");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
       if (!active.get()) {
         throw new ServerUnavailableException();
       }
-      VectorClock prevTimeStamp = ProtoUtils.fromProto(request.getPrevTS());
-      VectorClock replicaTimeStamp = this.state.generateTimeStamp();
-      Operation op =
-          new TransferOp(
-              request.getAccountFrom(),
-              request.getAccountTo(),
-              request.getAmount(),
-              prevTimeStamp,
-              replicaTimeStamp,
-              this.state.getId());
-      if (this.state.addToLedger(op)) {
-        this.state.stabilize();
-      }
-      responseObserver.onNext(
-          TransferToResponse.newBuilder()
-              .setValueTS(ProtoUtils.toProto(op.getTimeStamp()))
-              .build());
-      responseObserver.onCompleted();
+      final VectorClock prevTimeStamp = fromClient(this.state, request.getPrevTS());
+      TransferOp.validate(request.getAccountFrom(), request.getAccountTo(), request.getAmount());
+      final int id = this.state.getId();
+      Responses.respond(
+          this.applyLoop
+              .write(
+                  List.of(
+                      sequence ->
+                          new TransferOp(
+                              request.getAccountFrom(),
+                              request.getAccountTo(),
+                              request.getAmount(),
+                              prevTimeStamp,
+                              sequence,
+                              id)))
+              .thenApply(
+                  ops ->
+                      TransferToResponse.newBuilder()
+                          .setValueTS(toClient(this.state, ops.get(0).getTimeStamp()))
+                          .build()),
+          responseObserver,
+          TRANSFER_FAILED);
     } catch (ServerUnavailableException e) {
       Logger.debug(TRANSFER_FAILED + e.getMessage());
       responseObserver.onError(
@@ -125,35 +166,212 @@ public class UserServiceImpl extends UserServiceGrpc.UserServiceImplBase {
     }
   }
 
+  @Override
+  public void batchCreateAccount(
+      BatchCreateAccountRequest request,
+      StreamObserver<BatchCreateAccountResponse> responseObserver) {
+    Logger.debug("Received BatchCreateAccount request:");
+    Logger.debug(() -> request + "\n");
+
+    try {
+      if (!active.get()) {
+        throw new ServerUnavailableException();
+      }
+
+      final List<OperationResult> results = new ArrayList<>(request.getUserIdsCount());
+      final List<String> accepted = new ArrayList<>(request.getUserIdsCount());
+      for (String userId : request.getUserIdsList()) {
+        try {
+          CreateOp.validate(userId);
+          accepted.add(userId);
+          results.add(ACCEPTED);
+        } catch (SystemAccountException e) {
+          results.add(invalid(e));
+        }
+      }
+
+      final VectorClock prevTimeStamp = fromClient(this.state, request.getPrevTS());
+      final int id = this.state.getId();
+      final List<IntFunction<Operation>> commands = new ArrayList<>(accepted.size());
+      for (String userId : accepted) {
+        commands.add(sequence -> new CreateOp(userId, prevTimeStamp, sequence, id));
+      }
+
+      Responses.respond(
+          this.applyLoop
+              .write(commands)
+              .thenApply(
+                  ops ->
+                      BatchCreateAccountResponse.newBuilder()
+                          .addAllResults(results)
+                          .setValueTS(toClient(this.state, cover(prevTimeStamp, ops)))
+                          .build()),
+          responseObserver,
+          BATCH_FAILED);
+    } catch (ServerUnavailableException e) {
+      Logger.debug(BATCH_FAILED + e.getMessage());
+      responseObserver.onError(
+          Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
+    } catch (RuntimeException e) {
+      Logger.debug(BATCH_FAILED + e.getMessage());
+      responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  @Override
+  public void batchTransfer(
+      BatchTransferRequest request, StreamObserver<BatchTransferResponse> responseObserver) {
+    Logger.debug("Received BatchTransfer request:");
+    Logger.debug(() -> request + "\n");
+
+    try {
+      if (!active.get()) {
+        throw new ServerUnavailableException();
+      }
+
+      final List<OperationResult> results = new ArrayList<>(request.getTransfersCount());
+      final List<Transfer> accepted = new ArrayList<>(request.getTransfersCount());
+      for (Transfer transfer : request.getTransfersList()) {
+        try {
+          TransferOp.validate(
+              transfer.getAccountFrom(), transfer.getAccountTo(), transfer.getAmount());
+          accepted.add(transfer);
+          results.add(ACCEPTED);
+        } catch (NonPositiveTransferException | NopTransferException e) {
+          results.add(invalid(e));
+        }
+      }
+
+      final VectorClock prevTimeStamp = fromClient(this.state, request.getPrevTS());
+      final int id = this.state.getId();
+      final List<IntFunction<Operation>> commands = new ArrayList<>(accepted.size());
+      for (Transfer transfer : accepted) {
+        commands.add(
+            sequence ->
+                new TransferOp(
+                    transfer.getAccountFrom(),
+                    transfer.getAccountTo(),
+                    transfer.getAmount(),
+                    prevTimeStamp,
+                    sequence,
+                    id));
+      }
+
+      Responses.respond(
+          this.applyLoop
+              .write(commands)
+              .thenApply(
+                  ops ->
+                      BatchTransferResponse.newBuilder()
+                          .addAllResults(results)
+                          .setValueTS(toClient(this.state, cover(prevTimeStamp, ops)))
+                          .build()),
+          responseObserver,
+          BATCH_FAILED);
+    } catch (ServerUnavailableException e) {
+      Logger.debug(BATCH_FAILED + e.getMessage());
+      responseObserver.onError(
+          Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
+    } catch (RuntimeException e) {
+      Logger.debug(BATCH_FAILED + e.getMessage());
+      responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  /**
+   * Opens a stream of commands, which are acknowledged as they are added to the ledger. The client
+   * may keep sending commands without waiting for the acknowledgements of the previous ones, as
+   * long as the server is ready to receive them.
+   */
+  @Override
+  public StreamObserver<SubmitRequest> submit(StreamObserver<SubmitResponse> responseObserver) {
+    Logger.debug("Received Submit stream");
+
+    return new SubmitStream(
+        this.state,
+        this.active,
+        this.applyLoop,
+        (ServerCallStreamObserver<SubmitResponse>) responseObserver);
+  }
+
   @Override
   public void balance(BalanceRequest request, StreamObserver<BalanceResponse> responseObserver) {
     Logger.debug("Received Balance request:");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
       if (!active.get()) {
         throw new ServerUnavailableException();
       }
-      final Stamped<Integer> balance =
-          this.state.getAccountBalance(
-              request.getUserId(), ProtoUtils.fromProto(request.getPrevTS()));
-      responseObserver.onNext(
-          BalanceResponse.newBuilder()
-              .setValue(balance.value())
-              .setValueTS(ProtoUtils.toProto(balance.timeStamp()))
-              .build());
-      responseObserver.onCompleted();
+
+      // The read completes once this replica catches up with the client, without blocking this
+      // thread. If the call is cancelled, e.g., because its deadline expired, the read is dropped.
+      final CompletableFuture<Stamped<Integer>> read =
+          this.state.readBalance(request.getUserId(), fromClient(this.state, request.getPrevTS()));
+      if (responseObserver instanceof ServerCallStreamObserver<BalanceResponse> call) {
+        call.setOnCancelHandler(() -> read.cancel(false));
+      }
+
+      read.whenComplete(
+          (balance, e) -> {
+            if (e == null) {
+              responseObserver.onNext(
+                  BalanceResponse.newBuilder()
+                      .setValue(balance.value())
+                      .setValueTS(toClient(this.state, balance.timeStamp()))
+                      .build());
+              responseObserver.onCompleted();
+            } else if (e instanceof UnknownAccountException) {
+              Logger.debug(BALANCE_FAILED + e.getMessage());
+              responseObserver.onError(
+                  Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
+            } else if (!(e instanceof CancellationException)) {
+              Logger.debug(BALANCE_FAILED + e.getMessage());
+              responseObserver.onError(
+                  Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+            }
+          });
     } catch (ServerUnavailableException e) {
       Logger.debug(BALANCE_FAILED + e.getMessage());
       responseObserver.onError(
           Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
-    } catch (UnknownAccountException e) {
-      Logger.debug(BALANCE_FAILED + e.getMessage());
-      responseObserver.onError(
-          Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
     } catch (RuntimeException e) {
       Logger.debug(BALANCE_FAILED + e.getMessage());
       responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
     }
   }
+
+  /** Returns the timestamp covering every operation of a batch. */
+  private static VectorClock cover(VectorClock prevTimeStamp, List<Operation> ops) {
+    final VectorClock timeStamp = new VectorClock(prevTimeStamp);
+    for (Operation op : ops) {
+      timeStamp.merge(op.getTimeStamp());
+    }
+    return timeStamp;
+  }
+
+  /** Converts a timestamp received from a client, without the entries of the retired replicas. */
+  static VectorClock fromClient(
+      ServerState state, DistLedgerCommonDefinitions.VectorClock prevTimeStamp) {
+    return state.withoutRetired(ProtoUtils.fromProto(prevTimeStamp));
+  }
+
+  /**
+   * Converts a timestamp to be sent to a client, without the entries of the retired replicas, and
+   * stamped with the epoch of their retirements, so that the client drops them too.
+   */
+  static DistLedgerCommonDefinitions.VectorClock toClient(
+      ServerState state, VectorClock timeStamp) {
+    final DistLedgerCommonDefinitions.VectorClock proto =
+        ProtoUtils.toProto(state.withoutRetired(timeStamp));
+    final int epoch = state.getRetiredEpoch();
+    return epoch == 0 ? proto : proto.toBuilder().setEpoch(epoch).build();
+  }
+
+  static OperationResult invalid(RuntimeException e) {
+    return OperationResult.newBuilder()
+        .setStatus(OperationStatus.INVALID_ARGUMENT)
+        .setDescription(e.getMessage())
+        .build();
+  }
 }
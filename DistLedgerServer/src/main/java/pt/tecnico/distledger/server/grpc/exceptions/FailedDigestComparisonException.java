@@ -0,0 +1,8 @@
+package pt.tecnico.distledger.server.grpc.exceptions;
+
+/** Represents an exception thrown when an attempt to compare digests with another server fails. */
+public class FailedDigestComparisonException extends RuntimeException {
+  public FailedDigestComparisonException(Throwable cause) {
+    super(cause.getMessage(), cause);
+  }
+}
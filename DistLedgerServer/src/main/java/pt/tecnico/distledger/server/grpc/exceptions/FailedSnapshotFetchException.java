@@ -0,0 +1,8 @@
+package pt.tecnico.distledger.server.grpc.exceptions;
+
+/** Represents an exception thrown when an attempt to fetch a snapshot from another server fails. */
+public class FailedSnapshotFetchException extends RuntimeException {
+  public FailedSnapshotFetchException(Throwable cause) {
+    super(cause.getMessage(), cause);
+  }
+}
@@ -0,0 +1,14 @@
+package pt.tecnico.distledger.server.storage;
+
+/** Represents how a {@link WriteAheadLog} persists the records appended to it. */
+public enum Durability {
+  /** Each append is written and synced to disk before returning. */
+  FSYNC,
+  /**
+   * Appends from concurrent callers are written together and share a single sync, waiting up to a
+   * maximum time for more records to join the group. Each append returns once its group is synced.
+   */
+  GROUP,
+  /** Appends return immediately, and records are written and synced in the background. */
+  ASYNC
+}
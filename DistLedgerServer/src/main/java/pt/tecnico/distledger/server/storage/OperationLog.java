@@ -0,0 +1,55 @@
+package pt.tecnico.distledger.server.storage;
+
+import java.util.List;
+import java.util.function.Consumer;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+
+/** Represents a log where the operations added to the ledger are recorded. */
+public interface OperationLog extends AutoCloseable {
+  /** An operation log which does not record anything, keeping the state only in memory. */
+  OperationLog NONE = operations -> {};
+
+  /**
+   * Records the given operations in the log. Depending on the log's durability, this may block
+   * until the operations are persisted.
+   *
+   * @param operations the operations to record, in the order they are added to the ledger.
+   */
+  void append(List<Operation> operations);
+
+  /**
+   * Records the given operations in the log, after the ones recorded before, leaving it to the
+   * caller to wait for them to be persisted, e.g. once it released the locks it holds.
+   *
+   * @param operations the operations to record, in the order they are added to the ledger.
+   * @return blocks until the operations are persisted, as {@link #append(List)} does.
+   */
+  default Runnable appendDeferred(List<Operation> operations) {
+    this.append(operations);
+    return () -> {};
+  }
+
+  /**
+   * Reads the operations recorded in the log, in the order they were appended.
+   *
+   * @param fromSequence the sequence number of the first operation to read.
+   * @param consumer the consumer to which each operation is passed.
+   */
+  default void replay(long fromSequence, Consumer<Operation> consumer) {}
+
+  /** Returns the sequence number which will be assigned to the next operation appended. */
+  default long getNextSequence() {
+    return 0;
+  }
+
+  /**
+   * Discards operations recorded before the given sequence number, which are no longer needed to
+   * recover the state. Implementations may keep some of them.
+   *
+   * @param sequence the sequence number of the first operation which must be kept.
+   */
+  default void truncateBefore(long sequence) {}
+
+  @Override
+  default void close() {}
+}
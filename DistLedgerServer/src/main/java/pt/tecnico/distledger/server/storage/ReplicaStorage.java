@@ -0,0 +1,172 @@
+package pt.tecnico.distledger.server.storage;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+
+/**
+ * Keeps the state of a replica on disk, so that it can be recovered when the replica restarts.
+ *
+ * <p>Operations are recorded in a write-ahead log, and a snapshot of the state is periodically
+ * captured in the background, once enough operations were logged since the last one. On recovery,
+ * the latest snapshot is restored and only the operations logged after it are replayed. Log
+ * segments which are no longer needed by any retained snapshot are deleted.
+ */
+public class ReplicaStorage implements AutoCloseable {
+  private static final long SNAPSHOT_CHECK_INTERVAL_MS = 1000;
+
+  private final OperationLog log;
+  private final Optional<SnapshotStore> snapshots;
+  private final long snapshotRecords;
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "snapshotter");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private volatile long lastSnapshotSequence = 0;
+
+  private ReplicaStorage(
+      OperationLog log, Optional<SnapshotStore> snapshots, long snapshotRecords) {
+    this.log = log;
+    this.snapshots = snapshots;
+    this.snapshotRecords = snapshotRecords;
+  }
+
+  /** Creates a storage which keeps nothing on disk: the state of the replica is lost on restart. */
+  public static ReplicaStorage inMemory() {
+    return new ReplicaStorage(OperationLog.NONE, Optional.empty(), 0);
+  }
+
+  /**
+   * Opens the storage kept in the given directory, creating it if it doesn't exist.
+   *
+   * @param directory the directory where the log segments and snapshots are stored.
+   * @param durability how operations are persisted in the log.
+   * @param maxWait the maximum time a group commit waits for more records to join it.
+   * @param segmentSize the size, in bytes, after which a new log segment is started.
+   * @param snapshotRecords the number of operations logged after which a new snapshot is captured.
+   */
+  public static ReplicaStorage open(
+      Path directory,
+      Durability durability,
+      Duration maxWait,
+      long segmentSize,
+      long snapshotRecords) {
+    return new ReplicaStorage(
+        new WriteAheadLog(directory, durability, maxWait, segmentSize),
+        Optional.of(new SnapshotStore(directory)),
+        snapshotRecords);
+  }
+
+  /** Returns the log where the replica's operations must be recorded. */
+  public OperationLog getLog() {
+    return this.log;
+  }
+
+  /**
+   * Recovers the state stored by previous runs of the replica: restores the latest snapshot, if
+   * any, and replays the operations logged after it. Then, starts capturing snapshots in the
+   * background. The time taken by each phase is logged.
+   *
+   * @param state the state of the replica, with no operations added yet.
+   */
+  public void recover(ServerState state) {
+    if (this.snapshots.isEmpty()) {
+      return;
+    }
+
+    final long start = System.nanoTime();
+    final Optional<Snapshot> snapshot = this.snapshots.get().loadLatest();
+    final long loaded = System.nanoTime();
+    snapshot.ifPresent(state::restoreSnapshot);
+    final long snapshotRestored = System.nanoTime();
+
+    final long fromSequence = snapshot.map(Snapshot::sequence).orElse(0L);
+    final List<Operation> operations = new ArrayList<>();
+    this.log.replay(fromSequence, operations::add);
+    final long read = System.nanoTime();
+    state.restore(operations);
+    final long replayed = System.nanoTime();
+
+    this.lastSnapshotSequence = fromSequence;
+
+    Logger.debug(
+        () ->
+            String.format(
+                "Recovered state in %d ms: snapshot at %d loaded in %d ms and restored in %d ms, "
+                    + "%d logged operations read in %d ms and replayed in %d ms",
+                TimeUnit.NANOSECONDS.toMillis(replayed - start),
+                fromSequence,
+                TimeUnit.NANOSECONDS.toMillis(loaded - start),
+                TimeUnit.NANOSECONDS.toMillis(snapshotRestored - loaded),
+                operations.size(),
+                TimeUnit.NANOSECONDS.toMillis(read - snapshotRestored),
+                TimeUnit.NANOSECONDS.toMillis(replayed - read)));
+
+    this.scheduler.scheduleWithFixedDelay(
+        () -> {
+          try {
+            if (this.log.getNextSequence() - this.lastSnapshotSequence >= this.snapshotRecords) {
+              this.snapshot(state);
+            }
+          } catch (RuntimeException e) {
+            Logger.error("Failed to capture snapshot: " + e.getMessage());
+          }
+        },
+        SNAPSHOT_CHECK_INTERVAL_MS,
+        SNAPSHOT_CHECK_INTERVAL_MS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Captures a snapshot of the given state and writes it to disk, deleting the log segments which
+   * are no longer needed. Does nothing if the state is kept only in memory.
+   *
+   * @param state the state of the replica.
+   */
+  public void snapshot(ServerState state) {
+    if (this.snapshots.isEmpty()) {
+      return;
+    }
+
+    final long start = System.nanoTime();
+    final Snapshot snapshot = state.captureSnapshot();
+    final long captured = System.nanoTime();
+    this.snapshots.get().save(snapshot);
+    this.log.truncateBefore(this.snapshots.get().getOldestRetainedSequence());
+    this.lastSnapshotSequence = snapshot.sequence();
+    final long written = System.nanoTime();
+
+    Logger.debug(
+        () ->
+            String.format(
+                "Captured snapshot at %d in %d ms, written in %d ms",
+                snapshot.sequence(),
+                TimeUnit.NANOSECONDS.toMillis(captured - start),
+                TimeUnit.NANOSECONDS.toMillis(written - captured)));
+  }
+
+  /** Stops capturing snapshots and closes the log. */
+  @Override
+  public void close() {
+    this.scheduler.shutdown();
+    try {
+      this.scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    this.log.close();
+  }
+}
@@ -0,0 +1,33 @@
+package pt.tecnico.distledger.server.storage;
+
+import java.util.List;
+import java.util.Map;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+
+/**
+ * Represents the state of a replica at a point of its operation log, from which it can be restored
+ * without replaying the operations recorded before it.
+ *
+ * <p>Stable operations already sent to every known replica are folded into the account balances,
+ * and only the ledger starting at {@code ledgerOffset} is kept. Its first {@code stableCount}
+ * operations are stable, and the remaining ones are still waiting to be stabilized.
+ *
+ * @param sequence the sequence number of the first log record not reflected in the snapshot.
+ * @param balances the balance of each account.
+ * @param valueTimeStamp the value timestamp.
+ * @param replicaTimeStamp the replica timestamp.
+ * @param gossipCursors the ledger index, for each replica, of the stable operations last gossiped.
+ * @param ledgerOffset the ledger index of the first operation kept.
+ * @param ledger the operations kept, starting at {@code ledgerOffset}.
+ * @param stableCount the number of stable operations in {@code ledger}.
+ */
+public record Snapshot(
+    long sequence,
+    Map<String, Integer> balances,
+    VectorClock valueTimeStamp,
+    VectorClock replicaTimeStamp,
+    VectorClock gossipCursors,
+    int ledgerOffset,
+    List<Operation> ledger,
+    int stableCount) {}
@@ -0,0 +1,241 @@
+package pt.tecnico.distledger.server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.LedgerState;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.grpc.OperationParser;
+import pt.tecnico.distledger.server.storage.exceptions.SnapshotException;
+import pt.tecnico.distledger.server.visitors.LedgerStateGenerator;
+
+/**
+ * Stores snapshots of the state of a replica in a directory, named after the sequence number of the
+ * first log record they don't reflect.
+ *
+ * <p>Snapshots are written to a temporary file, synced and then atomically renamed, so a crash
+ * never leaves a partial snapshot behind. Each one ends with a CRC32 checksum of its contents. The
+ * latest {@value #RETAINED_SNAPSHOTS} snapshots are kept, so that an older one can still be used if
+ * the latest is found to be corrupt.
+ */
+public class SnapshotStore {
+  private static final String SNAPSHOT_SUFFIX = ".snap";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final int FORMAT_VERSION = 1;
+  private static final int RETAINED_SNAPSHOTS = 2;
+
+  private final Path directory;
+
+  /**
+   * Creates a store for the snapshots in the given directory, creating it if it doesn't exist.
+   *
+   * @throws SnapshotException if the directory can't be created.
+   */
+  public SnapshotStore(Path directory) {
+    this.directory = directory;
+
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new SnapshotException(e);
+    }
+  }
+
+  /**
+   * Writes the given snapshot to disk, and deletes the snapshots which are no longer retained.
+   *
+   * @throws SnapshotException if the snapshot can't be written.
+   */
+  public synchronized void save(Snapshot snapshot) {
+    final Path file = this.directory.resolve(fileName(snapshot.sequence()));
+    final Path temporary = this.directory.resolve(fileName(snapshot.sequence()) + TEMPORARY_SUFFIX);
+
+    try {
+      try (FileOutputStream fileOut = new FileOutputStream(temporary.toFile())) {
+        final CheckedOutputStream checked =
+            new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+        final DataOutputStream out = new DataOutputStream(checked);
+        write(out, snapshot);
+        out.flush();
+        out.writeLong(checked.getChecksum().getValue());
+        out.flush();
+        fileOut.getFD().sync();
+      }
+
+      Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+
+      final List<Path> snapshots = listSnapshots(this.directory);
+      for (int i = 0; i + RETAINED_SNAPSHOTS < snapshots.size(); i++) {
+        Files.delete(snapshots.get(i));
+      }
+    } catch (IOException e) {
+      throw new SnapshotException(e);
+    }
+  }
+
+  /**
+   * Reads the latest valid snapshot stored, skipping any which is corrupt.
+   *
+   * @return the snapshot, or empty if there is none.
+   * @throws SnapshotException if the snapshots can't be listed.
+   */
+  public Optional<Snapshot> loadLatest() {
+    final List<Path> snapshots;
+    try {
+      snapshots = listSnapshots(this.directory);
+    } catch (IOException e) {
+      throw new SnapshotException(e);
+    }
+
+    for (int i = snapshots.size() - 1; i >= 0; i--) {
+      try {
+        return Optional.of(read(snapshots.get(i)));
+      } catch (IOException | RuntimeException e) {
+        Logger.error("Skipping invalid snapshot " + snapshots.get(i) + ": " + e.getMessage());
+      }
+    }
+
+    return Optional.empty();
+  }
+
+  /**
+   * Returns the sequence number of the oldest snapshot retained. Log records before it are no
+   * longer needed to restore any of the snapshots.
+   *
+   * @return the sequence number, or 0 if there are no snapshots.
+   * @throws SnapshotException if the snapshots can't be listed.
+   */
+  public synchronized long getOldestRetainedSequence() {
+    try {
+      return listSnapshots(this.directory).stream()
+          .findFirst()
+          .map(SnapshotStore::sequenceOf)
+          .orElse(0L);
+    } catch (IOException e) {
+      throw new SnapshotException(e);
+    }
+  }
+
+  /** Writes the contents of a snapshot to the given stream. */
+  private static void write(DataOutputStream out, Snapshot snapshot) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    out.writeLong(snapshot.sequence());
+    writeClock(out, snapshot.valueTimeStamp());
+    writeClock(out, snapshot.replicaTimeStamp());
+    writeClock(out, snapshot.gossipCursors());
+
+    out.writeInt(snapshot.balances().size());
+    for (Map.Entry<String, Integer> entry : snapshot.balances().entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue());
+    }
+
+    final LedgerStateGenerator generator = new LedgerStateGenerator();
+    snapshot.ledger().forEach(op -> op.accept(generator));
+    final byte[] ledger = generator.build().toByteArray();
+    out.writeInt(snapshot.ledgerOffset());
+    out.writeInt(snapshot.stableCount());
+    out.writeInt(ledger.length);
+    out.write(ledger);
+  }
+
+  /** Reads a snapshot from the given file, checking its format version and checksum. */
+  private static Snapshot read(Path file) throws IOException {
+    try (CheckedInputStream checked =
+        new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), new CRC32())) {
+      final DataInputStream in = new DataInputStream(checked);
+
+      final int version = in.readInt();
+      if (version != FORMAT_VERSION) {
+        throw new SnapshotException("unsupported format version " + version);
+      }
+
+      final long sequence = in.readLong();
+      final VectorClock valueTimeStamp = readClock(in);
+      final VectorClock replicaTimeStamp = readClock(in);
+      final VectorClock gossipCursors = readClock(in);
+
+      final int accountCount = in.readInt();
+      final Map<String, Integer> balances = new HashMap<>(accountCount * 2);
+      for (int i = 0; i < accountCount; i++) {
+        balances.put(in.readUTF(), in.readInt());
+      }
+
+      final int ledgerOffset = in.readInt();
+      final int stableCount = in.readInt();
+      final byte[] ledgerBytes = new byte[in.readInt()];
+      in.readFully(ledgerBytes);
+
+      final long expectedChecksum = checked.getChecksum().getValue();
+      if (in.readLong() != expectedChecksum) {
+        throw new SnapshotException("checksum mismatch");
+      }
+
+      final List<Operation> ledger = new ArrayList<>();
+      LedgerState.parseFrom(ledgerBytes).getLedgerList().stream()
+          .map(OperationParser::parse)
+          .forEach(ledger::add);
+
+      return new Snapshot(
+          sequence,
+          balances,
+          valueTimeStamp,
+          replicaTimeStamp,
+          gossipCursors,
+          ledgerOffset,
+          ledger,
+          stableCount);
+    }
+  }
+
+  private static void writeClock(DataOutputStream out, VectorClock clock) throws IOException {
+    out.writeInt(clock.size());
+    for (int i = 0; i < clock.size(); i++) {
+      out.writeInt(clock.get(i));
+    }
+  }
+
+  private static VectorClock readClock(DataInputStream in) throws IOException {
+    final int[] timeStamps = new int[in.readInt()];
+    for (int i = 0; i < timeStamps.length; i++) {
+      timeStamps[i] = in.readInt();
+    }
+    return new VectorClock(timeStamps);
+  }
+
+  /** Lists the snapshots in the given directory, ordered by their sequence number. */
+  private static List<Path> listSnapshots(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(file -> file.getFileName().toString().endsWith(SNAPSHOT_SUFFIX))
+          .sorted()
+          .toList();
+    }
+  }
+
+  private static String fileName(long sequence) {
+    return String.format("%020d", sequence) + SNAPSHOT_SUFFIX;
+  }
+
+  private static long sequenceOf(Path snapshot) {
+    final String name = snapshot.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - SNAPSHOT_SUFFIX.length()));
+  }
+}
@@ -0,0 +1,478 @@
+package pt.tecnico.distledger.server.storage;
+
+import com.google.protobuf.AbstractMessageLite;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.grpc.OperationParser;
+import pt.tecnico.distledger.server.storage.exceptions.WriteAheadLogException;
+import pt.tecnico.distledger.server.visitors.LedgerStateGenerator;
+
+/**
+ * Append-only write-ahead log of the operations added to the ledger, split in segment files.
+ *
+ * <p>Each record holds a serialized {@link DistLedgerCommonDefinitions.Operation}, prefixed by its
+ * length and CRC32 checksum. Records are numbered sequentially, and each segment is named after the
+ * sequence number of its first record. A new segment is started once the current one reaches the
+ * configured size. A torn record at the end of the last segment, left by a crash in the middle of a
+ * write, is discarded when the log is opened, while a corrupt record in any other segment fails the
+ * replay, as the records after it were already acknowledged.
+ */
+public class WriteAheadLog implements OperationLog {
+  private static final String SEGMENT_SUFFIX = ".wal";
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+  private static final int MAX_GROUP_SIZE = 4096;
+
+  /** Represents the records of an append, waiting to be written by the flusher thread. */
+  private record PendingAppend(List<byte[]> records, CompletableFuture<Void> written) {}
+
+  /** Signals the flusher thread that the log is being closed. */
+  private static final PendingAppend CLOSE = new PendingAppend(List.of(), null);
+
+  private final Path directory;
+  private final Durability durability;
+  private final long maxWaitNanos;
+  private final long segmentSize;
+  private final BlockingQueue<PendingAppend> queue = new LinkedBlockingQueue<>();
+  private final Optional<Thread> flusher;
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  // Safety: the sequence number assigned to the next record appended is only accessed while
+  // holding this object's lock, so that records are queued in sequence order
+  private long nextSequence;
+
+  // Safety: the segment files are only accessed while holding the write lock
+  private final Object writeLock = new Object();
+  private FileChannel segment;
+  private long writtenSequence;
+
+  /**
+   * Opens the write-ahead log stored in the given directory, creating it if it doesn't exist.
+   *
+   * @param directory the directory where the segments are stored.
+   * @param durability how appended records are persisted.
+   * @param maxWait the maximum time a group commit waits for more records to join it.
+   * @param segmentSize the size, in bytes, after which a new segment is started.
+   * @throws WriteAheadLogException if the log can't be opened.
+   */
+  public WriteAheadLog(Path directory, Durability durability, Duration maxWait, long segmentSize) {
+    this.directory = directory;
+    this.durability = durability;
+    this.maxWaitNanos = maxWait.toNanos();
+    this.segmentSize = segmentSize;
+
+    try {
+      Files.createDirectories(directory);
+      this.openLastSegment();
+    } catch (IOException e) {
+      throw new WriteAheadLogException(e);
+    }
+
+    if (durability == Durability.FSYNC) {
+      this.flusher = Optional.empty();
+    } else {
+      Thread thread = new Thread(this::flushPending, "wal-flusher");
+      thread.setDaemon(true);
+      thread.start();
+      this.flusher = Optional.of(thread);
+    }
+  }
+
+  /**
+   * Appends the given operations to the log, as consecutive records.
+   *
+   * <p>With {@link Durability#FSYNC} and {@link Durability#GROUP}, this only returns once the
+   * records are synced to disk. With {@link Durability#ASYNC}, it returns immediately.
+   *
+   * @throws WriteAheadLogException if the records can't be written.
+   */
+  @Override
+  public void append(List<Operation> operations) {
+    this.appendDeferred(operations).run();
+  }
+
+  /**
+   * Appends the given operations to the log, as consecutive records, and returns once they're
+   * ordered after the records appended before.
+   *
+   * <p>With {@link Durability#FSYNC}, the records are written before this returns, and synced to
+   * disk by the returned task. With {@link Durability#GROUP}, the task waits for the group commit
+   * which syncs them. With {@link Durability#ASYNC}, it returns immediately.
+   *
+   * @throws WriteAheadLogException if the records can't be written.
+   */
+  @Override
+  public Runnable appendDeferred(List<Operation> operations) {
+    if (operations.isEmpty()) {
+      return () -> {};
+    }
+
+    if (this.closed.get()) {
+      throw new WriteAheadLogException(new IllegalStateException("log is closed"));
+    }
+
+    final List<byte[]> records = encode(operations);
+
+    if (this.durability == Durability.FSYNC) {
+      synchronized (this) {
+        synchronized (this.writeLock) {
+          try {
+            this.write(records);
+          } catch (IOException e) {
+            throw new WriteAheadLogException(e);
+          }
+        }
+        this.nextSequence += records.size();
+      }
+      return this::sync;
+    }
+
+    // Sequence numbers are assigned as records are queued, so that they are known even before the
+    // records are written
+    final PendingAppend pending = new PendingAppend(records, new CompletableFuture<>());
+    synchronized (this) {
+      this.queue.add(pending);
+      this.nextSequence += records.size();
+    }
+
+    if (this.durability == Durability.ASYNC) {
+      return () -> {};
+    }
+
+    return () -> {
+      try {
+        pending.written().join();
+      } catch (CompletionException e) {
+        throw (WriteAheadLogException) e.getCause();
+      }
+    };
+  }
+
+  /**
+   * Reads the operations recorded in the log, in order, starting at the given sequence number.
+   *
+   * @param fromSequence the sequence number of the first record to read.
+   * @param consumer the consumer to which each operation is passed.
+   * @throws WriteAheadLogException if the log can't be read.
+   */
+  @Override
+  public void replay(long fromSequence, Consumer<Operation> consumer) {
+    try {
+      final List<Path> segments;
+      synchronized (this.writeLock) {
+        segments = listSegments(this.directory);
+      }
+
+      for (int i = 0; i < segments.size(); i++) {
+        // Skip segments which only hold records before the requested one
+        if (i + 1 < segments.size() && firstSequence(segments.get(i + 1)) <= fromSequence) {
+          continue;
+        }
+
+        try (DataInputStream in =
+            new DataInputStream(new BufferedInputStream(Files.newInputStream(segments.get(i))))) {
+          long sequence = firstSequence(segments.get(i));
+          for (byte[] record = readRecord(in); record != null; record = readRecord(in)) {
+            if (sequence++ >= fromSequence) {
+              consumer.accept(
+                  OperationParser.parse(DistLedgerCommonDefinitions.Operation.parseFrom(record)));
+            }
+          }
+
+          // Only the last segment may end in a torn record, as every other one was complete once
+          // the next was started, so the records it didn't reach were acknowledged, and are lost
+          if (i + 1 < segments.size() && sequence < firstSequence(segments.get(i + 1))) {
+            throw new WriteAheadLogException(
+                new IOException(
+                    "Corrupt record " + sequence + " in the segment " + segments.get(i)));
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new WriteAheadLogException(e);
+    }
+  }
+
+  /**
+   * Returns the sequence number which will be assigned to the next record appended, i.e., the
+   * number of records appended to the log since it was created.
+   */
+  @Override
+  public synchronized long getNextSequence() {
+    return this.nextSequence;
+  }
+
+  /**
+   * Deletes the segments which only hold records before the given sequence number. The current
+   * segment is never deleted.
+   *
+   * @param sequence the sequence number of the first record which must be kept.
+   * @throws WriteAheadLogException if the segments can't be deleted.
+   */
+  @Override
+  public void truncateBefore(long sequence) {
+    synchronized (this.writeLock) {
+      try {
+        final List<Path> segments = listSegments(this.directory);
+        for (int i = 0; i + 1 < segments.size(); i++) {
+          if (firstSequence(segments.get(i + 1)) > sequence) {
+            break;
+          }
+
+          Logger.debug("Deleting write-ahead log segment " + segments.get(i));
+          Files.delete(segments.get(i));
+        }
+      } catch (IOException e) {
+        throw new WriteAheadLogException(e);
+      }
+    }
+  }
+
+  /** Writes any pending records, syncs them to disk and closes the log. */
+  @Override
+  public void close() {
+    if (!this.closed.compareAndSet(false, true)) {
+      return;
+    }
+
+    this.flusher.ifPresent(
+        thread -> {
+          this.queue.add(CLOSE);
+          try {
+            thread.join();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+
+    synchronized (this.writeLock) {
+      try {
+        this.segment.force(false);
+        this.segment.close();
+      } catch (IOException e) {
+        throw new WriteAheadLogException(e);
+      }
+    }
+  }
+
+  /**
+   * Syncs the records written to the current segment to disk. Segments are synced before a new one
+   * is started, so this syncs every record written so far.
+   */
+  private void sync() {
+    synchronized (this.writeLock) {
+      try {
+        this.segment.force(false);
+      } catch (IOException e) {
+        throw new WriteAheadLogException(e);
+      }
+    }
+  }
+
+  /**
+   * Main loop of the flusher thread. Takes groups of pending appends from the queue, writes them
+   * and syncs them to disk at once.
+   */
+  private void flushPending() {
+    final List<PendingAppend> group = new ArrayList<>();
+    boolean closing = false;
+
+    while (!closing) {
+      try {
+        group.add(this.queue.take());
+
+        // Wait for more appends to join the group, until the maximum wait time is reached
+        if (this.durability == Durability.GROUP) {
+          final long deadline = System.nanoTime() + this.maxWaitNanos;
+          while (group.size() < MAX_GROUP_SIZE && group.get(group.size() - 1) != CLOSE) {
+            final PendingAppend next =
+                this.queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (next == null) {
+              break;
+            }
+            group.add(next);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        closing = true;
+      }
+
+      this.queue.drainTo(group);
+      closing |= group.remove(CLOSE);
+      this.writeGroup(group);
+      group.clear();
+    }
+  }
+
+  /** Writes a group of pending appends, syncs them to disk, and notifies their callers. */
+  private void writeGroup(List<PendingAppend> group) {
+    if (group.isEmpty()) {
+      return;
+    }
+
+    try {
+      synchronized (this.writeLock) {
+        for (PendingAppend pending : group) {
+          this.write(pending.records());
+        }
+        this.segment.force(false);
+      }
+
+      group.forEach(pending -> pending.written().complete(null));
+    } catch (IOException e) {
+      Logger.error("Failed to write to the write-ahead log: " + e.getMessage());
+      final WriteAheadLogException exception = new WriteAheadLogException(e);
+      group.forEach(pending -> pending.written().completeExceptionally(exception));
+    }
+  }
+
+  /**
+   * Writes the given records to the current segment, starting a new segment if it becomes full.
+   *
+   * <p>Safety: must be called while holding the write lock.
+   */
+  private void write(List<byte[]> records) throws IOException {
+    final ByteBuffer[] buffers = new ByteBuffer[records.size() * 2];
+    final CRC32 checksum = new CRC32();
+
+    for (int i = 0; i < records.size(); i++) {
+      final byte[] record = records.get(i);
+      checksum.reset();
+      checksum.update(record);
+      buffers[2 * i] =
+          ByteBuffer.allocate(HEADER_SIZE)
+              .putInt(record.length)
+              .putInt((int) checksum.getValue())
+              .flip();
+      buffers[2 * i + 1] = ByteBuffer.wrap(record);
+    }
+
+    while (buffers[buffers.length - 1].hasRemaining()) {
+      this.segment.write(buffers);
+    }
+    this.writtenSequence += records.size();
+
+    if (this.segment.position() >= this.segmentSize) {
+      this.segment.force(false);
+      this.segment.close();
+      this.segment = openSegment(this.directory, this.writtenSequence);
+    }
+  }
+
+  /**
+   * Opens the last segment of the log for appending, discarding any torn record at its end, or
+   * creates the first segment if there is none.
+   */
+  private void openLastSegment() throws IOException {
+    final List<Path> segments = listSegments(this.directory);
+    if (segments.isEmpty()) {
+      this.nextSequence = 0;
+      this.writtenSequence = 0;
+      this.segment = openSegment(this.directory, 0);
+      return;
+    }
+
+    final Path last = segments.get(segments.size() - 1);
+    long validSize = 0;
+    long sequence = firstSequence(last);
+
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(last)))) {
+      for (byte[] record = readRecord(in); record != null; record = readRecord(in)) {
+        validSize += HEADER_SIZE + record.length;
+        sequence++;
+      }
+    }
+
+    this.nextSequence = sequence;
+    this.writtenSequence = sequence;
+    this.segment = FileChannel.open(last, StandardOpenOption.WRITE);
+    if (this.segment.size() > validSize) {
+      Logger.error("Discarding torn record at the end of the write-ahead log segment " + last);
+      this.segment.truncate(validSize);
+    }
+    this.segment.position(validSize);
+  }
+
+  /** Encodes the given operations as records. */
+  private static List<byte[]> encode(List<Operation> operations) {
+    final LedgerStateGenerator generator = new LedgerStateGenerator();
+    operations.forEach(op -> op.accept(generator));
+    return generator.build().getLedgerList().stream()
+        .map(AbstractMessageLite::toByteArray)
+        .toList();
+  }
+
+  /**
+   * Reads the next record from the given stream.
+   *
+   * @return the record, or null if the end of the stream, or a torn or corrupt record, was reached.
+   */
+  private static byte[] readRecord(DataInputStream in) throws IOException {
+    try {
+      final int length = in.readInt();
+      final int expectedChecksum = in.readInt();
+      if (length < 0 || length > MAX_RECORD_SIZE) {
+        return null;
+      }
+
+      final byte[] record = new byte[length];
+      in.readFully(record);
+
+      final CRC32 checksum = new CRC32();
+      checksum.update(record);
+      return (int) checksum.getValue() == expectedChecksum ? record : null;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  /** Lists the segments in the given directory, ordered by their first sequence number. */
+  private static List<Path> listSegments(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+          .sorted()
+          .toList();
+    }
+  }
+
+  /** Returns the sequence number of the first record in the given segment. */
+  private static long firstSequence(Path segment) {
+    final String name = segment.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /** Creates a new segment, whose first record will have the given sequence number. */
+  private static FileChannel openSegment(Path directory, long firstSequence) throws IOException {
+    return FileChannel.open(
+        directory.resolve(String.format("%020d", firstSequence) + SEGMENT_SUFFIX),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+}
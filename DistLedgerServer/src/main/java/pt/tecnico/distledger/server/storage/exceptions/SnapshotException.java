@@ -0,0 +1,12 @@
+package pt.tecnico.distledger.server.storage.exceptions;
+
+/** Represents an exception thrown when a snapshot can't be read or written. */
+public class SnapshotException extends RuntimeException {
+  public SnapshotException(String message) {
+    super("Snapshot failure: " + message);
+  }
+
+  public SnapshotException(Exception cause) {
+    super("Snapshot failure: " + cause.getMessage(), cause);
+  }
+}
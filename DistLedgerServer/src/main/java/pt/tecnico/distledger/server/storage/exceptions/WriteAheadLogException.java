@@ -0,0 +1,8 @@
+package pt.tecnico.distledger.server.storage.exceptions;
+
+/** Represents an exception thrown when the write-ahead log can't be read or written. */
+public class WriteAheadLogException extends RuntimeException {
+  public WriteAheadLogException(Exception cause) {
+    super("Write-ahead log failure: " + cause.getMessage(), cause);
+  }
+}
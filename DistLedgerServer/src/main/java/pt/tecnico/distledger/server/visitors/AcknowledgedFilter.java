@@ -0,0 +1,49 @@
+package pt.tecnico.distledger.server.visitors;
+
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+
+/**
+ * Forwards to another visitor only the operations which a replica hasn't acknowledged yet, i.e.,
+ * the ones whose sequence number is ahead of the replica's timestamp for their origin replica.
+ */
+public class AcknowledgedFilter implements OperationVisitor {
+  private final OperationVisitor visitor;
+  private final VectorClock acknowledged;
+
+  /**
+   * Creates a new AcknowledgedFilter.
+   *
+   * @param visitor the visitor the operations which weren't acknowledged are forwarded to.
+   * @param acknowledged the replica timestamp acknowledged by the replica.
+   */
+  public AcknowledgedFilter(OperationVisitor visitor, VectorClock acknowledged) {
+    this.visitor = visitor;
+    this.acknowledged = acknowledged;
+  }
+
+  @Override
+  public void visit(CreateOp op) {
+    if (!this.isAcknowledged(op)) {
+      this.visitor.visit(op);
+    }
+  }
+
+  @Override
+  public void visit(TransferOp op) {
+    if (!this.isAcknowledged(op)) {
+      this.visitor.visit(op);
+    }
+  }
+
+  private boolean isAcknowledged(Operation op) {
+    return isAcknowledged(op, this.acknowledged);
+  }
+
+  /** Returns whether a replica which acknowledged the given timestamp holds the operation. */
+  public static boolean isAcknowledged(Operation op, VectorClock acknowledged) {
+    return op.getSequence() <= acknowledged.get(op.getReplicaId());
+  }
+}
@@ -0,0 +1,58 @@
+package pt.tecnico.distledger.server.visitors;
+
+import java.util.Set;
+import pt.tecnico.distledger.server.domain.LedgerDigest;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+
+/**
+ * Forwards to another visitor only the operations which a replica may not hold, according to a
+ * comparison of a copy of this replica's digest with the replica's digest: the ones in the leaves
+ * which differed, and the ones in leaves which changed since the copy was taken, as they weren't
+ * compared.
+ */
+public class DigestFilter implements OperationVisitor {
+  private final OperationVisitor visitor;
+  private final LedgerDigest digest;
+  private final LedgerDigest compared;
+  private final Set<LedgerDigest.Node> differing;
+
+  /**
+   * Creates a new DigestFilter.
+   *
+   * @param visitor the visitor the operations the replica may not hold are forwarded to.
+   * @param digest the digest of this replica.
+   * @param compared the copy of the digest which was compared.
+   * @param differing the leaves of the copy which differed from the replica's digest.
+   */
+  public DigestFilter(
+      OperationVisitor visitor,
+      LedgerDigest digest,
+      LedgerDigest compared,
+      Set<LedgerDigest.Node> differing) {
+    this.visitor = visitor;
+    this.digest = digest;
+    this.compared = compared;
+    this.differing = differing;
+  }
+
+  @Override
+  public void visit(CreateOp op) {
+    if (this.mayBeMissing(op)) {
+      this.visitor.visit(op);
+    }
+  }
+
+  @Override
+  public void visit(TransferOp op) {
+    if (this.mayBeMissing(op)) {
+      this.visitor.visit(op);
+    }
+  }
+
+  private boolean mayBeMissing(Operation op) {
+    final LedgerDigest.Node leaf = this.compared.leaf(op);
+    return this.differing.contains(leaf) || !leaf.equals(this.digest.leaf(op));
+  }
+}
@@ -7,7 +7,13 @@ import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.OperationType;
 import pt.tecnico.distledger.server.domain.operation.CreateOp;
 import pt.tecnico.distledger.server.domain.operation.TransferOp;
 
-/** Generates a LedgerState by visiting operations. */
+/**
+ * Generates a LedgerState by visiting operations.
+ *
+ * <p>Stable operations never change, apart from being marked as failed when they're executed, so
+ * their Proto form is cached in them once encoded, and reused for as long as it matches their
+ * flags, instead of being encoded again for each gossip round or ledger state request.
+ */
 public class LedgerStateGenerator implements OperationVisitor {
   private final LedgerState.Builder builder;
 
@@ -21,31 +27,64 @@ public class LedgerStateGenerator implements OperationVisitor {
 
   @Override
   public void visit(CreateOp op) {
-    this.builder.addLedger(
-        Operation.newBuilder()
-            .setType(OperationType.OP_CREATE_ACCOUNT)
-            .setUserId(op.getUserId())
-            .setPrevTS(ProtoUtils.toProto(op.getPrevTimeStamp()))
-            .setStable(op.isStable())
-            .setFailed(op.hasFailed())
-            .setReplicaTS(ProtoUtils.toProto(op.getReplicaTimeStamp()))
-            .setReplicaId(op.getReplicaId())
-            .build());
+    // The flags are read once, so that the cached form matches the flags it was encoded with
+    final boolean stable = op.isStable();
+    final boolean failed = op.hasFailed();
+    Operation encoded = cached(op, stable, failed);
+    if (encoded == null) {
+      encoded =
+          Operation.newBuilder()
+              .setType(OperationType.OP_CREATE_ACCOUNT)
+              .setUserId(op.getUserId())
+              .setPrevTS(ProtoUtils.toProto(op.getPrevTimeStamp()))
+              .setStable(stable)
+              .setFailed(failed)
+              .setReplicaId(op.getReplicaId())
+              .setSequence(op.getSequence())
+              .build();
+      cache(op, encoded);
+    }
+    this.builder.addLedger(encoded);
   }
 
   @Override
   public void visit(TransferOp op) {
-    this.builder.addLedger(
-        Operation.newBuilder()
-            .setType(OperationType.OP_TRANSFER_TO)
-            .setUserId(op.getUserId())
-            .setDestUserId(op.getDestUserId())
-            .setAmount(op.getAmount())
-            .setPrevTS(ProtoUtils.toProto(op.getPrevTimeStamp()))
-            .setStable(op.isStable())
-            .setFailed(op.hasFailed())
-            .setReplicaTS(ProtoUtils.toProto(op.getReplicaTimeStamp()))
-            .setReplicaId(op.getReplicaId())
-            .build());
+    // The flags are read once, so that the cached form matches the flags it was encoded with
+    final boolean stable = op.isStable();
+    final boolean failed = op.hasFailed();
+    Operation encoded = cached(op, stable, failed);
+    if (encoded == null) {
+      encoded =
+          Operation.newBuilder()
+              .setType(OperationType.OP_TRANSFER_TO)
+              .setUserId(op.getUserId())
+              .setDestUserId(op.getDestUserId())
+              .setAmount(op.getAmount())
+              .setPrevTS(ProtoUtils.toProto(op.getPrevTimeStamp()))
+              .setStable(stable)
+              .setFailed(failed)
+              .setReplicaId(op.getReplicaId())
+              .setSequence(op.getSequence())
+              .build();
+      cache(op, encoded);
+    }
+    this.builder.addLedger(encoded);
+  }
+
+  /** Returns the cached Proto form of an operation, if it matches the given flags. */
+  private static Operation cached(
+      pt.tecnico.distledger.server.domain.operation.Operation op, boolean stable, boolean failed) {
+    final Operation encoded = op.getEncoded();
+    return encoded != null && encoded.getStable() == stable && encoded.getFailed() == failed
+        ? encoded
+        : null;
+  }
+
+  /** Caches the Proto form of an operation, if it's stable, as unstable ones will change. */
+  private static void cache(
+      pt.tecnico.distledger.server.domain.operation.Operation op, Operation encoded) {
+    if (encoded.getStable()) {
+      op.setEncoded(encoded);
+    }
   }
 }
@@ -0,0 +1,30 @@
+package pt.tecnico.distledger.server.visitors;
+
+import java.util.ArrayList;
+import java.util.List;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+
+/**
+ * Collects the operations it visits, in order, so that they may be encoded later, in parts, with a
+ * {@link LedgerStateGenerator}.
+ */
+public class OperationCollector implements OperationVisitor {
+  private final List<Operation> operations = new ArrayList<>();
+
+  @Override
+  public void visit(CreateOp op) {
+    this.operations.add(op);
+  }
+
+  @Override
+  public void visit(TransferOp op) {
+    this.operations.add(op);
+  }
+
+  /** Returns the operations visited so far, in order. */
+  public List<Operation> getOperations() {
+    return this.operations;
+  }
+}
@@ -1,7 +1,8 @@
 package pt.tecnico.distledger.server.visitors;
 
 import pt.tecnico.distledger.common.Logger;
-import pt.tecnico.distledger.server.domain.Account;
+import pt.tecnico.distledger.server.domain.AccountIds;
+import pt.tecnico.distledger.server.domain.AccountTable;
 import pt.tecnico.distledger.server.domain.ServerState;
 import pt.tecnico.distledger.server.domain.exceptions.AccountAlreadyExistsException;
 import pt.tecnico.distledger.server.domain.exceptions.NotEnoughBalanceException;
@@ -27,54 +28,44 @@ public class OperationExecutor implements OperationVisitor {
 
   @Override
   public void visit(CreateOp op) {
-    Account old = this.state.getAccounts().putIfAbsent(op.getUserId(), new Account());
-    if (old != null) {
+    // The ID is only interned once its account is created, so that requests naming accounts which
+    // don't exist never take a handle
+    if (!this.state.getAccounts().create(AccountIds.intern(op.getUserId()), 0)) {
       throw new AccountAlreadyExistsException(op.getUserId());
     }
 
-    Logger.debug("Created account for " + op.getUserId());
+    Logger.debug(() -> "Created account for " + op.getUserId());
   }
 
   @Override
   public void visit(TransferOp op) {
-    // Get the accounts, and do an initial check to see if they exist
-    final Account fromAccount = this.state.getAccounts().get(op.getUserId());
-    if (fromAccount == null) {
+    // Accounts are addressed by the handles the operation found for their IDs, so no ID is hashed
+    // here once both exist. An ID without a handle has no account.
+    final AccountTable accounts = this.state.getAccounts();
+
+    // Do an initial check to see if the accounts exist. Accounts are never removed, so they still
+    // exist when the transfer is made.
+    if (!accounts.contains(op.getUserHandle())) {
       throw new UnknownAccountException(op.getUserId());
     }
 
-    final Account destAccount = this.state.getAccounts().get(op.getDestUserId());
-    if (destAccount == null) {
+    if (!accounts.contains(op.getDestUserHandle())) {
       throw new UnknownAccountException(op.getDestUserId());
     }
 
-    // Safety: since both accounts are locked, inside the sync block we can check safely if they
-    // exist, and if they do, if there is enough balance, and, ultimately, transfer the amount
-    // without worrying about other operations accessing the accounts in the meantime
-    //
-    // Liveness: we lock the accounts in lexicographical order, otherwise a deadlock could occur
-    // when two or more symmetric (cyclic) transfers are executed in parallel - one thread could be
-    // waiting for the other to release the lock, while the other is waiting for the first to
-    // release the lock
-    //
-    // Liveness: accounts never transfer to themselves, which is checked before the sync block, so
-    // no deadlock can occur by locking the same account twice (basically a special case of the
-    // previous point)
-    final int order = op.getUserId().compareTo(op.getDestUserId());
-    synchronized (order > 0 ? fromAccount : destAccount) {
-      synchronized (order > 0 ? destAccount : fromAccount) {
-        // Check if the account has enough balance
-        if (fromAccount.getBalance() < op.getAmount()) {
-          throw new NotEnoughBalanceException(op.getUserId(), op.getAmount());
-        }
-
-        // Transfer the balance
-        fromAccount.setBalance(fromAccount.getBalance() - op.getAmount());
-        destAccount.setBalance(destAccount.getBalance() + op.getAmount());
-      }
+    // Safety: the table locks both accounts while checking if there is enough balance and
+    // transferring the amount, so no other operation accesses them in the meantime
+    if (!accounts.transfer(op.getUserHandle(), op.getDestUserHandle(), op.getAmount())) {
+      throw new NotEnoughBalanceException(op.getUserId(), op.getAmount());
     }
 
     Logger.debug(
-        "Transferred " + op.getAmount() + " from " + op.getUserId() + " to " + op.getDestUserId());
+        () ->
+            "Transferred "
+                + op.getAmount()
+                + " from "
+                + op.getUserId()
+                + " to "
+                + op.getDestUserId());
   }
 }
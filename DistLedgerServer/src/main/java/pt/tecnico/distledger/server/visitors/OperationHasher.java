@@ -0,0 +1,77 @@
+package pt.tecnico.distledger.server.visitors;
+
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+
+/**
+ * Computes a 64-bit hash of the operations it visits, from the fields which are the same in every
+ * replica holding them. Whether an operation is stable or failed is local to each replica, so it
+ * isn't hashed.
+ */
+public class OperationHasher implements OperationVisitor {
+  private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private long hash = 0;
+
+  /** Returns the hash of the given operation. */
+  public static long hash(Operation op) {
+    final OperationHasher hasher = new OperationHasher();
+    op.accept(hasher);
+    return finish(hasher.hash);
+  }
+
+  @Override
+  public void visit(CreateOp op) {
+    this.add(1);
+    this.add(op.getUserId());
+    this.add(op);
+  }
+
+  @Override
+  public void visit(TransferOp op) {
+    this.add(2);
+    this.add(op.getUserId());
+    this.add(op.getDestUserId());
+    this.add(op.getAmount());
+    this.add(op);
+  }
+
+  private void add(Operation op) {
+    this.add(op.getReplicaId());
+    this.add(op.getSequence());
+    this.add(op.getPrevTimeStamp());
+  }
+
+  /** Adds the replicas of a clock with a positive timestamp, and their timestamps. */
+  private void add(VectorClock clock) {
+    this.add(clock.entries());
+    for (int i = 0; i < clock.entries(); i++) {
+      this.add(clock.replica(i));
+      this.add(clock.timeStamp(i));
+    }
+  }
+
+  private void add(String value) {
+    this.add(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      this.add(value.charAt(i));
+    }
+  }
+
+  private void add(int value) {
+    this.hash = (this.hash ^ value) * MULTIPLIER;
+    this.hash ^= this.hash >>> 29;
+  }
+
+  /** Mixes the bits of the hash, so that similar operations have unrelated hashes. */
+  private static long finish(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,152 @@
+package pt.tecnico.distledger.server.visitors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.common.grpc.ProtoUtils;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.OperationType;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.PackedLedgerState;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+
+/**
+ * Generates a PackedLedgerState by visiting operations.
+ *
+ * <p>Operations in a ledger are mostly in causal order, so the previous timestamp of each operation
+ * differs in few entries from the timestamp of the operation before it, which are stored sparsely,
+ * and the operations of each origin replica mostly have consecutive sequence numbers. Whether an
+ * operation is stable isn't stored, as it's local to each replica.
+ */
+public class PackedLedgerStateGenerator implements OperationVisitor {
+  private final List<Operation> operations = new ArrayList<>();
+  private final Map<String, Integer> users = new HashMap<>();
+  private final PackedLedgerState.Builder builder = PackedLedgerState.newBuilder();
+
+  /**
+   * Builds the packed ledger state of the operations visited so far, in the order they were
+   * visited.
+   *
+   * @return the packed ledger state.
+   */
+  public PackedLedgerState build() {
+    final VectorClock base = base(this.operations);
+    this.builder.setBase(ProtoUtils.toProto(base));
+
+    VectorClock reference = base;
+    final Map<Integer, Integer> sequences = new HashMap<>();
+    for (Operation op : this.operations) {
+      addDifferences(op.getPrevTimeStamp(), reference, this.builder::addPrevTS);
+      final Integer previous = sequences.put(op.getReplicaId(), op.getSequence());
+      this.builder.addSequences(op.getSequence() - (previous == null ? 0 : previous));
+      reference = op.getTimeStamp();
+    }
+
+    return this.builder.build();
+  }
+
+  @Override
+  public void visit(CreateOp op) {
+    this.builder
+        .addTypes(OperationType.OP_CREATE_ACCOUNT)
+        .addUserIds(this.user(op.getUserId()))
+        .addFailed(op.hasFailed())
+        .addReplicaIds(op.getReplicaId());
+    this.operations.add(op);
+  }
+
+  @Override
+  public void visit(TransferOp op) {
+    this.builder
+        .addTypes(OperationType.OP_TRANSFER_TO)
+        .addUserIds(this.user(op.getUserId()))
+        .addDestUserIds(this.user(op.getDestUserId()))
+        .addAmounts(op.getAmount())
+        .addFailed(op.hasFailed())
+        .addReplicaIds(op.getReplicaId());
+    this.operations.add(op);
+  }
+
+  /** Returns the index of the given user ID in the dictionary, adding it if it's new. */
+  private int user(String userId) {
+    return this.users.computeIfAbsent(
+        userId,
+        id -> {
+          this.builder.addUsers(id);
+          return this.users.size();
+        });
+  }
+
+  /** Returns the lowest value of each entry across the previous timestamps of the operations. */
+  private static VectorClock base(List<Operation> operations) {
+    if (operations.isEmpty()) {
+      return new VectorClock();
+    }
+
+    // Only the replicas with an entry in the first timestamp may have a positive lowest value
+    final VectorClock first = operations.get(0).getPrevTimeStamp();
+    final int[] base = new int[first.entries()];
+    for (int i = 0; i < base.length; i++) {
+      base[i] = first.timeStamp(i);
+    }
+
+    for (Operation op : operations) {
+      for (int i = 0; i < base.length; i++) {
+        base[i] = Math.min(base[i], op.getPrevTimeStamp().get(first.replica(i)));
+      }
+    }
+
+    final VectorClock clock = new VectorClock();
+    for (int i = 0; i < base.length; i++) {
+      clock.set(first.replica(i), base[i]);
+    }
+    return clock;
+  }
+
+  /**
+   * Adds to a column the differences between a timestamp and a reference timestamp, as described in
+   * the PackedLedgerState message: densely, or as (gap, difference) pairs if that's shorter.
+   */
+  private static void addDifferences(VectorClock clock, VectorClock reference, IntConsumer column) {
+    // Walk the entries of both clocks in order of replicas, collecting the ones which differ
+    final int[] replicas = new int[clock.entries() + reference.entries()];
+    final int[] differences = new int[replicas.length];
+    int count = 0;
+    for (int i = 0, j = 0; i < clock.entries() || j < reference.entries(); ) {
+      final int replica =
+          j == reference.entries()
+                  || (i < clock.entries() && clock.replica(i) < reference.replica(j))
+              ? clock.replica(i)
+              : reference.replica(j);
+      final int timeStamp =
+          i < clock.entries() && clock.replica(i) == replica ? clock.timeStamp(i++) : 0;
+      final int referenceTimeStamp =
+          j < reference.entries() && reference.replica(j) == replica ? reference.timeStamp(j++) : 0;
+
+      if (timeStamp != referenceTimeStamp) {
+        replicas[count] = replica;
+        differences[count] = timeStamp - referenceTimeStamp;
+        count++;
+      }
+    }
+
+    final int dense = count == 0 ? 0 : replicas[count - 1] + 1;
+    if (2 * count < dense) {
+      column.accept(count << 1 | 1);
+      int previous = -1;
+      for (int k = 0; k < count; k++) {
+        column.accept(replicas[k] - previous - 1);
+        column.accept(differences[k]);
+        previous = replicas[k];
+      }
+    } else {
+      column.accept(dense << 1);
+      for (int replica = 0, k = 0; replica < dense; replica++) {
+        column.accept(replicas[k] == replica ? differences[k++] : 0);
+      }
+    }
+  }
+}
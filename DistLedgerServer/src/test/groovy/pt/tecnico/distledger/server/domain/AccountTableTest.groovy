@@ -0,0 +1,109 @@
+package pt.tecnico.distledger.server.domain
+
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import pt.tecnico.distledger.server.domain.exceptions.UnknownAccountException
+
+import spock.lang.Specification
+import spock.lang.Timeout
+
+class AccountTableTest extends Specification {
+    def "account IDs are interned to stable handles"() {
+        when: "an ID is interned"
+        def handle = AccountIds.intern("interned-Alice")
+
+        then: "it keeps the same handle, which maps back to the ID"
+        AccountIds.intern("interned-Alice") == handle
+        AccountIds.lookup("interned-Alice") == handle
+        AccountIds.name(handle) == "interned-Alice"
+
+        and: "IDs which were never interned have no handle"
+        AccountIds.lookup("interned-Nobody") == -1
+    }
+
+    @Timeout(30)
+    def "concurrent interning assigns one handle per ID"() {
+        given: "threads interning overlapping sets of IDs"
+        def pool = Executors.newFixedThreadPool(4)
+        def before = AccountIds.count()
+        def futures = (1..4).collect { t ->
+            pool.submit({ (1..20_000).collect { AccountIds.intern("concurrent-" + ((it * t) % 20_000)) } } as java.util.concurrent.Callable)
+        }
+
+        when: "all of them finish"
+        def handles = futures*.get()
+        pool.shutdown()
+
+        then: "each ID got exactly one handle"
+        AccountIds.count() - before == 20_000
+        (0..<20_000).every { AccountIds.name(AccountIds.lookup("concurrent-" + it)) == "concurrent-" + it }
+        handles.every { it.every { h -> AccountIds.name(h).startsWith("concurrent-") } }
+    }
+
+    def "accounts are created once and hold their balances"() {
+        given: "an empty table"
+        def table = new AccountTable()
+        def alice = AccountIds.intern("table-Alice")
+        def bob = AccountIds.intern("table-Bob")
+
+        expect: "accounts are only created once"
+        table.create(alice, 10)
+        !table.create(alice, 20)
+        table.contains(alice)
+        !table.contains(bob)
+        table.size() == 1
+
+        when: "balance is transferred"
+        table.create(bob, 0)
+
+        then: "it is only moved if there is enough"
+        table.transfer(alice, bob, 7)
+        !table.transfer(alice, bob, 7)
+        table.getBalances() == ["table-Alice": 3, "table-Bob": 7]
+
+        and: "copies of its chunks hold the same balances, and aren't changed by later transfers"
+        def chunks = table.copyChunks()
+        table.transfer(bob, alice, 1)
+        AccountTable.toBalances(chunks) == ["table-Alice": 3, "table-Bob": 7]
+
+        when: "the balance of an unknown account is read"
+        table.getBalance("table-Nobody")
+
+        then: "it fails"
+        thrown(UnknownAccountException)
+    }
+
+    @Timeout(60)
+    def "concurrent transfers preserve the total balance"() {
+        given: "a table with accounts spread across many chunks and stripes"
+        def table = new AccountTable()
+        def handles = (1..10_000).collect { AccountIds.intern("stripes-" + it) }
+        handles.each { table.create(it, 100) }
+
+        when: "threads transfer between random pairs, including symmetric ones"
+        def pool = Executors.newFixedThreadPool(8)
+        def done = new AtomicInteger()
+        (1..8).each { t ->
+            pool.submit {
+                def random = new Random(t)
+                (1..50_000).each {
+                    def from = handles[random.nextInt(handles.size())]
+                    def to = handles[random.nextInt(handles.size())]
+                    if (from != to) {
+                        table.transfer(from, to, 1 + random.nextInt(5))
+                    }
+                }
+                done.incrementAndGet()
+            }
+        }
+        pool.shutdown()
+        pool.awaitTermination(50, TimeUnit.SECONDS)
+
+        then: "no deadlock occurred and no balance was lost"
+        done.get() == 8
+        table.getBalances().values().sum(0L) == 100L * handles.size()
+        table.getBalances().values().every { it >= 0 }
+    }
+}
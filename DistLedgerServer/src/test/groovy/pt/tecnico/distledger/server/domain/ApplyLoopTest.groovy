@@ -0,0 +1,167 @@
+package pt.tecnico.distledger.server.domain
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import java.util.function.IntFunction
+
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.server.domain.exceptions.ServerUnavailableException
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.Operation
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+
+import spock.lang.Specification
+import spock.lang.Timeout
+
+class ApplyLoopTest extends Specification {
+    def create(String userId) {
+        { int sequence -> new CreateOp(userId, new VectorClock(), sequence, 0) } as IntFunction<Operation>
+    }
+
+    def "ring buffer hands elements over in order, until it's full"() {
+        given: "a ring buffer whose capacity is rounded up to 4"
+        def buffer = new MpscRingBuffer<Integer>(3)
+
+        expect: "it takes 4 elements"
+        (1..4).every { buffer.offer(it) }
+        !buffer.offer(5)
+        buffer.size() == 4
+
+        and: "they are polled in order"
+        buffer.peek() == 1
+        buffer.poll() == 1
+
+        and: "a polled slot is reused"
+        buffer.offer(5)
+        (2..5).collect { buffer.poll() } == [2, 3, 4, 5]
+        buffer.poll() == null
+        buffer.size() == 0
+    }
+
+    @Timeout(30)
+    def "ring buffer hands over every element offered concurrently"() {
+        given: "a small ring buffer"
+        def buffer = new MpscRingBuffer<Integer>(64)
+
+        when: "several threads offer elements while one polls them"
+        def producers = (0..<4).collect { t ->
+            CompletableFuture.runAsync({
+                (0..<2_500).each { i ->
+                    while (!buffer.offer(t * 2_500 + i)) {
+                        Thread.yield()
+                    }
+                }
+            }, ForkJoinPool.commonPool())
+        }
+        def polled = []
+        while (polled.size() < 10_000) {
+            def element = buffer.poll()
+            if (element != null) {
+                polled.add(element)
+            } else {
+                Thread.yield()
+            }
+        }
+        CompletableFuture.allOf(producers as CompletableFuture[]).join()
+
+        then: "every element was polled once, in the order each thread offered them"
+        polled as Set == (0..<10_000) as Set
+        (0..<4).every { t ->
+            def offered = polled.findAll { it.intdiv(2_500) == t }
+            offered == offered.sort(false)
+        }
+    }
+
+    def "direct loop applies requests before returning"() {
+        given: "a direct loop"
+        def state = new ServerState(0)
+        def loop = ApplyLoop.direct(state)
+
+        when: "client operations are written"
+        def written = loop.write([create("Alice"), create("Bob")])
+
+        then: "they were added and executed, with consecutive sequence numbers"
+        written.isDone()
+        written.get().collect { it.getSequence() } == [1, 2]
+        state.getAccounts().size() == 3
+        state.getValueTimeStamp().get(0) == 2
+    }
+
+    @Timeout(30)
+    def "loop applies requests from many threads on its own"() {
+        given: "a loop with a small queue"
+        def state = new ServerState(0)
+        def loop = ApplyLoop.start(state, 8)
+
+        when: "many threads write operations concurrently"
+        def written = (0..<2_000).collect { i ->
+            CompletableFuture.supplyAsync({ loop.write([create("user" + i)]) }, ForkJoinPool.commonPool())
+        }.collect { it.join().get() }
+
+        then: "every operation was added once, with distinct sequence numbers"
+        written.collect { it[0].getSequence() } as Set == (1..2_000) as Set
+
+        and: "every operation was executed once its request completed"
+        state.getAccounts().size() == 2_001
+        state.getValueTimeStamp().get(0) == 2_000
+
+        cleanup:
+        loop.close()
+    }
+
+    @Timeout(30)
+    def "loop completes requests off the apply thread"() {
+        given: "a loop"
+        def loop = ApplyLoop.start(new ServerState(0), 16)
+
+        when: "an operation is written, and its response is built once it's added"
+        def thread = loop.write([create("Alice")]).thenApply { Thread.currentThread().getName() }.get()
+
+        then: "the response wasn't built by the apply thread"
+        thread != "apply-loop"
+
+        cleanup:
+        loop.close()
+    }
+
+    @Timeout(30)
+    def "loop applies gossip and client operations in order"() {
+        given: "a loop"
+        def state = new ServerState(0)
+        def loop = ApplyLoop.start(state, 16)
+
+        when: "an account is propagated by replica 1"
+        def propagated = loop.propagate(
+                [new CreateOp("Alice", new VectorClock(), 1, 1)], new VectorClock([0, 1] as int[]))
+
+        and: "a client then transfers from the broker to it, having seen it"
+        def prevTimeStamp = new VectorClock([0, 1] as int[])
+        def written = loop.write([
+                { int sequence -> new TransferOp("broker", "Alice", 10, prevTimeStamp, sequence, 0) } as IntFunction<Operation>
+        ])
+        written.get()
+        propagated.get()
+
+        then: "both operations were executed"
+        state.getReplicaTimeStamp().toList() == [1, 1]
+        state.getValueTimeStamp().toList() == [1, 1]
+        state.getAccounts().getBalance("Alice") == 10
+
+        cleanup:
+        loop.close()
+    }
+
+    def "closed loop rejects requests"() {
+        given: "a closed loop"
+        def loop = ApplyLoop.start(new ServerState(0), 16)
+        loop.close()
+
+        when: "an operation is written"
+        loop.write([create("Alice")]).get()
+
+        then: "it fails as the server is unavailable"
+        def e = thrown(ExecutionException)
+        e.getCause() instanceof ServerUnavailableException
+    }
+}
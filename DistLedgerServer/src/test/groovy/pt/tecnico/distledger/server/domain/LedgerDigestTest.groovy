@@ -0,0 +1,118 @@
+package pt.tecnico.distledger.server.domain
+
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+
+import spock.lang.Specification
+
+class LedgerDigestTest extends Specification {
+    /** Returns the operation of the given origin with the given sequence number. */
+    static def op(int origin, int sequence) {
+        return new TransferOp("broker", "user" + sequence, sequence, new VectorClock(), sequence, origin)
+    }
+
+    static def digest(List operations) {
+        def digest = new LedgerDigest()
+        operations.each { digest.add(it) }
+        return digest
+    }
+
+    def "digests of the same operations are equal, in whichever order they were added"() {
+        given: "operations of two origins"
+        def operations = (1..1000).collect { op(it % 2, it) }
+
+        when: "they're added in different orders"
+        def shuffled = new ArrayList(operations)
+        Collections.shuffle(shuffled, new Random(0))
+
+        then: "the roots are the same, covering every operation of each origin"
+        digest(operations).roots() == digest(shuffled).roots()
+        digest(operations).roots()*.count() == [500, 500]
+        digest(operations).roots()*.level() == [2, 2]
+    }
+
+    def "only the nodes above a missing operation differ"() {
+        given: "a digest of some operations, and one of all of them but one"
+        def operations = (1..5000).collect { op(0, it) }
+        def full = digest(operations)
+        def partial = digest(operations.findAll { it.getSequence() != 100 })
+
+        expect: "the nodes covering it differ, and the others are equal"
+        (0..3).every { level ->
+            def index = 100.intdiv(LedgerDigest.LEAF_SIZE * (int) Math.pow(LedgerDigest.FANOUT, level))
+            full.node(0, level, index) != partial.node(0, level, index) &&
+                    full.node(0, level, index + 1) == partial.node(0, level, index + 1)
+        }
+        full.leaf(operations[99]).count() == LedgerDigest.LEAF_SIZE
+        partial.leaf(operations[99]).count() == LedgerDigest.LEAF_SIZE - 1
+    }
+
+    def "operations with different fields hash differently"() {
+        expect:
+        digest([first]).roots() != digest([second]).roots()
+
+        where:
+        first                                          | second
+        op(0, 1)                                       | new TransferOp("broker", "user1", 2, new VectorClock(), 1, 0)
+        new CreateOp("Alice", new VectorClock(), 1, 0) | new CreateOp("Bob", new VectorClock(), 1, 0)
+        new CreateOp("Alice", new VectorClock(), 1, 0) | new CreateOp("Alice", new VectorClock([0, 1] as int[]), 1, 0)
+        new CreateOp("Alice", new VectorClock(), 1, 0) | new CreateOp("Alice", new VectorClock(), 2, 0)
+        new CreateOp("Alice", new VectorClock(), 1, 0) | new CreateOp("Alice", new VectorClock(), 1, 1)
+    }
+
+    def "hashes don't depend on trailing zeros, nor on local flags"() {
+        given: "two copies of an operation, one of which failed"
+        def first = new CreateOp("Alice", new VectorClock([0, 0] as int[]), 1, 0)
+        def second = new CreateOp("Alice", new VectorClock(), 1, 0)
+        second.setStable()
+        second.setFailed()
+
+        expect:
+        digest([first]).roots() == digest([second]).roots()
+    }
+
+    def "children and leaves skip empty nodes"() {
+        given: "operations in the first and last leaves under the root"
+        def digest = digest([op(0, 1), op(0, 2), op(0, LedgerDigest.LEAF_SIZE * LedgerDigest.FANOUT - 1)])
+        def root = digest.roots()[0]
+
+        expect:
+        root.level() == 1
+        digest.children(root)*.index() == [0, LedgerDigest.FANOUT - 1]
+        digest.children(root)*.count() == [2, 1]
+        digest.leaves(root) == digest.children(root)
+        digest.leaves(digest.children(root)[1]) == [digest.children(root)[1]]
+        digest.children(digest.children(root)[0]).isEmpty()
+        digest.node(1, 0, 0).count() == 0
+    }
+
+    def "copies aren't updated with the digest"() {
+        given: "a digest, and a copy of it"
+        def digest = digest([op(0, 1)])
+        def copy = digest.copy()
+
+        when: "an operation is added to the digest"
+        digest.add(op(0, 2))
+
+        then: "the copy is left as it was"
+        copy.roots()*.count() == [1]
+        digest.roots()*.count() == [2]
+    }
+
+    def "only positions within the tree are valid"() {
+        expect:
+        LedgerDigest.isValid(level, index) == valid
+
+        where:
+        level                   | index         | valid
+        0                       | 0             | true
+        0                       | (1 << 27) - 1 | true
+        0                       | 1 << 27       | false
+        LedgerDigest.HEIGHT     | 0             | true
+        LedgerDigest.HEIGHT     | 1             | false
+        LedgerDigest.HEIGHT + 1 | 0             | false
+        -1                      | 0             | false
+        1                       | -1            | false
+    }
+}
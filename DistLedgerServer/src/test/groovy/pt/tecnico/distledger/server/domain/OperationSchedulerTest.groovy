@@ -0,0 +1,94 @@
+package pt.tecnico.distledger.server.domain
+
+import java.util.concurrent.ForkJoinPool
+
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+import pt.tecnico.distledger.server.visitors.OperationExecutor
+
+import spock.lang.Specification
+
+class OperationSchedulerTest extends Specification {
+    def ts = new VectorClock()
+
+    def create(String userId) {
+        new CreateOp(userId, ts, 0, 0)
+    }
+
+    def transfer(String from, String to) {
+        new TransferOp(from, to, 1, ts, 0, 0)
+    }
+
+    def "operations are grouped by the accounts they touch"() {
+        given: "a batch where some operations share accounts"
+        def createAlice = create("Alice")
+        def createBob = create("Bob")
+        def aliceToCharlie = transfer("Alice", "Charlie")
+        def daveToBob = transfer("Dave", "Bob")
+        def createEve = create("Eve")
+        def charlieToDave = transfer("Charlie", "Dave")
+
+        when: "the batch is partitioned"
+        def groups = OperationScheduler.partition([createAlice, createBob, aliceToCharlie, daveToBob, createEve, charlieToDave])
+
+        then: "operations linked through shared accounts are in the same group, in ledger order"
+        groups == [[createAlice, createBob, aliceToCharlie, daveToBob, charlieToDave], [createEve]]
+
+        when: "the linking operation is not in the batch"
+        groups = OperationScheduler.partition([createAlice, createBob, aliceToCharlie, daveToBob, createEve])
+
+        then: "the groups are independent"
+        groups == [[createAlice, aliceToCharlie], [createBob, daveToBob], [createEve]]
+    }
+
+    def "conflicting operations are executed in ledger order"() {
+        given: "a scheduler with a parallel pool, recording the execution order"
+        def pool = new ForkJoinPool(4)
+        def executed = Collections.synchronizedList([])
+        def scheduler = new OperationScheduler(pool, { executed.add(it) })
+
+        and: "a batch of independent operations, interleaved with operations on a shared account"
+        def batch = (1..500).collect { it % 5 == 0 ? transfer("shared", "user" + it) : create("user" + it) }
+
+        when: "the batch is executed"
+        scheduler.execute(batch)
+
+        then: "every operation was executed once"
+        executed.size() == batch.size()
+        executed as Set == batch as Set
+
+        and: "the operations on the shared account kept their order"
+        executed.findAll { it.getUserId() == "shared" } == batch.findAll { it.getUserId() == "shared" }
+
+        cleanup:
+        pool.shutdown()
+    }
+
+    def "pools of any size reach the same balances"() {
+        given: "a batch of transfers between random pairs of funded accounts"
+        def accounts = 1000
+        def operations = 20_000
+        def random = new Random(42)
+        def batch = (1..operations).collect {
+            def from = random.nextInt(accounts)
+            def to = (from + 1 + random.nextInt(accounts - 1)) % accounts
+            transfer("user" + from, "user" + to)
+        }
+
+        when: "the batch is executed with pools of increasing size"
+        def results = [1, 2, 4, 8].collect { parallelism ->
+            def state = new ServerState(0)
+            (0..<accounts).each { state.getAccounts().create(AccountIds.intern("user" + it), 1000) }
+            def executor = new OperationExecutor(state)
+            def pool = new ForkJoinPool(parallelism)
+            new OperationScheduler(pool, { executor.execute(it) }).execute(batch)
+            pool.shutdown()
+            state.getAccounts().getBalances()
+        }
+
+        then: "every run preserved the total balance, and ended with the same balances"
+        results.every { it.values().sum(0L) == accounts * 1000L + 1000 }
+        results.every { it == results.first() }
+    }
+}
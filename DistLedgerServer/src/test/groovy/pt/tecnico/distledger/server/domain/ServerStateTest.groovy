@@ -1,6 +1,18 @@
 package pt.tecnico.distledger.server.domain
 
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.server.domain.exceptions.UnknownAccountException
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+import pt.tecnico.distledger.server.storage.OperationLog
+import pt.tecnico.distledger.server.visitors.OperationCollector
+import pt.tecnico.distledger.server.visitors.OperationExecutor
+
 import spock.lang.Specification
+import spock.lang.Timeout
 
 class ServerStateTest extends Specification {
     def "state has broker account with 1000"() {
@@ -11,6 +23,334 @@ class ServerStateTest extends Specification {
         state.getAccounts().size() == 1        
 
         and: "the broker account has the correct balance"
-        state.getAccounts().get("broker").getBalance() == 1000
+        state.getAccounts().getBalance("broker") == 1000
+    }
+
+    def "pending operations are stabilized in causal order"() {
+        given: "a server state"
+        def state = new ServerState(0)
+
+        and: "operations from replica 1, each depending on the previous one, received in reverse order"
+        def operations = (3..1).collect {
+            new CreateOp("user" + it, new VectorClock([0, it - 1] as int[]), it, 1)
+        }
+
+        when: "the operations are added to the ledger"
+        def anyStabilized = state.addToLedger(operations, new VectorClock([0, 3] as int[]))
+
+        and: "the state is stabilized"
+        state.stabilize()
+
+        then: "the first operation was immediately stabilized"
+        anyStabilized
+
+        and: "the ledger is ordered by stabilization"
+        state.ledger.collect { it.getUserId() } == ["user1", "user2", "user3"]
+        state.ledger.every { it.isStable() && !it.hasFailed() }
+    }
+
+    @Timeout(30)
+    def "stabilizes a large backlog of pending operations"() {
+        given: "a server state"
+        def state = new ServerState(0)
+
+        and: "a backlog of operations from replica 1, each depending on the previous one"
+        def n = 100_000
+        def operations = (n..2).collect {
+            new CreateOp("user" + it, new VectorClock([0, it - 1] as int[]), it, 1)
+        }
+        state.addToLedger(operations, new VectorClock([0, n] as int[]))
+
+        when: "the first operation is received and the state is stabilized"
+        state.addToLedger(new CreateOp("user1", new VectorClock(), 1, 1))
+        state.stabilize()
+
+        then: "every operation is stable"
+        state.ledger.size() == n
+        state.ledger.every { it.isStable() && !it.hasFailed() }
+        state.getAccounts().size() == n + 1
+
+        and: "the value timestamp reflects every operation"
+        state.getAccountBalance("user" + n, new VectorClock([0, n] as int[])).value() == 0
+    }
+
+    def "the lowest timestamp acknowledged by every replica is tracked"() {
+        given: "a server state, which knows the timestamps of replicas 1 and 2"
+        def state = new ServerState(0)
+        state.acknowledge(1, new VectorClock([2, 1] as int[]))
+        state.acknowledge(2, new VectorClock([3] as int[]))
+
+        expect:
+        state.getAcknowledgedByAll([1, 2]).toList() == [2]
+        state.getAcknowledgedByAll([1]).toList() == [2, 1]
+        state.getAcknowledgedByAll([1, 3]).toList().every { it == 0 }
+        state.getAcknowledgedByAll([]).size() == 0
+    }
+
+    def "sequences generated concurrently are distinct and consecutive"() {
+        given: "a server state"
+        def state = new ServerState(0)
+
+        when: "many threads generate sequences at once"
+        def sequences = (1..8).collect { thread ->
+            ForkJoinPool.commonPool().submit({
+                (1..1000).collect { state.generateSequences(thread % 2 + 1) }
+            } as java.util.concurrent.Callable)
+        }.collectMany { it.get() }
+
+        then: "no sequence was handed out twice, and the replica timestamp counts all of them"
+        sequences.toSet().size() == sequences.size()
+        state.getReplicaTimeStamp().get(0) == 12000
+    }
+
+    def "only the retired replicas whose operations were executed are retired"() {
+        given: "a server state which executed 2 operations of replica 1"
+        def state = new ServerState(0)
+        state.addToLedger((1..2).collect {
+            new CreateOp("user" + it, new VectorClock([0, it - 1] as int[]), it, 1)
+        }, new VectorClock([0, 2] as int[]))
+        state.stabilize()
+
+        when: "replicas 1 and 3 are retired, but none of the operations of replica 3 was executed"
+        def retired = state.retire(1, new VectorClock([0, 2, 0, 3] as int[]))
+
+        then: "only replica 1 is retired, and the epoch isn't adopted yet"
+        retired == 1
+        state.getRetiredEpoch() == 0
+        state.withoutRetired(new VectorClock([0, 2, 1, 3] as int[])).toList() == [0, 0, 1, 3]
+
+        and: "the value timestamp keeps its entry"
+        state.getValueTimeStamp().toList() == [0, 2]
+
+        when: "only replica 1 is retired, as of a later epoch"
+        retired = state.retire(2, new VectorClock([0, 2] as int[]))
+
+        then: "the epoch is adopted"
+        retired == 0
+        state.getRetiredEpoch() == 2
+    }
+
+    def "truncating the ledger drops the stable operations every replica holds, keeping ledger indices"() {
+        given: "a server state with three stable operations, and one waiting for an operation of replica 2"
+        def state = new ServerState(0)
+        def firstSequence = state.generateSequences(3)
+        state.addToLedger(["Alice", "Bob", "Carol"].withIndex().collect { userId, i ->
+            new CreateOp(userId, new VectorClock(), firstSequence + i, 0)
+        })
+        state.addToLedger([new CreateOp("Dave", new VectorClock([0, 0, 1] as int[]), 1, 1)],
+                new VectorClock([0, 1] as int[]))
+
+        when: "the ledger is truncated to the first two operations, which every replica holds"
+        def dropped = state.truncateLedger(new VectorClock([2, 1] as int[]))
+
+        then: "only those are dropped, and ledger indices are kept"
+        dropped == 2
+        state.ledger*.getUserId() == ["Carol", "Dave"]
+        state.getLedgerSize() == 4
+        def collector = new OperationCollector()
+        state.visitLedger(collector, 2).value() == Optional.of(2)
+        collector.getOperations()*.getUserId() == ["Carol", "Dave"]
+
+        when: "the operation of replica 2 is received"
+        state.addToLedger([new CreateOp("Eve", new VectorClock(), 1, 2)],
+                new VectorClock([0, 0, 1] as int[]))
+        state.stabilize()
+
+        then: "the waiting operation is stabilized after it"
+        state.ledger*.getUserId() == ["Carol", "Eve", "Dave"]
+        state.ledger.every { it.isStable() }
+
+        when: "every replica holds every operation, and a snapshot is captured"
+        state.truncateLedger(new VectorClock([3, 1, 1] as int[]))
+        def snapshot = state.captureSnapshot()
+
+        then: "the ledger is empty, and the snapshot reflects every operation"
+        state.ledger.isEmpty()
+        state.getLedgerSize() == 5
+        snapshot.ledgerOffset() == 5
+        snapshot.balances().keySet() == ["broker", "Alice", "Bob", "Carol", "Dave", "Eve"] as Set
+    }
+
+    def "snapshots only keep the stable operations the live replicas with a cursor may lack"() {
+        given: "a server state with four stable operations"
+        def state = new ServerState(0)
+        def firstSequence = state.generateSequences(4)
+        state.addToLedger((0..<4).collect { new CreateOp("user" + it, new VectorClock(), firstSequence + it, 0) })
+
+        and: "three of them gossiped to replica 2, and one to replica 3, but none to replica 1"
+        state.getGossipCursors().set(2, 3)
+        state.getGossipCursors().set(3, 1)
+
+        expect: "before any gossip round, the operations replica 3 lacks are kept"
+        state.captureSnapshot().ledgerOffset() == 1
+
+        when: "the latest round only found replicas 1 and 2"
+        state.setPeers([1, 2] as Set)
+
+        then: "only the operations replica 2 lacks are kept"
+        def snapshot = state.captureSnapshot()
+        snapshot.ledgerOffset() == 3
+        snapshot.ledger()*.getUserId() == ["user3"]
+        snapshot.stableCount() == 1
+    }
+
+    def "balance reads wait on the clock entries they need"() {
+        given: "a server state"
+        def state = new ServerState(0)
+
+        when: "reads wait for operations from replicas 1 and 2"
+        def first = state.readBalance("broker", new VectorClock([0, 1] as int[]))
+        def both = state.readBalance("broker", new VectorClock([0, 1, 1] as int[]))
+
+        then: "no read is completed"
+        !first.isDone() && !both.isDone()
+        state.readers.size() == 2
+
+        when: "the operation from replica 1 is executed"
+        state.addToLedger(new CreateOp("Alice", new VectorClock(), 1, 1))
+
+        then: "only the read which needed it is completed"
+        first.get().value() == 1000
+        !both.isDone()
+
+        when: "the operation from replica 2 is executed"
+        state.addToLedger(new CreateOp("Bob", new VectorClock(), 1, 2))
+
+        then: "the other read is completed with the current timestamp"
+        both.get().timeStamp().toString() == "(0, 1, 1)"
+        state.readers.size() == 0
+    }
+
+    def "balance reads of unknown accounts fail once the replica catches up"() {
+        given: "a server state"
+        def state = new ServerState(0)
+
+        when: "a read waits for an operation which creates the account"
+        def read = state.readBalance("Alice", new VectorClock([0, 1] as int[]))
+
+        and: "another operation is executed instead"
+        state.addToLedger(new CreateOp("Bob", new VectorClock(), 1, 1))
+        read.get()
+
+        then: "the read fails"
+        def e = thrown(ExecutionException)
+        e.getCause() instanceof UnknownAccountException
+    }
+
+    def "only created accounts intern their IDs"() {
+        given: "a server state"
+        def state = new ServerState(0)
+
+        when: "an unknown account is read"
+        state.getAccountBalance("unknown-Reader", new VectorClock())
+
+        then: "the read fails"
+        thrown(UnknownAccountException)
+
+        when: "transfers name unknown accounts"
+        state.addToLedger(new TransferOp("broker", "unknown-Dest", 10, new VectorClock(), 1, 0))
+        state.addToLedger(new TransferOp("unknown-Source", "broker", 10, new VectorClock(), 2, 0))
+
+        then: "they fail, and none of the IDs was interned"
+        state.ledger.every { it.hasFailed() }
+        ["unknown-Reader", "unknown-Dest", "unknown-Source"].every { AccountIds.lookup(it) == -1 }
+
+        when: "an account is created, and receives a transfer"
+        state.addToLedger(new CreateOp("unknown-Dest", new VectorClock(), 3, 0))
+        state.addToLedger(new TransferOp("broker", "unknown-Dest", 10, new VectorClock(), 4, 0))
+
+        then: "its ID is interned, and the transfer is executed"
+        AccountIds.lookup("unknown-Dest") >= 0
+        state.getAccountBalance("unknown-Dest", new VectorClock()).value() == 10
+    }
+
+    /**
+     * Generates rounds of random operations from replicas 1 to 3, where each round depends on every
+     * operation of the previous one. The first round creates the accounts.
+     */
+    def randomOperations(Random random, int accounts, int rounds, int roundSize) {
+        def counters = new int[4]
+        def operations = []
+        def prevTimeStamp = new VectorClock()
+
+        def next = { int origin, Closure<Object> factory ->
+            counters[origin]++
+            operations << factory(new VectorClock(prevTimeStamp), counters[origin], origin)
+        }
+        def user = { "user" + random.nextInt(accounts + 10) }
+
+        (0..<accounts).each { n ->
+            next(1 + random.nextInt(3)) { prev, sequence, origin -> new CreateOp("user" + n, prev, sequence, origin) }
+        }
+        (1..50).each {
+            next(1 + random.nextInt(3)) { prev, sequence, origin -> new TransferOp("broker", "user" + random.nextInt(accounts), 1 + random.nextInt(40), prev, sequence, origin) }
+        }
+
+        (1..rounds).each {
+            prevTimeStamp = new VectorClock(counters.clone())
+            (1..roundSize).each {
+                if (random.nextInt(20) == 0) {
+                    next(1 + random.nextInt(3)) { prev, sequence, origin -> new CreateOp(user(), prev, sequence, origin) }
+                } else {
+                    def from = user()
+                    def to = user()
+                    while (to == from) {
+                        to = user()
+                    }
+                    next(1 + random.nextInt(3)) { prev, sequence, origin -> new TransferOp(from, to, 1 + random.nextInt(10), prev, sequence, origin) }
+                }
+            }
+        }
+
+        return [operations, new VectorClock(counters)]
+    }
+
+    def balances(ServerState state) {
+        state.getAccounts().getBalances()
+    }
+
+    @Timeout(60)
+    def "parallel execution matches a sequential replay of the ledger"() {
+        given: "a server state executing batches on a parallel pool"
+        def pool = new ForkJoinPool(4)
+        def state = new ServerState(0, OperationLog.NONE, pool)
+
+        and: "rounds of random operations"
+        def (operations, timeStamp) = randomOperations(new Random(seed), 1000, 10, 300)
+
+        when: "the operations are received and stabilized"
+        state.addToLedger(reversed ? operations.reverse() : operations, timeStamp)
+        state.stabilize()
+
+        then: "every operation is stable"
+        state.ledger.size() == operations.size()
+        state.ledger.every { it.isStable() }
+
+        when: "the ledger is replayed sequentially on a fresh state"
+        def replayed = new ServerState(1)
+        def executor = new OperationExecutor(replayed)
+        def failed = state.ledger.collect { op ->
+            try {
+                executor.execute(op)
+                return false
+            } catch (RuntimeException e) {
+                return true
+            }
+        }
+
+        then: "the replay reaches the same balances and fails the same operations"
+        balances(replayed) == balances(state)
+        failed == state.ledger.collect { it.hasFailed() }
+        failed.any() && !failed.every()
+
+        cleanup:
+        pool.shutdown()
+
+        where:
+        seed | reversed
+        1    | false
+        2    | false
+        3    | true
+        4    | true
     }
 }
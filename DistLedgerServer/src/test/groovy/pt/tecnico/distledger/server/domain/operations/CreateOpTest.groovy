@@ -20,21 +20,21 @@ class CreateOpTest extends Specification {
 
     def "create a new account"() {
         when: "a new account is created"
-        executor.execute(new CreateOp("Alice", ts, ts, 0))
+        executor.execute(new CreateOp("Alice", ts, 0, 0))
 
         then: "there are exactly two accounts"
         state.getAccounts().size() == 2
 
         and: "the new account has the correct balance"
-        state.getAccounts().get("Alice").getBalance() == 0
+        state.getAccounts().getBalance("Alice") == 0
     }
 
     def "create a duplicate account"() {
         given: "an account already created"
-        executor.execute(new CreateOp("Alice", ts, ts, 0))
+        executor.execute(new CreateOp("Alice", ts, 0, 0))
 
         when: "an account with the same name is created"
-        executor.execute(new CreateOp("Alice", ts, ts, 0))
+        executor.execute(new CreateOp("Alice", ts, 0, 0))
 
         then: "an exception is thrown"
         thrown(AccountAlreadyExistsException)
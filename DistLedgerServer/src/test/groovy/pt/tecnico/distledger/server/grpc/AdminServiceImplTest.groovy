@@ -88,7 +88,7 @@ class AdminServiceImplTest extends Specification {
                         .setUserId("Alice")
                         .setPrevTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
                         .setStable(true)
-                        .setReplicaTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
+                        .setSequence(1)
                         .build(),
                 Operation.newBuilder().setType(OperationType.OP_TRANSFER_TO)
                         .setUserId("broker")
@@ -96,7 +96,7 @@ class AdminServiceImplTest extends Specification {
                         .setAmount(100)
                         .setPrevTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
                         .setStable(true)
-                        .setReplicaTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
+                        .setSequence(2)
                         .build(),
                 Operation.newBuilder().setType(OperationType.OP_TRANSFER_TO)
                         .setUserId("Alice")
@@ -104,16 +104,16 @@ class AdminServiceImplTest extends Specification {
                         .setAmount(100)
                         .setPrevTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
                         .setStable(true)
-                        .setReplicaTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
                         .setReplicaId(1)
+                        .setSequence(1)
                         .build(),
         ]
         def ledgerState = LedgerState.newBuilder().addAllLedger(operations).build()
 
         and: "a server state with some operations"
-        state.addToLedger(new CreateOp("Alice", new VectorClock(), new VectorClock(), 0))
-        state.addToLedger(new TransferOp("broker", "Alice", 100, new VectorClock(), new VectorClock(), 0))
-        state.addToLedger(new TransferOp("Alice", "broker", 100, new VectorClock(), new VectorClock(), 1))
+        state.addToLedger(new CreateOp("Alice", new VectorClock(), 1, 0))
+        state.addToLedger(new TransferOp("broker", "Alice", 100, new VectorClock(), 2, 0))
+        state.addToLedger(new TransferOp("Alice", "broker", 100, new VectorClock(), 1, 1))
 
         when: "get ledger state"
         service.getLedgerState(GetLedgerStateRequest.getDefaultInstance(), observer)
@@ -0,0 +1,437 @@
+package pt.tecnico.distledger.server.grpc
+
+import io.grpc.Server
+import io.grpc.ServerBuilder
+import io.grpc.Status
+import io.grpc.stub.StreamObserver
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.common.grpc.NamingService
+import pt.tecnico.distledger.common.grpc.ProtoUtils
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.CompareDigestRequest
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.CompareDigestResponse
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.FetchSnapshotRequest
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateChunk
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateRequest
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateResponse
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.SnapshotChunk
+import pt.tecnico.distledger.contract.distledgerserver.DistLedgerCrossServerServiceGrpc
+import pt.tecnico.distledger.server.domain.LedgerDigest
+import pt.tecnico.distledger.server.domain.ServerState
+import pt.tecnico.distledger.server.domain.Stamped
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.Operation
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+import pt.tecnico.distledger.server.visitors.DigestFilter
+import pt.tecnico.distledger.server.visitors.OperationCollector
+import pt.tecnico.distledger.server.visitors.PackedLedgerStateGenerator
+
+import spock.lang.Specification
+import spock.lang.Timeout
+
+class CrossServerServiceTest extends Specification {
+    def servers = []
+    def received = new AtomicInteger()
+    def namingService = Mock(NamingService)
+    def service
+    def streams = new AtomicInteger()
+    def chunkTimeStamps = []
+    def formats = []
+    def exchanged = new AtomicLong()
+
+    def cleanup() {
+        service?.close()
+        servers*.shutdownNow()
+    }
+
+    /** Starts a replica which accepts every state propagated to it, or never answers if it's slow. */
+    def startReplica(boolean slow) {
+        Server server = ServerBuilder.forPort(0)
+                .addService(new DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceImplBase() {
+                    @Override
+                    void propagateState(PropagateStateRequest request, StreamObserver<PropagateStateResponse> observer) {
+                        received.incrementAndGet()
+                        if (!slow) {
+                            observer.onNext(PropagateStateResponse.newBuilder()
+                                    .setReplicaTS(ProtoUtils.toProto(new VectorClock([0, 3] as int[])))
+                                    .build())
+                            observer.onCompleted()
+                        }
+                    }
+                })
+                .build()
+                .start()
+        servers << server
+        return "localhost:" + server.getPort()
+    }
+
+    /**
+     * Starts a replica which accepts every state streamed to it, merging the timestamp of each chunk
+     * into its own. If asked to, it breaks the first stream once it applies its first chunk.
+     */
+    def startStreamingReplica(boolean breakFirstStream) {
+        def applied = new VectorClock()
+        Server server = ServerBuilder.forPort(0)
+                .addService(new DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceImplBase() {
+                    @Override
+                    void propagateState(PropagateStateRequest request, StreamObserver<PropagateStateResponse> observer) {
+                        observer.onNext(PropagateStateResponse.newBuilder().setReplicaTS(ProtoUtils.toProto(applied)).build())
+                        observer.onCompleted()
+                    }
+
+                    @Override
+                    StreamObserver<PropagateStateChunk> propagateStateStream(StreamObserver<PropagateStateResponse> observer) {
+                        def breaking = breakFirstStream && streams.incrementAndGet() == 1
+                        return new StreamObserver<PropagateStateChunk>() {
+                            @Override
+                            void onNext(PropagateStateChunk chunk) {
+                                received.addAndGet(chunk.getLedgerCount())
+                                chunkTimeStamps << ProtoUtils.fromProto(chunk.getReplicaTS()).toList()
+                                applied.merge(ProtoUtils.fromProto(chunk.getReplicaTS()))
+                                if (breaking) {
+                                    breaking = false
+                                    observer.onError(Status.UNAVAILABLE.asRuntimeException())
+                                }
+                            }
+
+                            @Override
+                            void onError(Throwable t) {}
+
+                            @Override
+                            void onCompleted() {
+                                observer.onNext(PropagateStateResponse.newBuilder().setReplicaTS(ProtoUtils.toProto(applied)).build())
+                                observer.onCompleted()
+                            }
+                        }
+                    }
+                })
+                .build()
+                .start()
+        servers << server
+        return "localhost:" + server.getPort()
+    }
+
+    /** Starts a replica which accepts packed states, and records the format of each state it receives. */
+    def startPackingReplica() {
+        Server server = ServerBuilder.forPort(0)
+                .addService(new DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceImplBase() {
+                    @Override
+                    void propagateState(PropagateStateRequest request, StreamObserver<PropagateStateResponse> observer) {
+                        formats << (request.hasPackedState() ? "packed" : "plain")
+                        observer.onNext(PropagateStateResponse.newBuilder().setPacked(true).build())
+                        observer.onCompleted()
+                    }
+                })
+                .build()
+                .start()
+        servers << server
+        return "localhost:" + server.getPort()
+    }
+
+    /** Starts a replica which sends a snapshot of the given state when asked for one. */
+    def startSnapshotReplica(ServerState state) {
+        Server server = ServerBuilder.forPort(0)
+                .addService(new DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceImplBase() {
+                    @Override
+                    void fetchSnapshot(FetchSnapshotRequest request, StreamObserver<SnapshotChunk> observer) {
+                        SnapshotChunks.split(state.captureSnapshot(), 2).each { observer.onNext(it) }
+                        observer.onCompleted()
+                    }
+                })
+                .build()
+                .start()
+        servers << server
+        return "localhost:" + server.getPort()
+    }
+
+    /**
+     * Starts a replica which compares digests with the one of the given state, counting the bytes of
+     * the requests and responses exchanged.
+     */
+    def startDigestReplica(ServerState state) {
+        def impl = new DistLedgerCrossServerServiceImpl(state, new AtomicBoolean(true),
+                Mock(CrossServerService, constructorArgs: [Mock(NamingService)]))
+        Server server = ServerBuilder.forPort(0)
+                .addService(new DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceImplBase() {
+                    @Override
+                    void compareDigest(CompareDigestRequest request, StreamObserver<CompareDigestResponse> observer) {
+                        exchanged.addAndGet(request.getSerializedSize())
+                        impl.compareDigest(request, new StreamObserver<CompareDigestResponse>() {
+                            @Override
+                            void onNext(CompareDigestResponse response) {
+                                exchanged.addAndGet(response.getSerializedSize())
+                                observer.onNext(response)
+                            }
+
+                            @Override
+                            void onError(Throwable t) {
+                                observer.onError(t)
+                            }
+
+                            @Override
+                            void onCompleted() {
+                                observer.onCompleted()
+                            }
+                        })
+                    }
+                })
+                .build()
+                .start()
+        servers << server
+        return "localhost:" + server.getPort()
+    }
+
+    /**
+     * Returns the given number of operations from each of the given replicas, which are never
+     * stabilized, as they depend on an operation of a replica which doesn't exist.
+     */
+    static List<Operation> originOperations(int replicas, int perReplica) {
+        def operations = []
+        for (int sequence = 1; sequence <= perReplica; sequence++) {
+            for (int replica = 0; replica < replicas; replica++) {
+                operations << new TransferOp("user" + (sequence % 64), "user" + ((sequence + 1) % 64), sequence,
+                        new VectorClock([0, 0, 0, 1] as int[]), sequence, replica)
+            }
+        }
+        return operations
+    }
+
+    /** Returns a state holding the given operations, as if received from other replicas. */
+    static ServerState holding(int id, List<Operation> operations) {
+        def state = new ServerState(id)
+        state.addToLedger(operations, new VectorClock())
+        return state
+    }
+
+    /** Returns the operations of the given state which the digest comparison found missing. */
+    static List<Operation> differing(ServerState state, LedgerDigest compared, Set<LedgerDigest.Node> leaves) {
+        def collector = new OperationCollector()
+        state.visitLedger(new DigestFilter(collector, state.getDigest(), compared, leaves))
+        return collector.getOperations()
+    }
+
+    static int packedSize(List<Operation> operations) {
+        def generator = new PackedLedgerStateGenerator()
+        operations.each { it.accept(generator) }
+        return generator.build().getSerializedSize()
+    }
+
+    /** Returns a state of the given number of operations from replica 0, in no particular order. */
+    def largeState(int n) {
+        def operations = (1..n).collect { new CreateOp("user" + it, new VectorClock(), it, 0) }
+        Collections.shuffle(operations, new Random(0))
+        return { entry -> new Stamped<>(operations, new VectorClock([n] as int[])) }
+    }
+
+    def emptyState() {
+        return { entry -> new Stamped<>([], new VectorClock()) }
+    }
+
+    @Timeout(10)
+    def "state is propagated to every replica at once, each bounded by the deadline"() {
+        given: "a healthy replica, three which never answer, and one which is down"
+        def entries = [new NamingService.Entry("A", "localhost:1", 0),
+                       new NamingService.Entry("B", startReplica(false), 1),
+                       new NamingService.Entry("C", startReplica(true), 2),
+                       new NamingService.Entry("D", startReplica(true), 3),
+                       new NamingService.Entry("E", startReplica(true), 4),
+                       new NamingService.Entry("F", "localhost:1", 5)]
+        namingService.lookup("DistLedger") >> entries
+        namingService.lookup("DistLedger", _) >> { name, qualifier -> entries.findAll { it.qualifier() == qualifier } }
+
+        and: "gRPC is warmed up, so that its startup isn't counted against the deadline"
+        def warmUp = new CrossServerService(namingService)
+        warmUp.propagateState({ entry -> entry.id() == 1 ? emptyState()(entry) : null }, 0)
+        warmUp.close()
+        received.set(0)
+
+        and: "a service with a short deadline"
+        def deadline = Duration.ofSeconds(1)
+        service = new CrossServerService(namingService, deadline)
+
+        when: "the state is propagated"
+        def start = System.nanoTime()
+        def accepted = service.propagateState(emptyState(), 0)
+        def elapsed = Duration.ofNanos(System.nanoTime() - start)
+
+        then: "only the healthy replica accepted it, acknowledging its replica timestamp"
+        accepted.keySet() == [1] as Set
+        accepted[1].toList() == [0, 3]
+        received.get() == 4
+
+        and: "the replicas which never answer delayed it less than waiting for each of them would"
+        elapsed < deadline.multipliedBy(3)
+    }
+
+    def "no state is propagated to replicas for which the factory returns null"() {
+        given: "two healthy replicas"
+        namingService.lookup("DistLedger") >> [new NamingService.Entry("B", startReplica(false), 1),
+                                               new NamingService.Entry("C", startReplica(false), 2)]
+        service = new CrossServerService(namingService)
+
+        when: "the state is propagated to one of them"
+        def accepted = service.propagateState({ entry -> entry.id() == 1 ? emptyState()(entry) : null }, 0)
+
+        then: "only that one received it"
+        accepted.keySet() == [1] as Set
+        received.get() == 1
+    }
+
+    @Timeout(30)
+    def "large states are streamed in chunks, ordered by their timestamps"() {
+        given: "a replica"
+        namingService.lookup("DistLedger") >> [new NamingService.Entry("B", startStreamingReplica(false), 1)]
+        service = new CrossServerService(namingService)
+
+        when: "a state larger than two chunks is propagated"
+        def n = 2 * CrossServerService.CHUNK_SIZE + 100
+        def accepted = service.propagateState(largeState(n), 0)
+
+        then: "it was sent in three chunks, each covering every operation sent before it"
+        received.get() == n
+        chunkTimeStamps == [[CrossServerService.CHUNK_SIZE], [2 * CrossServerService.CHUNK_SIZE], [n]]
+
+        and: "the replica accepted it"
+        accepted[1].toList() == [n]
+    }
+
+    @Timeout(30)
+    def "broken streams resume from the operations the replica applied"() {
+        given: "a replica which breaks the first stream after applying its first chunk"
+        def entries = [new NamingService.Entry("B", startStreamingReplica(true), 1)]
+        namingService.lookup("DistLedger") >> entries
+        namingService.lookup("DistLedger", _) >> entries
+        service = new CrossServerService(namingService)
+
+        when: "a state larger than two chunks is propagated"
+        def n = 2 * CrossServerService.CHUNK_SIZE + 100
+        def accepted = service.propagateState(largeState(n), 0)
+
+        then: "the second stream only sent the operations after the first chunk"
+        streams.get() == 2
+        received.get() == n
+        chunkTimeStamps.first() == [CrossServerService.CHUNK_SIZE]
+        chunkTimeStamps.last() == [n]
+
+        and: "the replica accepted it"
+        accepted[1].toList() == [n]
+    }
+
+    def "states are packed for replicas once they announce they accept it, if packing is enabled"() {
+        given: "a replica which accepts packed states"
+        namingService.lookup("DistLedger") >> [new NamingService.Entry("B", startPackingReplica(), 1)]
+        service = new CrossServerService(namingService, CrossServerService.DEFAULT_DEADLINE, packed)
+
+        when: "the state is propagated twice"
+        2.times { service.propagateState(largeState(10), 0) }
+
+        then: "the first state is plain, and the second one is packed if packing is enabled"
+        formats == expected
+
+        where:
+        packed | expected
+        true   | ["plain", "packed"]
+        false  | ["plain", "plain"]
+    }
+
+    def "snapshots are fetched from the first server which sends one"() {
+        given: "a replica which is down, and one with some state"
+        def state = new ServerState(2)
+        def firstSequence = state.generateSequences(2)
+        state.addToLedger([new CreateOp("Alice", new VectorClock(), firstSequence, 2),
+                           new CreateOp("Bob", new VectorClock(), firstSequence + 1, 2)])
+        namingService.lookup("DistLedger") >> [new NamingService.Entry("A", "localhost:1", 0),
+                                               new NamingService.Entry("B", "localhost:1", 1),
+                                               new NamingService.Entry("C", startSnapshotReplica(state), 2)]
+        service = new CrossServerService(namingService)
+
+        when: "replica A fetches a snapshot"
+        def snapshot = service.fetchSnapshot(0)
+
+        then: "it's the snapshot of the replica with some state"
+        snapshot.isPresent()
+        snapshot.get().balances().keySet() == ["broker", "Alice", "Bob"] as Set
+        snapshot.get().replicaTimeStamp().toList() == [0, 0, 2]
+        snapshot.get().ledger()*.getUserId() == ["Alice", "Bob"]
+    }
+
+    def "no snapshot is fetched if no other server sends one"() {
+        given: "this replica, and one which is down"
+        namingService.lookup("DistLedger") >> [new NamingService.Entry("A", startSnapshotReplica(new ServerState(0)), 0),
+                                               new NamingService.Entry("B", "localhost:1", 1)]
+        service = new CrossServerService(namingService)
+
+        expect: "no snapshot to be fetched"
+        service.fetchSnapshot(0).isEmpty()
+    }
+
+    def "digests are compared top-down, finding the leaves with operations the replica may not hold"() {
+        given: "a replica which holds every operation of this one but a few"
+        def operations = originOperations(2, 5000)
+        def missing = operations.findAll { it.getReplicaId() == 0 && it.getSequence() in [100, 4990] }
+        def local = holding(0, operations)
+        namingService.lookup("DistLedger", "B") >> [new NamingService.Entry("B", startDigestReplica(holding(1, operations - missing)), 1)]
+        service = new CrossServerService(namingService)
+
+        when: "the digests are compared"
+        def compared = local.getDigest().copy()
+        def leaves = service.compareDigest("B", compared, 0)
+
+        then: "only the leaves of the missing operations differ"
+        leaves.isPresent()
+        leaves.get()*.index() as Set == [100, 4990].collect { it.intdiv(LedgerDigest.LEAF_SIZE) } as Set
+        leaves.get()*.origin() as Set == [0] as Set
+
+        and: "only the operations in those leaves are sent, including the missing ones"
+        def sent = differing(local, compared, leaves.get())
+        sent.size() == 2 * LedgerDigest.LEAF_SIZE
+        sent.containsAll(missing)
+
+        when: "an operation is added to an equal leaf after the comparison"
+        def added = new TransferOp("user0", "user1", 1, new VectorClock([0, 0, 0, 1] as int[]), 5001, 0)
+        local.addToLedger([added], new VectorClock())
+
+        then: "the operations of that leaf are sent too, as they weren't compared"
+        differing(local, compared, leaves.get()).containsAll(missing + [added])
+    }
+
+    def "digests aren't compared with replicas which are down"() {
+        given: "a replica which is down"
+        namingService.lookup("DistLedger", "B") >> [new NamingService.Entry("B", "localhost:1", 1)]
+        service = new CrossServerService(namingService)
+
+        expect: "the comparison to fail"
+        service.compareDigest("B", holding(0, originOperations(1, 10)).getDigest(), 0).isEmpty()
+    }
+
+    @Timeout(120)
+    def "reconciling replicas which share most operations only exchanges a fraction of the state"() {
+        given: "a replica, and another which lacks 0.1% of its operations, the #pattern ones"
+        def operations = originOperations(3, 100_000)
+        def random = new Random(0)
+        def missing = (pattern == "recent"
+                ? operations.subList(operations.size() - operations.size().intdiv(1000), operations.size())
+                : (0..<operations.size().intdiv(1000)).collect { operations[random.nextInt(operations.size())] }) as Set
+        def local = holding(0, operations)
+        def held = operations.findAll { !missing.contains(it) }
+        namingService.lookup("DistLedger", "B") >> [new NamingService.Entry("B", startDigestReplica(holding(1, held)), 1)]
+        service = new CrossServerService(namingService)
+
+        when: "the digests are compared, and the operations in the leaves which differ are packed"
+        def compared = local.getDigest().copy()
+        def sent = differing(local, compared, service.compareDigest("B", compared, 0).get())
+        def full = packedSize(operations)
+        def reconciled = exchanged.get() + packedSize(sent)
+
+        then: "every missing operation is sent, for a fraction of the full state"
+        sent.containsAll(missing)
+        reconciled < full / 10
+
+        where:
+        pattern << ["recent", "scattered"]
+    }
+}
@@ -1,17 +1,27 @@
 package pt.tecnico.distledger.server.grpc
 
 import io.grpc.StatusRuntimeException
+import io.grpc.stub.ServerCallStreamObserver
 import io.grpc.stub.StreamObserver
 
 import java.lang.reflect.Modifier
 import java.util.concurrent.atomic.AtomicBoolean
 
 import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.common.grpc.NamingService
+import pt.tecnico.distledger.server.domain.LedgerDigest
 import pt.tecnico.distledger.server.domain.ServerState
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+import pt.tecnico.distledger.server.visitors.PackedLedgerStateGenerator
 import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions
 import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.LedgerState
 import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.Operation
 import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.OperationType
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.CompareDigestRequest
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.DigestNode
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.FetchSnapshotRequest
+import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateChunk
 import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateRequest
 import pt.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PropagateStateResponse
 
@@ -27,7 +37,7 @@ class DistLedgerCrossServerServiceImplTest extends Specification {
     def setup() {
         state = new ServerState(0)
         active = new AtomicBoolean(true)
-        crossServerService = Mock(CrossServerService)
+        crossServerService = Mock(CrossServerService, constructorArgs: [Mock(NamingService)])
         service = new DistLedgerCrossServerServiceImpl(state, active, crossServerService)
         observer = Mock(StreamObserver)
     }
@@ -41,17 +51,17 @@ class DistLedgerCrossServerServiceImplTest extends Specification {
                         .setDestUserId("Alice")
                         .setAmount(100)
                         .setPrevTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(1).build())
-                        .setReplicaTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(0).addValues(1).build())
+                        .setSequence(3)
                         .build(),
                 Operation.newBuilder().setType(OperationType.OP_CREATE_ACCOUNT)
                         .setUserId("Alice")
                         .setPrevTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
-                        .setReplicaTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(1).build())
+                        .setSequence(1)
                         .build(),
                 Operation.newBuilder().setType(OperationType.OP_CREATE_ACCOUNT)
                         .setUserId("Bob")
                         .setPrevTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
-                        .setReplicaTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(2).build())
+                        .setSequence(2)
                         .build(),
                 // The operation below has a previous timestamp that is not in the ledger, will be pending
                 Operation.newBuilder().setType(OperationType.OP_TRANSFER_TO)
@@ -59,13 +69,13 @@ class DistLedgerCrossServerServiceImplTest extends Specification {
                         .setDestUserId("broker")
                         .setAmount(50)
                         .setPrevTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(10).build())
-                        .setReplicaTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(4).build())
+                        .setSequence(4)
                         .build(),
                 // The operation below will fail
                 Operation.newBuilder().setType(OperationType.OP_CREATE_ACCOUNT)
                         .setUserId("Alice")
                         .setPrevTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(1).build())
-                        .setReplicaTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(5).build())
+                        .setSequence(5)
                         .build()
         ]
         def prop = LedgerState.newBuilder().addAllLedger(operations).build()
@@ -73,8 +83,10 @@ class DistLedgerCrossServerServiceImplTest extends Specification {
         when: "the state is propagated"
         service.propagateState(PropagateStateRequest.newBuilder().setState(prop).build(), observer)
 
-        then: "the response is received"
-        1 * observer.onNext(PropagateStateResponse.getDefaultInstance())
+        then: "the response is received, with the replica timestamp, which no gossip has advanced"
+        1 * observer.onNext(PropagateStateResponse.newBuilder()
+                .setReplicaTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
+                .build())
 
         and: "the account balances are correct"
         state.getAccounts().size() == 3
@@ -91,6 +103,268 @@ class DistLedgerCrossServerServiceImplTest extends Specification {
         !state.ledger[4].isStable() && !state.ledger[4].hasFailed()
     }
 
+    def "propagate state acknowledges the sender's timestamp"() {
+        given: "a state with an operation from replica 1, stamped with its replica timestamp"
+        def timeStamp = DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(0).addValues(1).build()
+        def prop = LedgerState.newBuilder().addLedger(
+                Operation.newBuilder().setType(OperationType.OP_CREATE_ACCOUNT)
+                        .setUserId("Alice")
+                        .setPrevTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
+                        .setReplicaId(1)
+                        .setSequence(1)
+                        .build()
+        ).build()
+
+        when: "the state is propagated"
+        service.propagateState(PropagateStateRequest.newBuilder().setState(prop).setReplicaTS(timeStamp).setId(1).build(), observer)
+
+        then: "the response carries the replica timestamp, which now covers the operation"
+        1 * observer.onNext(PropagateStateResponse.newBuilder().setReplicaTS(timeStamp).build())
+
+        and: "replica 1 is known to hold it"
+        state.getAcknowledged(1).toList() == [0, 1]
+        state.getAcknowledged(2).toList() == []
+    }
+
+    def "propagate state with operations stamped with their replica timestamp"() {
+        given: "an operation from replica 1 encoded before operations carried their sequence number"
+        def prop = LedgerState.newBuilder().addLedger(
+                Operation.newBuilder().setType(OperationType.OP_CREATE_ACCOUNT)
+                        .setUserId("Alice")
+                        .setPrevTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
+                        .setReplicaTS(timeStamp(1))
+                        .setReplicaId(1)
+                        .build()
+        ).build()
+
+        when: "the state is propagated"
+        service.propagateState(PropagateStateRequest.newBuilder().setState(prop).build(), observer)
+
+        then: "its sequence number is read from its replica timestamp"
+        state.ledger.size() == 1
+        state.ledger[0].getSequence() == 1
+    }
+
+    def createAccount(String userId, int sequence) {
+        return Operation.newBuilder().setType(OperationType.OP_CREATE_ACCOUNT)
+                .setUserId(userId)
+                .setPrevTS(DistLedgerCommonDefinitions.VectorClock.getDefaultInstance())
+                .setReplicaId(1)
+                .setSequence(sequence)
+                .build()
+    }
+
+    def timeStamp(int replicaTS) {
+        return DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(0).addValues(replicaTS).build()
+    }
+
+    def "propagate state stream applies each chunk as it arrives"() {
+        given: "a stream"
+        def stream = service.propagateStateStream(observer)
+
+        when: "the first chunk is received"
+        stream.onNext(PropagateStateChunk.newBuilder()
+                .addLedger(createAccount("Alice", 1))
+                .addLedger(createAccount("Bob", 2))
+                .setReplicaTS(timeStamp(2))
+                .setId(1)
+                .build())
+
+        then: "the sender is noticed, and the chunk is applied before the stream completes"
+        1 * crossServerService.noticeServer(1)
+        state.getAccounts().size() == 3
+        state.getReplicaTimeStamp().toList() == [0, 2]
+        0 * observer.onNext(_)
+
+        when: "the last chunk is received, and the stream completes"
+        stream.onNext(PropagateStateChunk.newBuilder()
+                .addLedger(createAccount("Charlie", 3))
+                .setReplicaTS(timeStamp(3))
+                .setId(1)
+                .build())
+        stream.onCompleted()
+
+        then: "the response carries the replica timestamp, which covers every chunk"
+        1 * observer.onNext(PropagateStateResponse.newBuilder().setReplicaTS(timeStamp(3)).build())
+        1 * observer.onCompleted()
+
+        and: "replica 1 is known to hold every chunk"
+        state.getAccounts().size() == 4
+        state.getAcknowledged(1).toList() == [0, 3]
+    }
+
+    def "propagate state stream keeps the chunks applied before it broke"() {
+        given: "a stream"
+        def stream = service.propagateStateStream(observer)
+
+        when: "a chunk is received, and the stream breaks"
+        stream.onNext(PropagateStateChunk.newBuilder()
+                .addLedger(createAccount("Alice", 1))
+                .setReplicaTS(timeStamp(1))
+                .setId(1)
+                .build())
+        stream.onError(new RuntimeException("Connection reset"))
+
+        then: "the chunk remains applied, but replica 1 isn't acknowledged"
+        state.getAccounts().size() == 2
+        state.getReplicaTimeStamp().toList() == [0, 1]
+        state.getAcknowledged(1).toList() == []
+        0 * observer.onNext(_)
+    }
+
+    def "propagate state stream with invalid operation"() {
+        given: "a stream"
+        def stream = service.propagateStateStream(observer)
+
+        when: "a chunk with an invalid operation is received, followed by a valid one"
+        stream.onNext(PropagateStateChunk.newBuilder()
+                .addLedger(createAccount("Alice", 1))
+                .addLedger(Operation.newBuilder().setType(OperationType.OP_UNSPECIFIED).build())
+                .build())
+        stream.onNext(PropagateStateChunk.newBuilder().addLedger(createAccount("Bob", 2)).build())
+        stream.onCompleted()
+
+        then: "the stream fails, without applying any of the chunks"
+        1 * observer.onError({
+            it instanceof StatusRuntimeException
+                    && it.getMessage() == "INVALID_ARGUMENT: Failed to create operation from request"
+        })
+        0 * observer.onNext(_)
+        state.getAccounts().size() == 1
+    }
+
+    def "propagate state stream on a deactivated server"() {
+        given: "a deactivated server"
+        active.set(false)
+
+        when: "a chunk is streamed"
+        service.propagateStateStream(observer).onNext(PropagateStateChunk.getDefaultInstance())
+
+        then: "the stream fails with ServerUnavailableException"
+        1 * observer.onError({
+            it instanceof StatusRuntimeException && it.getMessage() == "UNAVAILABLE: Server is unavailable"
+        })
+    }
+
+    def "propagate packed state"() {
+        given: "a server which accepts packed states"
+        crossServerService.acceptsPacked() >> true
+
+        and: "a packed state with an operation from replica 1"
+        def generator = new PackedLedgerStateGenerator()
+        new CreateOp("Alice", new VectorClock(), 1, 1).accept(generator)
+
+        when: "the state is propagated"
+        service.propagateState(PropagateStateRequest.newBuilder()
+                .setPackedState(generator.build()).setReplicaTS(timeStamp(1)).setId(1).build(), observer)
+
+        then: "the response announces that packed states are accepted"
+        1 * observer.onNext(PropagateStateResponse.newBuilder().setReplicaTS(timeStamp(1)).setPacked(true).build())
+
+        and: "the operation was added"
+        state.getAccounts().size() == 2
+        state.ledger[0].getUserId() == "Alice"
+    }
+
+    def "fetch snapshot streams the state in chunks, from which it can be restored"() {
+        given: "a replica with more accounts than fit in a chunk, and an operation waiting to be stabilized"
+        def n = CrossServerService.CHUNK_SIZE + 500
+        def firstSequence = state.generateSequences(n)
+        state.addToLedger((0..<n).collect { new CreateOp("user" + it, new VectorClock(), firstSequence + it, 0) })
+        state.addToLedger([new TransferOp("broker", "user0", 10, new VectorClock([0, 1] as int[]),
+                2, 1)], new VectorClock([0, 2] as int[]))
+
+        and: "an observer which collects the chunks"
+        def chunks = []
+        observer.onNext(_) >> { chunks << it[0] }
+
+        when: "a snapshot is fetched"
+        service.fetchSnapshot(FetchSnapshotRequest.newBuilder().setId(1).build(), observer)
+
+        then: "it's streamed in bounded chunks"
+        1 * observer.onCompleted()
+        1 * crossServerService.noticeServer(1)
+        chunks.size() == 3
+        chunks.every { it.getAccountsCount() + it.getLedgerCount() <= CrossServerService.CHUNK_SIZE }
+
+        when: "another replica restores it"
+        def assembler = new SnapshotChunks.Assembler()
+        chunks.each { assembler.add(it) }
+        def joined = new ServerState(1)
+        joined.restoreSnapshot(assembler.build())
+
+        then: "it holds the same accounts and timestamps"
+        joined.getAccounts().size() == n + 1
+        joined.getAccountBalance("user" + (n - 1), new VectorClock([n] as int[])).value() == 0
+        joined.getReplicaTimeStamp().toList() == [n, 2]
+
+        and: "the operation is still waiting to be stabilized"
+        joined.ledger.size() == n + 1
+        !joined.ledger.last().isStable()
+    }
+
+    def "fetch snapshot only sends chunks while the call is ready"() {
+        given: "a replica with more accounts than fit in a chunk"
+        def n = CrossServerService.CHUNK_SIZE + 500
+        def firstSequence = state.generateSequences(n)
+        state.addToLedger((0..<n).collect { new CreateOp("user" + it, new VectorClock(), firstSequence + it, 0) })
+
+        and: "a call which is ready for a single chunk"
+        def call = Mock(ServerCallStreamObserver)
+        def ready = 1
+        def onReady = null
+        call.isReady() >> { ready-- > 0 }
+        call.setOnReadyHandler(_) >> { onReady = it[0] }
+
+        when: "a snapshot is fetched"
+        service.fetchSnapshot(FetchSnapshotRequest.newBuilder().setId(1).build(), call)
+
+        then: "only one chunk is sent"
+        1 * call.onNext(_)
+        0 * call.onCompleted()
+
+        when: "the call becomes ready for every chunk"
+        ready = Integer.MAX_VALUE
+        onReady.run()
+
+        then: "the remaining chunks are sent, and the call is completed"
+        (1.._) * call.onNext(_)
+        1 * call.onCompleted()
+    }
+
+    def "compare digest reports the nodes which differ"() {
+        given: "a replica with some operations"
+        def firstSequence = state.generateSequences(100)
+        state.addToLedger((0..<100).collect { new CreateOp("user" + it, new VectorClock(), firstSequence + it, 0) })
+        def leaves = state.getDigest().leaves(state.getDigest().roots()[0])
+
+        and: "nodes of another replica, which only holds the operations of the first leaf"
+        def nodes = [leaves[0], leaves[1], new LedgerDigest.Node(1, 0, 0, 7, 1)].collect {
+            DigestNode.newBuilder().setOrigin(it.origin()).setLevel(it.level()).setIndex(it.index())
+                    .setHash(it.hash()).setCount(it.count()).build()
+        }
+        nodes[1] = nodes[1].toBuilder().setHash(0).setCount(0).build()
+
+        when: "the digests are compared"
+        service.compareDigest(CompareDigestRequest.newBuilder().setId(1).addAllNodes(nodes).build(), observer)
+
+        then: "the positions of the nodes which differ are answered, with how many operations the replica holds under them"
+        1 * crossServerService.noticeServer(1)
+        1 * observer.onNext({ it.getDifferingList() == [1, 2] && it.getCountsList() == [leaves[1].count(), 0] })
+        1 * observer.onCompleted()
+    }
+
+    def "compare digest with invalid node"() {
+        when: "a node outside of the tree is compared"
+        service.compareDigest(CompareDigestRequest.newBuilder()
+                .addNodes(DigestNode.newBuilder().setLevel(LedgerDigest.HEIGHT + 1)).build(), observer)
+
+        then: "an exception is thrown"
+        1 * observer.onError({
+            it instanceof StatusRuntimeException && it.getMessage() == "INVALID_ARGUMENT: Invalid digest node"
+        })
+    }
+
     def "propagate state with invalid operation"() {
         given: "a state to propagate"
         def operations = [
@@ -0,0 +1,393 @@
+package pt.tecnico.distledger.server.grpc
+
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.common.grpc.NamingService
+import pt.tecnico.distledger.server.domain.LedgerDigest
+import pt.tecnico.distledger.server.domain.ServerState
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+
+import spock.lang.Specification
+import spock.lang.Timeout
+
+class GossipSchedulerTest extends Specification {
+    def state
+    def active
+    def crossServerService
+    def rounds
+    def accepting
+    def replicas
+    def unavailable
+    def sent
+    def scheduler
+
+    def setup() {
+        state = new ServerState(0)
+        active = new AtomicBoolean(true)
+        rounds = new AtomicInteger()
+        accepting = new AtomicBoolean(true)
+        replicas = [1]
+        unavailable = [] as Set
+
+        // Gossips with the replicas found by the lookup, by default a single one, with ID 1, which
+        // accept the state while accepting is set, unless unavailable, acknowledging the timestamp
+        // they were sent
+        crossServerService = Spy(CrossServerService, constructorArgs: [Mock(NamingService)])
+        crossServerService.propagateState(_, _) >> { factory, ownId ->
+            rounds.incrementAndGet()
+            replicas.collectEntries { id ->
+                sent = factory.apply(new NamingService.Entry("B", "localhost:" + (2000 + id), id))
+                accepting.get() && !(id in unavailable) ? [(id): sent.timeStamp()] : [:]
+            }
+        }
+    }
+
+    def cleanup() {
+        scheduler?.close()
+    }
+
+    def create(String userId) {
+        state.addToLedger(new CreateOp(userId, new VectorClock(), state.generateSequence(), 0))
+    }
+
+    def "gossip reports the replication lag of each replica"() {
+        given: "a scheduler which only gossips when requested"
+        scheduler = new GossipScheduler(state, active, crossServerService)
+
+        expect: "no lag is known before gossiping"
+        scheduler.getLag().pendingOperations().isEmpty()
+        scheduler.getLag().sinceLastGossip().isEmpty()
+        scheduler.getLag().interval() == Duration.ZERO
+
+        when: "operations are added, gossiped, and more are added"
+        5.times { create("Alice" + it) }
+        scheduler.gossip()
+        3.times { create("Bob" + it) }
+
+        then: "the next round sends the new operations, and the last one gossiped"
+        scheduler.getLag().pendingOperations() == [1: 4]
+        scheduler.getLag().sinceLastGossip().isPresent()
+
+        when: "the replica doesn't accept the next round"
+        accepting.set(false)
+        scheduler.gossip()
+
+        then: "its operations are sent again in the following one"
+        scheduler.getLag().pendingOperations() == [1: 4]
+
+        when: "the replica accepts the following round"
+        accepting.set(true)
+        scheduler.gossip()
+
+        then: "only the new operations were sent, and only the last one gossiped is scanned again"
+        sent.value().size() == 3
+        scheduler.getLag().pendingOperations() == [1: 1]
+
+        when: "another round runs"
+        scheduler.gossip()
+
+        then: "no operation is sent, as the replica acknowledged all of them"
+        sent.value().size() == 0
+    }
+
+    def "operations acknowledged by a replica aren't sent to it"() {
+        given: "a scheduler which only gossips when requested"
+        scheduler = new GossipScheduler(state, active, crossServerService)
+
+        and: "an operation received from replica 1, which can't be stabilized, and one from clients"
+        def timeStamp = new VectorClock([0, 1] as int[])
+        state.addToLedger([new CreateOp("Alice", new VectorClock([0, 0, 1] as int[]), 1, 1)], timeStamp)
+        create("Bob")
+
+        and: "replica 1 stated it holds its own operations"
+        state.acknowledge(1, timeStamp)
+
+        when: "the state is gossiped"
+        scheduler.gossip()
+
+        then: "only the operation from clients is sent"
+        sent.value()*.getUserId() == ["Bob"]
+    }
+
+    def "replicas nothing is known about are only sent the operations their digest lacks"() {
+        given: "a scheduler which only gossips when requested, and more operations than fit in a message"
+        scheduler = new GossipScheduler(state, active, crossServerService)
+        (CrossServerService.CHUNK_SIZE + 100).times { create("Alice" + it) }
+
+        and: "a replica whose digest only differs in the first leaf, which receives an operation while comparing"
+        def comparisons = 0
+        crossServerService.compareDigest("B", _, 0) >> { qualifier, compared, ownId ->
+            comparisons++
+            create("Bob")
+            Optional.of([compared.node(0, 0, 0)] as Set)
+        }
+
+        when: "the state is gossiped"
+        scheduler.gossip()
+
+        then: "only the operations of the first leaf, and the ones of the leaf which changed meanwhile, are sent"
+        comparisons == 1
+        def bob = CrossServerService.CHUNK_SIZE + 101
+        sent.value()*.getUserId() as Set ==
+                ((1..<LedgerDigest.LEAF_SIZE) + (bob - bob % LedgerDigest.LEAF_SIZE..bob)).collect {
+                    it == bob ? "Bob" : "Alice" + (it - 1)
+                } as Set
+
+        when: "the state is gossiped again, once the replica acknowledged it"
+        create("Carol")
+        scheduler.gossip()
+
+        then: "the digests aren't compared again"
+        comparisons == 1
+        sent.value()*.getUserId() == ["Carol"]
+    }
+
+    def "rounds drop the stable operations every replica holds, once truncation is started"() {
+        given: "a scheduler which only gossips when requested, and drops the operations every replica holds"
+        scheduler = new GossipScheduler(state, active, crossServerService)
+        scheduler.startTruncating()
+
+        and: "an operation received from replica 1, which can't be stabilized, between operations from clients"
+        create("Alice")
+        def timeStamp = new VectorClock([0, 1] as int[])
+        state.addToLedger([new CreateOp("Bob", new VectorClock([0, 0, 1] as int[]), 1, 1)], timeStamp)
+        create("Carol")
+
+        when: "the replica doesn't accept the state"
+        accepting.set(false)
+        scheduler.gossip()
+
+        then: "nothing is dropped, as nothing is known about it"
+        state.ledger.size() == 3
+
+        when: "the replica accepts the state"
+        accepting.set(true)
+        scheduler.gossip()
+
+        then: "only the stable operations are dropped"
+        state.ledger*.getUserId() == ["Bob"]
+        state.getLedgerSize() == 3
+
+        when: "more operations are added, and gossiped"
+        create("Dave")
+        scheduler.gossip()
+
+        then: "only they are sent, as the ones dropped were acknowledged"
+        sent.value()*.getUserId() == ["Dave"]
+    }
+
+    def "rounds stop waiting for replicas which left, once truncation is started"() {
+        given: "a scheduler which drops the operations every replica holds"
+        scheduler = new GossipScheduler(state, active, crossServerService)
+        scheduler.startTruncating()
+
+        and: "two replicas, one of which is unavailable"
+        replicas = [1, 2]
+        unavailable = [2] as Set
+
+        when: "operations are added, and gossiped"
+        create("Alice")
+        create("Bob")
+        scheduler.gossip()
+
+        then: "nothing is dropped, as the unavailable replica holds none of them"
+        state.ledger.size() == 2
+        scheduler.getLag().pendingOperations().keySet() == [1, 2] as Set
+
+        when: "the unavailable replica leaves, and another round runs"
+        replicas = [1]
+        scheduler.gossip()
+
+        then: "it isn't waited for anymore"
+        state.ledger.isEmpty()
+        scheduler.getLag().pendingOperations().keySet() == [1] as Set
+    }
+
+    /** Runs rounds of transfers between funded accounts, returning the number of operations held. */
+    def runConstantLoad(boolean truncating, int rounds, int transfersPerRound) {
+        def state = new ServerState(0)
+        def scheduler = new GossipScheduler(state, active, crossServerService)
+        if (truncating) {
+            scheduler.startTruncating()
+        }
+
+        def users = (0..<64).collect { "user" + it }
+        users.each { state.addToLedger(new CreateOp(it, new VectorClock(), state.generateSequence(), 0)) }
+        users.each { state.addToLedger(new TransferOp("broker", it, 10, new VectorClock(), state.generateSequence(), 0)) }
+        scheduler.gossip()
+
+        rounds.times {
+            def firstSequence = state.generateSequences(transfersPerRound)
+            state.addToLedger((0..<transfersPerRound).collect {
+                new TransferOp(users[it % users.size()], users[(it + 1) % users.size()], 1, new VectorClock(),
+                        firstSequence + it, 0)
+            })
+            scheduler.gossip()
+        }
+
+        assert state.getLedgerSize() == 2 * users.size() + rounds * transfersPerRound
+        return state.ledger.size()
+    }
+
+    def "truncation bounds the operations held under constant load"() {
+        given: "a constant load of transfers, gossiped after each round"
+        def rounds = 50
+        def transfersPerRound = 200
+
+        when: "the rounds run without truncation, and with it"
+        def keptHeld = runConstantLoad(false, rounds, transfersPerRound)
+        def truncatedHeld = runConstantLoad(true, rounds, transfersPerRound)
+
+        then: "every operation is held without truncation, and only the last round with it"
+        keptHeld == 2 * 64 + rounds * transfersPerRound
+        truncatedHeld <= transfersPerRound
+    }
+
+    @Timeout(10)
+    def "background rounds only run when there are new operations"() {
+        given: "a scheduler running in the background"
+        scheduler = new GossipScheduler(state, active, crossServerService, Duration.ofMillis(10), Duration.ofMillis(50))
+        scheduler.start()
+
+        when: "an operation is added"
+        create("Alice")
+
+        then: "it is gossiped"
+        while (rounds.get() == 0) {
+            Thread.sleep(10)
+        }
+        state.getGossipCursors().get(1) == 0
+
+        when: "no more operations are added"
+        def before = rounds.get()
+        Thread.sleep(300)
+
+        then: "no more rounds run, and the interval backs off to the maximum"
+        rounds.get() == before
+        scheduler.getLag().interval() == Duration.ofMillis(50)
+
+        when: "the server is deactivated, and an operation is added"
+        active.set(false)
+        create("Bob")
+        Thread.sleep(300)
+
+        then: "no rounds run"
+        rounds.get() == before
+    }
+
+    @Timeout(10)
+    def "background rounds retry a replica which missed the last one, once the ledger is idle"() {
+        given: "a scheduler running in the background, and a replica which doesn't accept rounds"
+        accepting.set(false)
+        scheduler = new GossipScheduler(state, active, crossServerService, Duration.ofMillis(10), Duration.ofMillis(50))
+        scheduler.start()
+
+        when: "an operation is added, and gossiped"
+        create("Alice")
+        while (rounds.get() == 0) {
+            Thread.sleep(10)
+        }
+
+        and: "the replica accepts rounds again, with no more operations added"
+        accepting.set(true)
+        def before = rounds.get()
+        while (state.getAcknowledged(1).get(0) == 0) {
+            Thread.sleep(10)
+        }
+
+        then: "it was sent the operation by a later round"
+        rounds.get() > before
+        sent.value().size() == 1
+
+        when: "the replica acknowledged every operation"
+        before = rounds.get()
+        Thread.sleep(300)
+
+        then: "no more rounds run"
+        rounds.get() == before
+    }
+
+    @Timeout(10)
+    def "interval adapts to the append rate and to waiting reads"() {
+        given: "a scheduler running in the background"
+        def max = Duration.ofMillis(500)
+        scheduler = new GossipScheduler(state, active, crossServerService, Duration.ofMillis(5), max)
+        scheduler.start()
+
+        when: "operations are added continuously, for longer than the maximum interval"
+        def deadline = System.nanoTime() + 1_500_000_000L
+        def n = 0
+        while (System.nanoTime() < deadline) {
+            create("user" + n++)
+        }
+
+        then: "the interval is shortened"
+        scheduler.getLag().interval() < max
+
+        when: "a read waits for an operation this replica hasn't received"
+        state.readBalance("Alice", new VectorClock([0, 1] as int[]))
+
+        then: "rounds run at the minimum interval, from the next one on"
+        while (scheduler.getLag().interval() != Duration.ofMillis(5)) {
+            Thread.sleep(10)
+        }
+    }
+
+    @Timeout(10)
+    def "eager pushes coalesce the operations added within the debounce window"() {
+        given: "a scheduler which pushes operations added by clients"
+        scheduler = new GossipScheduler(state, active, crossServerService)
+        scheduler.startEager(Duration.ofMillis(200), 1000)
+
+        when: "a few operations are added, and gossiped operations are received"
+        10.times { create("Alice" + it) }
+        state.addToLedger([], new VectorClock([0, 1] as int[]))
+
+        then: "they're pushed in a single round, which only resends the last stable one from now on"
+        while (rounds.get() == 0) {
+            Thread.sleep(10)
+        }
+        Thread.sleep(400)
+        rounds.get() == 1
+        scheduler.getLag().pendingOperations() == [1: 1]
+
+        when: "the server is deactivated, and an operation is added"
+        active.set(false)
+        create("Bob")
+        Thread.sleep(400)
+
+        then: "it isn't pushed"
+        rounds.get() == 1
+    }
+
+    @Timeout(10)
+    def "eager pushes run right away once enough operations are held"() {
+        given: "a scheduler which holds operations for longer than the test runs"
+        scheduler = new GossipScheduler(state, active, crossServerService)
+        scheduler.startEager(Duration.ofMinutes(1), 5)
+
+        when: "fewer operations than the threshold are added"
+        4.times { create("Alice" + it) }
+        Thread.sleep(200)
+
+        then: "they're held"
+        rounds.get() == 0
+
+        when: "a batch reaches the threshold"
+        def firstSequence = state.generateSequences(2)
+        state.addToLedger([
+                new CreateOp("Bob", new VectorClock(), firstSequence, 0),
+                new CreateOp("Charlie", new VectorClock(), firstSequence + 1, 0)
+        ])
+
+        then: "every held operation is pushed, and only the last stable one will be resent"
+        while (scheduler.getLag().pendingOperations().isEmpty()) {
+            Thread.sleep(10)
+        }
+        scheduler.getLag().pendingOperations() == [1: 1]
+    }
+}
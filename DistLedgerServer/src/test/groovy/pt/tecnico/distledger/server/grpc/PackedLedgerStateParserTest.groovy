@@ -0,0 +1,156 @@
+package pt.tecnico.distledger.server.grpc
+
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.LedgerState
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.OperationType
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions.PackedLedgerState
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.Operation
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+import pt.tecnico.distledger.server.visitors.LedgerStateGenerator
+import pt.tecnico.distledger.server.visitors.PackedLedgerStateGenerator
+
+import spock.lang.Specification
+
+class PackedLedgerStateParserTest extends Specification {
+    static LedgerState plain(List<Operation> operations) {
+        def generator = new LedgerStateGenerator()
+        operations.each { it.accept(generator) }
+        return generator.build()
+    }
+
+    static PackedLedgerState packed(List<Operation> operations) {
+        def generator = new PackedLedgerStateGenerator()
+        operations.each { it.accept(generator) }
+        return generator.build()
+    }
+
+    def "packed states are parsed into the operations they were generated from"() {
+        given: "operations with timestamps of different sizes, some of which failed"
+        def failed = new CreateOp("Bob", new VectorClock([0, 0, 1] as int[]), 2, 1)
+        failed.setFailed()
+        def distant = new VectorClock([5] as int[])
+        distant.set(1_000_000, 3)
+        def operations = [
+                new CreateOp("Alice", new VectorClock(), 1, 0),
+                new TransferOp("broker", "Alice", 100, new VectorClock([1] as int[]), 2, 0),
+                new CreateOp("Bob", new VectorClock(), 1, 1),
+                failed,
+                new TransferOp("Alice", "Bob", 7, new VectorClock([5, 0, 0, 0, 0, 0, 9] as int[]),
+                        1, 11),
+                new CreateOp("Carol", distant, 2, 11)]
+
+        when: "they are packed and parsed"
+        def parsed = PackedLedgerStateParser.parse(packed(operations))
+
+        then: "the same operations are parsed, apart from whether they're stable"
+        plain(parsed) == plain(operations)
+
+        and: "timestamps with distant replicas are kept sparse"
+        parsed.last().getPrevTimeStamp().entries() == 2
+    }
+
+    def "empty packed states are parsed"() {
+        expect:
+        PackedLedgerStateParser.parse(packed([])).isEmpty()
+    }
+
+    def "malformed packed states are rejected"() {
+        when: "a malformed state is parsed"
+        PackedLedgerStateParser.parse(state)
+
+        then: "it's rejected as an invalid argument"
+        def e = thrown(IllegalArgumentException)
+        e.getMessage() == "Failed to create operation from request"
+
+        where:
+        state << [
+                // Unknown operation type
+                PackedLedgerState.newBuilder().addTypes(OperationType.OP_UNSPECIFIED).addUsers("Alice").addUserIds(0)
+                        .addFailed(false).addReplicaIds(0).addPrevTS(0).addSequences(1).build(),
+                // User index out of the dictionary
+                PackedLedgerState.newBuilder().addTypes(OperationType.OP_CREATE_ACCOUNT).addUsers("Alice").addUserIds(1)
+                        .addFailed(false).addReplicaIds(0).addPrevTS(0).addSequences(1).build(),
+                // Missing column
+                PackedLedgerState.newBuilder().addTypes(OperationType.OP_CREATE_ACCOUNT).addUsers("Alice").addUserIds(0)
+                        .addReplicaIds(0).addPrevTS(0).addSequences(1).build(),
+                PackedLedgerState.newBuilder().addTypes(OperationType.OP_CREATE_ACCOUNT).addUsers("Alice").addUserIds(0)
+                        .addFailed(false).addReplicaIds(0).addPrevTS(0).build(),
+                // Timestamp header claiming more entries than the column holds
+                PackedLedgerState.newBuilder().addTypes(OperationType.OP_CREATE_ACCOUNT).addUsers("Alice").addUserIds(0)
+                        .addFailed(false).addReplicaIds(0).addPrevTS(Integer.MAX_VALUE - 1).addSequences(1).build(),
+                // Sparse timestamp entry beyond any replica ID
+                PackedLedgerState.newBuilder().addTypes(OperationType.OP_CREATE_ACCOUNT).addUsers("Alice").addUserIds(0)
+                        .addFailed(false).addReplicaIds(0).addPrevTS(3).addPrevTS(Integer.MAX_VALUE - 1).addPrevTS(1)
+                        .addSequences(1).build(),
+                // Negative gap between sparse timestamp entries
+                PackedLedgerState.newBuilder().addTypes(OperationType.OP_CREATE_ACCOUNT).addUsers("Alice").addUserIds(0)
+                        .addFailed(false).addReplicaIds(0).addPrevTS(5).addPrevTS(3).addPrevTS(1).addPrevTS(-2)
+                        .addPrevTS(1).addSequences(1).build(),
+                // Negative timestamp
+                PackedLedgerState.newBuilder().addTypes(OperationType.OP_CREATE_ACCOUNT).addUsers("Alice").addUserIds(0)
+                        .addFailed(false).addReplicaIds(0).addPrevTS(2).addPrevTS(-1).addSequences(1).build(),
+                // Sequence number which isn't positive
+                PackedLedgerState.newBuilder().addTypes(OperationType.OP_CREATE_ACCOUNT).addUsers("Alice").addUserIds(0)
+                        .addFailed(false).addReplicaIds(0).addPrevTS(0).addSequences(0).build()]
+    }
+
+    def "packed states are smaller than plain ones, and hold the same operations"() {
+        given: "a ledger of a replica in a system of #replicas replicas"
+        def operations = ledger(replicas, 1024)
+
+        when: "the ledger is sent in both formats"
+        def plainBytes = plain(operations).getSerializedSize()
+        def packedBody = packed(operations).toByteArray()
+
+        then: "the packed state is smaller, and holds the same operations"
+        packedBody.length < plainBytes
+        plain(PackedLedgerStateParser.parse(PackedLedgerState.parseFrom(packedBody))) == plain(operations)
+
+        where:
+        replicas << [3, 10, 50]
+    }
+
+    /**
+     * Generates the ledger of replica 0, which clients send operations to while it gossips with
+     * the other replicas, each of which receives operations too, and gossips with another replica
+     * every few operations.
+     */
+    static List<Operation> ledger(int replicas, int operations) {
+        def random = new Random(replicas)
+        def clocks = (0..<replicas).collect { new VectorClock() }
+        def ledgers = (0..<replicas).collect { [] as List<Operation> }
+        for (int i = 0; i < operations; i++) {
+            int replica = random.nextInt(replicas)
+            def prevTS = new VectorClock(clocks[replica])
+            clocks[replica].increment(replica)
+            int sequence = clocks[replica].get(replica)
+            int user = random.nextInt(64)
+            ledgers[replica] << (random.nextInt(8) == 0
+                    ? new CreateOp("user" + user, prevTS, sequence, replica)
+                    : new TransferOp("user" + user, "user" + ((user + 1 + random.nextInt(63)) % 64),
+                    random.nextInt(100) + 1, prevTS, sequence, replica))
+
+            if (random.nextInt(4) == 0) {
+                int from = random.nextInt(replicas)
+                int to = random.nextInt(replicas)
+                gossip(ledgers[from], clocks[from], ledgers[to], clocks[to])
+            }
+        }
+
+        // Replica 0 ends up with every operation
+        for (int replica = 1; replica < replicas; replica++) {
+            gossip(ledgers[replica], clocks[replica], ledgers[0], clocks[0])
+        }
+        return ledgers[0]
+    }
+
+    private static void gossip(List<Operation> from, VectorClock fromClock, List<Operation> to, VectorClock toClock) {
+        for (Operation op : from) {
+            if (op.getSequence() > toClock.get(op.getReplicaId())) {
+                to << op
+            }
+        }
+        toClock.merge(fromClock)
+    }
+}
@@ -1,6 +1,7 @@
 package pt.tecnico.distledger.server.grpc
 
 import io.grpc.StatusRuntimeException
+import io.grpc.stub.ServerCallStreamObserver
 import io.grpc.stub.StreamObserver
 
 import java.util.concurrent.atomic.AtomicBoolean
@@ -18,6 +19,14 @@ import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToRequest
 import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToResponse
 import pt.tecnico.distledger.contract.user.UserDistLedger.BalanceRequest
 import pt.tecnico.distledger.contract.user.UserDistLedger.BalanceResponse
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchCreateAccountRequest
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchCreateAccountResponse
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchTransferRequest
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchTransferResponse
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationStatus
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitRequest
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitResponse
+import pt.tecnico.distledger.contract.user.UserDistLedger.Transfer
 
 import spock.lang.Specification
 
@@ -48,9 +57,29 @@ class UserServiceImplTest extends Specification {
         state.ledger[0].isStable() && !state.ledger[0].hasFailed()
     }
 
+    def "timestamps exchanged with clients drop the retired replicas"() {
+        given: "a replica 1 retired after its only operation was executed"
+        state.addToLedger([new CreateOp("Bob", new VectorClock(), 1, 1)], new VectorClock([0, 1] as int[]))
+        state.stabilize()
+        state.retire(1, new VectorClock([0, 1] as int[]))
+
+        when: "a new account is created by a client which still holds replica 1's entry"
+        service.createAccount(CreateAccountRequest.newBuilder()
+                .setUserId("Alice")
+                .setPrevTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addAllValues([0, 1]))
+                .build(), observer)
+
+        then: "the response doesn't hold replica 1's entry, and is stamped with the epoch"
+        1 * observer.onNext(CreateAccountResponse.newBuilder().setValueTS(
+            DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(1).setEpoch(1).build()).build())
+
+        and: "the operation doesn't depend on replica 1's"
+        state.ledger[1].getPrevTimeStamp().toList() == []
+    }
+
     def "create duplicate account"() {
         given: "an account already created"
-        executor.execute(new CreateOp("Alice", new VectorClock(), new VectorClock(), 0))
+        executor.execute(new CreateOp("Alice", new VectorClock(), 0, 0))
 
         when: "the account is created again"
         service.createAccount(CreateAccountRequest.newBuilder().setUserId("Alice").build(), observer)
@@ -65,7 +94,7 @@ class UserServiceImplTest extends Specification {
 
     def "transfer between accounts"() {
         given: "an accounts already created"
-        executor.execute(new CreateOp("Alice", new VectorClock(), new VectorClock(), 0))
+        executor.execute(new CreateOp("Alice", new VectorClock(), 0, 0))
 
         when: "transfer between accounts"
         service.transferTo(TransferToRequest.newBuilder()
@@ -85,7 +114,7 @@ class UserServiceImplTest extends Specification {
 
     def "transfer between accounts with insufficient funds"() {
         given: "an accounts already created"
-        executor.execute(new CreateOp("Alice", new VectorClock(), new VectorClock(), 0))
+        executor.execute(new CreateOp("Alice", new VectorClock(), 0, 0))
 
         when: "transfer between accounts"
         service.transferTo(TransferToRequest.newBuilder()
@@ -129,7 +158,7 @@ class UserServiceImplTest extends Specification {
 
     def "transfer non-positive amount"() {
         given: "an accounts already created"
-        executor.execute(new CreateOp("Alice", new VectorClock(), new VectorClock(), 0))
+        executor.execute(new CreateOp("Alice", new VectorClock(), 0, 0))
 
         when: "transfer non-positive amount"
         service.transferTo(TransferToRequest.newBuilder()
@@ -180,11 +209,11 @@ class UserServiceImplTest extends Specification {
 
     def "get balance for existing account"() {
         given: "an account already created"
-        executor.execute(new CreateOp("Alice", new VectorClock(), new VectorClock(), 0))
+        executor.execute(new CreateOp("Alice", new VectorClock(), 0, 0))
 
         and: "with a given balance"
         if (balance > 0) {
-            executor.execute(new TransferOp("broker", "Alice", balance, new VectorClock(), new VectorClock(), 0))
+            executor.execute(new TransferOp("broker", "Alice", balance, new VectorClock(), 0, 0))
         }
 
         when: "get balance for account"
@@ -208,6 +237,159 @@ class UserServiceImplTest extends Specification {
         })
     }
 
+    def "batch create account reports each account"() {
+        when: "a batch of accounts is created, including a system account"
+        service.batchCreateAccount(BatchCreateAccountRequest.newBuilder()
+                .addAllUserIds(["Alice", "broker", "Bob"])
+                .build(),
+                observer)
+
+        then: "each account has its own result, and the timestamp covers the valid ones"
+        1 * observer.onNext({ BatchCreateAccountResponse response ->
+            response.getResultsList()*.getStatus() ==
+                    [OperationStatus.ACCEPTED, OperationStatus.INVALID_ARGUMENT, OperationStatus.ACCEPTED] &&
+            response.getValueTS().getValuesList() == [2]
+        })
+        1 * observer.onCompleted()
+
+        and: "only the valid accounts were created"
+        state.ledger*.getUserId() == ["Alice", "Bob"]
+        state.getAccounts().size() == 3
+    }
+
+    def "batch transfer adds every valid transfer at once"() {
+        given: "accounts already created"
+        executor.execute(new CreateOp("Alice", new VectorClock(), 0, 0))
+        executor.execute(new CreateOp("Bob", new VectorClock(), 0, 0))
+
+        when: "a batch of transfers is made, including invalid ones"
+        def transfer = { from, to, amount -> Transfer.newBuilder().setAccountFrom(from).setAccountTo(to).setAmount(amount).build() }
+        service.batchTransfer(BatchTransferRequest.newBuilder()
+                .addTransfers(transfer("broker", "Alice", 100))
+                .addTransfers(transfer("Alice", "Alice", 10))
+                .addTransfers(transfer("Alice", "Bob", 30))
+                .addTransfers(transfer("Bob", "Alice", 0))
+                .addTransfers(transfer("Bob", "broker", 50))
+                .build(),
+                observer)
+
+        then: "each transfer has its own result, and the timestamp covers the valid ones"
+        1 * observer.onNext({ BatchTransferResponse response ->
+            response.getResultsList()*.getStatus() == [
+                    OperationStatus.ACCEPTED, OperationStatus.INVALID_ARGUMENT, OperationStatus.ACCEPTED,
+                    OperationStatus.INVALID_ARGUMENT, OperationStatus.ACCEPTED] &&
+            response.getResults(1).getDescription() == "Transfers from an account to itself are not allowed" &&
+            response.getValueTS().getValuesList() == [3]
+        })
+        1 * observer.onCompleted()
+
+        and: "the valid transfers were executed in order"
+        state.ledger.size() == 3
+        state.ledger*.isStable() == [true, true, true]
+        state.ledger*.hasFailed() == [false, false, true]
+        state.getAccounts().getBalance("Alice") == 70
+        state.getAccounts().getBalance("Bob") == 30
+    }
+
+    def "submitted commands are acknowledged as they are added"() {
+        given: "a stream of commands, whose call is always ready"
+        def call = Mock(ServerCallStreamObserver)
+        def onReady
+        call.setOnReadyHandler(_) >> { Runnable handler -> onReady = handler }
+        call.isReady() >> true
+        def stream = service.submit(call)
+
+        when: "the call becomes ready"
+        onReady.run()
+
+        then: "the first command is requested"
+        1 * call.request(1)
+
+        when: "a create account command is received"
+        stream.onNext(SubmitRequest.newBuilder().setCorrelationId(7)
+                .setCreateAccount(CreateAccountRequest.newBuilder().setUserId("Alice")).build())
+
+        then: "it is acknowledged with its timestamp, and the next command is requested"
+        1 * call.onNext(SubmitResponse.newBuilder().setCorrelationId(7).setResult(UserServiceImpl.ACCEPTED)
+                .setValueTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(1).build()).build())
+        1 * call.request(1)
+
+        when: "an invalid transfer and an empty command are received"
+        stream.onNext(SubmitRequest.newBuilder().setCorrelationId(8)
+                .setTransferTo(TransferToRequest.newBuilder().setAccountFrom("Alice").setAccountTo("Alice").setAmount(1))
+                .build())
+        stream.onNext(SubmitRequest.newBuilder().setCorrelationId(9).build())
+
+        then: "they are rejected, without a timestamp"
+        1 * call.onNext({ SubmitResponse response ->
+            response.getCorrelationId() == 8 &&
+            response.getResult().getStatus() == OperationStatus.INVALID_ARGUMENT &&
+            response.getResult().getDescription() == "Transfers from an account to itself are not allowed" &&
+            !response.hasValueTS()
+        })
+        1 * call.onNext({ SubmitResponse response ->
+            response.getCorrelationId() == 9 &&
+            response.getResult().getDescription() == "No command was provided"
+        })
+        2 * call.request(1)
+
+        when: "the client ends the stream"
+        stream.onCompleted()
+
+        then: "the call is completed"
+        1 * call.onCompleted()
+
+        and: "only the valid command was added to the ledger"
+        state.ledger*.getUserId() == ["Alice"]
+    }
+
+    def "submit stops requesting commands while the call isn't ready"() {
+        given: "a stream of commands, whose call isn't ready"
+        def call = Mock(ServerCallStreamObserver)
+        def onReady
+        def ready = false
+        call.setOnReadyHandler(_) >> { Runnable handler -> onReady = handler }
+        call.isReady() >> { ready }
+        def stream = service.submit(call)
+
+        when: "a command is received"
+        stream.onNext(SubmitRequest.newBuilder().setCorrelationId(1)
+                .setCreateAccount(CreateAccountRequest.newBuilder().setUserId("Alice")).build())
+
+        then: "it is acknowledged, but no more commands are requested"
+        1 * call.onNext(_)
+        0 * call.request(_)
+
+        when: "the call becomes ready"
+        ready = true
+        onReady.run()
+        onReady.run()
+
+        then: "the next command is requested, only once"
+        1 * call.request(1)
+    }
+
+    def "submit fails when the server is deactivated"() {
+        given: "a stream of commands"
+        def call = Mock(ServerCallStreamObserver)
+        def stream = service.submit(call)
+
+        when: "server is deactivated, and commands are received"
+        active.set(false)
+        2.times {
+            stream.onNext(SubmitRequest.newBuilder().setCorrelationId(it)
+                    .setCreateAccount(CreateAccountRequest.newBuilder().setUserId("Alice")).build())
+        }
+        stream.onCompleted()
+
+        then: "the call fails once, with ServerUnavailableException"
+        1 * call.onError({
+            it instanceof StatusRuntimeException && it.getMessage() == "UNAVAILABLE: Server is unavailable"
+        })
+        0 * call.onNext(_)
+        0 * call.onCompleted()
+    }
+
     def "deactivate server"() {
         when: "server is deactivated"
         active.set(false)
@@ -221,14 +403,60 @@ class UserServiceImplTest extends Specification {
         })
 
         where: "method is any void function of UserServiceImpl"
-        method << UserServiceImpl.class.getDeclaredMethods().findAll { it.getReturnType() == void.class }
+        method << UserServiceImpl.class.getDeclaredMethods().findAll { it.getReturnType() == void.class && !it.isSynthetic() }
+    }
+
+    def "balance waits for the replica to catch up without blocking"() {
+        given: "a balance request from a client which has seen an operation from replica 1"
+        def request = BalanceRequest.newBuilder().setUserId("Alice").setPrevTS(
+                DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(0).addValues(1).build()).build()
+
+        when: "the balance is requested"
+        service.balance(request, observer)
+
+        then: "the call returns without a response"
+        0 * observer._
+
+        when: "the operation from replica 1 arrives"
+        state.addToLedger([new CreateOp("Alice", new VectorClock(), 1, 1)],
+                new VectorClock([0, 1] as int[]))
+
+        then: "the response is sent"
+        1 * observer.onNext(BalanceResponse.newBuilder().setValue(0).setValueTS(
+                DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(0).addValues(1).build()).build())
+        1 * observer.onCompleted()
+    }
+
+    def "cancelled balance calls stop waiting"() {
+        given: "a call which can be cancelled"
+        def call = Mock(ServerCallStreamObserver)
+        def onCancel
+        call.setOnCancelHandler(_) >> { Runnable handler -> onCancel = handler }
+
+        when: "the balance is requested with a timestamp the replica hasn't reached"
+        service.balance(BalanceRequest.newBuilder().setUserId("broker").setPrevTS(
+                DistLedgerCommonDefinitions.VectorClock.newBuilder().addValues(0).addValues(1).build()).build(), call)
+
+        then: "the read is waiting"
+        state.readers.size() == 1
+
+        when: "the call is cancelled, e.g., because its deadline expired"
+        onCancel.run()
+
+        then: "the read is dropped, without a response"
+        state.readers.size() == 0
+        0 * call.onNext(_)
+        0 * call.onError(_)
     }
 
     def "catch runtime exceptions"() {
         given: "a state that throws an exception when used"
         def state = Mock(ServerState, constructorArgs:[0])
         state.getAccountBalance(_, _) >> { throw new RuntimeException("Unknown error") }
-        state.generateTimeStamp() >> { throw new RuntimeException("Unknown error") }
+        state.readBalance(_, _) >> { throw new RuntimeException("Unknown error") }
+        state.generateSequence() >> { throw new RuntimeException("Unknown error") }
+        state.generateSequences(_) >> { throw new RuntimeException("Unknown error") }
+        state.withoutRetired(_) >> { throw new RuntimeException("Unknown error") }
 
         and: "a service with the mocked state"
         def service = new UserServiceImpl(state, active)
@@ -242,6 +470,6 @@ class UserServiceImplTest extends Specification {
         })
 
         where: "method is any void function of UserServiceImpl"
-        method << UserServiceImpl.class.getDeclaredMethods().findAll { it.getReturnType() == void.class }
+        method << UserServiceImpl.class.getDeclaredMethods().findAll { it.getReturnType() == void.class && !it.isSynthetic() }
     }
 }
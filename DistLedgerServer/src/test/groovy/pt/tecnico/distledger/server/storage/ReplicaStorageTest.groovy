@@ -0,0 +1,209 @@
+package pt.tecnico.distledger.server.storage
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Duration
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.server.domain.ServerState
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+import pt.tecnico.distledger.server.visitors.LedgerStateGenerator
+
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.lang.Timeout
+
+class ReplicaStorageTest extends Specification {
+    @TempDir
+    Path dir
+
+    def open(long segmentSize = 1024 * 1024, Durability durability = Durability.GROUP) {
+        ReplicaStorage.open(dir, durability, Duration.ofMillis(1), segmentSize, Long.MAX_VALUE)
+    }
+
+    def recover(ReplicaStorage storage, int id) {
+        def state = new ServerState(id, storage.getLog())
+        storage.recover(state)
+        return state
+    }
+
+    def createAccount(ServerState state, String userId) {
+        state.addToLedger(new CreateOp(userId, new VectorClock(), state.generateSequence(), state.getId()))
+    }
+
+    def transfer(ServerState state, String from, String to, int amount) {
+        state.addToLedger(new TransferOp(from, to, amount, new VectorClock(), state.generateSequence(), state.getId()))
+    }
+
+    def balances(ServerState state) {
+        state.getAccounts().getBalances()
+    }
+
+    def "state is recovered from a snapshot and the operations logged after it"() {
+        given: "a replica with small log segments"
+        def storage = open(256)
+        def state = recover(storage, 0)
+
+        when: "operations are added before and after a snapshot"
+        (1..20).each { createAccount(state, "user" + it) }
+        (1..20).each { transfer(state, "broker", "user" + it, it) }
+        storage.snapshot(state)
+        (1..10).each { transfer(state, "user" + it, "broker", 1) }
+        storage.close()
+
+        then: "the log segments before the snapshot were deleted"
+        Files.list(dir).filter { it.toString().endsWith(".wal") }.count() < 10
+
+        when: "the replica is recovered"
+        def reopened = open(256)
+        def restored = recover(reopened, 1)
+
+        then: "the recovered state has the same balances and ledger"
+        balances(restored) == balances(state)
+        restored.ledger.size() == state.ledger.size()
+        restored.ledger.every { it.isStable() }
+
+        and: "the replica timestamp knows every operation"
+        restored.getReplicaTimeStamp().get(0) == 50
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "stable operations gossiped to every replica are folded into the snapshot"() {
+        given: "a replica with some stable operations"
+        def storage = open()
+        def state = recover(storage, 0)
+        (1..5).each { createAccount(state, "user" + it) }
+
+        and: "the first operations were gossiped to the other replicas"
+        state.getGossipCursors().set(1, 3)
+        state.getGossipCursors().set(2, 4)
+
+        when: "a snapshot is taken and the replica is recovered"
+        storage.snapshot(state)
+        storage.close()
+        def reopened = open()
+        def restored = recover(reopened, 3)
+
+        then: "only the operations not gossiped to every replica are kept"
+        restored.ledger.collect { it.getUserId() } == ["user4", "user5"]
+        restored.getAccounts().getBalances().keySet() == state.getAccounts().getBalances().keySet()
+
+        and: "ledger indices and gossip cursors are preserved"
+        restored.getGossipCursors().get(1) == 3
+        restored.visitLedger(new LedgerStateGenerator(), 4).value().get() == 4
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "unstable operations are kept in the snapshot and stabilized after recovery"() {
+        given: "a replica with an operation waiting for another replica's operation"
+        def storage = open()
+        def state = recover(storage, 0)
+        state.addToLedger(
+                [new TransferOp("broker", "Alice", 10, new VectorClock([0, 1] as int[]), 2, 1)],
+                new VectorClock())
+
+        when: "a snapshot is taken and the replica is recovered"
+        storage.snapshot(state)
+        storage.close()
+        def reopened = open()
+        def restored = recover(reopened, 2)
+
+        then: "the operation is still waiting"
+        restored.ledger.size() == 1
+        !restored.ledger[0].isStable()
+
+        when: "the missing operation arrives"
+        restored.addToLedger(
+                [new CreateOp("Alice", new VectorClock(), 1, 1)],
+                new VectorClock([0, 2] as int[]))
+        restored.stabilize()
+
+        then: "both operations are stabilized"
+        restored.ledger.every { it.isStable() }
+        restored.getAccountBalance("Alice", new VectorClock([0, 2] as int[])).value() == 10
+
+        cleanup:
+        reopened?.close()
+    }
+
+    @Timeout(60)
+    def "snapshots taken during concurrent operations are consistent with the log"() {
+        given: "a replica with some accounts"
+        def storage = open(64 * 1024)
+        def state = recover(storage, 0)
+        (1..8).each { createAccount(state, "user" + it) }
+        (1..8).each { transfer(state, "broker", "user" + it, 100) }
+
+        when: "transfers run while snapshots are taken"
+        def pool = Executors.newFixedThreadPool(8)
+        def futures = (1..8).collect { t ->
+            pool.submit {
+                (1..200).each { transfer(state, "user" + t, "user" + (t % 8 + 1), 1) }
+            }
+        }
+        def running = new AtomicBoolean(true)
+        def snapshots = 0
+        def snapshotter = Thread.start {
+            while (running.get()) {
+                storage.snapshot(state)
+                snapshots++
+            }
+        }
+        futures*.get()
+        running.set(false)
+        snapshotter.join()
+        pool.shutdown()
+        pool.awaitTermination(10, TimeUnit.SECONDS)
+        storage.close()
+
+        and: "the replica is recovered"
+        def reopened = open(64 * 1024)
+        def restored = recover(reopened, 1)
+
+        then: "the recovered balances match the live ones"
+        snapshots > 0
+        balances(restored) == balances(state)
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "recovering from a snapshot replays none of the operations it covers"() {
+        given: "a replica with a long log"
+        def storage = open(64 * 1024 * 1024, Durability.ASYNC)
+        def state = recover(storage, 0)
+        def operations = 5_000
+        (1..operations).each { createAccount(state, "user" + it) }
+        storage.close()
+
+        when: "the replica is recovered by replaying the whole log"
+        def replayed = open(64 * 1024 * 1024, Durability.ASYNC)
+        def fromLog = recover(replayed, 1)
+
+        and: "a snapshot is taken, and the replica is recovered again"
+        fromLog.getGossipCursors().set(0, operations + 1)
+        replayed.snapshot(fromLog)
+        replayed.close()
+        def snapshotted = open(64 * 1024 * 1024, Durability.ASYNC)
+        def fromSnapshot = recover(snapshotted, 2)
+
+        then: "both recoveries reach the same state"
+        fromLog.ledger.size() == operations
+        balances(fromLog) == balances(state)
+        balances(fromSnapshot) == balances(state)
+
+        and: "the snapshot left no operations to replay"
+        fromSnapshot.ledger.isEmpty()
+
+        cleanup:
+        snapshotted?.close()
+    }
+}
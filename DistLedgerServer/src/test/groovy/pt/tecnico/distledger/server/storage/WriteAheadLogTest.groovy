@@ -0,0 +1,207 @@
+package pt.tecnico.distledger.server.storage
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.time.Duration
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.server.domain.ServerState
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+import pt.tecnico.distledger.server.storage.exceptions.WriteAheadLogException
+
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.lang.Timeout
+
+class WriteAheadLogTest extends Specification {
+    @TempDir
+    Path dir
+
+    def createOp(int i) {
+        new CreateOp("user" + i, new VectorClock(), i, 0)
+    }
+
+    def replayAll(WriteAheadLog log) {
+        def operations = []
+        log.replay(0, operations::add)
+        return operations
+    }
+
+    def "operations are replayed in order across segments"() {
+        given: "a log with small segments"
+        def log = new WriteAheadLog(dir, durability, Duration.ofMillis(1), 256)
+
+        when: "operations are appended"
+        (1..50).each { log.append([createOp(it)]) }
+        log.append([new TransferOp("broker", "user1", 10, new VectorClock(), 51, 0)])
+        log.close()
+
+        then: "more than one segment was written"
+        Files.list(dir).count() > 1
+
+        when: "the log is reopened and replayed"
+        def reopened = new WriteAheadLog(dir, durability, Duration.ofMillis(1), 256)
+        def operations = replayAll(reopened)
+
+        then: "every operation is replayed, in order"
+        operations.size() == 51
+        operations.take(50).collect { it.getUserId() } == (1..50).collect { "user" + it }
+        operations[50] instanceof TransferOp
+        operations[50].getAmount() == 10
+
+        and: "the sequence numbers continue after the replayed records"
+        reopened.getNextSequence() == 51
+
+        when: "only a suffix is replayed"
+        def suffix = []
+        reopened.replay(45, suffix::add)
+
+        then: "only the records after the given sequence number are replayed"
+        suffix*.getSequence() == (46..51).toList()
+
+        cleanup:
+        reopened?.close()
+
+        where:
+        durability << Durability.values()
+    }
+
+    def "torn records at the end of the log are discarded"() {
+        given: "a log with some operations"
+        def log = new WriteAheadLog(dir, Durability.FSYNC, Duration.ZERO, 1024 * 1024)
+        (1..3).each { log.append([createOp(it)]) }
+        log.close()
+
+        and: "a torn record at the end of the segment"
+        def segment = Files.list(dir).findFirst().get()
+        Files.write(segment, [0, 0, 0, 100, 1, 2] as byte[], StandardOpenOption.APPEND)
+
+        when: "the log is reopened and more operations are appended"
+        def reopened = new WriteAheadLog(dir, Durability.FSYNC, Duration.ZERO, 1024 * 1024)
+        reopened.append([createOp(4)])
+
+        then: "the torn record is ignored"
+        replayAll(reopened).collect { it.getUserId() } == ["user1", "user2", "user3", "user4"]
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "corrupt records before the last segment fail the replay"() {
+        given: "a log with small segments"
+        def log = new WriteAheadLog(dir, Durability.FSYNC, Duration.ZERO, 256)
+        (1..50).each { log.append([createOp(it)]) }
+        log.close()
+
+        and: "the last record of the first segment is corrupted"
+        def segment = Files.list(dir).sorted().findFirst().get()
+        def bytes = Files.readAllBytes(segment)
+        bytes[bytes.length - 1] ^= 0xff
+        Files.write(segment, bytes)
+
+        when: "the log is reopened and replayed"
+        def reopened = new WriteAheadLog(dir, Durability.FSYNC, Duration.ZERO, 256)
+        replayAll(reopened)
+
+        then: "the replay fails, instead of skipping the lost records"
+        thrown(WriteAheadLogException)
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "server state is restored from the log"() {
+        given: "a server state recording to a log"
+        def log = new WriteAheadLog(dir, Durability.GROUP, Duration.ofMillis(1), 1024 * 1024)
+        def state = new ServerState(0, log)
+
+        when: "operations are added to the ledger"
+        state.addToLedger(new CreateOp("Alice", new VectorClock(), state.generateSequence(), 0))
+        state.addToLedger(new TransferOp("broker", "Alice", 100, new VectorClock([1] as int[]), state.generateSequence(), 0))
+        log.close()
+
+        and: "a new state is restored from the log"
+        def reopened = new WriteAheadLog(dir, Durability.GROUP, Duration.ofMillis(1), 1024 * 1024)
+        def restored = new ServerState(1, reopened)
+        restored.restore(replayAll(reopened))
+
+        then: "the restored state has the same balances"
+        restored.getAccountBalance("Alice", new VectorClock([2] as int[])).value() == 100
+        restored.getAccountBalance("broker", new VectorClock()).value() == 900
+
+        and: "the restored operations are known to the replica timestamp"
+        restored.getReplicaTimeStamp().get(0) == 2
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "deferred appends are ordered when they return, and persisted once waited for"() {
+        given: "a log"
+        def log = new WriteAheadLog(dir, durability, Duration.ofMillis(1), 1024 * 1024)
+
+        when: "operations are appended, waiting for them only afterwards"
+        def first = log.appendDeferred([createOp(1), createOp(2)])
+        def second = log.appendDeferred([createOp(3)])
+
+        then: "their sequence numbers are already assigned"
+        log.getNextSequence() == 3
+
+        when: "the appends are waited for and the log is reopened"
+        first.run()
+        second.run()
+        log.close()
+        def reopened = new WriteAheadLog(dir, durability, Duration.ofMillis(1), 1024 * 1024)
+
+        then: "every operation is replayed, in order"
+        replayAll(reopened).collect { it.getUserId() } == ["user1", "user2", "user3"]
+
+        cleanup:
+        reopened?.close()
+
+        where:
+        durability << Durability.values()
+    }
+
+    @Timeout(60)
+    def "concurrent appends are all recorded once"() {
+        given: "a log"
+        def log = new WriteAheadLog(dir, durability, Duration.ofMillis(2), 64 * 1024 * 1024)
+
+        and: "concurrent appenders"
+        def threads = 8
+        def perThread = 250
+        def pool = Executors.newFixedThreadPool(threads)
+
+        when: "every appender appends its operations"
+        def futures = (0..<threads).collect { t ->
+            pool.submit {
+                (0..<perThread).each { log.append([createOp(t * perThread + it + 1)]) }
+            }
+        }
+        futures*.get()
+        pool.shutdown()
+        pool.awaitTermination(10, TimeUnit.SECONDS)
+        log.close()
+        def total = threads * perThread
+
+        then: "every operation was recorded once"
+        def reopened = new WriteAheadLog(dir, durability, Duration.ofMillis(2), 64 * 1024 * 1024)
+        def operations = replayAll(reopened)
+        operations.size() == total
+        operations*.getUserId().toSet() == (1..total).collect { "user" + it }.toSet()
+
+        and: "the sequence numbers continue after all of them"
+        reopened.getNextSequence() == total
+
+        cleanup:
+        reopened?.close()
+
+        where:
+        durability << Durability.values()
+    }
+}
@@ -0,0 +1,71 @@
+package pt.tecnico.distledger.server.visitors
+
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.server.domain.operation.CreateOp
+import pt.tecnico.distledger.server.domain.operation.Operation
+import pt.tecnico.distledger.server.domain.operation.TransferOp
+
+import spock.lang.Specification
+
+class LedgerStateGeneratorTest extends Specification {
+    static def generate(List<Operation> operations) {
+        def generator = new LedgerStateGenerator()
+        operations.each { it.accept(generator) }
+        return generator.build()
+    }
+
+    def "stable operations are only encoded once"() {
+        given: "a stable operation"
+        def op = new TransferOp("broker", "Alice", 10, new VectorClock(), 1, 0)
+        op.setStable()
+
+        when: "it's encoded twice"
+        def first = generate([op]).getLedger(0)
+        def second = generate([op]).getLedger(0)
+
+        then: "the same message is used both times"
+        first.is(second)
+        first.getStable() && !first.getFailed()
+    }
+
+    def "operations are encoded again when their flags change"() {
+        given: "an unstable operation"
+        def op = new CreateOp("Alice", new VectorClock(), 1, 0)
+
+        when: "it's encoded"
+        def unstable = generate([op]).getLedger(0)
+
+        then: "it isn't cached, as it will change"
+        !unstable.getStable()
+        op.getEncoded() == null
+
+        when: "it's stabilized, encoded, and then fails when executed"
+        op.setStable()
+        def stable = generate([op]).getLedger(0)
+        op.setFailed()
+        def failed = generate([op]).getLedger(0)
+
+        then: "each encoding matches its flags, and the last one is cached"
+        stable.getStable() && !stable.getFailed()
+        failed.getStable() && failed.getFailed()
+        op.getEncoded().is(failed)
+    }
+
+    def "encoding a stable ledger again reuses the cached operations"() {
+        given: "a stable ledger"
+        def ledger = (1..1000).collect {
+            def op = new TransferOp("user" + (it % 64), "user" + ((it + 1) % 64), 1,
+                    new VectorClock([it - 1, it / 2] as int[]), it, 0)
+            op.setStable()
+            return op
+        }
+
+        when: "it's encoded twice"
+        def first = generate(ledger)
+        def again = generate(ledger)
+
+        then: "the second encoding holds the operations encoded by the first one"
+        again == first
+        (0..<ledger.size()).every { again.getLedger(it).is(first.getLedger(it)) }
+    }
+}
@@ -38,9 +38,7 @@ class AdminIT extends BaseIT {
                 "    prevTS {\n" +
                 "    }\n" +
                 "    stable: true\n" +
-                "    replicaTS {\n" +
-                "      values: 1\n" +
-                "    }\n" +
+                "    sequence: 1\n" +
                 "  }\n" +
                 "  ledger {\n" +
                 "    type: OP_TRANSFER_TO\n" +
@@ -51,9 +49,7 @@ class AdminIT extends BaseIT {
                 "      values: 1\n" +
                 "    }\n" +
                 "    stable: true\n" +
-                "    replicaTS {\n" +
-                "      values: 2\n" +
-                "    }\n" +
+                "    sequence: 2\n" +
                 "  }\n" +
                 "  ledger {\n" +
                 "    type: OP_TRANSFER_TO\n" +
@@ -64,9 +60,7 @@ class AdminIT extends BaseIT {
                 "      values: 2\n" +
                 "    }\n" +
                 "    stable: true\n" +
-                "    replicaTS {\n" +
-                "      values: 3\n" +
-                "    }\n" +
+                "    sequence: 3\n" +
                 "  }\n" +
                 "}"
     }
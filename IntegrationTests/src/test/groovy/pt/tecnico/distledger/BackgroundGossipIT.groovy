@@ -0,0 +1,39 @@
+package pt.tecnico.distledger
+
+import spock.lang.Timeout
+
+class BackgroundGossipIT extends BaseIT {
+    def setup() {
+        System.setProperty("gossip.background", "true")
+        System.setProperty("gossip.minIntervalMs", "10")
+        System.setProperty("gossip.maxIntervalMs", "200")
+        prepareServers(['A', 'B'])
+        prepareUsers(1)
+    }
+
+    def cleanup() {
+        System.clearProperty("gossip.background")
+        System.clearProperty("gossip.minIntervalMs")
+        System.clearProperty("gossip.maxIntervalMs")
+    }
+
+    @Timeout(30)
+    def "replicas converge without being asked to gossip"() {
+        given: "a user creates an account on replica A"
+        runUser("createAccount A Alice")
+
+        when: "the user reads the account's balance on replica B"
+        def output = runUser("balance B Alice")
+
+        then: "the read completes once replica A gossips on its own"
+        output == "OK\nvalue: 0"
+
+        when: "we check the replication lag of replica A"
+        output = runAdmin("getReplicationLag A")
+
+        then: "it has gossiped with replica B"
+        output.startsWith("OK\nreplicas {\n  id: 1\n")
+        output.contains("millisSinceGossip: ")
+        output.contains("gossipIntervalMillis: ")
+    }
+}
@@ -96,24 +96,30 @@ abstract class BaseIT extends Specification {
     }
 
     def prepareServers(List<String> qualifiers, boolean waitForStart) {
-        for (i in 0..<qualifiers.size()) {
-            // Prepare the server input and output stream
-            def readServerStdin = new PipedInputStream()
-            writeServerStdins << new PipedOutputStream(readServerStdin)
-            serverOutBufs << new ByteArrayOutputStream()
-
-            // Start the server and set the input and output stream
-            serverThreads << Thread.start {
-                mockStdout.setStream(serverOutBufs[i])
-                mockStdin.setStream(readServerStdin)
-                ServerMain.main(new String[] { (baseServerPort + i).toString(), qualifiers[i] })
-            }
-            
-            // Wait for the server to start
-            if (waitForStart) {
-                while (!serverOutBufs[i].toString().endsWith("Press enter to shutdown\n")) {}
-                serverOutBufs[i].reset()
-            }
+        for (qualifier in qualifiers) {
+            startServer(qualifier, waitForStart)
+        }
+    }
+
+    def startServer(String qualifier, boolean waitForStart) {
+        def i = serverThreads.size()
+
+        // Prepare the server input and output stream
+        def readServerStdin = new PipedInputStream()
+        writeServerStdins << new PipedOutputStream(readServerStdin)
+        serverOutBufs << new ByteArrayOutputStream()
+
+        // Start the server and set the input and output stream
+        serverThreads << Thread.start {
+            mockStdout.setStream(serverOutBufs[i])
+            mockStdin.setStream(readServerStdin)
+            ServerMain.main(new String[] { (baseServerPort + i).toString(), qualifier })
+        }
+
+        // Wait for the server to start
+        if (waitForStart) {
+            while (!serverOutBufs[i].toString().endsWith("Press enter to shutdown\n")) {}
+            serverOutBufs[i].reset()
         }
     }
 
@@ -0,0 +1,85 @@
+package pt.tecnico.distledger
+
+import pt.tecnico.distledger.common.grpc.NamingService
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationStatus
+import pt.tecnico.distledger.contract.user.UserDistLedger.Transfer
+import pt.tecnico.distledger.userclient.grpc.UserService
+
+import spock.lang.Timeout
+
+class BatchIT extends BaseIT {
+    def setup() {
+        prepareServers(['A'])
+        prepareUsers(1)
+    }
+
+    def "create a batch of accounts"() {
+        when: "the user creates a batch of accounts, including an invalid one"
+        def output = runUser("batchCreateAccount A Alice broker Bob")
+
+        then: "the output is correct"
+        output == "OK\n1: ACCEPTED\n" +
+                "2: INVALID_ARGUMENT: Account for user broker is a system account and cannot be created\n" +
+                "3: ACCEPTED"
+
+        when: "the user checks the balance of a created account"
+        output = runUser("balance A Bob")
+
+        then: "the balance is correct"
+        output == "OK\nvalue: 0"
+    }
+
+    def "make a batch of transfers"() {
+        given: "two empty accounts"
+        runUser("batchCreateAccount A Alice Bob")
+
+        when: "the user makes a batch of transfers, including an invalid one"
+        def output = runUser("batchTransfer A broker Alice 100 Alice Alice 10 Alice Bob 30")
+
+        then: "the output is correct"
+        output == "OK\n1: ACCEPTED\n" +
+                "2: INVALID_ARGUMENT: Transfers from an account to itself are not allowed\n" +
+                "3: ACCEPTED"
+
+        when: "the user checks the balances of the accounts"
+        def alice = runUser("balance A Alice")
+        def bob = runUser("balance A Bob")
+
+        then: "the valid transfers were executed in order"
+        alice == "OK\nvalue: 70"
+        bob == "OK\nvalue: 30"
+    }
+
+    @Timeout(120)
+    def "transfers made in batches of any size are all accepted"() {
+        given: "a user service, and two funded accounts"
+        def namingService = new NamingService()
+        def userService = new UserService(namingService)
+        userService.batchCreateAccount("A", ["Alice", "Bob"])
+        userService.transferTo("A", "broker", "Alice", 1000)
+        def transfers = 2_000
+
+        when: "the same number of transfers is made with batches of increasing size"
+        def accepted = [1, 10, 100, 1000].collectEntries { size ->
+            def transfer = { i ->
+                def (from, to) = i % 2 == 0 ? ["Alice", "Bob"] : ["Bob", "Alice"]
+                Transfer.newBuilder().setAccountFrom(from).setAccountTo(to).setAmount(1).build()
+            }
+
+            def count = 0
+            for (batch in 0..<(transfers / size)) {
+                def results = userService.batchTransfer("A", (0..<size).collect { transfer(batch * size + it) }).get()
+                count += results.count { it.getStatus() == OperationStatus.ACCEPTED }
+            }
+            [size, count]
+        }
+
+        then: "every transfer was accepted, and no balance was lost"
+        accepted.values().every { it == transfers }
+        userService.balance("A", "Alice").get() == "value: 1000\n"
+
+        cleanup:
+        userService?.close()
+        namingService?.close()
+    }
+}
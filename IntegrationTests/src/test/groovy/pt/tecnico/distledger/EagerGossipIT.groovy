@@ -0,0 +1,76 @@
+package pt.tecnico.distledger
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.locks.LockSupport
+
+import pt.tecnico.distledger.common.grpc.NamingService
+import pt.tecnico.distledger.userclient.grpc.AsyncUserService
+
+import spock.lang.Timeout
+
+class EagerGossipIT extends BaseIT {
+    def namingService
+    def asyncService
+
+    def cleanup() {
+        asyncService?.close()
+        namingService?.close()
+        System.clearProperty("gossip.eager")
+        System.clearProperty("gossip.debounceMs")
+    }
+
+    def startReplicas(int debounceMs) {
+        System.setProperty("gossip.eager", "true")
+        System.setProperty("gossip.debounceMs", String.valueOf(debounceMs))
+        prepareServers(['A', 'B'])
+        namingService = new NamingService()
+        asyncService = new AsyncUserService(namingService)
+    }
+
+    @Timeout(30)
+    def "writes are visible on other replicas without being asked to gossip"() {
+        given: "replicas which push writes eagerly"
+        startReplicas(5)
+        def session = asyncService.newSession()
+
+        when: "an account is created on replica A, and then read on replica B"
+        def balance = session.createAccount("A", "Alice")
+                .thenCompose { session.balance("B", "Alice") }
+                .get()
+
+        then: "the read completes once replica A pushes the write"
+        balance == 0
+    }
+
+    @Timeout(60)
+    def "writes made at a steady rate are visible on other replicas, with a #debounceMs ms debounce window"() {
+        given: "replicas which push writes eagerly"
+        startReplicas(debounceMs)
+        def writer = asyncService.newSession()
+
+        when: "writes are made on replica A at a steady rate, some of them followed by a read on replica B"
+        def seconds = 2
+        def probeEvery = Math.max(rate.intdiv(10), 1)
+        def writes = []
+        def probes = []
+        def start = System.nanoTime()
+        (0..<rate * seconds).each {
+            LockSupport.parkNanos(start + (long) (it * 1e9 / rate) - System.nanoTime())
+            if (it % probeEvery == 0) {
+                // A fresh session, so that the read only waits for the write it follows
+                def probe = asyncService.newSession()
+                probes << probe.createAccount("A", "probe" + it).thenCompose { _ -> probe.balance("B", "probe" + it) }
+            } else {
+                writes << writer.createAccount("A", "user" + it)
+            }
+        }
+        CompletableFuture.allOf((writes + probes) as CompletableFuture[]).get()
+
+        then: "every write followed by a read became visible on replica B"
+        probes.size() == seconds * 10
+        probes*.get().every { it == 0 }
+
+        where:
+        [debounceMs, rate] << [[1, 50], [50, 200]].combinations()
+    }
+}
@@ -0,0 +1,26 @@
+package pt.tecnico.distledger
+
+import spock.lang.Timeout
+
+class JoinIT extends BaseIT {
+    def setup() {
+        prepareServers(['A'])
+        prepareUsers(1)
+    }
+
+    @Timeout(30)
+    def "replica joining the service serves reads from a snapshot, without gossip"() {
+        given: "an account with some balance on replica A"
+        runUser("createAccount A Alice")
+        runUser("transferTo A broker Alice 100")
+
+        when: "replica B joins the service"
+        startServer("B", true)
+
+        then: "it serves the balance the user last saw right away"
+        runUser("balance B Alice") == "OK\nvalue: 100"
+
+        and: "it can gossip the operations it received in the snapshot"
+        runAdmin("getLedgerState B").count("ledger {") == 2
+    }
+}
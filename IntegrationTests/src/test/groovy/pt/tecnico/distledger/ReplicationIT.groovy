@@ -39,9 +39,7 @@ class ReplicationIT extends BaseIT {
                 "    prevTS {\n" +
                 "    }\n" +
                 "    stable: true\n" +
-                "    replicaTS {\n" +
-                "      values: 1\n" +
-                "    }\n" +
+                "    sequence: 1\n" +
                 "  }\n" +
                 "}"
     }
@@ -70,11 +68,8 @@ class ReplicationIT extends BaseIT {
                 "    prevTS {\n" +
                 "      values: 1\n" +
                 "    }\n" +
-                "    replicaTS {\n" +
-                "      values: 0\n" +
-                "      values: 1\n" +
-                "    }\n" +
                 "    replicaId: 1\n" +
+                "    sequence: 1\n" +
                 "  }\n" +
                 "}"
 
@@ -99,9 +94,7 @@ class ReplicationIT extends BaseIT {
                 "    prevTS {\n" +  
                 "    }\n" +
                 "    stable: true\n" +
-                "    replicaTS {\n" +
-                "      values: 1\n" +
-                "    }\n" +
+                "    sequence: 1\n" +
                 "  }\n" +
                 "  ledger {\n" +
                 "    type: OP_TRANSFER_TO\n" +
@@ -112,11 +105,8 @@ class ReplicationIT extends BaseIT {
                 "      values: 1\n" +
                 "    }\n" +
                 "    stable: true\n" +
-                "    replicaTS {\n" +
-                "      values: 0\n" +
-                "      values: 1\n" +
-                "    }\n" +
                 "    replicaId: 1\n" +
+                "    sequence: 1\n" +
                 "  }\n" +
                 "}"
 
@@ -184,9 +174,7 @@ class ReplicationIT extends BaseIT {
             "    prevTS {\n" +
             "    }\n" +
             "    stable: true\n" +
-            "    replicaTS {\n" +
-            "      values: 1\n" +
-            "    }\n" +
+            "    sequence: 1\n" +
             "  }\n" +
             "  ledger {\n" +
             "    type: OP_CREATE_ACCOUNT\n" +
@@ -195,11 +183,8 @@ class ReplicationIT extends BaseIT {
             "      values: 1\n" +
             "    }\n" +
             "    stable: true\n" +
-            "    replicaTS {\n" +
-            "      values: 0\n" +
-            "      values: 1\n" +
-            "    }\n" +
             "    replicaId: 1\n" +
+            "    sequence: 1\n" +
             "  }\n" +
             "  ledger {\n" +
             "    type: OP_CREATE_ACCOUNT\n" +
@@ -209,11 +194,8 @@ class ReplicationIT extends BaseIT {
             "      values: 1\n" +
             "    }\n" +
             "    stable: true\n" +
-            "    replicaTS {\n" +
-            "      values: 0\n" +
-            "      values: 2\n" +
-            "    }\n" +
             "    replicaId: 1\n" +
+            "    sequence: 2\n" +
             "  }\n" +
             "}"
 
@@ -227,12 +209,8 @@ class ReplicationIT extends BaseIT {
             "      values: 1\n" +
             "      values: 2\n" +
             "    }\n" +
-            "    replicaTS {\n" +
-            "      values: 0\n" +
-            "      values: 0\n" +
-            "      values: 1\n" +
-            "    }\n" +
             "    replicaId: 2\n" +
+            "    sequence: 1\n" +
             "  }\n" +
             "  ledger {\n" +
             "    type: OP_CREATE_ACCOUNT\n" +
@@ -240,11 +218,8 @@ class ReplicationIT extends BaseIT {
             "    prevTS {\n" +
             "      values: 1\n" +
             "    }\n" +
-            "    replicaTS {\n" +
-            "      values: 0\n" +
-            "      values: 1\n" +
-            "    }\n" +
             "    replicaId: 1\n" +
+            "    sequence: 1\n" +
             "  }\n" +
             "  ledger {\n" +
             "    type: OP_CREATE_ACCOUNT\n" +
@@ -253,11 +228,8 @@ class ReplicationIT extends BaseIT {
             "      values: 1\n" +
             "      values: 1\n" +
             "    }\n" +
-            "    replicaTS {\n" +
-            "      values: 0\n" +
-            "      values: 2\n" +
-            "    }\n" +
             "    replicaId: 1\n" +
+            "    sequence: 2\n" +
             "  }\n" +
             "}"
         
@@ -273,9 +245,7 @@ class ReplicationIT extends BaseIT {
             "    prevTS {\n" +
             "    }\n" +
             "    stable: true\n" +
-            "    replicaTS {\n" +
-            "      values: 1\n" +
-            "    }\n" +
+            "    sequence: 1\n" +
             "  }\n" +
             "  ledger {\n" +
             "    type: OP_CREATE_ACCOUNT\n" +
@@ -284,11 +254,8 @@ class ReplicationIT extends BaseIT {
             "      values: 1\n" +
             "    }\n" +
             "    stable: true\n" +
-            "    replicaTS {\n" +
-            "      values: 0\n" +
-            "      values: 1\n" +
-            "    }\n" +
             "    replicaId: 1\n" +
+            "    sequence: 1\n" +
             "  }\n" +
             "  ledger {\n" +
             "    type: OP_CREATE_ACCOUNT\n" +
@@ -298,11 +265,8 @@ class ReplicationIT extends BaseIT {
             "      values: 1\n" +
             "    }\n" +
             "    stable: true\n" +
-            "    replicaTS {\n" +
-            "      values: 0\n" +
-            "      values: 2\n" +
-            "    }\n" +
             "    replicaId: 1\n" +
+            "    sequence: 2\n" +
             "  }\n" +
             "  ledger {\n" +
             "    type: OP_CREATE_ACCOUNT\n" +
@@ -312,12 +276,8 @@ class ReplicationIT extends BaseIT {
             "      values: 2\n" +
             "    }\n" +
             "    stable: true\n" +
-            "    replicaTS {\n" +
-            "      values: 0\n" +
-            "      values: 0\n" +
-            "      values: 1\n" +
-            "    }\n" +
             "    replicaId: 2\n" +
+            "    sequence: 1\n" +
             "  }\n" +
             "}"
     }
@@ -341,11 +301,8 @@ class ReplicationIT extends BaseIT {
             "    }\n" +
             "    stable: true\n" +
             "    failed: true\n" +
-            "    replicaTS {\n" +
-            "      values: 0\n" +
-            "      values: 1\n" +
-            "    }\n" +
             "    replicaId: 1\n" +
+            "    sequence: 1\n" +
             "  }\n" +
             "}"
 
@@ -361,9 +318,7 @@ class ReplicationIT extends BaseIT {
             "    prevTS {\n" +
             "    }\n" +
             "    stable: true\n" +
-            "    replicaTS {\n" +
-            "      values: 1\n" +
-            "    }\n" +
+            "    sequence: 1\n" +
             "  }\n" +
             "  ledger {\n" +
             "    type: OP_TRANSFER_TO\n" +
@@ -374,11 +329,8 @@ class ReplicationIT extends BaseIT {
             "    }\n" +
             "    stable: true\n" +
             "    failed: true\n" +
-            "    replicaTS {\n" +
-            "      values: 0\n" +
-            "      values: 1\n" +
-            "    }\n" +
             "    replicaId: 1\n" +
+            "    sequence: 1\n" +
             "  }\n" +
             "}"
     }
@@ -0,0 +1,53 @@
+package pt.tecnico.distledger
+
+import java.util.concurrent.CompletableFuture
+
+import pt.tecnico.distledger.common.grpc.NamingService
+import pt.tecnico.distledger.userclient.grpc.AsyncUserService
+
+import spock.lang.Timeout
+
+class SessionIT extends BaseIT {
+    def namingService
+    def asyncService
+
+    def setup() {
+        prepareServers(['A'])
+        namingService = new NamingService()
+        asyncService = new AsyncUserService(namingService)
+    }
+
+    def cleanup() {
+        asyncService.close()
+        namingService.close()
+    }
+
+    def "sessions observe their own writes"() {
+        given: "a session"
+        def session = asyncService.newSession()
+
+        when: "an account is created and funded, and then its balance is read"
+        def balance = session.createAccount("A", "Alice")
+                .thenCompose { session.transferTo("A", "broker", "Alice", 100) }
+                .thenCompose { session.balance("A", "Alice") }
+                .get()
+
+        then: "the read observes both writes"
+        balance == 100
+        session.getTimeStamp().toList() == [2]
+    }
+
+    @Timeout(120)
+    def "thousands of concurrent sessions observe their own writes"() {
+        when: "many concurrent sessions each create an account and read its balance"
+        def sessions = 2_000
+        def balances = (0..<sessions).collect {
+            def session = asyncService.newSession()
+            session.createAccount("A", "async" + it).thenCompose { _ -> session.balance("A", "async" + it) }
+        }
+        CompletableFuture.allOf(balances as CompletableFuture[]).get()
+
+        then: "every session observed its own account"
+        balances*.get().every { it == 0 }
+    }
+}
@@ -0,0 +1,69 @@
+package pt.tecnico.distledger
+
+import pt.tecnico.distledger.common.grpc.NamingService
+import pt.tecnico.distledger.contract.user.UserDistLedger.CreateAccountRequest
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationStatus
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitRequest
+import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToRequest
+import pt.tecnico.distledger.userclient.grpc.UserService
+
+import spock.lang.Timeout
+
+class SubmitIT extends BaseIT {
+    def namingService
+    def userService
+
+    def setup() {
+        prepareServers(['A'])
+        namingService = new NamingService()
+        userService = new UserService(namingService)
+    }
+
+    def cleanup() {
+        userService.close()
+        namingService.close()
+    }
+
+    static SubmitRequest create(String userId) {
+        SubmitRequest.newBuilder().setCreateAccount(CreateAccountRequest.newBuilder().setUserId(userId)).build()
+    }
+
+    static SubmitRequest transfer(String from, String to, int amount) {
+        SubmitRequest.newBuilder().setTransferTo(TransferToRequest.newBuilder()
+                .setAccountFrom(from).setAccountTo(to).setAmount(amount)).build()
+    }
+
+    def "submit a stream of commands"() {
+        when: "the user submits commands, including an invalid one"
+        def results = userService.submit("A", [
+                create("Alice"), create("Bob"), transfer("broker", "Alice", 100),
+                transfer("Alice", "Alice", 10), transfer("Alice", "Bob", 30)]).get()
+
+        then: "each command has its result, in order"
+        results*.getStatus() == [OperationStatus.ACCEPTED, OperationStatus.ACCEPTED, OperationStatus.ACCEPTED,
+                                 OperationStatus.INVALID_ARGUMENT, OperationStatus.ACCEPTED]
+        results[3].getDescription() == "Transfers from an account to itself are not allowed"
+
+        and: "the accepted commands were executed in order, and are seen by later reads"
+        userService.balance("A", "Alice").get() == "value: 70\n"
+        userService.balance("A", "Bob").get() == "value: 30\n"
+    }
+
+    @Timeout(120)
+    def "transfers made with unary calls and through a stream are all applied"() {
+        given: "two funded accounts"
+        userService.submit("A", [create("Alice"), create("Bob"), transfer("broker", "Alice", 1000)])
+        def transfers = 2_000
+        def commands = (0..<transfers).collect { it % 2 == 0 ? transfer("Alice", "Bob", 1) : transfer("Bob", "Alice", 1) }
+
+        when: "some transfers are made with unary calls, one at a time"
+        (0..<200).each { userService.transferTo("A", it % 2 == 0 ? "Alice" : "Bob", it % 2 == 0 ? "Bob" : "Alice", 1) }
+
+        and: "the transfers are submitted through a single stream"
+        def results = userService.submit("A", commands).get()
+
+        then: "every transfer was accepted, and no balance was lost"
+        results.every { it.getStatus() == OperationStatus.ACCEPTED }
+        userService.balance("A", "Alice").get() == "value: 1000\n"
+    }
+}
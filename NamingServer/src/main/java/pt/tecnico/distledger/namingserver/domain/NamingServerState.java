@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import pt.tecnico.distledger.common.domain.VectorClock;
 import pt.tecnico.distledger.namingserver.domain.exceptions.ServerEntryNotFoundException;
 
 /** Represents the current state of the naming server. */
@@ -23,10 +24,18 @@ public class NamingServerState {
 
   /** Deletes the server entry for the given service and target. */
   public void deleteServer(String service, String target) {
+    this.deleteServer(service, target, 0);
+  }
+
+  /**
+   * Deletes the server entry for the given service and target, which received operations from
+   * clients up to the given sequence number, if positive.
+   */
+  public void deleteServer(String service, String target, int sequence) {
     if (this.services.computeIfPresent(
             service,
             (k, v) -> {
-              v.deleteServer(target);
+              v.deleteServer(target, sequence);
               return v;
             })
         == null) {
@@ -34,6 +43,25 @@ public class NamingServerState {
     }
   }
 
+  /**
+   * Records the operations executed by the server with the given ID in the given service, which is
+   * ignored if it isn't registered in it.
+   *
+   * @return the IDs retired from the given service.
+   */
+  public Retirement report(String service, int id, VectorClock valueTimeStamp) {
+    return Optional.ofNullable(this.services.get(service))
+        .map(entry -> entry.report(id, valueTimeStamp))
+        .orElseGet(() -> new Retirement(0, new VectorClock()));
+  }
+
+  /** Returns the IDs retired from the given service. */
+  public Retirement retired(String service) {
+    return Optional.ofNullable(this.services.get(service))
+        .map(ServiceEntry::retired)
+        .orElseGet(() -> new Retirement(0, new VectorClock()));
+  }
+
   /** Looks up the server entries for the given service and qualifier. */
   public Optional<ServerEntry> lookup(String service, String qualifier) {
     return Optional.ofNullable(this.services.get(service)).flatMap(s -> s.lookup(qualifier));
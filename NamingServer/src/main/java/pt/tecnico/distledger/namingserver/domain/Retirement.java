@@ -0,0 +1,11 @@
+package pt.tecnico.distledger.namingserver.domain;
+
+import pt.tecnico.distledger.common.domain.VectorClock;
+
+/**
+ * Represents the server IDs retired from a service entry.
+ *
+ * @param epoch the number of times IDs were retired from the service.
+ * @param retired the sequence number of the last operation of each retired ID.
+ */
+public record Retirement(int epoch, VectorClock retired) {}
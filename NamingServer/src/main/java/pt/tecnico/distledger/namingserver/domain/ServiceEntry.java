@@ -1,21 +1,39 @@
 package pt.tecnico.distledger.namingserver.domain;
 
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import pt.tecnico.distledger.common.domain.VectorClock;
 import pt.tecnico.distledger.namingserver.domain.exceptions.DuplicateServerEntryException;
 import pt.tecnico.distledger.namingserver.domain.exceptions.ServerEntryNotFoundException;
 
-/** Represents a service entry in the naming server. */
+/**
+ * Represents a service entry in the naming server.
+ *
+ * <p>Server IDs are never reused, so each server which leaves the service after receiving
+ * operations from clients would keep an entry in every timestamp. Its ID is retired once every
+ * server in the service reported having executed all of its operations: from then on, no timestamp
+ * needs its entry, as every server's is ahead of any other's in it. Servers which join the service
+ * afterwards must start from a snapshot of another server, which also covers them.
+ */
 public class ServiceEntry {
   private final String name;
   private final ConcurrentMap<String, ServerEntry> servers = new ConcurrentHashMap<>();
   private final Set<String> targets = ConcurrentHashMap.newKeySet();
   private final AtomicInteger nextId = new AtomicInteger(0);
 
+  // Safety: the following fields are only accessed while holding the entry's lock
+  private final Map<Integer, Integer> departed = new HashMap<>();
+  private final Map<Integer, VectorClock> reports = new HashMap<>();
+  private final VectorClock retired = new VectorClock();
+  private int epoch = 0;
+
   public ServiceEntry(String name) {
     this.name = name;
   }
@@ -25,7 +43,7 @@ public class ServiceEntry {
    *
    * @return a newly-assigned server ID, within this service.
    */
-  public int registerServer(String qualifier, String target) {
+  public synchronized int registerServer(String qualifier, String target) {
     // Add the target to the set of registered targets, and throw an exception if it was already
     // present
     if (!this.targets.add(target)) {
@@ -43,13 +61,52 @@ public class ServiceEntry {
 
   /** Deletes a server from the service entry. */
   public void deleteServer(String target) {
-    if (this.servers.values().removeIf(serverEntry -> target.equals(serverEntry.target()))) {
-      this.targets.remove(target); // Remove the target from the set of registered targets
-      return;
+    this.deleteServer(target, 0);
+  }
+
+  /**
+   * Deletes a server from the service entry, which received operations from clients up to the given
+   * sequence number, if positive, so that its ID is retired once every other server executed them.
+   */
+  public synchronized void deleteServer(String target, int sequence) {
+    final Optional<ServerEntry> server =
+        this.servers.values().stream()
+            .filter(serverEntry -> target.equals(serverEntry.target()))
+            .findFirst();
+    if (server.isEmpty()) {
+      // If we reach this point, the server was not found
+      throw new ServerEntryNotFoundException(this.name, target);
+    }
+
+    this.servers.remove(server.get().qualifier());
+    this.targets.remove(target); // Remove the target from the set of registered targets
+    this.reports.remove(server.get().id());
+    if (sequence > 0) {
+      this.departed.put(server.get().id(), sequence);
     }
 
-    // If we reach this point, the server was not found
-    throw new ServerEntryNotFoundException(this.name, target);
+    // The deleted server may have been the only one behind
+    this.retire();
+  }
+
+  /**
+   * Records the operations executed by the server with the given ID, as covered by the given
+   * timestamp, retiring the IDs of the servers which left if every server executed theirs. Reports
+   * of servers which aren't in the service are ignored.
+   *
+   * @return the IDs retired from the service.
+   */
+  public synchronized Retirement report(int id, VectorClock valueTimeStamp) {
+    if (this.servers.values().stream().anyMatch(server -> server.id() == id)) {
+      this.reports.put(id, new VectorClock(valueTimeStamp));
+      this.retire();
+    }
+    return this.retired();
+  }
+
+  /** Returns the IDs retired from the service. */
+  public synchronized Retirement retired() {
+    return new Retirement(this.epoch, new VectorClock(this.retired));
   }
 
   /** Looks up servers with the given qualifier in the service entry. */
@@ -61,4 +118,36 @@ public class ServiceEntry {
   public List<ServerEntry> lookup() {
     return this.servers.values().stream().toList();
   }
+
+  /**
+   * Retires the IDs of the servers which left whose operations every server in the service
+   * executed, as last reported by them, if there is any server left.
+   *
+   * <p>Safety: must be called while holding the entry's lock.
+   */
+  private void retire() {
+    if (this.servers.isEmpty()) {
+      return;
+    }
+
+    boolean retiredAny = false;
+    final Iterator<Map.Entry<Integer, Integer>> iterator = this.departed.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<Integer, Integer> server = iterator.next();
+      final boolean executed =
+          this.servers.values().stream()
+              .map(live -> this.reports.get(live.id()))
+              .allMatch(
+                  report -> report != null && report.get(server.getKey()) >= server.getValue());
+      if (executed) {
+        this.retired.set(server.getKey(), server.getValue());
+        iterator.remove();
+        retiredAny = true;
+      }
+    }
+
+    if (retiredAny) {
+      this.epoch++;
+    }
+  }
 }
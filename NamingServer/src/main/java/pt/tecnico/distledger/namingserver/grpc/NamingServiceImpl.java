@@ -4,14 +4,20 @@ import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import java.util.List;
 import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.grpc.ProtoUtils;
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.DeleteRequest;
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.DeleteResponse;
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.LookupRequest;
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.LookupResponse;
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RegisterRequest;
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RegisterResponse;
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.ReportRequest;
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.ReportResponse;
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RetiredRequest;
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RetiredResponse;
 import pt.tecnico.distledger.contract.namingserver.NamingServiceGrpc;
 import pt.tecnico.distledger.namingserver.domain.NamingServerState;
+import pt.tecnico.distledger.namingserver.domain.Retirement;
 import pt.tecnico.distledger.namingserver.domain.ServerEntry;
 import pt.tecnico.distledger.namingserver.domain.exceptions.DuplicateServerEntryException;
 import pt.tecnico.distledger.namingserver.domain.exceptions.ServerEntryNotFoundException;
@@ -21,6 +27,8 @@ public class NamingServiceImpl extends NamingServiceGrpc.NamingServiceImplBase {
   private static final String REGISTER_FAILED = "Register failed: ";
   private static final String DELETE_FAILED = "Delete failed: ";
   private static final String LOOKUP_FAILED = "Lookup failed: ";
+  private static final String REPORT_FAILED = "Report failed: ";
+  private static final String RETIRED_FAILED = "Retired failed: ";
 
   private final NamingServerState state;
 
@@ -31,7 +39,7 @@ public class NamingServiceImpl extends NamingServiceGrpc.NamingServiceImplBase {
   @Override
   public void register(RegisterRequest request, StreamObserver<RegisterResponse> responseObserver) {
     Logger.debug("Received Register request:");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
       int id =
@@ -52,10 +60,10 @@ public class NamingServiceImpl extends NamingServiceGrpc.NamingServiceImplBase {
   @Override
   public void delete(DeleteRequest request, StreamObserver<DeleteResponse> responseObserver) {
     Logger.debug("Received Delete request:");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
-      this.state.deleteServer(request.getService(), request.getTarget());
+      this.state.deleteServer(request.getService(), request.getTarget(), request.getSequence());
       responseObserver.onNext(DeleteResponse.getDefaultInstance());
       responseObserver.onCompleted();
     } catch (ServerEntryNotFoundException e) {
@@ -71,7 +79,7 @@ public class NamingServiceImpl extends NamingServiceGrpc.NamingServiceImplBase {
   @Override
   public void lookup(LookupRequest request, StreamObserver<LookupResponse> responseObserver) {
     Logger.debug("Received Lookup request:");
-    Logger.debug(request + "\n");
+    Logger.debug(() -> request + "\n");
 
     try {
       // Lookup the target servers with the requested characteristics.
@@ -105,4 +113,48 @@ public class NamingServiceImpl extends NamingServiceGrpc.NamingServiceImplBase {
       responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
     }
   }
+
+  @Override
+  public void report(ReportRequest request, StreamObserver<ReportResponse> responseObserver) {
+    Logger.debug("Received Report request:");
+    Logger.debug(() -> request + "\n");
+
+    try {
+      Retirement retirement =
+          this.state.report(
+              request.getService(), request.getId(), ProtoUtils.fromProto(request.getValueTS()));
+      responseObserver.onNext(
+          ReportResponse.newBuilder()
+              .setEpoch(retirement.epoch())
+              .setRetired(ProtoUtils.toProto(retirement.retired()))
+              .build());
+      responseObserver.onCompleted();
+    } catch (IllegalArgumentException e) {
+      Logger.debug(REPORT_FAILED + e.getMessage());
+      responseObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+    } catch (RuntimeException e) {
+      Logger.debug(REPORT_FAILED + e.getMessage());
+      responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  @Override
+  public void retired(RetiredRequest request, StreamObserver<RetiredResponse> responseObserver) {
+    Logger.debug("Received Retired request:");
+    Logger.debug(() -> request + "\n");
+
+    try {
+      Retirement retirement = this.state.retired(request.getService());
+      responseObserver.onNext(
+          RetiredResponse.newBuilder()
+              .setEpoch(retirement.epoch())
+              .setRetired(ProtoUtils.toProto(retirement.retired()))
+              .build());
+      responseObserver.onCompleted();
+    } catch (RuntimeException e) {
+      Logger.debug(RETIRED_FAILED + e.getMessage());
+      responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
 }
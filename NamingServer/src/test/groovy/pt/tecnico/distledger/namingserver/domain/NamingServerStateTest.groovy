@@ -1,5 +1,6 @@
 package pt.tecnico.distledger.namingserver.domain
 
+import pt.tecnico.distledger.common.domain.VectorClock
 import pt.tecnico.distledger.namingserver.domain.exceptions.DuplicateServerEntryException
 import pt.tecnico.distledger.namingserver.domain.exceptions.ServerEntryNotFoundException
 import spock.lang.Specification
@@ -121,4 +122,46 @@ class NamingServerStateTest extends Specification {
         none.isEmpty()
         distledgerD.isEmpty()
     }
+
+    def "a server which left is retired once every server executed its operations"() {
+        given: "three servers, one of which received 3 operations before leaving"
+        namingServerState.registerServer("DistLedger", "A", "localhost:8000")
+        namingServerState.registerServer("DistLedger", "B", "localhost:8001")
+        namingServerState.registerServer("DistLedger", "C", "localhost:8002")
+        namingServerState.deleteServer("DistLedger", "localhost:8002", 3)
+
+        when: "only one of the others executed all of them"
+        namingServerState.report("DistLedger", 0, new VectorClock([4, 0, 3] as int[]))
+        def retirement = namingServerState.report("DistLedger", 1, new VectorClock([4, 1, 2] as int[]))
+
+        then: "the server isn't retired"
+        retirement.epoch() == 0
+        retirement.retired().entries() == 0
+
+        when: "the other one executes them too"
+        retirement = namingServerState.report("DistLedger", 1, new VectorClock([4, 1, 3] as int[]))
+
+        then: "the server is retired, with its last operation"
+        retirement.epoch() == 1
+        retirement.retired().toList() == [0, 0, 3]
+        namingServerState.retired("DistLedger").epoch() == 1
+        namingServerState.retired("DistLedger").retired().toList() == [0, 0, 3]
+
+        and: "reports of unknown servers are ignored"
+        namingServerState.report("DistLedger", 2, new VectorClock()).epoch() == 1
+    }
+
+    def "a server which left without operations isn't retired"() {
+        given: "two servers, one of which left before receiving any operation"
+        namingServerState.registerServer("DistLedger", "A", "localhost:8000")
+        namingServerState.registerServer("DistLedger", "B", "localhost:8001")
+        namingServerState.deleteServer("DistLedger", "localhost:8001", 0)
+
+        when: "the other server reports"
+        def retirement = namingServerState.report("DistLedger", 0, new VectorClock([2] as int[]))
+
+        then: "nothing is retired"
+        retirement.epoch() == 0
+        namingServerState.retired("Other").epoch() == 0
+    }
 }
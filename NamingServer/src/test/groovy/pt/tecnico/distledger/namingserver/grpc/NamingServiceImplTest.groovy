@@ -5,6 +5,8 @@ import spock.lang.Specification
 import java.util.stream.Collectors
 import io.grpc.StatusRuntimeException
 import io.grpc.stub.StreamObserver
+import pt.tecnico.distledger.common.domain.VectorClock
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions
 import pt.tecnico.distledger.namingserver.domain.NamingServerState
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.DeleteRequest
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.DeleteResponse
@@ -12,6 +14,10 @@ import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.Lookup
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.LookupResponse
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RegisterRequest
 import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RegisterResponse
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.ReportRequest
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.ReportResponse
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RetiredRequest
+import pt.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RetiredResponse
 
 class NamingServiceImplTest extends Specification {
     def state
@@ -163,12 +169,60 @@ class NamingServiceImplTest extends Specification {
         })
     }
 
+    def "report the operations executed by a server"() {
+        given: "two servers registered, and a third one which left after 2 operations"
+        state.registerServer("DistLedger", "A", "localhost:2000")
+        state.registerServer("DistLedger", "B", "localhost:2001")
+        state.registerServer("DistLedger", "C", "localhost:2002")
+        state.deleteServer("DistLedger", "localhost:2002", 2)
+        state.report("DistLedger", 0, new VectorClock([1, 0, 2] as int[]))
+
+        when: "the other server reports having executed them"
+        service.report(ReportRequest.newBuilder()
+                .setService("DistLedger")
+                .setId(1)
+                .setValueTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addAllValues([0, 1, 2]))
+                .build(),
+                observer)
+
+        then: "the server which left is retired, sent sparsely as it holds a single entry"
+        1 * observer.onNext(ReportResponse.newBuilder()
+                .setEpoch(1)
+                .setRetired(DistLedgerCommonDefinitions.VectorClock.newBuilder().addReplicas(2).addValues(2))
+                .build())
+
+        when: "the retired servers are looked up"
+        service.retired(RetiredRequest.newBuilder().setService("DistLedger").build(), observer)
+
+        then: "the same ones are returned"
+        1 * observer.onNext(RetiredResponse.newBuilder()
+                .setEpoch(1)
+                .setRetired(DistLedgerCommonDefinitions.VectorClock.newBuilder().addReplicas(2).addValues(2))
+                .build())
+    }
+
+    def "report an invalid timestamp"() {
+        when: "a server reports an invalid timestamp"
+        service.report(ReportRequest.newBuilder()
+                .setService("DistLedger")
+                .setValueTS(DistLedgerCommonDefinitions.VectorClock.newBuilder().addReplicas(1))
+                .build(),
+                observer)
+
+        then: "an exception is thrown"
+        1 * observer.onError({
+            it instanceof StatusRuntimeException && it.getMessage() == "INVALID_ARGUMENT: Invalid vector clock"
+        })
+    }
+
     def "catch runtime exceptions"() {
         given: "a mock state that throws an exception when a method is called"
         def state = Mock(NamingServerState)
         state.registerServer(_) >> { throw new RuntimeException("Unknown error") }
         state.deleteServer(_) >> { throw new RuntimeException("Unknown error") }
         state.lookup(*_) >> { throw new RuntimeException("Unknown error") }
+        state.report(*_) >> { throw new RuntimeException("Unknown error") }
+        state.retired(_) >> { throw new RuntimeException("Unknown error") }
 
         and: "an observer that throws an exception when onNext is called"
         observer.onNext(_) >> { throw new RuntimeException("Unknown error") }
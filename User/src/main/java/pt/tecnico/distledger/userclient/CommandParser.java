@@ -1,7 +1,14 @@
 package pt.tecnico.distledger.userclient;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 import pt.tecnico.distledger.common.Logger;
 import pt.tecnico.distledger.common.client.BaseCommandParser;
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationResult;
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationStatus;
+import pt.tecnico.distledger.contract.user.UserDistLedger.Transfer;
 import pt.tecnico.distledger.userclient.grpc.UserService;
 
 /** Parses the input from the user and executes the corresponding commands. */
@@ -10,6 +17,8 @@ public class CommandParser extends BaseCommandParser {
   private static final String TRANSFER_TO = "transferTo";
   private static final String BALANCE = "balance";
   private static final String TIMESTAMP = "timestamp";
+  private static final String BATCH_CREATE_ACCOUNT = "batchCreateAccount";
+  private static final String BATCH_TRANSFER = "batchTransfer";
 
   private final UserService userService;
 
@@ -24,6 +33,8 @@ public class CommandParser extends BaseCommandParser {
       case TRANSFER_TO -> this.transferTo(line);
       case BALANCE -> this.balance(line);
       case TIMESTAMP -> this.handleServiceCallResponse(this.userService::timestamp);
+      case BATCH_CREATE_ACCOUNT -> this.batchCreateAccount(line);
+      case BATCH_TRANSFER -> this.batchTransfer(line);
       default -> {
         Logger.debug("Unknown command: " + cmd);
         this.printUsage();
@@ -77,6 +88,64 @@ public class CommandParser extends BaseCommandParser {
     }
   }
 
+  private void batchCreateAccount(String line) {
+    String[] split = line.split(SPACE);
+    if (split.length < 3) {
+      this.printUsage();
+      return;
+    }
+
+    String server = split[1];
+    List<String> usernames = Arrays.asList(split).subList(2, split.length);
+
+    this.handleServiceCallResponse(
+        () -> describe(this.userService.batchCreateAccount(server, usernames)));
+  }
+
+  private void batchTransfer(String line) {
+    String[] split = line.split(SPACE);
+    if (split.length < 5 || (split.length - 2) % 3 != 0) {
+      this.printUsage();
+      return;
+    }
+
+    try {
+      String server = split[1];
+      List<Transfer> transfers = new ArrayList<>();
+      for (int i = 2; i < split.length; i += 3) {
+        transfers.add(
+            Transfer.newBuilder()
+                .setAccountFrom(split[i])
+                .setAccountTo(split[i + 1])
+                .setAmount(Integer.parseInt(split[i + 2]))
+                .build());
+      }
+
+      this.handleServiceCallResponse(
+          () -> describe(this.userService.batchTransfer(server, transfers)));
+    } catch (NumberFormatException e) {
+      Logger.debug(e.getMessage());
+      System.out.println("Error: Invalid number provided");
+    }
+  }
+
+  /** Describes the result of each operation of a batch, one per line. */
+  private static Optional<String> describe(Optional<List<OperationResult>> results) {
+    return results.map(
+        list -> {
+          StringBuilder builder = new StringBuilder();
+          for (int i = 0; i < list.size(); i++) {
+            OperationResult result = list.get(i);
+            builder.append(i + 1).append(": ").append(result.getStatus());
+            if (result.getStatus() != OperationStatus.ACCEPTED) {
+              builder.append(": ").append(result.getDescription());
+            }
+            builder.append('\n');
+          }
+          return builder.toString();
+        });
+  }
+
   @Override
   protected void printUsage() {
     System.out.println(
@@ -84,6 +153,8 @@ public class CommandParser extends BaseCommandParser {
             + "- createAccount <server> <username>\n"
             + "- balance <server> <username>\n"
             + "- transferTo <server> <username_from> <username_to> <amount>\n"
+            + "- batchCreateAccount <server> <username> [<username> ...]\n"
+            + "- batchTransfer <server> <username_from> <username_to> <amount> [...]\n"
             + "- timestamp\n"
             + "- exit\n");
   }
@@ -0,0 +1,118 @@
+package pt.tecnico.distledger.userclient.grpc;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import java.util.concurrent.CompletableFuture;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.common.grpc.BaseService;
+import pt.tecnico.distledger.common.grpc.NamingService;
+import pt.tecnico.distledger.common.grpc.RetiredReplicas;
+import pt.tecnico.distledger.contract.user.UserServiceGrpc;
+
+/**
+ * Handles User operations asynchronously, making non-blocking gRPC requests to the server's User
+ * service.
+ *
+ * <p>The service may be shared by any number of threads, each with any number of requests in
+ * flight. Causal consistency is tracked by the sessions created through {@link #newSession()},
+ * which share the connections of the service, so a process may keep thousands of them.
+ *
+ * <p>Futures are completed by gRPC's threads, so long-running stages which depend on them should
+ * run in another executor.
+ */
+public class AsyncUserService extends BaseService<UserServiceGrpc.UserServiceStub> {
+  private static final int MAX_TRIES = 2;
+
+  /**
+   * Sends a request through an async stub.
+   *
+   * @param <Q> the request type.
+   * @param <R> the response type.
+   */
+  @FunctionalInterface
+  interface Dispatcher<Q, R> {
+    void dispatch(UserServiceGrpc.UserServiceStub stub, Q request, StreamObserver<R> observer);
+  }
+
+  private final RetiredReplicas retiredReplicas;
+
+  public AsyncUserService(NamingService namingService) {
+    super(namingService, UserServiceGrpc::newStub);
+    this.retiredReplicas = new RetiredReplicas(namingService);
+  }
+
+  /** Returns the replicas retired from the service, shared by all sessions. */
+  RetiredReplicas getRetiredReplicas() {
+    return this.retiredReplicas;
+  }
+
+  /** Creates a new session, which hasn't observed any state yet. */
+  public UserSession newSession() {
+    return new UserSession(this);
+  }
+
+  /**
+   * Makes a unary request to the server, retrying it with a new stub if the server is unavailable.
+   *
+   * @param server the server's qualifier.
+   * @param request the request to be sent.
+   * @param dispatcher the function that sends the request through the stub.
+   * @param <Q> the request type.
+   * @param <R> the response type.
+   * @return a future of the response, which fails with a {@link StatusRuntimeException} if the
+   *     request fails, or if the server is still unavailable after the last try.
+   */
+  <Q, R> CompletableFuture<R> call(String server, Q request, Dispatcher<Q, R> dispatcher) {
+    final CompletableFuture<R> response = new CompletableFuture<>();
+    this.call(server, request, dispatcher, MAX_TRIES, response);
+    return response;
+  }
+
+  private <Q, R> void call(
+      String server,
+      Q request,
+      Dispatcher<Q, R> dispatcher,
+      int triesLeft,
+      CompletableFuture<R> response) {
+    final UserServiceGrpc.UserServiceStub stub;
+    try {
+      stub = this.stubCache.getStub(server);
+    } catch (RuntimeException e) {
+      // Also thrown when no server is found with the specified qualifier
+      response.completeExceptionally(e);
+      return;
+    }
+
+    Logger.debug(() -> "Sending request: " + request);
+    dispatcher.dispatch(
+        stub,
+        request,
+        new StreamObserver<>() {
+          private R value;
+
+          @Override
+          public void onNext(R value) {
+            this.value = value;
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            if (Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE) {
+              AsyncUserService.this.stubCache.invalidateCachedStub(server);
+              if (triesLeft > 1) {
+                AsyncUserService.this.call(server, request, dispatcher, triesLeft - 1, response);
+                return;
+              }
+            }
+
+            response.completeExceptionally(t);
+          }
+
+          @Override
+          public void onCompleted() {
+            response.complete(this.value);
+          }
+        });
+  }
+}
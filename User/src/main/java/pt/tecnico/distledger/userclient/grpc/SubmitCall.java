@@ -0,0 +1,121 @@
+package pt.tecnico.distledger.userclient.grpc;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import pt.tecnico.distledger.common.Logger;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitResponse;
+
+/**
+ * Streams a sequence of commands through a single submit call, collecting their acknowledgements.
+ *
+ * <p>Commands are sent whenever the call is ready to take them, without waiting for the
+ * acknowledgements of the previous ones, and the call is half-closed once all of them are sent. The
+ * correlation ID of each command is its index, which matches it with its acknowledgement.
+ *
+ * <p>gRPC runs the callbacks of a call one at a time, so the fields of the call aren't
+ * synchronized.
+ */
+class SubmitCall implements ClientResponseObserver<SubmitRequest, SubmitResponse> {
+  private final List<SubmitRequest> commands;
+  private final SubmitResponse[] responses;
+  private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+  private ClientCallStreamObserver<SubmitRequest> requestStream;
+  private int next = 0;
+  private boolean halfClosed = false;
+
+  /**
+   * Creates a new SubmitCall.
+   *
+   * @param commands the commands to send, whose correlation IDs must be their indices.
+   */
+  SubmitCall(List<SubmitRequest> commands) {
+    this.commands = commands;
+    this.responses = new SubmitResponse[commands.size()];
+  }
+
+  /** Returns a copy of the command with the given correlation ID and prevTS. */
+  static SubmitRequest prepare(
+      SubmitRequest command, long correlationId, DistLedgerCommonDefinitions.VectorClock prevTs) {
+    final SubmitRequest.Builder builder = command.toBuilder().setCorrelationId(correlationId);
+    switch (command.getCommandCase()) {
+      case CREATEACCOUNT -> builder.getCreateAccountBuilder().setPrevTS(prevTs);
+      case TRANSFERTO -> builder.getTransferToBuilder().setPrevTS(prevTs);
+      default -> {
+        // A command which isn't set has no timestamp to set, and is rejected by the server
+      }
+    }
+    return builder.build();
+  }
+
+  @Override
+  public void beforeStart(ClientCallStreamObserver<SubmitRequest> requestStream) {
+    this.requestStream = requestStream;
+    requestStream.setOnReadyHandler(this::sendWhileReady);
+  }
+
+  @Override
+  public void onNext(SubmitResponse response) {
+    final long id = response.getCorrelationId();
+    if (id >= 0 && id < this.responses.length) {
+      this.responses[(int) id] = response;
+    }
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    this.done.completeExceptionally(t);
+  }
+
+  @Override
+  public void onCompleted() {
+    this.done.complete(null);
+  }
+
+  /**
+   * Waits for the acknowledgements of every command.
+   *
+   * @return the acknowledgements, in the order of the commands.
+   * @throws io.grpc.StatusRuntimeException if the call fails, or if some command wasn't
+   *     acknowledged.
+   */
+  List<SubmitResponse> await() {
+    try {
+      this.done.get();
+    } catch (ExecutionException e) {
+      throw Status.fromThrowable(e.getCause()).asRuntimeException();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      this.requestStream.cancel("Interrupted", e);
+      throw Status.CANCELLED.withCause(e).asRuntimeException();
+    }
+
+    final List<SubmitResponse> acknowledged = Arrays.asList(this.responses);
+    if (acknowledged.contains(null)) {
+      throw Status.INTERNAL
+          .withDescription("Some commands were not acknowledged")
+          .asRuntimeException();
+    }
+    return acknowledged;
+  }
+
+  private void sendWhileReady() {
+    while (this.next < this.commands.size() && this.requestStream.isReady()) {
+      final SubmitRequest command = this.commands.get(this.next++);
+      Logger.debug(() -> "Sending command: " + command);
+      this.requestStream.onNext(command);
+    }
+
+    if (this.next == this.commands.size() && !this.halfClosed) {
+      this.halfClosed = true;
+      this.requestStream.onCompleted();
+    }
+  }
+}
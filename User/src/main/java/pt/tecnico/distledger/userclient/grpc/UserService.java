@@ -1,25 +1,46 @@
 package pt.tecnico.distledger.userclient.grpc;
 
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import pt.tecnico.distledger.common.domain.VectorClock;
 import pt.tecnico.distledger.common.grpc.BaseService;
 import pt.tecnico.distledger.common.grpc.NamingService;
 import pt.tecnico.distledger.common.grpc.ProtoUtils;
+import pt.tecnico.distledger.common.grpc.RetiredReplicas;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions;
 import pt.tecnico.distledger.contract.user.UserDistLedger.BalanceRequest;
 import pt.tecnico.distledger.contract.user.UserDistLedger.BalanceResponse;
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchCreateAccountRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchCreateAccountResponse;
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchTransferRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchTransferResponse;
 import pt.tecnico.distledger.contract.user.UserDistLedger.CreateAccountRequest;
 import pt.tecnico.distledger.contract.user.UserDistLedger.CreateAccountResponse;
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationResult;
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.SubmitResponse;
+import pt.tecnico.distledger.contract.user.UserDistLedger.Transfer;
 import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToRequest;
 import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToResponse;
 import pt.tecnico.distledger.contract.user.UserServiceGrpc;
 
-/** Handles User operations, making gRPC requests to the server's User service. */
+/**
+ * Handles User operations, making gRPC requests to the server's User service.
+ *
+ * <p>Requests are blocking, and the session's timestamp isn't synchronized, so the service must
+ * only be used by one thread at a time. See {@link AsyncUserService} for concurrent sessions.
+ */
 public class UserService extends BaseService<UserServiceGrpc.UserServiceBlockingStub> {
   private static final int MAX_TRIES = 2;
   private final VectorClock prevTimeStamp = new VectorClock();
+  private final RetiredReplicas retiredReplicas;
 
   public UserService(NamingService namingService) {
     super(namingService, UserServiceGrpc::newBlockingStub);
+    this.retiredReplicas = new RetiredReplicas(namingService);
   }
 
   /** Handle the Balance command. */
@@ -34,10 +55,7 @@ public class UserService extends BaseService<UserServiceGrpc.UserServiceBlocking
         this.makeRequestWithRetryInvalidatingStubCache(
             server, request, UserServiceGrpc.UserServiceBlockingStub::balance, MAX_TRIES);
 
-    response
-        .map(BalanceResponse::getValueTS)
-        .map(ProtoUtils::fromProto)
-        .ifPresent(this.prevTimeStamp::merge);
+    response.map(BalanceResponse::getValueTS).ifPresent(this::observe);
 
     return response.map(BalanceResponse::getValue).map(value -> "value: " + value + "\n");
   }
@@ -54,10 +72,7 @@ public class UserService extends BaseService<UserServiceGrpc.UserServiceBlocking
         this.makeRequestWithRetryInvalidatingStubCache(
             server, request, UserServiceGrpc.UserServiceBlockingStub::createAccount, MAX_TRIES);
 
-    response
-        .map(CreateAccountResponse::getValueTS)
-        .map(ProtoUtils::fromProto)
-        .ifPresent(this.prevTimeStamp::merge);
+    response.map(CreateAccountResponse::getValueTS).ifPresent(this::observe);
 
     return response.isPresent() ? Optional.of("") : Optional.empty();
   }
@@ -76,16 +91,115 @@ public class UserService extends BaseService<UserServiceGrpc.UserServiceBlocking
         this.makeRequestWithRetryInvalidatingStubCache(
             server, request, UserServiceGrpc.UserServiceBlockingStub::transferTo, MAX_TRIES);
 
-    response
-        .map(TransferToResponse::getValueTS)
-        .map(ProtoUtils::fromProto)
-        .ifPresent(this.prevTimeStamp::merge);
+    response.map(TransferToResponse::getValueTS).ifPresent(this::observe);
 
     return response.isPresent() ? Optional.of("") : Optional.empty();
   }
 
+  /**
+   * Creates a batch of accounts with a single request.
+   *
+   * @param server the server's qualifier.
+   * @param userIds the IDs of the accounts to create.
+   * @return the result of each creation, in order, or empty if the server is unavailable.
+   */
+  public Optional<List<OperationResult>> batchCreateAccount(String server, List<String> userIds) {
+    BatchCreateAccountRequest request =
+        BatchCreateAccountRequest.newBuilder()
+            .addAllUserIds(userIds)
+            .setPrevTS(ProtoUtils.toProto(this.prevTimeStamp))
+            .build();
+
+    Optional<BatchCreateAccountResponse> response =
+        this.makeRequestWithRetryInvalidatingStubCache(
+            server,
+            request,
+            UserServiceGrpc.UserServiceBlockingStub::batchCreateAccount,
+            MAX_TRIES);
+
+    response.map(BatchCreateAccountResponse::getValueTS).ifPresent(this::observe);
+
+    return response.map(BatchCreateAccountResponse::getResultsList);
+  }
+
+  /**
+   * Makes a batch of transfers with a single request.
+   *
+   * @param server the server's qualifier.
+   * @param transfers the transfers to make.
+   * @return the result of each transfer, in order, or empty if the server is unavailable.
+   */
+  public Optional<List<OperationResult>> batchTransfer(String server, List<Transfer> transfers) {
+    BatchTransferRequest request =
+        BatchTransferRequest.newBuilder()
+            .addAllTransfers(transfers)
+            .setPrevTS(ProtoUtils.toProto(this.prevTimeStamp))
+            .build();
+
+    Optional<BatchTransferResponse> response =
+        this.makeRequestWithRetryInvalidatingStubCache(
+            server, request, UserServiceGrpc.UserServiceBlockingStub::batchTransfer, MAX_TRIES);
+
+    response.map(BatchTransferResponse::getValueTS).ifPresent(this::observe);
+
+    return response.map(BatchTransferResponse::getResultsList);
+  }
+
+  /**
+   * Submits a sequence of commands through a single stream, sending each one without waiting for
+   * the acknowledgements of the previous ones. As in a batch, every command shares the same prevTS.
+   *
+   * <p>Unlike other requests, the stream isn't retried if the server becomes unavailable, since
+   * some of its commands may have been added to the ledger without being acknowledged.
+   *
+   * @param server the server's qualifier.
+   * @param commands the create account and transfer commands to submit. Their correlation IDs and
+   *     prevTS are set by this method.
+   * @return the result of each command, in order, or empty if the server is unavailable.
+   */
+  public Optional<List<OperationResult>> submit(String server, List<SubmitRequest> commands) {
+    final DistLedgerCommonDefinitions.VectorClock prevTimeStamp =
+        ProtoUtils.toProto(this.prevTimeStamp);
+    final List<SubmitRequest> requests = new ArrayList<>(commands.size());
+    for (int i = 0; i < commands.size(); i++) {
+      requests.add(SubmitCall.prepare(commands.get(i), i, prevTimeStamp));
+    }
+
+    final List<SubmitResponse> responses;
+    try {
+      final SubmitCall call = new SubmitCall(requests);
+      UserServiceGrpc.newStub(this.stubCache.getChannel(server)).submit(call);
+      responses = call.await();
+    } catch (StatusRuntimeException e) {
+      if (e.getStatus().getCode() == Status.Code.UNAVAILABLE) {
+        this.stubCache.invalidateCachedStub(server);
+        return Optional.empty();
+      }
+
+      throw e;
+    }
+
+    final List<OperationResult> results = new ArrayList<>(responses.size());
+    for (SubmitResponse response : responses) {
+      this.observe(response.getValueTS());
+      results.add(response.getResult());
+    }
+    return Optional.of(results);
+  }
+
   /** Handle the Timestamp command. */
   public Optional<String> timestamp() {
     return Optional.of("timestamp: " + this.prevTimeStamp + "\n");
   }
+
+  /**
+   * Merges a timestamp received from a server into the session's one, dropping the entries of the
+   * replicas retired as of the epoch it's stamped with.
+   */
+  private void observe(DistLedgerCommonDefinitions.VectorClock valueTimeStamp) {
+    this.prevTimeStamp.merge(ProtoUtils.fromProto(valueTimeStamp));
+    if (valueTimeStamp.getEpoch() > 0) {
+      this.prevTimeStamp.retire(this.retiredReplicas.get(valueTimeStamp.getEpoch()));
+    }
+  }
 }
@@ -0,0 +1,120 @@
+package pt.tecnico.distledger.userclient.grpc;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import pt.tecnico.distledger.common.domain.VectorClock;
+import pt.tecnico.distledger.common.grpc.ProtoUtils;
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+import pt.tecnico.distledger.contract.user.UserDistLedger.BalanceRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.CreateAccountRequest;
+import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToRequest;
+import pt.tecnico.distledger.contract.user.UserServiceGrpc;
+
+/**
+ * A causal session of a User client, which tracks the timestamp of the state it has observed.
+ *
+ * <p>Requests may be made from any thread, without waiting for the previous ones to complete. Each
+ * request carries the session's timestamp at the time it's made, and the timestamp of its response
+ * is merged into the session's once it's received. Requests in flight at the same time aren't
+ * ordered among themselves: for a request to observe the effects of another, it must be made once
+ * the future of the other completes.
+ *
+ * <p>The timestamp is never modified once set, and is replaced through compare-and-set, so merging
+ * responses doesn't take any lock.
+ */
+public class UserSession {
+  private final AsyncUserService service;
+  private final AtomicReference<VectorClock> timeStamp =
+      new AtomicReference<>(new VectorClock().share());
+
+  UserSession(AsyncUserService service) {
+    this.service = service;
+  }
+
+  /**
+   * Reads the balance of an account, once the server has observed the state of this session.
+   *
+   * @return a future of the balance.
+   */
+  public CompletableFuture<Integer> balance(String server, String userId) {
+    final BalanceRequest request =
+        BalanceRequest.newBuilder().setUserId(userId).setPrevTS(this.prevTimeStamp()).build();
+
+    return this.service
+        .call(server, request, UserServiceGrpc.UserServiceStub::balance)
+        .thenApply(
+            response -> {
+              this.observe(response.getValueTS());
+              return response.getValue();
+            });
+  }
+
+  /**
+   * Creates an account.
+   *
+   * @return a future which completes once the account creation is added to the server's ledger.
+   */
+  public CompletableFuture<Void> createAccount(String server, String userId) {
+    final CreateAccountRequest request =
+        CreateAccountRequest.newBuilder().setUserId(userId).setPrevTS(this.prevTimeStamp()).build();
+
+    return this.service
+        .call(server, request, UserServiceGrpc.UserServiceStub::createAccount)
+        .thenAccept(response -> this.observe(response.getValueTS()));
+  }
+
+  /**
+   * Transfers an amount between two accounts.
+   *
+   * @return a future which completes once the transfer is added to the server's ledger.
+   */
+  public CompletableFuture<Void> transferTo(String server, String from, String dest, int amount) {
+    final TransferToRequest request =
+        TransferToRequest.newBuilder()
+            .setAccountFrom(from)
+            .setAccountTo(dest)
+            .setAmount(amount)
+            .setPrevTS(this.prevTimeStamp())
+            .build();
+
+    return this.service
+        .call(server, request, UserServiceGrpc.UserServiceStub::transferTo)
+        .thenAccept(response -> this.observe(response.getValueTS()));
+  }
+
+  /** Returns a copy of the timestamp of the state this session has observed. */
+  public VectorClock getTimeStamp() {
+    return new VectorClock(this.timeStamp.get());
+  }
+
+  private DistLedgerCommonDefinitions.VectorClock prevTimeStamp() {
+    return ProtoUtils.toProto(this.timeStamp.get());
+  }
+
+  /**
+   * Merges a received timestamp into the session's, dropping the entries of the replicas retired as
+   * of the epoch it's stamped with, unless that leaves the session's unchanged.
+   */
+  private void observe(DistLedgerCommonDefinitions.VectorClock valueTimeStamp) {
+    final VectorClock received = ProtoUtils.fromProto(valueTimeStamp);
+    final Optional<VectorClock> retired =
+        valueTimeStamp.getEpoch() > 0
+            ? Optional.of(this.service.getRetiredReplicas().get(valueTimeStamp.getEpoch()))
+            : Optional.empty();
+
+    VectorClock current;
+    VectorClock merged;
+    do {
+      // The published timestamp is shared, so copies only take their own arrays once modified
+      current = this.timeStamp.get();
+      merged = new VectorClock(current);
+      merged.merge(received);
+      retired.ifPresent(merged::retire);
+      if (VectorClock.compare(merged, current) == VectorClock.Order.EQUAL) {
+        return;
+      }
+      merged.share();
+    } while (!this.timeStamp.compareAndSet(current, merged));
+  }
+}
@@ -17,6 +17,8 @@ abstract class BaseTest extends Specification {
         "- createAccount <server> <username>\n" +
         "- balance <server> <username>\n" +
         "- transferTo <server> <username_from> <username_to> <amount>\n" +
+        "- batchCreateAccount <server> <username> [<username> ...]\n" +
+        "- batchTransfer <server> <username_from> <username_to> <amount> [...]\n" +
         "- timestamp\n" +
         "- exit\n"
 
@@ -0,0 +1,90 @@
+package pt.tecnico.distledger.userclient
+
+import org.grpcmock.GrpcMock
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchTransferRequest
+import pt.tecnico.distledger.contract.user.UserDistLedger.BatchTransferResponse
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationResult
+import pt.tecnico.distledger.contract.user.UserDistLedger.OperationStatus
+import pt.tecnico.distledger.contract.user.UserDistLedger.Transfer
+import pt.tecnico.distledger.contract.user.UserServiceGrpc
+
+class BatchTransferTest extends BaseTest {
+    def "user provides invalid batch transfer command"() {
+        given: "a batch transfer input with an incomplete transfer"
+        provideInput("batchTransfer A Alice Bob 10 Bob\nexit\n")
+
+        when: "the user client is run"
+        runMain()
+
+        then: "the output is correct"
+        outBuf.toString() == ("> " + EXPECTED_USAGE_STRING + "\n> ")
+
+        and: "the mock server received no requests"
+        GrpcMock.verifyThat(GrpcMock.calledMethod(UserServiceGrpc.getBatchTransferMethod()), GrpcMock.never())
+    }
+
+    def "user provides invalid batch transfer amount"() {
+        given: "a batch transfer input with an invalid amount"
+        provideInput("batchTransfer A Alice Bob 10 Bob Alice notANumber\nexit\n")
+
+        when: "the user client is run"
+        runMain()
+
+        then: "the output is correct"
+        outBuf.toString() == ("> Error: Invalid number provided\n> ")
+    }
+
+    def "batch transfer returns the result of each transfer"() {
+        given: "a batch transfer input"
+        provideInput("batchTransfer A Alice Bob 10 Bob Bob 5\nexit\n")
+
+        and: "a mock server that rejects the second transfer"
+        GrpcMock.stubFor(
+                GrpcMock.unaryMethod(UserServiceGrpc.getBatchTransferMethod())
+                        .willReturn(GrpcMock.response(BatchTransferResponse.newBuilder()
+                                .addResults(OperationResult.newBuilder()
+                                        .setStatus(OperationStatus.ACCEPTED)
+                                        .build())
+                                .addResults(OperationResult.newBuilder()
+                                        .setStatus(OperationStatus.INVALID_ARGUMENT)
+                                        .setDescription("Transfers from an account to itself are not allowed")
+                                        .build())
+                                .setValueTS(DistLedgerCommonDefinitions.VectorClock
+                                        .newBuilder()
+                                        .addAllValues([1])
+                                        .build())
+                                .build())))
+
+        when: "the user client is run"
+        runMain()
+
+        then: "the output is correct"
+        outBuf.toString() == "> OK\n1: ACCEPTED\n" +
+                "2: INVALID_ARGUMENT: Transfers from an account to itself are not allowed\n\n> "
+
+        and: "the mock server received the correct request, exactly once"
+        GrpcMock.verifyThat(
+                GrpcMock.calledMethod(UserServiceGrpc.getBatchTransferMethod())
+                        .withRequest(BatchTransferRequest
+                                .newBuilder()
+                                .addTransfers(Transfer.newBuilder()
+                                        .setAccountFrom("Alice")
+                                        .setAccountTo("Bob")
+                                        .setAmount(10)
+                                        .build())
+                                .addTransfers(Transfer.newBuilder()
+                                        .setAccountFrom("Bob")
+                                        .setAccountTo("Bob")
+                                        .setAmount(5)
+                                        .build())
+                                .setPrevTS(DistLedgerCommonDefinitions.VectorClock
+                                        .newBuilder()
+                                        .addAllValues([])
+                                        .build()
+                                )
+                                .build()),
+                GrpcMock.times(1)
+        )
+    }
+}
@@ -0,0 +1,119 @@
+package pt.tecnico.distledger.userclient
+
+import io.grpc.Status
+import io.grpc.StatusRuntimeException
+import org.grpcmock.GrpcMock
+import pt.tecnico.distledger.common.grpc.NamingService
+import pt.tecnico.distledger.contract.DistLedgerCommonDefinitions
+import pt.tecnico.distledger.contract.user.UserDistLedger.BalanceRequest
+import pt.tecnico.distledger.contract.user.UserDistLedger.BalanceResponse
+import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToRequest
+import pt.tecnico.distledger.contract.user.UserDistLedger.TransferToResponse
+import pt.tecnico.distledger.contract.user.UserServiceGrpc
+import pt.tecnico.distledger.userclient.grpc.AsyncUserService
+
+import java.util.concurrent.ExecutionException
+
+class UserSessionTest extends BaseTest {
+    def namingService
+    def service
+
+    def setup() {
+        namingService = new NamingService(mockServerTarget)
+        service = new AsyncUserService(namingService)
+    }
+
+    def cleanup() {
+        service.close()
+        namingService.close()
+    }
+
+    static DistLedgerCommonDefinitions.VectorClock clock(List<Integer> values) {
+        DistLedgerCommonDefinitions.VectorClock.newBuilder().addAllValues(values).build()
+    }
+
+    def "session carries the timestamps of its responses"() {
+        given: "a mock server which returns timestamps"
+        GrpcMock.stubFor(
+                GrpcMock.unaryMethod(UserServiceGrpc.getTransferToMethod())
+                        .willReturn(GrpcMock.response(TransferToResponse.newBuilder()
+                                .setValueTS(clock([1]))
+                                .build())))
+        GrpcMock.stubFor(
+                GrpcMock.unaryMethod(UserServiceGrpc.getBalanceMethod())
+                        .willReturn(GrpcMock.response(BalanceResponse.newBuilder()
+                                .setValue(10)
+                                .setValueTS(clock([0, 2]))
+                                .build())))
+
+        and: "a new session"
+        def session = service.newSession()
+
+        when: "a transfer is made, and then the balance is read"
+        def balance = session.transferTo("A", "Alice", "Bob", 10)
+                .thenCompose { session.balance("A", "Bob") }
+                .get()
+
+        then: "the balance is returned, and the session observed both timestamps"
+        balance == 10
+        session.getTimeStamp().toList() == [1, 2]
+
+        and: "the read carried the timestamp of the transfer"
+        GrpcMock.verifyThat(
+                GrpcMock.calledMethod(UserServiceGrpc.getBalanceMethod())
+                        .withRequest(BalanceRequest.newBuilder()
+                                .setUserId("Bob")
+                                .setPrevTS(clock([1]))
+                                .build()),
+                GrpcMock.times(1))
+    }
+
+    def "sessions keep requests in flight without blocking"() {
+        given: "a mock server which returns a timestamp"
+        GrpcMock.stubFor(
+                GrpcMock.unaryMethod(UserServiceGrpc.getTransferToMethod())
+                        .willReturn(GrpcMock.response(TransferToResponse.newBuilder()
+                                .setValueTS(clock([3]))
+                                .build())))
+
+        and: "sessions shared by many threads"
+        def sessions = (1..10).collect { service.newSession() }
+
+        when: "many transfers are made at once"
+        def futures = Collections.synchronizedList([])
+        (1..4).collect { t ->
+            Thread.start { sessions.each { session -> 25.times { futures << session.transferTo("A", "Alice", "Bob", 1) } } }
+        }*.join()
+        futures*.get()
+
+        then: "every transfer reached the server, and every session observed its timestamp"
+        GrpcMock.verifyThat(GrpcMock.calledMethod(UserServiceGrpc.getTransferToMethod()), GrpcMock.times(1000))
+        sessions.every { it.getTimeStamp().toList() == [3] }
+    }
+
+    def "unavailable servers fail the future after retrying"() {
+        given: "a mock server which is unavailable"
+        GrpcMock.stubFor(
+                GrpcMock.unaryMethod(UserServiceGrpc.getTransferToMethod())
+                        .willReturn(GrpcMock.statusException(Status.UNAVAILABLE)))
+
+        when: "a transfer is made"
+        service.newSession().transferTo("A", "Alice", "Bob", 10).get()
+
+        then: "the future fails"
+        def e = thrown(ExecutionException)
+        e.getCause() instanceof StatusRuntimeException
+        e.getCause().getStatus().getCode() == Status.Code.UNAVAILABLE
+
+        and: "the request was retried once"
+        GrpcMock.verifyThat(
+                GrpcMock.calledMethod(UserServiceGrpc.getTransferToMethod())
+                        .withRequest(TransferToRequest.newBuilder()
+                                .setAccountFrom("Alice")
+                                .setAccountTo("Bob")
+                                .setAmount(10)
+                                .setPrevTS(clock([]))
+                                .build()),
+                GrpcMock.times(2))
+    }
+}